@@ -0,0 +1,128 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+
+/** Single book benchmarks - each {@link OfferBookType} at sizes from 10 to 10M offers, queried and
+ * churned (an add plus the matching remove, so the size holds steady) alone, from several threads,
+ * and as a 3 reader / 1 writer mix.
+ *
+ * @author Roberto Olivares (reo)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-XX:MaxDirectMemorySize=4g" })
+public class OfferBookBenchmark {
+
+	// Prices are drawn from 0.00 up to this many cents
+	static final int PRICE_RANGE_CENTS = 10_000_000;
+
+	// Pre-drawn operations per thread - a power of two
+	static final int OPERATIONS = 1 << 16;
+
+	@Param({ "SKIP_LIST", "PRIMITIVE", "OFF_HEAP", "RANKED", "LSM" })
+	public OfferBookType bookType;
+
+	@Param({ "10", "1000", "100000", "10000000" })
+	public int size;
+
+	OfferBook book;
+
+	@Setup
+	public void fill() {
+		book = bookType.newBook();
+		Random random = new Random(42);
+		long[] offerIds = new long[8192];
+		long[] priceCents = new long[8192];
+		for (int added = 0; added < size; ) {
+			int batch = Math.min(offerIds.length, size - added);
+			for (int i = 0; i < batch; i++) {
+				offerIds[i] = added + i;
+				priceCents[i] = random.nextInt(PRICE_RANGE_CENTS);
+			}
+			book.addOffers(offerIds, priceCents, 0, batch);
+			added += batch;
+		}
+	}
+
+	/** Each thread's own pre-built prices and offer ids, so building them is not measured */
+	@State(Scope.Thread)
+	public static class Operations {
+		final PRICE[] prices = new PRICE[OPERATIONS];
+		final OFFERID[] offerIds = new OFFERID[OPERATIONS];
+		int next;
+
+		@Setup
+		public void draw() {
+			Random random = new Random(Thread.currentThread().getId());
+			for (int i = 0; i < OPERATIONS; i++) {
+				prices[i] = new PRICE(BigDecimal.valueOf(random.nextInt(PRICE_RANGE_CENTS), 2).toPlainString());
+				offerIds[i] = new OFFERID(Long.toString(Long.MAX_VALUE - Thread.currentThread().getId() * OPERATIONS - i));
+			}
+		}
+
+		int next() {
+			return next++ & (OPERATIONS - 1);
+		}
+	}
+
+	@Benchmark
+	public OFFERID query(Operations operations) {
+		return book.getClosestOfferIdToPrice(operations.prices[operations.next()]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public OFFERID query4Threads(Operations operations) {
+		return book.getClosestOfferIdToPrice(operations.prices[operations.next()]);
+	}
+
+	@Benchmark
+	public boolean churn(Operations operations) {
+		int i = operations.next();
+		book.addOfferIdByPrice(operations.offerIds[i], operations.prices[i]);
+		return book.removeOfferIdByPrice(operations.offerIds[i], operations.prices[i]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean churn4Threads(Operations operations) {
+		return churn(operations);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public OFFERID mixedQuery(Operations operations) {
+		return query(operations);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public boolean mixedChurn(Operations operations) {
+		return churn(operations);
+	}
+}
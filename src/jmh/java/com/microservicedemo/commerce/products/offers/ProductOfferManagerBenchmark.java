@@ -0,0 +1,183 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.exceptions.InvalidProductIdException;
+
+/** {@link ProductOfferManager#addOffer}, {@link ProductOfferManager#queryClosestOfferIdByPrice} and {@link ProductOfferManager#matchOffers} across
+ * a catalog of products whose popularity is Zipfian - with skew 0 every product is equally busy, with
+ * skew 0.99 a handful of hot products take most requests (and contend for their books' locks).
+ *
+ * @author Roberto Olivares (reo)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-XX:MaxDirectMemorySize=4g" })
+public class ProductOfferManagerBenchmark {
+
+	static final int PRICE_RANGE_CENTS = 100_000;
+
+	static final int OPERATIONS = 1 << 16;
+
+	static final PRICE ANY_PRICE = new PRICE("1000000.00");
+
+	@Param({ "PRIMITIVE", "OFF_HEAP" })
+	public OfferBookType bookType;
+
+	@Param({ "10000" })
+	public int products;
+
+	@Param({ "100" })
+	public int offersPerProduct;
+
+	@Param({ "0", "0.99" })
+	public double skew;
+
+	ProductOfferManager offerManager;
+	PRODUCTID[] productIds;
+	ZipfianSampler popularity;
+
+	@Setup
+	public void fill() throws InvalidProductIdException {
+		offerManager = new ProductOfferManager(bookType);
+		offerManager.enableMatchLog(OPERATIONS);
+		productIds = new PRODUCTID[products];
+		popularity = new ZipfianSampler(products, skew);
+
+		Random random = new Random(42);
+		long[] offerIds = new long[offersPerProduct];
+		long[] priceCents = new long[offersPerProduct];
+		long nextOfferId = 0;
+		for (int p = 0; p < products; p++) {
+			productIds[p] = new PRODUCTID(Integer.toString(100_000_000 + p));
+			offerManager.addProduct(productIds[p]);
+			for (int i = 0; i < offersPerProduct; i++) {
+				offerIds[i] = nextOfferId++;
+				priceCents[i] = random.nextInt(PRICE_RANGE_CENTS);
+			}
+			offerManager.addOffers(productIds[p], offerIds, priceCents, 0, offersPerProduct);
+		}
+	}
+
+	@TearDown
+	public void close() {
+		offerManager.close();
+	}
+
+	/** Each thread's pre-drawn (product, price, offer id) requests */
+	@State(Scope.Thread)
+	public static class Requests {
+		final PRODUCTID[] productIds = new PRODUCTID[OPERATIONS];
+		final PRICE[] prices = new PRICE[OPERATIONS];
+		final OFFERID[] offerIds = new OFFERID[OPERATIONS];
+		int next;
+
+		// The offer a match took, to be put back
+		final long[] takenOfferId = new long[1];
+		final long[] takenPriceCents = new long[1];
+
+		@Setup
+		public void draw(ProductOfferManagerBenchmark benchmark) {
+			Random random = new Random(Thread.currentThread().getId());
+			int[] ranks = benchmark.popularity.draw(OPERATIONS, random);
+			for (int i = 0; i < OPERATIONS; i++) {
+				productIds[i] = benchmark.productIds[ranks[i]];
+				prices[i] = new PRICE(BigDecimal.valueOf(random.nextInt(PRICE_RANGE_CENTS), 2).toPlainString());
+				offerIds[i] = new OFFERID(Long.toString(Long.MAX_VALUE - Thread.currentThread().getId() * OPERATIONS - i));
+			}
+		}
+
+		int next() {
+			return next++ & (OPERATIONS - 1);
+		}
+	}
+
+	@Benchmark
+	public OFFERID query(Requests requests) throws InvalidProductIdException {
+		int i = requests.next();
+		return offerManager.queryClosestOfferIdByPrice(requests.productIds[i], requests.prices[i]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public OFFERID query4Threads(Requests requests) throws InvalidProductIdException {
+		return query(requests);
+	}
+
+	/**
+	 * An addOffer, then a removeOffer of the same offer so the books stay the same size.
+	 */
+	@Benchmark
+	public boolean addOffer(Requests requests) throws InvalidProductIdException {
+		int i = requests.next();
+		offerManager.addOffer(requests.offerIds[i], requests.productIds[i], requests.prices[i]);
+		return offerManager.removeOffer(requests.offerIds[i], requests.productIds[i], requests.prices[i]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean addOffer4Threads(Requests requests) throws InvalidProductIdException {
+		return addOffer(requests);
+	}
+
+	/**
+	 * A one offer buy order at any price, then the offer it took added back so the books stay the same size.
+	 */
+	@Benchmark
+	public int match(Requests requests) throws InvalidProductIdException {
+		int i = requests.next();
+		int[] filled = new int[1];
+		offerManager.matchOffers(requests.productIds[i], ANY_PRICE, 1, (priceCents, offerId) -> {
+			requests.takenOfferId[0] = offerId;
+			requests.takenPriceCents[0] = priceCents;
+			filled[0]++;
+			return true;
+		});
+		offerManager.addOffers(requests.productIds[i], requests.takenOfferId, requests.takenPriceCents, 0, filled[0]);
+		return filled[0];
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int match4Threads(Requests requests) throws InvalidProductIdException {
+		return match(requests);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public OFFERID mixedQuery(Requests requests) throws InvalidProductIdException {
+		return query(requests);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public boolean mixedAddOffer(Requests requests) throws InvalidProductIdException {
+		return addOffer(requests);
+	}
+}
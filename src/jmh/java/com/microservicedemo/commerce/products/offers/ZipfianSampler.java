@@ -0,0 +1,40 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Draws ranks 0..n-1 with Zipfian popularity - rank k has weight 1 / (k + 1)^skew.
+ * A skew of 0 is uniform; around 1 a few products take most of the traffic.
+ *
+ * @author Roberto Olivares (reo)
+ */
+class ZipfianSampler {
+
+	final double[] cumulative;
+
+	ZipfianSampler(int n, double skew) {
+		cumulative = new double[n];
+		double total = 0;
+		for (int k = 0; k < n; k++) {
+			total += 1 / Math.pow(k + 1, skew);
+			cumulative[k] = total;
+		}
+		for (int k = 0; k < n; k++)
+			cumulative[k] /= total;
+	}
+
+	int next(Random random) {
+		int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+		return Math.min(rank < 0 ? -rank - 1 : rank, cumulative.length - 1);
+	}
+
+	/**
+	 * @return	count draws, so the sampling cost stays out of the measured methods.
+	 */
+	int[] draw(int count, Random random) {
+		int[] ranks = new int[count];
+		for (int i = 0; i < count; i++)
+			ranks[i] = next(random);
+		return ranks;
+	}
+}
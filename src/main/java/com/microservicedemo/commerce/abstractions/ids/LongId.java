@@ -0,0 +1,108 @@
+package com.microservicedemo.commerce.abstractions.ids;
+
+import java.math.BigInteger;
+
+/** An integer id held as a long.
+ *
+ * Ids are parsed without BigInteger's general parser, and compare, hash and print from the long - building
+ * one allocates just the id. {@link #toBigInteger} gives the BigInteger form, for callers that want one.
+ *
+ * Ids of different kinds never equal each other, and only compare with their own kind - an offer id is not 
+ * the product id of the same value.
+ *
+ * @param <T>	The concrete id type.
+ * @author Roberto Olivares (reo)
+ */
+abstract class LongId<T extends LongId<T>> extends Number implements Comparable<T> {
+	private static final long serialVersionUID = 1L;
+
+	// The most digits parsed without BigInteger - any 18 digit value fits a long
+	static final int FAST_DIGITS = 18;
+
+	final long value;
+
+	LongId(long value) {
+		this.value = value;
+	}
+
+	/**
+	 * @performance	A digit loop for up to 18 digits, with an optional sign; anything else goes to BigInteger.
+	 * @throws NumberFormatException	If id is not an integer, or does not fit a long.
+	 */
+	static long parse(String id) {
+		int length = id.length();
+		int start = length > 0 && (id.charAt(0) == '-' || id.charAt(0) == '+') ? 1 : 0;
+		if (start == length || length - start > FAST_DIGITS)
+			return parseSlowly(id);
+		long value = 0;
+		for (int i = start; i < length; i++) {
+			int digit = id.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				return parseSlowly(id);
+			value = value * 10 + digit;
+		}
+		return id.charAt(0) == '-' ? -value : value;
+	}
+
+	private static long parseSlowly(String id) {
+		try {
+			return new BigInteger(id).longValueExact();
+		} catch (ArithmeticException e) {
+			throw new NumberFormatException("Out of range: " + id);
+		}
+	}
+
+	/**
+	 * @performance	Allocates the BigInteger - keep it off hot paths.
+	 */
+	public BigInteger toBigInteger() {
+		return BigInteger.valueOf(value);
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(value);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other != null && other.getClass() == getClass() && value == ((LongId<?>) other).value;
+	}
+
+	@Override
+	public int compareTo(T other) {
+		return Long.compare(value, other.value);
+	}
+
+	@Override
+	public int intValue() {
+		return (int) value;
+	}
+
+	@Override
+	public long longValue() {
+		return value;
+	}
+
+	/**
+	 * @return	The value - every id fits a long.
+	 */
+	public long longValueExact() {
+		return value;
+	}
+
+	@Override
+	public float floatValue() {
+		return value;
+	}
+
+	@Override
+	public double doubleValue() {
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(value);
+	}
+}
@@ -1,9 +1,33 @@
 package com.microservicedemo.commerce.abstractions.ids;
 
-import java.math.BigInteger;
+/** An offer's id.
+ *
+ * Offer ids are seldom repeated, so unlike product ids they are not pooled.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OFFERID extends LongId<OFFERID> {
+	private static final long serialVersionUID = 1L;
 
-public class OFFERID extends BigInteger {
+	/**
+	 * @throws NumberFormatException	If arg0 is not an integer, or does not fit a long.
+	 */
 	public OFFERID(String arg0) {
-		super(arg0);
+		super(parse(arg0));
 	}
-}	
\ No newline at end of file
+
+	private OFFERID(long value) {
+		super(value);
+	}
+
+	/**
+	 * @throws NumberFormatException	If id is not an integer, or does not fit a long.
+	 */
+	public static OFFERID valueOf(String id) {
+		return new OFFERID(parse(id));
+	}
+
+	public static OFFERID valueOf(long id) {
+		return new OFFERID(id);
+	}
+}
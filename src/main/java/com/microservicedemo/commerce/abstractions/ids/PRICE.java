@@ -1,9 +1,100 @@
 package com.microservicedemo.commerce.abstractions.ids;
 
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
 
+/** A price in dollars.
+ *
+ * Prices of up to 16 digits with at most 2 decimals - every price a request carries - are parsed without
+ * BigDecimal's general parser, and keep their value in whole cents, so the books and the journal can take
+ * it without BigDecimal arithmetic.
+ *
+ * @author Roberto Olivares (reo)
+ */
 public class PRICE extends BigDecimal {
+	private static final long serialVersionUID = 1L;
+
+	// The most digits parsed without BigDecimal - with 2 decimals added, any 16 digit value's cents fit a long
+	static final int FAST_DIGITS = 16;
+
+	// Set for prices with more than 2 decimals, or too many digits
+	static final long NO_CENTS = Long.MIN_VALUE;
+
+	// A parse is its unscaled value shifted left 2, ORed with its scale - or, for the slow path, SLOW
+	private static final long SLOW = 3;
+
+	// By scale
+	private static final long[] CENTS_PER_UNIT = { 100, 10, 1 };
+
+	private final long cents;
+
+	/**
+	 * @throws NumberFormatException	If arg0 is not a decimal.
+	 */
 	public PRICE(String arg0) {
-		super(arg0);
+		this(arg0, parse(arg0));
+	}
+
+	// The slow path parses twice, but it is only taken for prices no request sends
+	private PRICE(String price, long parsed) {
+		super(parsed == SLOW ? new BigDecimal(price).unscaledValue() : BigInteger.valueOf(parsed >> 2), parsed == SLOW ? new BigDecimal(price).scale() : (int) (parsed & 3));
+		this.cents = parsed == SLOW ? NO_CENTS : (parsed >> 2) * CENTS_PER_UNIT[(int) (parsed & 3)];
+	}
+
+	private PRICE(long cents) {
+		super(BigInteger.valueOf(cents), 2);
+		this.cents = cents;
+	}
+
+	/**
+	 * @throws NumberFormatException	If price is not a decimal.
+	 */
+	public static PRICE valueOf(String price) {
+		return new PRICE(price);
+	}
+
+	/**
+	 * @return	The price of the given number of cents, to 2 decimals.
+	 */
+	public static PRICE valueOf(long cents) {
+		return new PRICE(cents);
+	}
+
+	/**
+	 * @param rounding	How to treat fractions of a cent.
+	 * @return			The price in whole cents.
+	 * @performance		Arithmetic free, unless the price has more than 2 decimals or 16 digits.
+	 */
+	public long toCents(RoundingMode rounding) {
+		if (cents != NO_CENTS)
+			return cents;
+		return movePointRight(2).setScale(0, rounding).longValueExact();
+	}
+
+	/**
+	 * @return	A sign, up to 16 digits and a point followed by up to 2 of them, parsed - or SLOW for anything else.
+	 */
+	private static long parse(String price) {
+		int length = price.length();
+		int start = length > 0 && (price.charAt(0) == '-' || price.charAt(0) == '+') ? 1 : 0;
+		long unscaled = 0;
+		int digits = 0;
+		int point = -1;
+		for (int i = start; i < length; i++) {
+			char c = price.charAt(i);
+			if (c >= '0' && c <= '9') {
+				unscaled = unscaled * 10 + (c - '0');
+				digits++;
+			} else if (c == '.' && point < 0) {
+				point = i;
+			} else {
+				return SLOW;
+			}
+		}
+		int scale = point < 0 ? 0 : length - point - 1;
+		if (digits == 0 || digits > FAST_DIGITS || scale > 2)
+			return SLOW;
+		return (price.charAt(0) == '-' ? -unscaled : unscaled) << 2 | scale;
 	}
-}
\ No newline at end of file
+}
@@ -1,11 +1,49 @@
 package com.microservicedemo.commerce.abstractions.ids;
 
-import java.math.BigInteger;
-
-public class PRODUCTID extends BigInteger {
+/** A product's id.
+ *
+ * Build ids with {@link #valueOf} - the same product's id is asked for on every request, so recent ids are
+ * kept in a bounded pool and handed out again rather than parsed and allocated afresh.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class PRODUCTID extends LongId<PRODUCTID> {
 	private static final long serialVersionUID = 1L;
 
+	// Pooled ids, by a hash of their value - a colliding id replaces the one held
+	static final int POOL_SIZE = 4096;
+	private static final PRODUCTID[] POOL = new PRODUCTID[POOL_SIZE];
+
+	/**
+	 * @throws NumberFormatException	If arg0 is not an integer, or does not fit a long.
+	 */
 	public PRODUCTID(String arg0) {
-		super(arg0);
+		super(parse(arg0));
+	}
+
+	private PRODUCTID(long value) {
+		super(value);
+	}
+
+	/**
+	 * @performance	No allocation if the id is pooled.
+	 * @throws NumberFormatException	If id is not an integer, or does not fit a long.
+	 */
+	public static PRODUCTID valueOf(String id) {
+		return valueOf(parse(id));
+	}
+
+	/**
+	 * @performance	No allocation if the id is pooled. Racing threads may both allocate an id - ids are immutable,
+	 * 				so either may be the one pooled.
+	 */
+	public static PRODUCTID valueOf(long id) {
+		int slot = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (POOL_SIZE - 1);
+		PRODUCTID pooled = POOL[slot];
+		if (pooled == null || pooled.value != id) {
+			pooled = new PRODUCTID(id);
+			POOL[slot] = pooled;
+		}
+		return pooled;
 	}
-}	
\ No newline at end of file
+}
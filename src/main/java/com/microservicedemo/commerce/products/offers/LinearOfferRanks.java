@@ -0,0 +1,57 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.math.BigDecimal;
+
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+
+/** {@link OfferRanks} for books without subtree counts, answered by walking the book with
+ * visitOffersByPrice - O(n) where a {@link RankedProductOffers} book is O(log n).
+ *
+ * @author Roberto Olivares (reo)
+ */
+final class LinearOfferRanks implements OfferRanks {
+
+	final OfferBook book;
+
+	LinearOfferRanks(OfferBook book) {
+		this.book = book;
+	}
+
+	@Override
+	public int countOffersBelow(long priceCents) {
+		return priceCents == Long.MIN_VALUE ? 0 : book.visitOffersByPrice(null, toPrice(priceCents - 1), 0, Integer.MAX_VALUE, (price, offerId) -> true);
+	}
+
+	@Override
+	public int countOffersAt(long priceCents) {
+		PRICE price = toPrice(priceCents);
+		return book.visitOffersByPrice(price, price, 0, Integer.MAX_VALUE, (at, offerId) -> true);
+	}
+
+	@Override
+	public boolean visitOfferAtRank(long rank, OfferVisitor visitor) {
+		return rank >= 0 && book.visitOffersByPrice(null, null, rank, 1, (price, offerId) -> {
+			visitor.visit(price, offerId);
+			return false;
+		}) == 1;
+	}
+
+	@Override
+	public BigDecimal medianPrice() {
+		// The book may change under a second walk, so both middle offers are read in one
+		int size = book.size();
+		long[] middle = new long[2];
+		int[] seen = new int[1];
+		int visited = book.visitOffersByPrice(null, null, Math.max((size - 1) / 2, 0), 2 - size % 2, (price, offerId) -> {
+			middle[seen[0]++] = price;
+			return true;
+		});
+		if (visited == 0)
+			return null;
+		return BigDecimal.valueOf(middle[0] + middle[visited - 1], 2).divide(BigDecimal.valueOf(2));
+	}
+
+	static PRICE toPrice(long priceCents) {
+		return PRICE.valueOf(priceCents);
+	}
+}
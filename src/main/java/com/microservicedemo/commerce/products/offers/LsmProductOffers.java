@@ -0,0 +1,851 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+
+/** A write-optimized offer book, laid out as a log-structured merge (LSM) tree.
+ *
+ * Adds append (priceCents, offerId, sequence) entries to an unsorted memtable under its monitor - O(1), 
+ * where a sorted book shifts or rebalances. Once the memtable passes MERGE_THRESHOLD entries a shared 
+ * background merger sorts it into an immutable run (an adder that fills it to MEMTABLE_CAPACITY does so 
+ * itself) and merges it down the levels: each level holds one run of up to FANOUT times the offers of the 
+ * level above, so an offer is copied about FANOUT / 2 times per level and a book of n offers has about 
+ * log4(n / MEMTABLE_CAPACITY) runs - 6 at 2M offers, 9 at 100M. Removes set the offer's bit in its run rather
+ * than rewriting it; merges drop removed offers, and a run is rewritten alone once half of it is removed.
+ *
+ * The gain is in the cost of an add, not in concurrency: adds to one book are serialized, by the memtable's 
+ * monitor here and by the book's monitor in {@link ProductOfferManager}, which orders every change to a book 
+ * with its journal and replication records. (That monitor serializes SKIP_LIST's otherwise lock-free adds too.)
+ *
+ * Every offer takes a sequence as it is added. A run is sorted from the whole memtable, so each run holds only
+ * offers older than the newer runs' and the memtable's: price-time priority needs no sequence in the runs, 
+ * ties going to the older run. Queries binary search each run and scan the memtable, 
+ * O(runs * log n + memtable entries) - a few times the cost of a PRIMITIVE lookup.
+ *
+ * Merges, removes and takes take the write lock; lookups run optimistically as in {@link PrimitiveProductOffers},
+ * falling back to the read lock, and visits take the read lock.
+ *
+ * Prices are held to the cent - offers are rounded half-even, query prices are rounded down.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class LsmProductOffers implements OfferBook {
+
+	// Entries the memtable holds before a background merge is asked for
+	static final int MERGE_THRESHOLD = 128;
+
+	// Entries the memtable holds before its adder merges it itself, rather than let it grow
+	static final int MEMTABLE_CAPACITY = 1024;
+
+	// Each level holds up to this many times the offers of the level above - the first MEMTABLE_CAPACITY times it
+	static final int FANOUT = 4;
+
+	// Optimistic attempts a reader makes before waiting for the read lock
+	static final int OPTIMISTIC_READ_ATTEMPTS = 3;
+
+	// Longs per memtable entry - priceCents, offerId, sequence
+	static final int ENTRY_LONGS = 3;
+
+	static final Logger logger = Logger.getLogger(LsmProductOffers.class.getName());
+
+	// Merges the books that ask, one at a time
+	static final ExecutorService MERGER = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "offer-lsm-merger");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/** The unsorted newest offers, appended under its monitor */
+	static final class Memtable {
+		// The count is written after the entry (and the entries after growing), so readers need no lock
+		volatile long[] entries = new long[16 * ENTRY_LONGS];
+		volatile int count;
+
+		// Guarded by the monitor
+		long sequence;
+
+		int append(long priceCents, long offerId) {
+			int at = count * ENTRY_LONGS;
+			long[] current = entries;
+			if (at == current.length) {
+				current = Arrays.copyOf(current, current.length * 2);
+				entries = current;
+			}
+			current[at] = priceCents;
+			current[at + 1] = offerId;
+			current[at + 2] = sequence++;
+			return ++count;
+		}
+	}
+
+	/** Offers sorted by price then age, immutable but for their removed bits */
+	static final class Run {
+		final long[] prices;
+		final long[] offerIds;
+
+		// Guarded by the write lock
+		final long[] removed;
+		int live;
+		int firstLive;		// Every offer before it is removed
+		boolean compacting;
+
+		// Guarded by the merge lock - -1 until merged into the levels
+		int level = -1;
+
+		Run(long[] prices, long[] offerIds) {
+			this.prices = prices;
+			this.offerIds = offerIds;
+			this.removed = new long[(prices.length + 63) >>> 6];
+			this.live = prices.length;
+		}
+
+		boolean isRemoved(int i) {
+			return (removed[i >>> 6] & (1L << i)) != 0;
+		}
+
+		void remove(int i) {
+			removed[i >>> 6] |= 1L << i;
+			live--;
+			if (i == firstLive)
+				firstLive = skipRemoved(i);
+		}
+
+		/**
+		 * @return	The first offer at or after i that is not removed, or the run's length.
+		 */
+		int skipRemoved(int i) {
+			if (live == prices.length)
+				return i;
+			i = Math.max(i, firstLive);
+			while (i < prices.length && isRemoved(i))
+				i++;
+			return i;
+		}
+
+		boolean isSparse() {
+			return live * 2 < prices.length;
+		}
+	}
+
+	// MERGE_THRESHOLD and MEMTABLE_CAPACITY, unless a test shrinks them
+	final int mergeThreshold;
+	final int memtableCapacity;
+
+	final StampedLock lock = new StampedLock();
+	final Memtable memtable = new Memtable();
+
+	// Newest first, replaced whole under the write lock
+	volatile Run[] runs = new Run[0];
+	volatile int runOffers;
+
+	// Held by the one merge of this book under way
+	final Object mergeLock = new Object();
+	final AtomicBoolean mergeRequested = new AtomicBoolean();
+
+	// The (priceCents, offerId) of offers removed from runs being merged, replayed onto the merged run -
+	// guarded by the write lock
+	long[] compactionRemoves;
+	int compactionRemoveCount;
+
+	public LsmProductOffers() {
+		this(MERGE_THRESHOLD, MEMTABLE_CAPACITY);
+	}
+
+	/**
+	 * @param mergeThreshold	Entries the memtable holds before a background merge is asked for.
+	 * @param memtableCapacity	Entries the memtable holds before its adder merges it itself - and the
+	 * 							offers of the first level's run, over FANOUT.
+	 */
+	LsmProductOffers(int mergeThreshold, int memtableCapacity) {
+		this.mergeThreshold = mergeThreshold;
+		this.memtableCapacity = memtableCapacity;
+	}
+
+	/**
+	 * Appends an offer to the memtable.
+	 *
+	 * @performance		O(1) under the memtable's monitor
+	 *
+	 * @param offerId
+	 * @param price
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public void addOfferIdByPrice(OFFERID offerId, PRICE price) {
+		addOffer(offerId.longValueExact(), PrimitiveProductOffers.toCents(price, RoundingMode.HALF_EVEN));
+	}
+
+	/**
+	 * @performance		O(runs * log n + memtable entries), without locking unless a merge or remove races the read
+	 *
+	 * @param 	price
+	 * @return	The offerid of the oldest offer at the closest lower price to price, or null if non found.
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public OFFERID getClosestOfferIdToPrice(PRICE price) {
+		return PrimitiveProductOffers.toOfferId(readOldestOfferId(PrimitiveProductOffers.toCents(price, RoundingMode.FLOOR), false));
+	}
+
+	@Override
+	public long getClosestOfferIdAtOrBelow(long priceCents) {
+		return readOldestOfferId(priceCents, false);
+	}
+
+	/**
+	 * @performance		As getClosestOfferIdToPrice
+	 *
+	 * @param 	price
+	 * @return	The offerid of the oldest offer at the closest higher price to price, or null if non found.
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public OFFERID getClosestOfferIdAbovePrice(PRICE price) {
+		return PrimitiveProductOffers.toOfferId(readOldestOfferId(PrimitiveProductOffers.toCents(price, RoundingMode.CEILING), true));
+	}
+
+	/**
+	 * Merges the runs with a sorted copy of the memtable's offers in range.
+	 *
+	 * @performance		O(memtable entries * log + runs * (log n + offset + limit)), under the read lock
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public int visitOffersByPrice(PRICE minPrice, PRICE maxPrice, long offset, int limit, OfferVisitor visitor) {
+		long minCents = minPrice == null ? Long.MIN_VALUE : PrimitiveProductOffers.toCents(minPrice, RoundingMode.CEILING);
+		long maxCents = maxPrice == null ? Long.MAX_VALUE : PrimitiveProductOffers.toCents(maxPrice, RoundingMode.FLOOR);
+		if (limit <= 0)
+			return 0;
+		int visited = 0;
+
+		long stamp = lock.readLock();
+		try {
+			Run[] current = runs;
+			Run[] sources = new Run[current.length + 1];
+			for (int r = 0; r < current.length; r++)
+				sources[r] = current[current.length - 1 - r];
+			sources[current.length] = copyMemtable(minCents, maxCents);
+
+			Merge merge = new Merge(sources, minCents);
+			for (int source; (source = merge.peek()) >= 0; merge.advance(source)) {
+				Run run = sources[source];
+				int i = merge.next[source];
+				if (run.prices[i] > maxCents)
+					break;
+				if (offset > 0) {
+					offset--;
+					continue;
+				}
+				visited++;
+				if (!visitor.visit(run.prices[i], run.offerIds[i]) || visited == limit)
+					break;
+			}
+			return visited;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @performance		Appended under the memtable's monitor, merging the memtable whenever it fills
+	 */
+	@Override
+	public void addOffers(long[] offerIds, long[] priceCents, int from, int to) {
+		while (from < to) {
+			int count;
+			synchronized (memtable) {
+				count = memtable.count;
+				for (int end = Math.min(to, from + Math.max(memtableCapacity - count, 1)); from < end; from++)
+					count = memtable.append(priceCents[from], offerIds[from]);
+			}
+			appended(count);
+		}
+	}
+
+	/**
+	 * @performance		O(memtable entries + runs * (log n + level length)) under the write lock; the offer's bit is
+	 * 					set rather than its run rewritten
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public boolean removeOfferIdByPrice(OFFERID offerId, PRICE price) {
+		return removeOffer(offerId.longValueExact(), PrimitiveProductOffers.toCents(price, RoundingMode.HALF_EVEN));
+	}
+
+	@Override
+	public boolean removeOffer(long offerId, long priceCents) {
+		boolean sparse = false;
+		long stamp = lock.writeLock();
+		try {
+			// Oldest runs first, then the memtable
+			Run[] current = runs;
+			for (int r = current.length - 1; r >= 0; r--) {
+				Run run = current[r];
+				int i = run.skipRemoved(ceilingIndex(run.prices, priceCents));
+				for (; i < run.prices.length && run.prices[i] == priceCents; i = run.skipRemoved(i + 1)) {
+					if (run.offerIds[i] == offerId) {
+						removeLocked(run, i);
+						sparse = run.isSparse();
+						return true;
+					}
+				}
+			}
+
+			synchronized (memtable) {
+				long[] entries = memtable.entries;
+				int end = memtable.count * ENTRY_LONGS;
+				for (int e = 0; e < end; e += ENTRY_LONGS) {
+					if (entries[e] == priceCents && entries[e + 1] == offerId) {
+						// The memtable is unsorted - the last entry fills the gap
+						System.arraycopy(entries, end - ENTRY_LONGS, entries, e, ENTRY_LONGS);
+						memtable.count--;
+						return true;
+					}
+				}
+			}
+			return false;
+		} finally {
+			lock.unlockWrite(stamp);
+			if (sparse)
+				requestMerge();
+		}
+	}
+
+	/**
+	 * Sorts the memtable into a run, then takes from the merged heads of the runs.
+	 *
+	 * @performance		O(memtable entries * log) plus O(runs) per offer taken, all under one write lock
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public int takeOffers(long maxPriceCents, int limit, OfferVisitor taken) {
+		int took = 0;
+		boolean merge = false;
+		long stamp = lock.writeLock();
+		try {
+			Run drained = drainLocked();
+			if (drained != null) {
+				prependLocked(drained);
+				merge = true;
+			}
+
+			Run[] current = runs;
+			Run[] sources = new Run[current.length];
+			for (int r = 0; r < current.length; r++)
+				sources[r] = current[current.length - 1 - r];
+			Merge heads = new Merge(sources, Long.MIN_VALUE);
+			for (int source; took < limit && (source = heads.peek()) >= 0; heads.advance(source)) {
+				Run run = sources[source];
+				int i = heads.next[source];
+				if (run.prices[i] > maxPriceCents)
+					break;
+				removeLocked(run, i);
+				merge |= run.isSparse();
+				took++;
+				if (!taken.visit(run.prices[i], run.offerIds[i]))
+					break;
+			}
+			return took;
+		} finally {
+			lock.unlockWrite(stamp);
+			if (merge)
+				requestMerge();
+		}
+	}
+
+	@Override
+	public int size() {
+		for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0)
+				continue;
+			int size = runOffers + memtable.count;
+			if (lock.validate(stamp))
+				return size;
+		}
+
+		long stamp = lock.readLock();
+		try {
+			return runOffers + memtable.count;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return	The number of sorted runs held.
+	 */
+	public int getRunCount() {
+		return runs.length;
+	}
+
+	/**
+	 * Appends the offer to the memtable.
+	 *
+	 * @param offerId
+	 * @param priceCents
+	 */
+	void addOffer(long offerId, long priceCents) {
+		int count;
+		synchronized (memtable) {
+			count = memtable.append(priceCents, offerId);
+		}
+		appended(count);
+	}
+
+	/**
+	 * Sorts the memtable into a new run, then merges runs down the levels - by the merger, or an adder that
+	 * filled the memtable.
+	 */
+	void merge() {
+		synchronized (mergeLock) {
+			if (memtable.count > 0) {
+				long stamp = lock.writeLock();
+				try {
+					Run drained = drainLocked();
+					if (drained != null)
+						prependLocked(drained);
+				} finally {
+					lock.unlockWrite(stamp);
+				}
+			}
+			compact();
+		}
+	}
+
+	private void appended(int count) {
+		if (count >= memtableCapacity)
+			merge();
+		else if (count >= mergeThreshold)
+			requestMerge();
+	}
+
+	private void requestMerge() {
+		if (mergeRequested.get() || !mergeRequested.compareAndSet(false, true))
+			return;
+		MERGER.execute(() -> {
+			mergeRequested.set(false);
+			try {
+				merge();
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "offer book merge failed", e);
+			}
+		});
+	}
+
+
+	/**
+	 * Rewrites sparse runs, and merges new runs into the levels, oldest first, until there are none - under
+	 * the merge lock.
+	 */
+	private void compact() {
+		for (;;) {
+			Run[] current = runs;
+			int sparse = current.length - 1;
+			while (sparse >= 0 && !current[sparse].isSparse())
+				sparse--;
+			if (sparse >= 0) {
+				compact(current, sparse, sparse + 1, current[sparse].level);
+				continue;
+			}
+
+			// New runs are ahead of the levels, newest first
+			int from = 0;
+			while (from < current.length && current[from].level < 0)
+				from++;
+			if (from-- == 0)
+				return;
+
+			// Merge the oldest new run with the first level's run, and on down while the result outgrows its level
+			int to = from + 1;
+			int level = 0;
+			long offers = current[from].live;
+			for (long capacity = (long) memtableCapacity * FANOUT; ; capacity *= FANOUT, level++) {
+				if (to < current.length && current[to].level == level)
+					offers += current[to++].live;
+				if (offers <= capacity)
+					break;
+			}
+			if (to == from + 1)
+				current[from].level = level;
+			else
+				compact(current, from, to, level);
+		}
+	}
+
+	/**
+	 * Replaces runs from..to (newest first) with their merge. The runs are merged outside the write lock, and
+	 * offers removed meanwhile are replayed onto the result.
+	 */
+	private void compact(Run[] current, int from, int to, int level) {
+		Run[] sources = new Run[to - from];
+		long stamp = lock.writeLock();
+		try {
+			for (int r = from; r < to; r++) {
+				current[r].compacting = true;
+				sources[to - 1 - r] = current[r];
+			}
+			compactionRemoves = new long[16];
+			compactionRemoveCount = 0;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+
+		Run merged = mergeRuns(sources);
+		merged.level = level;
+
+		stamp = lock.writeLock();
+		try {
+			for (int r = 0; r < compactionRemoveCount; r += 2) {
+				long priceCents = compactionRemoves[r];
+				int i = merged.skipRemoved(ceilingIndex(merged.prices, priceCents));
+				for (; i < merged.prices.length && merged.prices[i] == priceCents; i = merged.skipRemoved(i + 1)) {
+					if (merged.offerIds[i] == compactionRemoves[r + 1]) {
+						merged.remove(i);
+						break;
+					}
+				}
+			}
+			compactionRemoves = null;
+
+			// Takes may have sorted the memtable into runs ahead of those merged
+			Run[] latest = runs;
+			int ahead = latest.length - current.length + from;
+			int kept = merged.live > 0 ? 1 : 0;
+			Run[] next = new Run[ahead + kept + current.length - to];
+			System.arraycopy(latest, 0, next, 0, ahead);
+			if (kept > 0)
+				next[ahead] = merged;
+			System.arraycopy(current, to, next, ahead + kept, current.length - to);
+
+			int offers = 0;
+			for (Run run : next)
+				offers += run.live;
+			runOffers = offers;
+			runs = next;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Merges runs' offers into one run, leaving out those already removed.
+	 *
+	 * @param sources	Oldest first.
+	 */
+	static Run mergeRuns(Run[] sources) {
+		int total = 0;
+		for (Run run : sources)
+			total += run.prices.length;
+		long[] prices = new long[total];
+		long[] offerIds = new long[total];
+
+		int n = 0;
+		Merge merge = new Merge(sources, Long.MIN_VALUE);
+		for (int source; (source = merge.peek()) >= 0; ) {
+			Run run = sources[source];
+			// Copy up to the next source's head in one go
+			long until = merge.secondPrice;
+			int i = merge.next[source];
+			do {
+				prices[n] = run.prices[i];
+				offerIds[n++] = run.offerIds[i];
+				i = run.skipRemoved(i + 1);
+			} while (i < run.prices.length && (run.prices[i] < until || (run.prices[i] == until && source < merge.secondSource)));
+			merge.next[source] = i;
+		}
+		return n == total ? new Run(prices, offerIds) : new Run(Arrays.copyOf(prices, n), Arrays.copyOf(offerIds, n));
+	}
+
+	/**
+	 * Moves the whole memtable into a new sorted run - under the write lock. Adds wait for the move, so the 
+	 * run is older than all that follow it.
+	 *
+	 * @return	The run, or null if the memtable was empty.
+	 */
+	private Run drainLocked() {
+		long[] entries;
+		int n;
+		synchronized (memtable) {
+			n = memtable.count;
+			if (n == 0)
+				return null;
+			entries = Arrays.copyOf(memtable.entries, n * ENTRY_LONGS);
+			memtable.count = 0;
+			// Give back the room a burst of adds grew the memtable to
+			if (memtable.entries.length > 2 * mergeThreshold * ENTRY_LONGS)
+				memtable.entries = new long[16 * ENTRY_LONGS];
+		}
+		return toRun(entries, n);
+	}
+
+	/**
+	 * @return	A sorted run of the memtable's entries priced from minCents to maxCents - under the read lock.
+	 */
+	private Run copyMemtable(long minCents, long maxCents) {
+		long[] entries = new long[16 * ENTRY_LONGS];
+		int n = 0;
+		int end = memtable.count * ENTRY_LONGS;
+		long[] memtableEntries = memtable.entries;
+		for (int e = 0; e < end; e += ENTRY_LONGS) {
+			if (memtableEntries[e] < minCents || memtableEntries[e] > maxCents)
+				continue;
+			if ((n + 1) * ENTRY_LONGS > entries.length)
+				entries = Arrays.copyOf(entries, entries.length * 2);
+			System.arraycopy(memtableEntries, e, entries, n * ENTRY_LONGS, ENTRY_LONGS);
+			n++;
+		}
+		return toRun(entries, n);
+	}
+
+	private void prependLocked(Run run) {
+		Run[] current = runs;
+		Run[] next = new Run[current.length + 1];
+		next[0] = run;
+		System.arraycopy(current, 0, next, 1, current.length);
+		runOffers += run.live;
+		runs = next;
+	}
+
+	private void removeLocked(Run run, int i) {
+		run.remove(i);
+		runOffers--;
+		if (run.compacting) {
+			if (compactionRemoveCount == compactionRemoves.length)
+				compactionRemoves = Arrays.copyOf(compactionRemoves, compactionRemoves.length * 2);
+			compactionRemoves[compactionRemoveCount++] = run.prices[i];
+			compactionRemoves[compactionRemoveCount++] = run.offerIds[i];
+		}
+	}
+
+	/**
+	 * Reads optimistically, retrying if a merge or remove lands underneath, then falls back to the read lock.
+	 *
+	 * @param priceCents
+	 * @param above			True for the closest price at or above priceCents, false for at or below.
+	 * @return				The oldest offer at that price, or NO_OFFER if there is none.
+	 */
+	private long readOldestOfferId(long priceCents, boolean above) {
+		for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0)
+				continue;
+			try {
+				long offerId = locate(priceCents, above);
+				if (lock.validate(stamp))
+					return offerId;
+			} catch (RuntimeException e) {
+				// Torn read of the memtable being drained by a concurrent merge - retry
+			}
+		}
+
+		long stamp = lock.readLock();
+		try {
+			return locate(priceCents, above);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return	The oldest offer at the closest price at (or above, or below) priceCents, across the runs and the memtable.
+	 */
+	private long locate(long priceCents, boolean above) {
+		boolean found = false;
+		long bestPrice = 0;
+		long bestOfferId = NO_OFFER;
+
+		// Oldest run first, so a tie keeps the older offer
+		Run[] current = runs;
+		for (int r = current.length - 1; r >= 0; r--) {
+			Run run = current[r];
+			int i = above ? run.skipRemoved(ceilingIndex(run.prices, priceCents)) : floorLive(run, priceCents);
+			if (i < 0 || i == run.prices.length)
+				continue;
+			long price = run.prices[i];
+			if (!found || (above ? price < bestPrice : price > bestPrice)) {
+				found = true;
+				bestPrice = price;
+				bestOfferId = run.offerIds[i];
+			}
+		}
+
+		// The memtable is newer than every run, so only wins a tie against itself
+		long bestSequence = found ? Long.MIN_VALUE : Long.MAX_VALUE;
+		int end = memtable.count * ENTRY_LONGS;
+		long[] entries = memtable.entries;
+		for (int e = 0; e < end; e += ENTRY_LONGS) {
+			long price = entries[e];
+			if (above ? price < priceCents : price > priceCents)
+				continue;
+			if (!found || (above ? price < bestPrice : price > bestPrice) || (price == bestPrice && entries[e + 2] < bestSequence)) {
+				found = true;
+				bestPrice = price;
+				bestSequence = entries[e + 2];
+				bestOfferId = entries[e + 1];
+			}
+		}
+		return bestOfferId;
+	}
+
+	/**
+	 * @return	The oldest offer not removed at the highest price at or below priceCents, or -1.
+	 */
+	private static int floorLive(Run run, long priceCents) {
+		int i = (priceCents == Long.MAX_VALUE ? run.prices.length : ceilingIndex(run.prices, priceCents + 1)) - 1;
+		while (i >= 0) {
+			int first = levelStart(run.prices, i);
+			int oldest = run.skipRemoved(first);
+			if (oldest <= i)
+				return oldest;
+			i = first - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return	The index of the first offer priced as prices[i] - galloping back from i, as most levels are short.
+	 */
+	static int levelStart(long[] prices, int i) {
+		long price = prices[i];
+		int high = i;
+		int step = 1;
+		while (high - step >= 0 && prices[high - step] == price) {
+			high -= step;
+			step <<= 1;
+		}
+		int low = Math.max(high - step + 1, 0);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (prices[mid] < price)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * @return	The index of the first price at or above priceCents, or prices.length.
+	 */
+	static int ceilingIndex(long[] prices, long priceCents) {
+		int low = 0;
+		int high = prices.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (prices[mid] < priceCents)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Sorts (priceCents, offerId, sequence) entries by price then sequence into a run.
+	 */
+	static Run toRun(long[] entries, int count) {
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++)
+			order[i] = i;
+		sort(order, new int[count], 0, count, entries);
+
+		long[] prices = new long[count];
+		long[] offerIds = new long[count];
+		for (int i = 0; i < count; i++) {
+			int e = order[i] * ENTRY_LONGS;
+			prices[i] = entries[e];
+			offerIds[i] = entries[e + 1];
+		}
+		return new Run(prices, offerIds);
+	}
+
+	private static void sort(int[] order, int[] scratch, int from, int to, long[] entries) {
+		if (to - from < 16) {
+			for (int i = from + 1; i < to; i++) {
+				int entry = order[i];
+				int j = i;
+				for (; j > from && before(entries, entry, order[j - 1]); j--)
+					order[j] = order[j - 1];
+				order[j] = entry;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		sort(order, scratch, from, mid, entries);
+		sort(order, scratch, mid, to, entries);
+		if (!before(entries, order[mid], order[mid - 1]))
+			return;
+		System.arraycopy(order, from, scratch, from, to - from);
+		for (int i = from, left = from, right = mid; i < to; i++)
+			order[i] = right == to || (left < mid && before(entries, scratch[left], scratch[right])) ? scratch[left++] : scratch[right++];
+	}
+
+	private static boolean before(long[] entries, int a, int b) {
+		long priceA = entries[a * ENTRY_LONGS];
+		long priceB = entries[b * ENTRY_LONGS];
+		return priceA < priceB || (priceA == priceB && entries[a * ENTRY_LONGS + 2] < entries[b * ENTRY_LONGS + 2]);
+	}
+
+	/**
+	 * Walks runs together in price order, skipping removed offers. Sources are given oldest first, and a tie
+	 * goes to the older.
+	 */
+	static final class Merge {
+		final Run[] sources;
+		final int[] next;
+
+		// Left by peek - the next offer's price among the other sources, and its source (sources.length if none)
+		long secondPrice;
+		int secondSource;
+
+		Merge(Run[] sources, long minCents) {
+			this.sources = sources;
+			this.next = new int[sources.length];
+			for (int s = 0; s < sources.length; s++)
+				next[s] = sources[s].skipRemoved(ceilingIndex(sources[s].prices, minCents));
+		}
+
+		/**
+		 * @return	The source holding the next offer, at next[source], or -1 when all are done.
+		 */
+		int peek() {
+			int best = -1;
+			long bestPrice = Long.MAX_VALUE;
+			secondSource = -1;
+			secondPrice = Long.MAX_VALUE;
+			for (int s = 0; s < sources.length; s++) {
+				Run run = sources[s];
+				int i = next[s];
+				if (i >= run.prices.length)
+					continue;
+				long price = run.prices[i];
+				if (best < 0 || price < bestPrice) {
+					secondSource = best;
+					secondPrice = bestPrice;
+					best = s;
+					bestPrice = price;
+				} else if (secondSource < 0 || price < secondPrice) {
+					secondSource = s;
+					secondPrice = price;
+				}
+			}
+			if (secondSource < 0)
+				secondSource = sources.length;
+			return best;
+		}
+
+		void advance(int source) {
+			next[source] = sources[source].skipRemoved(next[source] + 1);
+		}
+	}
+}
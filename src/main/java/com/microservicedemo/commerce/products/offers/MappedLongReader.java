@@ -0,0 +1,66 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/** Reads a run of longs from a file through FileChannel.map, a window at a time, so files larger
+ * than one mapping (2GB) can be read and the page cache does the buffering.
+ *
+ * @author Roberto Olivares (reo)
+ */
+class MappedLongReader implements AutoCloseable {
+
+	// Longs per mapped window (1GB)
+	static final long WINDOW_LONGS = 1L << 27;
+
+	final FileChannel channel;
+	final long end;
+	long windowStart;
+	LongBuffer window;
+
+	/**
+	 * @param channel	The file - left open.
+	 * @param position	Byte offset of the first long.
+	 * @param count		The number of longs to read.
+	 */
+	MappedLongReader(FileChannel channel, long position, long count) {
+		this.channel = channel;
+		this.windowStart = position;
+		this.end = position + count * 8;
+		this.window = LongBuffer.allocate(0);
+	}
+
+	long next() throws IOException {
+		if (!window.hasRemaining())
+			map();
+		return window.get();
+	}
+
+	/**
+	 * Reads length longs into dst, starting at offset.
+	 */
+	void read(long[] dst, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (!window.hasRemaining())
+				map();
+			int n = Math.min(length, window.remaining());
+			window.get(dst, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void map() throws IOException {
+		if (windowStart >= end)
+			throw new IOException("unexpected end of " + channel);
+		long bytes = Math.min(WINDOW_LONGS * 8, end - windowStart);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, bytes).asLongBuffer();
+		windowStart += bytes;
+	}
+
+	@Override
+	public void close() {
+		window = null;		// Unmapped once collected
+	}
+}
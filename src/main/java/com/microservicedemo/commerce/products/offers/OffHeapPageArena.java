@@ -0,0 +1,88 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/** Fixed size pages carved out of large direct ByteBuffers, shared by every {@link OffHeapProductOffers}.
+ *
+ * A page is named by an int id - its slab (id >>> SLAB_PAGE_BITS) and its offset within the slab - so the
+ * books refer to their pages with primitive ints rather than heap objects. Freed pages go on a primitive
+ * free list and are reused before any new slab is allocated. Slabs are never released.
+ *
+ * Direct memory is capped by -XX:MaxDirectMemorySize (by default, the maximum heap size).
+ *
+ * @author Roberto Olivares (reo)
+ */
+final class OffHeapPageArena {
+
+	static final int PAGE_BITS = 12;
+	static final int PAGE_BYTES = 1 << PAGE_BITS;
+
+	// Pages per slab (64MB slabs)
+	static final int SLAB_PAGE_BITS = 14;
+	static final int SLAB_PAGE_MASK = (1 << SLAB_PAGE_BITS) - 1;
+
+	/** The arena used by OfferBookType.OFF_HEAP books */
+	static final OffHeapPageArena SHARED = new OffHeapPageArena();
+
+	// Replaced (never mutated) as slabs are added, so readers need no lock
+	volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+	// Guarded by this
+	int[] freePages = new int[64];
+	int freeCount;
+	int unusedInSlab;
+	int nextPage;
+
+	/**
+	 * @return	The id of a page, whose contents are undefined.
+	 */
+	synchronized int allocate() {
+		if (freeCount > 0)
+			return freePages[--freeCount];
+		if (unusedInSlab == 0) {
+			ByteBuffer slab = ByteBuffer.allocateDirect(PAGE_BYTES << SLAB_PAGE_BITS).order(ByteOrder.nativeOrder());
+			ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+			grown[slabs.length] = slab;
+			slabs = grown;
+			unusedInSlab = 1 << SLAB_PAGE_BITS;
+		}
+		unusedInSlab--;
+		return nextPage++;
+	}
+
+	synchronized void free(int page) {
+		if (freeCount == freePages.length)
+			freePages = Arrays.copyOf(freePages, freeCount * 2);
+		freePages[freeCount++] = page;
+	}
+
+	/**
+	 * @return	The slab holding the page - use with {@link #offset}, and absolute gets and puts only.
+	 */
+	ByteBuffer slab(int page) {
+		return slabs[page >>> SLAB_PAGE_BITS];
+	}
+
+	/**
+	 * @return	The byte offset of the page within its slab.
+	 */
+	static int offset(int page) {
+		return (page & SLAB_PAGE_MASK) << PAGE_BITS;
+	}
+
+	/**
+	 * @return	Bytes of direct memory held by the arena.
+	 */
+	long getReservedBytes() {
+		return (long) slabs.length * (PAGE_BYTES << SLAB_PAGE_BITS);
+	}
+
+	/**
+	 * @return	Pages handed out and not freed.
+	 */
+	synchronized int getPagesInUse() {
+		return nextPage - freeCount;
+	}
+}
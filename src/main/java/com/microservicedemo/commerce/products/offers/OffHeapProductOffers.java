@@ -0,0 +1,430 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+
+/** An offer book whose offers live off the heap, as fixed width (priceCents, offerId) records in sorted
+ * pages of an {@link OffHeapPageArena}.
+ *
+ * Records are kept in price order, and in arrival order within a price, so the oldest offer at a level is
+ * simply the first record at that price. The heap only holds a small page directory - each page's arena id,
+ * record count and lowest price, 16 bytes per 256 offers - so the garbage collector has next to nothing to
+ * trace however large the book grows.
+ *
+ * Locking is as {@link PrimitiveProductOffers}: writers take the write lock, readers run optimistically.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OffHeapProductOffers implements OfferBook {
+
+	// priceCents, offerId
+	static final int RECORD_BYTES = 16;
+
+	static final int PAGE_CAPACITY = OffHeapPageArena.PAGE_BYTES / RECORD_BYTES;
+
+	static final int OPTIMISTIC_READ_ATTEMPTS = PrimitiveProductOffers.OPTIMISTIC_READ_ATTEMPTS;
+
+	static final long NOT_FOUND = -1L;
+
+	final OffHeapPageArena arena;
+	final StampedLock lock = new StampedLock();
+
+	// The page directory - per page, its arena id, its record count and its lowest price
+	int[] pageIds = new int[4];
+	int[] pageSizes = new int[4];
+	long[] pageMinPrices = new long[4];
+
+	int pageCount;
+	volatile int size;
+
+	public OffHeapProductOffers() {
+		this(OffHeapPageArena.SHARED);
+	}
+
+	OffHeapProductOffers(OffHeapPageArena arena) {
+		this.arena = arena;
+	}
+
+	/**
+	 * @performance		O(log offers) search plus a copy of at most PAGE_CAPACITY records, off the heap
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public void addOfferIdByPrice(OFFERID offerId, PRICE price) {
+		long stamp = lock.writeLock();
+		try {
+			insert(offerId.longValueExact(), PrimitiveProductOffers.toCents(price, RoundingMode.HALF_EVEN));
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @performance		O(log offers), with no locking unless a write races the read
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public OFFERID getClosestOfferIdToPrice(PRICE price) {
+		return PrimitiveProductOffers.toOfferId(readOldestOfferId(PrimitiveProductOffers.toCents(price, RoundingMode.FLOOR), false));
+	}
+
+	@Override
+	public long getClosestOfferIdAtOrBelow(long priceCents) {
+		return readOldestOfferId(priceCents, false);
+	}
+
+	@Override
+	public OFFERID getClosestOfferIdAbovePrice(PRICE price) {
+		return PrimitiveProductOffers.toOfferId(readOldestOfferId(PrimitiveProductOffers.toCents(price, RoundingMode.CEILING), true));
+	}
+
+	/**
+	 * Walks the records from the first at or above minPrice. Whole pages inside the offset are skipped unread.
+	 *
+	 * @performance		O(log offers + offset / PAGE_CAPACITY + limit), under the read lock
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public int visitOffersByPrice(PRICE minPrice, PRICE maxPrice, long offset, int limit, OfferVisitor visitor) {
+		long minCents = minPrice == null ? Long.MIN_VALUE : PrimitiveProductOffers.toCents(minPrice, RoundingMode.CEILING);
+		long maxCents = maxPrice == null ? Long.MAX_VALUE : PrimitiveProductOffers.toCents(maxPrice, RoundingMode.FLOOR);
+		int visited = 0;
+
+		long stamp = lock.readLock();
+		try {
+			long location = locateAtOrAbove(minCents);
+			if (location == NOT_FOUND || limit <= 0)
+				return 0;
+			int page = (int) (location >>> 32);
+			int slot = (int) location;
+
+			for (; page < pageCount; page++, slot = 0) {
+				int count = pageSizes[page];
+				ByteBuffer slab = arena.slab(pageIds[page]);
+				int base = OffHeapPageArena.offset(pageIds[page]);
+
+				if (offset >= count - slot && slab.getLong(base + (count - 1) * RECORD_BYTES) <= maxCents) {
+					offset -= count - slot;
+					continue;
+				}
+				for (; slot < count; slot++) {
+					long price = slab.getLong(base + slot * RECORD_BYTES);
+					if (price > maxCents)
+						return visited;
+					if (offset > 0) {
+						offset--;
+						continue;
+					}
+					visited++;
+					if (!visitor.visit(price, slab.getLong(base + slot * RECORD_BYTES + 8)) || visited == limit)
+						return visited;
+				}
+			}
+			return visited;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @performance		One write lock for the whole batch
+	 */
+	@Override
+	public void addOffers(long[] offerIds, long[] priceCents, int from, int to) {
+		long stamp = lock.writeLock();
+		try {
+			for (int i = from; i < to; i++)
+				insert(offerIds[i], priceCents[i]);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public boolean removeOfferIdByPrice(OFFERID offerId, PRICE price) {
+		return removeOffer(offerId.longValueExact(), PrimitiveProductOffers.toCents(price, RoundingMode.HALF_EVEN));
+	}
+
+	/**
+	 * @performance		O(log offers + offers at the price) under the write lock
+	 */
+	@Override
+	public boolean removeOffer(long offerId, long priceCents) {
+		long stamp = lock.writeLock();
+		try {
+			long location = locateAtOrAbove(priceCents);
+			if (location == NOT_FOUND)
+				return false;
+			for (int page = (int) (location >>> 32), slot = (int) location; page < pageCount; page++, slot = 0) {
+				for (; slot < pageSizes[page]; slot++) {
+					if (priceAt(page, slot) != priceCents)
+						return false;
+					if (offerIdAt(page, slot) == offerId) {
+						removeRecord(page, slot);
+						return true;
+					}
+				}
+			}
+			return false;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Takes a run of records from the front of the first page, then closes the gap with one move.
+	 * 
+	 * @performance		O(1) per offer taken, plus a move of at most PAGE_CAPACITY records per page reached, 
+	 * 					all under one write lock
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public int takeOffers(long maxPriceCents, int limit, OfferVisitor taken) {
+		int took = 0;
+		long stamp = lock.writeLock();
+		try {
+			boolean more = true;
+			while (more && took < limit && pageCount > 0) {
+				int count = pageSizes[0];
+				int run = 0;
+				while (run < count && took < limit) {
+					long priceCents = priceAt(0, run);
+					if (priceCents > maxPriceCents) {
+						more = false;
+						break;
+					}
+					long offerId = offerIdAt(0, run++);
+					took++;
+					if (!taken.visit(priceCents, offerId)) {
+						more = false;
+						break;
+					}
+				}
+
+				if (run == count) {
+					arena.free(pageIds[0]);
+					removePage(0);
+				} else if (run > 0) {
+					moveRecords(0, run, 0, 0, count - run);
+					pageSizes[0] = count - run;
+					pageMinPrices[0] = priceAt(0, 0);
+				}
+				size -= run;
+				if (run < count)
+					break;
+			}
+			return took;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the book, returning its pages to the arena - for a book that has been evicted. Optimistic 
+	 * readers still inside it fail validation and retry under the read lock, finding it empty.
+	 */
+	void release() {
+		long stamp = lock.writeLock();
+		try {
+			for (int page = 0; page < pageCount; page++)
+				arena.free(pageIds[page]);
+			pageCount = 0;
+			size = 0;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	private long readOldestOfferId(long priceCents, boolean above) {
+		for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0)
+				continue;
+			try {
+				long location = above ? locateAtOrAbove(priceCents) : locateOldestAtOrBelow(priceCents);
+				long offerId = location == NOT_FOUND ? 0 : offerIdAt((int) (location >>> 32), (int) location);
+				if (lock.validate(stamp))
+					return location == NOT_FOUND ? NO_OFFER : offerId;
+			} catch (RuntimeException e) {
+				// Torn read of a directory being rewritten by a concurrent add - retry
+			}
+		}
+
+		long stamp = lock.readLock();
+		try {
+			long location = above ? locateAtOrAbove(priceCents) : locateOldestAtOrBelow(priceCents);
+			return location == NOT_FOUND ? NO_OFFER : offerIdAt((int) (location >>> 32), (int) location);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return	The (page, slot) of the first record priced at or above priceCents, packed into a long, or NOT_FOUND.
+	 */
+	private long locateAtOrAbove(long priceCents) {
+		if (pageCount == 0)
+			return NOT_FOUND;
+		// The first such record is on the last page starting below priceCents, or at the start of the next
+		int page = priceCents == Long.MIN_VALUE ? 0 : Math.max(PrimitiveProductOffers.floorIndex(pageMinPrices, pageCount, priceCents - 1), 0);
+		int slot = priceCents == Long.MIN_VALUE ? 0 : countAtOrBelow(page, priceCents - 1);
+		if (slot == pageSizes[page]) {
+			if (++page == pageCount)
+				return NOT_FOUND;
+			slot = 0;
+		}
+		return ((long) page << 32) | slot;
+	}
+
+	/**
+	 * @return	The (page, slot) of the oldest record at the highest price at or below priceCents, or NOT_FOUND.
+	 */
+	private long locateOldestAtOrBelow(long priceCents) {
+		int page = PrimitiveProductOffers.floorIndex(pageMinPrices, pageCount, priceCents);
+		if (page < 0)
+			return NOT_FOUND;
+		return locateAtOrAbove(priceAt(page, countAtOrBelow(page, priceCents) - 1));
+	}
+
+	/**
+	 * @return	The number of records on the page priced at or below priceCents.
+	 */
+	private int countAtOrBelow(int page, long priceCents) {
+		ByteBuffer slab = arena.slab(pageIds[page]);
+		int base = OffHeapPageArena.offset(pageIds[page]);
+		int low = 0;
+		int high = pageSizes[page];
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (slab.getLong(base + middle * RECORD_BYTES) <= priceCents)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private long priceAt(int page, int slot) {
+		return arena.slab(pageIds[page]).getLong(OffHeapPageArena.offset(pageIds[page]) + slot * RECORD_BYTES);
+	}
+
+	private long offerIdAt(int page, int slot) {
+		return arena.slab(pageIds[page]).getLong(OffHeapPageArena.offset(pageIds[page]) + slot * RECORD_BYTES + 8);
+	}
+
+	/**
+	 * Inserts the record after any at the same price.
+	 */
+	private void insert(long offerId, long priceCents) {
+		if (pageCount == 0)
+			insertPage(0, arena.allocate(), 0);
+
+		// Prices below every page go to the front of the first page
+		int page = Math.max(PrimitiveProductOffers.floorIndex(pageMinPrices, pageCount, priceCents), 0);
+		int slot = countAtOrBelow(page, priceCents);
+		int count = pageSizes[page];
+
+		if (count == PAGE_CAPACITY) {
+			if (slot == count && page == pageCount - 1) {
+				// Appending past the end - start a new page rather than leave two half full ones
+				insertPage(++page, arena.allocate(), 0);
+				slot = 0;
+			} else {
+				splitPage(page);
+				if (slot > PAGE_CAPACITY / 2) {
+					slot -= PAGE_CAPACITY / 2;
+					page++;
+				}
+			}
+			count = pageSizes[page];
+		}
+
+		moveRecords(page, slot, page, slot + 1, count - slot);
+		ByteBuffer slab = arena.slab(pageIds[page]);
+		int at = OffHeapPageArena.offset(pageIds[page]) + slot * RECORD_BYTES;
+		slab.putLong(at, priceCents);
+		slab.putLong(at + 8, offerId);
+		pageSizes[page] = count + 1;
+		if (slot == 0)
+			pageMinPrices[page] = priceCents;
+		size++;
+	}
+
+	private void removeRecord(int page, int slot) {
+		int count = pageSizes[page] - 1;
+		if (count == 0) {
+			arena.free(pageIds[page]);
+			removePage(page);
+		} else {
+			moveRecords(page, slot + 1, page, slot, count - slot);
+			pageSizes[page] = count;
+			if (slot == 0)
+				pageMinPrices[page] = priceAt(page, 0);
+		}
+		size--;
+	}
+
+	/**
+	 * Copies count records, correctly for overlapping ranges within one page.
+	 */
+	private void moveRecords(int fromPage, int fromSlot, int toPage, int toSlot, int count) {
+		ByteBuffer source = arena.slab(pageIds[fromPage]);
+		ByteBuffer target = arena.slab(pageIds[toPage]);
+		int from = OffHeapPageArena.offset(pageIds[fromPage]) + fromSlot * RECORD_BYTES;
+		int to = OffHeapPageArena.offset(pageIds[toPage]) + toSlot * RECORD_BYTES;
+		int bytes = count * RECORD_BYTES;
+		if (source == target && to > from) {
+			for (int i = bytes - 8; i >= 0; i -= 8)
+				target.putLong(to + i, source.getLong(from + i));
+		} else {
+			for (int i = 0; i < bytes; i += 8)
+				target.putLong(to + i, source.getLong(from + i));
+		}
+	}
+
+	/**
+	 * Moves the upper half of a full page into a new page immediately after it.
+	 */
+	private void splitPage(int page) {
+		int half = PAGE_CAPACITY / 2;
+		insertPage(page + 1, arena.allocate(), PAGE_CAPACITY - half);
+		moveRecords(page, half, page + 1, 0, PAGE_CAPACITY - half);
+		pageSizes[page] = half;
+		pageMinPrices[page + 1] = priceAt(page + 1, 0);
+	}
+
+	private void insertPage(int at, int pageId, int count) {
+		if (pageCount == pageIds.length) {
+			int capacity = pageCount * 2;
+			pageIds = Arrays.copyOf(pageIds, capacity);
+			pageSizes = Arrays.copyOf(pageSizes, capacity);
+			pageMinPrices = Arrays.copyOf(pageMinPrices, capacity);
+		}
+		int tail = pageCount - at;
+		System.arraycopy(pageIds, at, pageIds, at + 1, tail);
+		System.arraycopy(pageSizes, at, pageSizes, at + 1, tail);
+		System.arraycopy(pageMinPrices, at, pageMinPrices, at + 1, tail);
+		pageIds[at] = pageId;
+		pageSizes[at] = count;
+		pageMinPrices[at] = Long.MIN_VALUE;
+		pageCount++;
+	}
+
+	private void removePage(int page) {
+		int tail = pageCount - page - 1;
+		System.arraycopy(pageIds, page + 1, pageIds, page, tail);
+		System.arraycopy(pageSizes, page + 1, pageSizes, page, tail);
+		System.arraycopy(pageMinPrices, page + 1, pageMinPrices, page, tail);
+		pageCount--;
+	}
+}
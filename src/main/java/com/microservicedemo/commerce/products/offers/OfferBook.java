@@ -0,0 +1,98 @@
+package com.microservicedemo.commerce.products.offers;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+
+/** The per-product book of offers, ordered by price.
+ *
+ * Implementations are selected through {@link OfferBookType} and used by {@link ProductOfferManager}.
+ * Implementations must be safe for concurrent adds and lookups from request threads.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public interface OfferBook {
+
+	/** Returned by the primitive queries when there is no such offer */
+	public static final long NO_OFFER = Long.MIN_VALUE;
+
+	/**
+	 * Inserts an offer into the ordered (by price) book, behind any offers already at the same price.
+	 *
+	 * @param offerId
+	 * @param price
+	 */
+	public void addOfferIdByPrice(OFFERID offerId, PRICE price);
+
+	/**
+	 * @param 	price
+	 * @return	The offerid of the oldest offer at the closest lower (or equal) price to price, or null if non found.
+	 */
+	public OFFERID getClosestOfferIdToPrice(PRICE price);
+
+	/**
+	 * As getClosestOfferIdToPrice, with the price (in cents) and offer id as primitives.
+	 *
+	 * @return	The offer id, or NO_OFFER if none found.
+	 */
+	public long getClosestOfferIdAtOrBelow(long priceCents);
+
+	/**
+	 * @param 	price
+	 * @return	The offerid of the oldest offer at the closest higher (or equal) price to price, or null if non found.
+	 */
+	public OFFERID getClosestOfferIdAbovePrice(PRICE price);
+
+	/**
+	 * Walks the offers priced between minPrice and maxPrice (inclusive), cheapest first and oldest first 
+	 * within a price, in place.
+	 *
+	 * @param minPrice	The lowest price to visit, or null for no lower bound.
+	 * @param maxPrice	The highest price to visit, or null for no upper bound.
+	 * @param offset	The number of qualifying offers to skip before visiting.
+	 * @param limit		The maximum number of offers to visit.
+	 * @param visitor	Called for each offer, in order.
+	 * @return			The number of offers visited.
+	 */
+	public int visitOffersByPrice(PRICE minPrice, PRICE maxPrice, long offset, int limit, OfferVisitor visitor);
+
+	/**
+	 * Inserts a batch of offers, in order, taking any lock once for the whole batch.
+	 *
+	 * @param offerIds		Offer ids, as longs.
+	 * @param priceCents	The matching prices, in cents.
+	 * @param from			Index of the first offer to add.
+	 * @param to			Index after the last offer to add.
+	 */
+	public void addOffers(long[] offerIds, long[] priceCents, int from, int to);
+
+	/**
+	 * Removes an offer from the book, dropping its price level if that was the level's last offer.
+	 *
+	 * @param offerId
+	 * @param price		The price the offer was added at.
+	 * @return			True if the offer was found and removed.
+	 */
+	public boolean removeOfferIdByPrice(OFFERID offerId, PRICE price);
+
+	/**
+	 * As removeOfferIdByPrice, with the offer id and price (in cents) as primitives.
+	 */
+	public boolean removeOffer(long offerId, long priceCents);
+
+	/**
+	 * Removes the cheapest offers, oldest first within a price, while they are priced at or below maxPriceCents -
+	 * atomically, so no offer is ever taken twice.
+	 *
+	 * @param maxPriceCents		The most a taken offer may cost, in cents.
+	 * @param limit				The most offers to take.
+	 * @param taken				Called with each offer as it is taken, possibly under the book's lock. Returning 
+	 * 							false stops the taking after that offer.
+	 * @return					The number of offers taken.
+	 */
+	public int takeOffers(long maxPriceCents, int limit, OfferVisitor taken);
+
+	/**
+	 * @return	The number of offers held in the book.
+	 */
+	public int size();
+}
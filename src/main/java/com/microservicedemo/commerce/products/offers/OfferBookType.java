@@ -0,0 +1,53 @@
+package com.microservicedemo.commerce.products.offers;
+
+/** The available {@link OfferBook} implementations.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public enum OfferBookType {
+
+	/** Reference implementation - a sorted (skip list) map of PRICE to OFFERID objects */
+	SKIP_LIST {
+		@Override
+		public OfferBook newBook() {
+			return new ProductOffers();
+		}
+	},
+
+	/** Prices (in cents) and offer ids held in sorted pages of primitive longs */
+	PRIMITIVE {
+		@Override
+		public OfferBook newBook() {
+			return new PrimitiveProductOffers();
+		}
+	},
+
+	/** (price, offer id) records in sorted pages of direct memory, outside the garbage collected heap */
+	OFF_HEAP {
+		@Override
+		public OfferBook newBook() {
+			return new OffHeapProductOffers();
+		}
+	},
+
+	/** Price levels in an order-statistic (AVL) tree of primitive arrays - adds O(log n) rank, percentile and median queries */
+	RANKED {
+		@Override
+		public OfferBook newBook() {
+			return new RankedProductOffers();
+		}
+	},
+
+	/** Write-optimized - adds append to an unsorted memtable, merged in the background into sorted immutable runs */
+	LSM {
+		@Override
+		public OfferBook newBook() {
+			return new LsmProductOffers();
+		}
+	};
+
+	/**
+	 * @return	A new, empty offer book of this type.
+	 */
+	public abstract OfferBook newBook();
+}
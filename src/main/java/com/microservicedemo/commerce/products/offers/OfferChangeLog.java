@@ -0,0 +1,54 @@
+package com.microservicedemo.commerce.products.offers;
+
+/** Where {@link ProductOfferManager} records each change to a book, under the book's monitor, before making it.
+ * Implemented by the {@link OfferJournal} (for durability) and the {@link OfferReplicationLog} (for followers).
+ *
+ * @author Roberto Olivares (reo)
+ */
+interface OfferChangeLog {
+
+	/**
+	 * @return	The record's sequence number.
+	 */
+	long append(int type, long productId, long offerId, long priceCents);
+
+	/**
+	 * Records a change for each offer, from index from up to to.
+	 *
+	 * @return	The last record's sequence number.
+	 */
+	long append(int type, long productId, long[] offerIds, long[] priceCents, int from, int to);
+
+	/**
+	 * Blocks until the record with the given sequence number is safe, however this log defines it.
+	 */
+	void awaitDurable(long sequence);
+
+	/**
+	 * @return	A log recording each change to both - sequence numbers, and durability, are the first's.
+	 */
+	static OfferChangeLog both(OfferChangeLog first, OfferChangeLog second) {
+		if (first == null)
+			return second;
+		if (second == null)
+			return first;
+		return new OfferChangeLog() {
+			@Override
+			public long append(int type, long productId, long offerId, long priceCents) {
+				second.append(type, productId, offerId, priceCents);
+				return first.append(type, productId, offerId, priceCents);
+			}
+
+			@Override
+			public long append(int type, long productId, long[] offerIds, long[] priceCents, int from, int to) {
+				second.append(type, productId, offerIds, priceCents, from, to);
+				return first.append(type, productId, offerIds, priceCents, from, to);
+			}
+
+			@Override
+			public void awaitDurable(long sequence) {
+				first.awaitDurable(sequence);
+			}
+		};
+	}
+}
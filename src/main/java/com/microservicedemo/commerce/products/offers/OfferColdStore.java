@@ -0,0 +1,230 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/** Append-only segment files holding evicted offer books, for {@link OfferTiering}.
+ *
+ * A book is written as one record of longs - its product id, its offer count, then its (priceCents, offerId)
+ * pairs in book order, as in an {@link OfferSnapshot} - and is read back, or copied into a snapshot, with
+ * positional reads. Records are released when their book is reloaded; a segment is deleted once none of
+ * its records are live, and a sparse one is compacted by moving its live records to the active segment.
+ *
+ * Segments are a cache, not a store - books reach disk durably only through snapshots, which include cold
+ * books - so segments left by an earlier run are deleted on opening.
+ *
+ * @author Roberto Olivares (reo)
+ */
+final class OfferColdStore implements AutoCloseable {
+
+	static final String PREFIX = "cold-";
+	static final String SUFFIX = ".segment";
+
+	// The active segment is rolled once it reaches this size
+	static final long SEGMENT_BYTES = 64L << 20;
+
+	// Longs read per positional read
+	static final int READ_LONGS = 8192;
+
+	/** Where a book's record is */
+	static final class Record {
+		final int segment;
+		final long offset;		// Of its first pair
+		final int count;
+
+		Record(int segment, long offset, int count) {
+			this.segment = segment;
+			this.offset = offset;
+			this.count = count;
+		}
+
+		long bytes() {
+			return 16 + count * 16L;
+		}
+	}
+
+	static final class Segment {
+		final int number;
+		final Path file;
+		final FileChannel channel;
+		long size;
+		long liveBytes;
+
+		Segment(int number, Path file, FileChannel channel) {
+			this.number = number;
+			this.file = file;
+			this.channel = channel;
+		}
+	}
+
+	final Path directory;
+
+	// Guarded by this
+	final HashMap<Integer, Segment> segments = new HashMap<>();
+	Segment active;
+	OfferSnapshot.LongWriter writer;
+	long diskBytes;
+	long liveBytes;
+
+	OfferColdStore(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path path : stale)
+				Files.delete(path);
+		}
+		roll(0);
+	}
+
+	/**
+	 * Appends a book - held off from its writers by the caller - as a record.
+	 */
+	synchronized Record write(long productId, OfferBook book) throws IOException {
+		if (active.size >= SEGMENT_BYTES)
+			roll(active.number + 1);
+
+		long start = active.size;
+		writer.put(productId);
+		writer.put(0);		// The count, patched below
+		int count = book.visitOffersByPrice(null, null, 0, Integer.MAX_VALUE, writer);
+		if (writer.failure != null)
+			throw writer.failure;
+		writer.flush();
+
+		ByteBuffer patch = ByteBuffer.allocate(8).putLong(0, count);
+		active.channel.write(patch, start + 8);
+		Record record = new Record(active.number, start + 16, count);
+		active.size += record.bytes();
+		active.liveBytes += record.bytes();
+		diskBytes += record.bytes();
+		liveBytes += record.bytes();
+		return record;
+	}
+
+	/**
+	 * Adds a record's offers to a book.
+	 */
+	void read(Record record, OfferBook into) throws IOException {
+		long[] offerIds = new long[Math.min(record.count, READ_LONGS / 2)];
+		long[] priceCents = new long[offerIds.length];
+		visit(record, (batchPrices, batchOfferIds, batch) -> into.addOffers(batchOfferIds, batchPrices, 0, batch), offerIds, priceCents);
+	}
+
+	/**
+	 * Copies a record's pairs into a snapshot's copy of its book.
+	 */
+	void copy(Record record, OfferSnapshot.BookCopy out) throws IOException {
+		long[] offerIds = new long[Math.min(record.count, READ_LONGS / 2)];
+		long[] priceCents = new long[offerIds.length];
+		visit(record, (batchPrices, batchOfferIds, batch) -> {
+			for (int i = 0; i < batch; i++)
+				out.visit(batchPrices[i], batchOfferIds[i]);
+		}, offerIds, priceCents);
+	}
+
+	/**
+	 * Appends a copy of a record to the active segment, and releases the original.
+	 */
+	synchronized Record move(long productId, Record record) throws IOException {
+		OfferBook book = new PrimitiveProductOffers();
+		read(record, book);
+		Record moved = write(productId, book);
+		release(record);
+		return moved;
+	}
+
+	/**
+	 * Marks a record dead, deleting its segment if it was the segment's last live one.
+	 */
+	synchronized void release(Record record) {
+		Segment segment = segments.get(record.segment);
+		segment.liveBytes -= record.bytes();
+		liveBytes -= record.bytes();
+		if (segment.liveBytes == 0 && segment != active)
+			delete(segment);
+	}
+
+	/**
+	 * @return	The numbers of the inactive segments less than a quarter live.
+	 */
+	synchronized List<Integer> getSparseSegments() {
+		List<Integer> sparse = new ArrayList<>();
+		for (Segment segment : segments.values())
+			if (segment != active && segment.liveBytes < segment.size / 4)
+				sparse.add(segment.number);
+		return sparse;
+	}
+
+	synchronized long getDiskBytes() {
+		return diskBytes;
+	}
+
+	synchronized long getLiveBytes() {
+		return liveBytes;
+	}
+
+	@Override
+	public synchronized void close() {
+		for (Segment segment : new ArrayList<>(segments.values()))
+			delete(segment);
+	}
+
+	interface BatchVisitor {
+		void visit(long[] priceCents, long[] offerIds, int count) throws IOException;
+	}
+
+	private void visit(Record record, BatchVisitor visitor, long[] offerIds, long[] priceCents) throws IOException {
+		FileChannel channel;
+		synchronized (this) {
+			channel = segments.get(record.segment).channel;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(offerIds.length * 16);
+		long position = record.offset;
+		int remaining = record.count;
+		while (remaining > 0) {
+			int batch = Math.min(remaining, offerIds.length);
+			buffer.clear().limit(batch * 16);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new IOException("cold segment " + record.segment + " is truncated");
+			}
+			for (int i = 0; i < batch; i++) {
+				priceCents[i] = buffer.getLong(i * 16);
+				offerIds[i] = buffer.getLong(i * 16 + 8);
+			}
+			visitor.visit(priceCents, offerIds, batch);
+			position += batch * 16L;
+			remaining -= batch;
+		}
+	}
+
+	private void roll(int number) throws IOException {
+		if (active != null && active.liveBytes == 0)
+			delete(active);
+		Path file = directory.resolve(String.format("%s%010d%s", PREFIX, number, SUFFIX));
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		active = new Segment(number, file, channel);
+		segments.put(number, active);
+		writer = new OfferSnapshot.LongWriter(channel);
+	}
+
+	private void delete(Segment segment) {
+		segments.remove(segment.number);
+		diskBytes -= segment.size;
+		try {
+			segment.channel.close();
+			Files.deleteIfExists(segment.file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
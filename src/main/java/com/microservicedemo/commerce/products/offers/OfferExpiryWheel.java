@@ -0,0 +1,273 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Expires offers on a hierarchical timing wheel, driven by a single background thread.
+ *
+ * The wheel has LEVELS rings of WHEEL_SIZE buckets; a bucket on level n spans WHEEL_SIZE^n ticks.
+ * An offer is linked into the bucket for its deadline in O(1). Each tick expires the current level 0
+ * bucket, and whenever a ring wraps the matching bucket one level up is cascaded down - so pending
+ * offers are never scanned, and the books are never scanned either.
+ *
+ * Pending expirations are nodes in pooled primitive arrays owned by the wheel thread. Request threads
+ * only append to a small hand-off buffer, which the wheel thread swaps out at the start of each tick.
+ * The wheel thread holds the wheel's lock through each tick, so {@link #visitPending} can walk the nodes between ticks.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferExpiryWheel implements AutoCloseable {
+
+	/** Called on the wheel thread for each offer whose time to live has passed. */
+	public interface Expirer {
+		public void expire(long productId, long offerId, long priceCents);
+	}
+
+	/** Called by visitPending for each offer waiting to expire. */
+	public interface PendingVisitor {
+		public void visit(long productId, long offerId, long priceCents, long ttlMillis);
+	}
+
+	static final int WHEEL_BITS = 8;
+	static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	static final int LEVELS = 4;
+
+	// Deadlines beyond the top ring (WHEEL_SIZE^LEVELS ticks) are brought forward to it
+	static final long MAX_DELAY_TICKS = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+	static final int NIL = -1;
+
+	// A free node's deadline
+	static final long FREE = -1;
+
+	// Longs per hand-off entry: productId, offerId, priceCents, deadlineTick
+	static final int ENTRY_LONGS = 4;
+
+	protected Logger logger = Logger.getLogger(OfferExpiryWheel.class.getName());
+
+	final Expirer expirer;
+	final long tickNanos;
+	final long startNanos;
+	final Thread thread;
+	volatile boolean running = true;
+
+	// Held by the wheel thread through each tick
+	final Object wheelLock = new Object();
+
+	// Hand-off from request threads, guarded by itself
+	final Object handoffLock = new Object();
+	long[] incoming = new long[ENTRY_LONGS * 1024];
+	int incomingLongs;
+	long[] draining = new long[ENTRY_LONGS * 1024];
+
+	// Wheel state - wheel thread only
+	long currentTick;
+	final int[] bucketHeads = new int[LEVELS * WHEEL_SIZE];
+	long[] productIds = new long[1024];
+	long[] offerIds = new long[1024];
+	long[] priceCents = new long[1024];
+	long[] deadlineTicks = new long[1024];
+	int[] nextNodes = new int[1024];
+	int used;
+	int freeHead = NIL;
+
+	volatile long pending;
+
+	/**
+	 * Creates the wheel and starts its (daemon) thread.
+	 *
+	 * @param tickMillis	The wheel's resolution - offers expire up to one tick late.
+	 * @param expirer		What to do with each expired offer.
+	 */
+	public OfferExpiryWheel(long tickMillis, Expirer expirer) {
+		this.expirer = expirer;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		this.startNanos = System.nanoTime();
+		Arrays.fill(bucketHeads, NIL);
+
+		thread = new Thread(this::run, "offer-expiry-wheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules an offer to expire. Safe from any thread.
+	 *
+	 * @performance		O(1) - an append to the hand-off buffer
+	 *
+	 * @param productId
+	 * @param offerId
+	 * @param priceCents
+	 * @param ttlMillis		The offer's time to live.
+	 */
+	public void schedule(long productId, long offerId, long priceCents, long ttlMillis) {
+		long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+		long delayTicks = (TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis)) + tickNanos - 1) / tickNanos;
+		long deadlineTick = nowTick + Math.min(delayTicks, MAX_DELAY_TICKS);
+
+		synchronized (handoffLock) {
+			if (incomingLongs == incoming.length)
+				incoming = Arrays.copyOf(incoming, incoming.length * 2);
+			incoming[incomingLongs++] = productId;
+			incoming[incomingLongs++] = offerId;
+			incoming[incomingLongs++] = priceCents;
+			incoming[incomingLongs++] = deadlineTick;
+		}
+	}
+
+	/**
+	 * Visits every offer waiting to expire whose product is selected, with the time it has left to live - for 
+	 * handing the offers to another node. Safe from any thread; holds the wheel still meanwhile.
+	 *
+	 * @performance		O(offers waiting)
+	 *
+	 * @param products	Selects the products whose offers are visited.
+	 * @param visitor	Called for each such offer, in no particular order.
+	 */
+	public void visitPending(LongPredicate products, PendingVisitor visitor) {
+		synchronized (wheelLock) {
+			drainIncoming();
+			long tickMillis = TimeUnit.NANOSECONDS.toMillis(tickNanos);
+			long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+			for (int node = 0; node < used; node++) {
+				if (deadlineTicks[node] != FREE && products.test(productIds[node]))
+					visitor.visit(productIds[node], offerIds[node], priceCents[node], Math.max(0, deadlineTicks[node] - nowTick) * tickMillis);
+			}
+		}
+	}
+
+	/**
+	 * @return	The number of offers waiting to expire (excluding any still in the hand-off buffer).
+	 */
+	public long getPending() {
+		return pending;
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	void run() {
+		long nextTickAt = startNanos + tickNanos;
+		while (running) {
+			long wait = nextTickAt - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			try {
+				synchronized (wheelLock) {
+					drainIncoming();
+					advance();
+				}
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "offer expiry tick failed", e);
+			}
+			nextTickAt += tickNanos;
+		}
+	}
+
+	/**
+	 * Swaps the hand-off buffers and links every new entry into the wheel.
+	 */
+	void drainIncoming() {
+		long[] batch;
+		int longs;
+		synchronized (handoffLock) {
+			batch = incoming;
+			longs = incomingLongs;
+			incoming = draining;
+			incomingLongs = 0;
+		}
+		for (int i = 0; i < longs; i += ENTRY_LONGS) {
+			int node = allocate();
+			productIds[node] = batch[i];
+			offerIds[node] = batch[i + 1];
+			priceCents[node] = batch[i + 2];
+			// Anything already due goes in the next bucket to be expired
+			deadlineTicks[node] = Math.max(batch[i + 3], currentTick + 1);
+			place(node);
+		}
+		pending += longs / ENTRY_LONGS;
+		draining = batch;
+	}
+
+	/**
+	 * Moves the wheel on one tick: cascades any wrapped rings, then expires the current bucket.
+	 */
+	void advance() {
+		currentTick++;
+
+		for (int level = 1; level < LEVELS; level++) {
+			if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0)
+				break;
+			int bucket = level * WHEEL_SIZE + (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+			int node = bucketHeads[bucket];
+			bucketHeads[bucket] = NIL;
+			while (node != NIL) {
+				int next = nextNodes[node];
+				place(node);
+				node = next;
+			}
+		}
+
+		int bucket = (int) (currentTick & WHEEL_MASK);
+		int node = bucketHeads[bucket];
+		bucketHeads[bucket] = NIL;
+		while (node != NIL) {
+			int next = nextNodes[node];
+			try {
+				expirer.expire(productIds[node], offerIds[node], priceCents[node]);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "offer " + offerIds[node] + " expiry failed", e);
+			}
+			free(node);
+			pending--;
+			node = next;
+		}
+	}
+
+	/**
+	 * Links a node into the lowest ring whose span covers its remaining delay.
+	 */
+	private void place(int node) {
+		long deadline = deadlineTicks[node];
+		long delay = deadline - currentTick;
+		int level = 0;
+		while (level < LEVELS - 1 && delay >= (1L << (WHEEL_BITS * (level + 1))))
+			level++;
+		int bucket = level * WHEEL_SIZE + (int) ((deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+		nextNodes[node] = bucketHeads[bucket];
+		bucketHeads[bucket] = node;
+	}
+
+	private int allocate() {
+		if (freeHead != NIL) {
+			int node = freeHead;
+			freeHead = nextNodes[node];
+			return node;
+		}
+		if (used == nextNodes.length) {
+			int capacity = used * 2;
+			productIds = Arrays.copyOf(productIds, capacity);
+			offerIds = Arrays.copyOf(offerIds, capacity);
+			priceCents = Arrays.copyOf(priceCents, capacity);
+			deadlineTicks = Arrays.copyOf(deadlineTicks, capacity);
+			nextNodes = Arrays.copyOf(nextNodes, capacity);
+		}
+		return used++;
+	}
+
+	private void free(int node) {
+		deadlineTicks[node] = FREE;
+		nextNodes[node] = freeHead;
+		freeHead = node;
+	}
+}
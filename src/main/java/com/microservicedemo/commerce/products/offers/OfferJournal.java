@@ -0,0 +1,376 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Write-ahead journal of offer adds and removes, with group commit.
+ *
+ * Request threads append fixed size records to an in-memory buffer and get back the record's sequence
+ * number. A single journal thread swaps the buffer out, writes it and (with syncCommit) forces it to disk,
+ * so every append that arrived during one fsync shares the next one. {@link #awaitDurable} blocks until
+ * a sequence number has been written.
+ *
+ * The journal is a series of segment files, each named for its first sequence number. {@link #rotate}
+ * starts a new segment, so that segments wholly covered by a snapshot can be deleted.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferJournal implements OfferChangeLog, AutoCloseable {
+
+	/** Called for each record on replay, in sequence order. */
+	public interface RecordVisitor {
+		public void visit(long sequence, int type, long productId, long offerId, long priceCents);
+	}
+
+	public static final int ADD = 1;
+	public static final int REMOVE = 2;
+	// The whole book for a product is gone - handed to another node
+	public static final int DROP = 3;
+	// Removed by the expiry wheel - replayed as a REMOVE
+	public static final int EXPIRE = 4;
+	// Taken by a matched buy order - replayed as a REMOVE
+	public static final int FILL = 5;
+
+	// sequence << 8 | type, productId, offerId, priceCents, check
+	static final int RECORD_LONGS = 5;
+	static final int RECORD_BYTES = RECORD_LONGS * 8;
+
+	static final String SEGMENT_PREFIX = "offers-";
+	static final String SEGMENT_SUFFIX = ".journal";
+
+	protected Logger logger = Logger.getLogger(OfferJournal.class.getName());
+
+	final Path directory;
+	final boolean syncCommit;
+	final Thread thread;
+
+	// Appends, guarded by lock
+	final Object lock = new Object();
+	ByteBuffer pending = ByteBuffer.allocate(RECORD_BYTES * 4096);
+	ByteBuffer spare = ByteBuffer.allocate(RECORD_BYTES * 4096);
+	long lastSequence;
+	boolean rotateRequested;
+	boolean running = true;
+
+	// Written by the journal thread, guarded by durableLock
+	final Object durableLock = new Object();
+	volatile long durableSequence;
+	volatile long segmentFirstSequence;
+	volatile IOException failure;
+
+	// Journal thread only
+	FileChannel channel;
+
+	/**
+	 * Opens a new segment, after any existing ones, and starts the (daemon) journal thread.
+	 *
+	 * @param directory		Where the segments live.
+	 * @param lastSequence	The last sequence number already used - see {@link #replay}.
+	 * @param syncCommit	Whether to force each group of records to disk before it counts as durable.
+	 * @throws IOException
+	 */
+	public OfferJournal(Path directory, long lastSequence, boolean syncCommit) throws IOException {
+		this.directory = directory;
+		this.syncCommit = syncCommit;
+		this.lastSequence = lastSequence;
+		this.durableSequence = lastSequence;
+		this.channel = openSegment(lastSequence + 1);
+
+		thread = new Thread(this::run, "offer-journal");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Appends one record. Safe from any thread.
+	 *
+	 * @performance		O(1) - a copy into the group commit buffer
+	 *
+	 * @return	The record's sequence number.
+	 */
+	@Override
+	public long append(int type, long productId, long offerId, long priceCents) {
+		synchronized (lock) {
+			ensureCapacity(1);
+			long sequence = ++lastSequence;
+			putRecord(sequence, type, productId, offerId, priceCents);
+			lock.notify();
+			return sequence;
+		}
+	}
+
+	/**
+	 * Appends a record for each offer, from index from up to to, as one group.
+	 *
+	 * @return	The last record's sequence number.
+	 */
+	@Override
+	public long append(int type, long productId, long[] offerIds, long[] priceCents, int from, int to) {
+		synchronized (lock) {
+			ensureCapacity(to - from);
+			for (int i = from; i < to; i++)
+				putRecord(++lastSequence, type, productId, offerIds[i], priceCents[i]);
+			lock.notify();
+			return lastSequence;
+		}
+	}
+
+	/**
+	 * @return	The sequence number of the last record appended.
+	 */
+	public long getLastSequence() {
+		synchronized (lock) {
+			return lastSequence;
+		}
+	}
+
+	/**
+	 * Blocks until the record with the given sequence number has been written - and forced, with syncCommit.
+	 *
+	 * @throws UncheckedIOException	If the journal can no longer be written.
+	 */
+	@Override
+	public void awaitDurable(long sequence) {
+		if (durableSequence >= sequence)
+			return;
+		boolean interrupted = false;
+		synchronized (durableLock) {
+			while (durableSequence < sequence && failure == null) {
+				try {
+					durableLock.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (durableSequence < sequence)
+			throw new UncheckedIOException("offer journal failed", failure);
+	}
+
+	/**
+	 * Ends the current segment, once everything appended so far is durable, and starts a new one.
+	 *
+	 * @return	The last sequence number in the ended segment.
+	 */
+	public long rotate() {
+		long last;
+		synchronized (lock) {
+			last = lastSequence;
+			rotateRequested = true;
+			lock.notify();
+		}
+		awaitDurable(last);
+		synchronized (durableLock) {
+			while (segmentFirstSequence <= last && failure == null) {
+				try {
+					durableLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Deletes the segments holding only records up to and including the given sequence number.
+	 */
+	public void deleteSegmentsThrough(long sequence) throws IOException {
+		List<Path> segments = listSegments(directory);
+		// A segment's last record is the one before the next segment's first - the current segment is never deleted
+		for (int i = 0; i + 1 < segments.size(); i++) {
+			if (firstSequenceOf(segments.get(i + 1)) - 1 > sequence)
+				break;
+			Files.delete(segments.get(i));
+		}
+	}
+
+	/**
+	 * Writes out anything still buffered and stops the journal thread.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			running = false;
+			lock.notify();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	void run() {
+		while (true) {
+			ByteBuffer batch;
+			long batchSequence;
+			boolean rotate;
+			synchronized (lock) {
+				while (pending.position() == 0 && !rotateRequested && running) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						// Only close() stops the journal
+					}
+				}
+				if (pending.position() == 0 && !rotateRequested)
+					break;
+				batch = pending;
+				pending = spare;
+				batchSequence = lastSequence;
+				rotate = rotateRequested;
+				rotateRequested = false;
+			}
+
+			try {
+				batch.flip();
+				while (batch.hasRemaining())
+					channel.write(batch);
+				if (syncCommit)
+					channel.force(false);
+				if (rotate) {
+					channel.close();
+					channel = openSegment(batchSequence + 1);
+				}
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "offer journal write failed", e);
+				failure = e;
+			}
+			batch.clear();
+			synchronized (lock) {
+				spare = batch;
+			}
+
+			synchronized (durableLock) {
+				if (failure == null)
+					durableSequence = batchSequence;
+				durableLock.notifyAll();
+			}
+			if (failure != null)
+				break;
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "offer journal close failed", e);
+		}
+	}
+
+	private FileChannel openSegment(long firstSequence) throws IOException {
+		FileChannel segment = FileChannel.open(directory.resolve(segmentName(firstSequence)),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		synchronized (durableLock) {
+			segmentFirstSequence = firstSequence;
+			durableLock.notifyAll();
+		}
+		return segment;
+	}
+
+	private void ensureCapacity(int records) {
+		if (pending.remaining() >= records * RECORD_BYTES)
+			return;
+		int capacity = pending.capacity();
+		while (capacity - pending.position() < records * RECORD_BYTES)
+			capacity *= 2;
+		ByteBuffer grown = ByteBuffer.allocate(capacity);
+		pending.flip();
+		grown.put(pending);
+		pending = grown;
+	}
+
+	private void putRecord(long sequence, int type, long productId, long offerId, long priceCents) {
+		long sequenceAndType = sequence << 8 | type;
+		pending.putLong(sequenceAndType);
+		pending.putLong(productId);
+		pending.putLong(offerId);
+		pending.putLong(priceCents);
+		pending.putLong(check(sequenceAndType, productId, offerId, priceCents));
+	}
+
+	/**
+	 * Detects torn or garbled records at the end of a segment after a crash.
+	 */
+	static long check(long sequenceAndType, long productId, long offerId, long priceCents) {
+		long h = sequenceAndType * 0x9E3779B97F4A7C15L;
+		h = (h ^ productId) * 0xC2B2AE3D27D4EB4FL;
+		h = (h ^ offerId) * 0x165667B19E3779F9L;
+		h = (h ^ priceCents) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+
+	/**
+	 * Reads every segment in the directory, in order, passing each record after afterSequence to the visitor.
+	 * A segment is cut short at its first torn or garbled record, which is truncated away.
+	 *
+	 * @return	The last sequence number found (afterSequence if there were no later records).
+	 * @throws IOException
+	 */
+	public static long replay(Path directory, long afterSequence, RecordVisitor visitor) throws IOException {
+		long last = afterSequence;
+		for (Path segment : listSegments(directory)) {
+			try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				long records = in.size() / RECORD_BYTES;
+				long good = 0;
+				try (MappedLongReader reader = new MappedLongReader(in, 0, records * RECORD_LONGS)) {
+					for (; good < records; good++) {
+						long sequenceAndType = reader.next();
+						long productId = reader.next();
+						long offerId = reader.next();
+						long priceCents = reader.next();
+						if (reader.next() != check(sequenceAndType, productId, offerId, priceCents))
+							break;
+						long sequence = sequenceAndType >>> 8;
+						if (sequence <= afterSequence)
+							continue;
+						visitor.visit(sequence, (int) (sequenceAndType & 0xFF), productId, offerId, priceCents);
+						last = Math.max(last, sequence);
+					}
+				}
+				if (good * RECORD_BYTES != in.size()) {
+					logger().warning("offer journal " + segment.getFileName() + " cut short after " + good + " records");
+					in.truncate(good * RECORD_BYTES);
+				}
+			}
+		}
+		return last;
+	}
+
+	static List<Path> listSegments(Path directory) throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path path : paths)
+				segments.add(path);
+		}
+		Collections.sort(segments);		// Names are zero padded
+		return segments;
+	}
+
+	static String segmentName(long firstSequence) {
+		return String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX);
+	}
+
+	static long firstSequenceOf(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static Logger logger() {
+		return Logger.getLogger(OfferJournal.class.getName());
+	}
+}
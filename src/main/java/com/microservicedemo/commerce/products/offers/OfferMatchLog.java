@@ -0,0 +1,33 @@
+package com.microservicedemo.commerce.products.offers;
+
+/** Recent fills of buy orders by {@link ProductOfferManager#matchOffers}, for consumers to pull - an
+ * {@link OfferRecordRing} of records (sequence &lt;&lt; 8, orderId, productId, offerId, priceCents), grown to its
+ * capacity as orders fill.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferMatchLog extends OfferRecordRing {
+
+	public static final int RECORD_LONGS = 5;
+
+	public OfferMatchLog(int capacity) {
+		super(capacity, RECORD_LONGS);
+	}
+
+	/**
+	 * Logs the fills of one order - the offers from index from up to to.
+	 *
+	 * @return	The last fill's sequence number.
+	 */
+	public synchronized long append(long orderId, long productId, long[] offerIds, long[] priceCents, int from, int to) {
+		for (int i = from; i < to; i++) {
+			int slot = claim(0);
+			records[slot + 1] = orderId;
+			records[slot + 2] = productId;
+			records[slot + 3] = offerIds[i];
+			records[slot + 4] = priceCents[i];
+		}
+		published();
+		return lastSequence;
+	}
+}
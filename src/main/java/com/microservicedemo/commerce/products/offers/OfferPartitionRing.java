@@ -0,0 +1,135 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+
+/** A consistent hash ring assigning each product to one of the products-service nodes.
+ *
+ * Every node is placed on the ring at VIRTUAL_NODES pseudo-random points, and a product belongs to
+ * the node owning the first point at or after the product's own hash. Adding or removing a node only
+ * moves the products between its points and their neighbours - about 1/n of them - and the virtual
+ * points keep the slices within a few percent of equal.
+ *
+ * Rings are immutable; a membership change builds a new one. Any two rings built from the same nodes
+ * agree, so the web tier and the products-service nodes route alike without talking to each other.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public final class OfferPartitionRing {
+
+	static final int VIRTUAL_NODES = 160;
+
+	/** Registration metadata key naming a node's replication role - followers are left off the ring */
+	public static final String ROLE_METADATA = "offers.role";
+	public static final String PRIMARY_ROLE = "primary";
+	public static final String FOLLOWER_ROLE = "follower";
+
+	// Node name (host:port) to its base URI, sorted by name
+	final TreeMap<String, URI> nodes;
+	final String[] nodeNames;
+
+	// Ring points, ascending, and the index of each point's node
+	final long[] points;
+	final int[] pointNodes;
+
+	/**
+	 * @param metadata	A node's registration metadata, or null.
+	 * @return	True if the node is following a primary, so owns no products.
+	 */
+	public static boolean isFollower(Map<String, String> metadata) {
+		return metadata != null && FOLLOWER_ROLE.equals(metadata.get(ROLE_METADATA));
+	}
+
+	public OfferPartitionRing(Map<String, URI> nodes) {
+		this.nodes = new TreeMap<>(nodes);
+		this.nodeNames = this.nodes.keySet().toArray(new String[0]);
+
+		long[] keyed = new long[nodeNames.length * VIRTUAL_NODES];
+		for (int n = 0; n < nodeNames.length; n++)
+			for (int v = 0; v < VIRTUAL_NODES; v++)
+				keyed[n * VIRTUAL_NODES + v] = hash(nodeNames[n], v);
+
+		// Sort the points, carrying their node along
+		Integer[] order = new Integer[keyed.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(keyed[a], keyed[b]));
+		points = new long[keyed.length];
+		pointNodes = new int[keyed.length];
+		for (int i = 0; i < order.length; i++) {
+			points[i] = keyed[order[i]];
+			pointNodes[i] = order[i] / VIRTUAL_NODES;
+		}
+	}
+
+	/**
+	 * @return	The name (host:port) of the node owning the product, or null if the ring is empty.
+	 */
+	public String ownerOf(long productId) {
+		if (points.length == 0)
+			return null;
+		int point = Arrays.binarySearch(points, mix(productId));
+		if (point < 0)
+			point = -point - 1;
+		return nodeNames[pointNodes[point == points.length ? 0 : point]];
+	}
+
+	public String ownerOf(PRODUCTID productId) {
+		return ownerOf(productId.longValue());
+	}
+
+	/**
+	 * @return	The base URI of the named node.
+	 */
+	public URI uriOf(String node) {
+		return nodes.get(node);
+	}
+
+	public boolean contains(String node) {
+		return nodes.containsKey(node);
+	}
+
+	public boolean isEmpty() {
+		return nodes.isEmpty();
+	}
+
+	/**
+	 * @return	True if the ring was built from the same nodes, at the same URIs.
+	 */
+	public boolean hasNodes(Map<String, URI> others) {
+		return nodes.equals(others);
+	}
+
+	@Override
+	public String toString() {
+		return nodes.keySet().toString();
+	}
+
+	/**
+	 * The 64 bit finalizer of MurmurHash3 - spreads sequential product ids evenly round the ring.
+	 */
+	static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xFF51AFD7ED558CCDL;
+		key ^= key >>> 33;
+		key *= 0xC4CEB9FE1A85EC53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	/**
+	 * FNV-1a over the node name, mixed with the virtual node number.
+	 */
+	static long hash(String node, int virtualNode) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < node.length(); i++) {
+			h ^= node.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		return mix(h ^ ((long) virtualNode << 48));
+	}
+}
@@ -0,0 +1,286 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Each product's best (lowest) offer price over time, recorded as offers are added, removed, expired and filled.
+ *
+ * A product's history is a step function - a point for every change of its best price, at most one per
+ * resolution step (the last best price within it), with {@link #NO_PRICE} while its book is empty. Points
+ * are compressed by an {@link OfferPriceSeries} to a few bits each when changes are regular and small, and
+ * sealed into off-heap pages as they fill. Pages wholly older than the retention period are freed.
+ *
+ * Only changes made through this node's {@link ProductOfferManager} are recorded - not journal replay, nor
+ * a follower applying a primary's changes - so history starts when it is enabled, and stays where it was
+ * recorded if a product's book moves to another node.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public final class OfferPriceHistory {
+
+	/** The price recorded while a product has no offers */
+	public static final long NO_PRICE = Long.MIN_VALUE;
+
+	/** Called for each point of a range, oldest first */
+	public interface PointVisitor {
+		/**
+		 * @param timeMillis	When the price took effect, rounded down to the resolution.
+		 * @param priceCents	The best price from then on, or {@link #NO_PRICE}.
+		 * @return				False to stop.
+		 */
+		boolean visit(long timeMillis, long priceCents);
+	}
+
+	/** Called for each bucket of a downsampled range that had a price in effect, oldest first */
+	public interface BucketVisitor {
+		/**
+		 * @param bucketMillis	The start of the bucket.
+		 * @param points		The number of price changes within the bucket.
+		 * @param minCents		The lowest best price in effect during the bucket.
+		 * @param maxCents		The highest best price in effect during the bucket.
+		 * @param avgCents		The best price averaged over the time (within the bucket) the product had offers.
+		 */
+		void visit(long bucketMillis, int points, long minCents, long maxCents, double avgCents);
+	}
+
+	/** The most buckets one downsample may ask for */
+	public static final int MAX_BUCKETS = 100000;
+
+	final long resolutionMillis;
+	final long retentionMillis;
+	final ConcurrentHashMap<Long, OfferPriceSeries> series = new ConcurrentHashMap<>();
+	final OffHeapPageArena arena;
+
+	/**
+	 * @param resolutionMillis	The time step - points are kept no closer together than this.
+	 * @param retentionMillis	How long points are kept, at least.
+	 */
+	public OfferPriceHistory(long resolutionMillis, long retentionMillis) {
+		this(resolutionMillis, retentionMillis, OffHeapPageArena.SHARED);
+	}
+
+	OfferPriceHistory(long resolutionMillis, long retentionMillis, OffHeapPageArena arena) {
+		if (resolutionMillis <= 0)
+			throw new IllegalArgumentException("resolutionMillis must be positive: " + resolutionMillis);
+		this.resolutionMillis = resolutionMillis;
+		this.retentionMillis = retentionMillis;
+		this.arena = arena;
+	}
+
+	public long getResolutionMillis() {
+		return resolutionMillis;
+	}
+
+	/**
+	 * Records a product's best price if a change to its book has changed it - called after the change.
+	 *
+	 * @param productId		The product.
+	 * @param book			Its book, already changed.
+	 * @param priceCents	The (lowest) price of the offers added or removed.
+	 * @param added			True if offers were added, false if removed.
+	 */
+	void offerChanged(long productId, OfferBook book, long priceCents, boolean added) {
+		offerChanged(productId, book, priceCents, added, System.currentTimeMillis());
+	}
+
+	void offerChanged(long productId, OfferBook book, long priceCents, boolean added, long nowMillis) {
+		OfferPriceSeries productSeries = series.computeIfAbsent(productId, id -> new OfferPriceSeries(arena));
+		synchronized (productSeries) {
+			if (!productSeries.isEmpty()) {
+				long best = productSeries.getLastPrice();
+				// Adds above the best price, and removes above it, can't have changed it
+				if (best != NO_PRICE && (added ? priceCents >= best : priceCents > best))
+					return;
+			}
+			long best = bestPrice(book);
+			if (!productSeries.isEmpty() && best == productSeries.getLastPrice())
+				return;
+
+			// Ticks never go backwards, even if the clock does
+			long tick = nowMillis / resolutionMillis;
+			if (!productSeries.isEmpty())
+				tick = Math.max(tick, productSeries.getLastTick());
+			productSeries.record(tick, best);
+			productSeries.trimBefore((nowMillis - retentionMillis) / resolutionMillis);
+		}
+	}
+
+	/**
+	 * Visits a product's points from fromMillis to toMillis, starting with the point in effect at fromMillis.
+	 *
+	 * @return	The number of points visited.
+	 */
+	public int visitPoints(long productId, long fromMillis, long toMillis, int limit, PointVisitor visitor) {
+		OfferPriceSeries productSeries = series.get(productId);
+		if (productSeries == null)
+			return 0;
+		long fromTick = Math.floorDiv(fromMillis, resolutionMillis);
+		long toTick = Math.floorDiv(toMillis, resolutionMillis);
+		synchronized (productSeries) {
+			return productSeries.visit(fromTick, toTick, limit, (tick, priceCents) -> visitor.visit(tick * resolutionMillis, priceCents));
+		}
+	}
+
+	/**
+	 * Summarizes a product's best price in buckets of bucketMillis, from fromMillis up to toMillis (or now,
+	 * if sooner). Buckets during which the product had no offers are skipped.
+	 *
+	 * @return	The number of buckets visited.
+	 * @throws IllegalArgumentException	If bucketMillis is not positive, or the range holds more than MAX_BUCKETS.
+	 */
+	public int downsample(long productId, long fromMillis, long toMillis, long bucketMillis, BucketVisitor visitor) {
+		if (bucketMillis <= 0)
+			throw new IllegalArgumentException("bucketMillis must be positive: " + bucketMillis);
+		long endMillis = Math.min(toMillis, System.currentTimeMillis());
+		if (endMillis <= fromMillis)
+			return 0;
+		if ((endMillis - fromMillis) / bucketMillis >= MAX_BUCKETS)
+			throw new IllegalArgumentException("more than " + MAX_BUCKETS + " buckets of " + bucketMillis + "ms");
+
+		Buckets buckets = new Buckets(fromMillis, bucketMillis, visitor);
+		visitPoints(productId, fromMillis, endMillis, Integer.MAX_VALUE, buckets::change);
+		buckets.advance(endMillis);
+		if (buckets.bucketStart < endMillis)
+			buckets.emit();
+		return buckets.emitted;
+	}
+
+	/**
+	 * Accumulates a step function's segments into buckets.
+	 */
+	static final class Buckets {
+		final long fromMillis;
+		final long bucketMillis;
+		final BucketVisitor visitor;
+
+		// The price in effect since segmentStart
+		long price = NO_PRICE;
+		long segmentStart;
+
+		// The current bucket
+		long bucketStart;
+		int points;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		double weightedSum;
+		long pricedMillis;
+		int emitted;
+
+		Buckets(long fromMillis, long bucketMillis, BucketVisitor visitor) {
+			this.fromMillis = fromMillis;
+			this.bucketMillis = bucketMillis;
+			this.visitor = visitor;
+			this.segmentStart = fromMillis;
+			this.bucketStart = fromMillis;
+		}
+
+		boolean change(long timeMillis, long priceCents) {
+			if (timeMillis > segmentStart)
+				advance(timeMillis);
+			if (timeMillis >= fromMillis)
+				points++;
+			price = priceCents;
+			include(priceCents);
+			return true;
+		}
+
+		/**
+		 * Accounts the current price up to timeMillis, emitting the buckets it passes the end of.
+		 */
+		void advance(long timeMillis) {
+			while (timeMillis >= bucketStart + bucketMillis) {
+				accumulate(bucketStart + bucketMillis - segmentStart);
+				emit();
+				bucketStart += bucketMillis;
+				segmentStart = bucketStart;
+				// Carried into the bucket - unless replaced right at its start
+				if (timeMillis > bucketStart)
+					include(price);
+			}
+			accumulate(timeMillis - segmentStart);
+			segmentStart = timeMillis;
+		}
+
+		private void include(long priceCents) {
+			if (priceCents == NO_PRICE)
+				return;
+			min = Math.min(min, priceCents);
+			max = Math.max(max, priceCents);
+		}
+
+		private void accumulate(long millis) {
+			if (price == NO_PRICE || millis <= 0)
+				return;
+			weightedSum += (double) price * millis;
+			pricedMillis += millis;
+		}
+
+		void emit() {
+			if (min <= max) {
+				visitor.visit(bucketStart, points, min, max, pricedMillis > 0 ? weightedSum / pricedMillis : min);
+				emitted++;
+			}
+			points = 0;
+			min = Long.MAX_VALUE;
+			max = Long.MIN_VALUE;
+			weightedSum = 0;
+			pricedMillis = 0;
+		}
+	}
+
+	/**
+	 * Forgets a product's history.
+	 */
+	public void removeProduct(long productId) {
+		OfferPriceSeries productSeries = series.remove(productId);
+		if (productSeries != null) {
+			synchronized (productSeries) {
+				productSeries.free();
+			}
+		}
+	}
+
+	/**
+	 * @return	The number of products with a history.
+	 */
+	public int getProducts() {
+		return series.size();
+	}
+
+	/**
+	 * @return	The number of points held, across every product.
+	 */
+	public long getPoints() {
+		long points = 0;
+		for (OfferPriceSeries productSeries : series.values()) {
+			synchronized (productSeries) {
+				points += productSeries.getPoints();
+			}
+		}
+		return points;
+	}
+
+	/**
+	 * @return	Bytes held for the points, on and off the heap, across every product.
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (OfferPriceSeries productSeries : series.values()) {
+			synchronized (productSeries) {
+				bytes += productSeries.getBytes();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return	The book's lowest price in cents, or NO_PRICE if it is empty.
+	 */
+	static long bestPrice(OfferBook book) {
+		long[] best = { NO_PRICE };
+		book.visitOffersByPrice(null, null, 0, 1, (priceCents, offerId) -> {
+			best[0] = priceCents;
+			return false;
+		});
+		return best[0];
+	}
+}
@@ -0,0 +1,440 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** One product's best price history - (tick, priceCents) points, compressed into bit streams in chunks.
+ *
+ * Each chunk's first point is held on the heap, and every later point is coded against the one before it:
+ * the tick as a delta of the previous delta (regularly spaced changes cost one bit), and the price as a
+ * signed delta in cents, each behind a prefix choosing from four widths:
+ *
+ *   delta of delta	0 -> '0'		[-64, 63] -> '10' + 7 bits		[-256, 255] -> '110' + 9 bits		[-2048, 2047] -> '1110' + 12 bits	else '1111' + 64 bits
+ *   price delta		0 -> '0'		[-64, 63] -> '10' + 7 bits		[-8192, 8191] -> '110' + 14 bits	[-2^23, 2^23) -> '1110' + 24 bits	else '1111' + 64 bits
+ *
+ * Prices are whole cents, so a delta codes them more tightly than XORing their bits (which suits doubles).
+ *
+ * A series keeps at most one point per tick: the last price recorded in a tick is held back, replaced by
+ * any later one in the same tick, and only encoded once a later tick is recorded.
+ *
+ * The open chunk is a small long[] on the heap, doubled as it fills, so a product with only a few changes
+ * costs a few dozen bytes. Once it reaches a page it is sealed into an {@link OffHeapPageArena} page,
+ * and its header (first tick and price, point count, page id) is all that remains on the heap.
+ *
+ * Not thread safe - {@link OfferPriceHistory} guards each series with its monitor.
+ *
+ * @author Roberto Olivares (reo)
+ */
+final class OfferPriceSeries {
+
+	/** Called for each point, in time order */
+	interface PointVisitor {
+		boolean visit(long tick, long priceCents);
+	}
+
+	static final int CHUNK_BITS = OffHeapPageArena.PAGE_BYTES * 8;
+	static final int CHUNK_WORDS = OffHeapPageArena.PAGE_BYTES / 8;
+
+	// The most one point can take - two 4 bit prefixes and two 64 bit values
+	static final int MAX_POINT_BITS = 2 * (4 + 64);
+
+	final OffHeapPageArena arena;
+
+	// Sealed chunks, oldest first - their pages, first points and point counts
+	int[] pageIds = new int[0];
+	long[] firstTicks = new long[0];
+	long[] firstPrices = new long[0];
+	int[] counts = new int[0];
+	int sealed;
+
+	// The open chunk
+	long[] words = new long[2];
+	int bitPosition;
+	int openCount;
+	long openFirstTick;
+	long openFirstPrice;
+
+	// The last point encoded, and the tick delta before it
+	long lastTick;
+	long lastTickDelta;
+	long lastPrice;
+
+	// The point held back until its tick has passed
+	boolean pending;
+	long pendingTick;
+	long pendingPrice;
+
+	OfferPriceSeries(OffHeapPageArena arena) {
+		this.arena = arena;
+	}
+
+	boolean isEmpty() {
+		return sealed == 0 && openCount == 0 && !pending;
+	}
+
+	/**
+	 * @return	The latest price recorded - only meaningful if the series is not empty.
+	 */
+	long getLastPrice() {
+		return pending ? pendingPrice : lastPrice;
+	}
+
+	/**
+	 * @return	The latest tick recorded - only meaningful if the series is not empty.
+	 */
+	long getLastTick() {
+		return pending ? pendingTick : lastTick;
+	}
+
+	long getPoints() {
+		long points = openCount + (pending ? 1 : 0);
+		for (int chunk = 0; chunk < sealed; chunk++)
+			points += counts[chunk];
+		return points;
+	}
+
+	/**
+	 * @return	Bytes held for the series' points, on and off the heap.
+	 */
+	long getBytes() {
+		return (long) sealed * (OffHeapPageArena.PAGE_BYTES + 24) + words.length * 8L + 16;
+	}
+
+	/**
+	 * Records the price from tick on - tick must not be before the last tick recorded.
+	 */
+	void record(long tick, long priceCents) {
+		if (pending && tick == pendingTick) {
+			// Replaces the tick's earlier price - or cancels it, if this restores the price before it
+			if (openCount > 0 && priceCents == lastPrice)
+				pending = false;
+			else
+				pendingPrice = priceCents;
+			return;
+		}
+		if (pending)
+			append(pendingTick, pendingPrice);
+		pending = true;
+		pendingTick = tick;
+		pendingPrice = priceCents;
+	}
+
+	private void append(long tick, long priceCents) {
+		if (openCount > 0 && bitPosition + MAX_POINT_BITS > CHUNK_BITS)
+			seal();
+
+		if (openCount == 0) {
+			openFirstTick = tick;
+			openFirstPrice = priceCents;
+			lastTickDelta = 0;
+		} else {
+			if (bitPosition + MAX_POINT_BITS > words.length * 64)
+				words = Arrays.copyOf(words, Math.min(words.length * 2, CHUNK_WORDS));
+			long tickDelta = tick - lastTick;
+			writeTickDeltaOfDelta(tickDelta - lastTickDelta);
+			writePriceDelta(priceCents - lastPrice);
+			lastTickDelta = tickDelta;
+		}
+		openCount++;
+		lastTick = tick;
+		lastPrice = priceCents;
+	}
+
+	/**
+	 * Visits the points from fromTick to toTick, starting with the one in effect at fromTick (the last at or
+	 * before it), if any.
+	 *
+	 * @return	The number of points visited.
+	 */
+	int visit(long fromTick, long toTick, int limit, PointVisitor visitor) {
+		if (isEmpty() || limit <= 0)
+			return 0;
+
+		// The chunk in effect at fromTick - the last starting at or before it
+		int chunk = PrimitiveProductOffers.floorIndex(firstTicks, sealed, fromTick);
+		if (sealed == 0 || (chunk == sealed - 1 && openCount > 0 && openFirstTick <= fromTick))
+			chunk = sealed;
+		chunk = Math.max(chunk, 0);
+
+		Range range = new Range(fromTick, toTick, limit, visitor);
+		Cursor cursor = new Cursor();
+		for (; chunk <= sealed; chunk++) {
+			if (chunk == sealed && openCount == 0)
+				break;
+			cursor.open(chunk);
+			while (cursor.next()) {
+				if (!range.accept(cursor.tick, cursor.price))
+					return range.visited;
+			}
+		}
+		if (pending && !range.accept(pendingTick, pendingPrice))
+			return range.visited;
+		return range.finish();
+	}
+
+	/**
+	 * Passes the points of a range to a visitor, holding back the last point before it until the first in it.
+	 */
+	static final class Range {
+		final long fromTick;
+		final long toTick;
+		final int limit;
+		final PointVisitor visitor;
+
+		boolean prior;
+		long priorTick;
+		long priorPrice;
+		int visited;
+
+		Range(long fromTick, long toTick, int limit, PointVisitor visitor) {
+			this.fromTick = fromTick;
+			this.toTick = toTick;
+			this.limit = limit;
+			this.visitor = visitor;
+		}
+
+		/**
+		 * @return	False once no later point is wanted.
+		 */
+		boolean accept(long tick, long priceCents) {
+			if (tick < fromTick) {
+				prior = true;
+				priorTick = tick;
+				priorPrice = priceCents;
+				return true;
+			}
+			if (tick == fromTick)
+				prior = false;	// Superseded by a point at fromTick itself
+			if (prior && !visitPrior())
+				return false;
+			if (tick > toTick)
+				return false;
+			visited++;
+			return visitor.visit(tick, priceCents) && visited < limit;
+		}
+
+		/**
+		 * @return	The number of points visited.
+		 */
+		int finish() {
+			if (prior)
+				visitPrior();
+			return visited;
+		}
+
+		private boolean visitPrior() {
+			prior = false;
+			visited++;
+			return visitor.visit(priorTick, priorPrice) && visited < limit;
+		}
+	}
+
+	/**
+	 * Frees the sealed chunks wholly before tick - those the next chunk starts at or before - keeping the
+	 * point in effect at tick.
+	 */
+	void trimBefore(long tick) {
+		int dropped = 0;
+		while (dropped < sealed && nextChunkTick(dropped) <= tick)
+			arena.free(pageIds[dropped++]);
+		if (dropped == 0)
+			return;
+		sealed -= dropped;
+		System.arraycopy(pageIds, dropped, pageIds, 0, sealed);
+		System.arraycopy(firstTicks, dropped, firstTicks, 0, sealed);
+		System.arraycopy(firstPrices, dropped, firstPrices, 0, sealed);
+		System.arraycopy(counts, dropped, counts, 0, sealed);
+	}
+
+	private long nextChunkTick(int chunk) {
+		if (chunk + 1 < sealed)
+			return firstTicks[chunk + 1];
+		return openCount > 0 ? openFirstTick : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Frees every sealed chunk's page.
+	 */
+	void free() {
+		for (int chunk = 0; chunk < sealed; chunk++)
+			arena.free(pageIds[chunk]);
+		sealed = 0;
+	}
+
+	/**
+	 * Copies the open chunk into an arena page and starts a new one.
+	 */
+	private void seal() {
+		int page = arena.allocate();
+		ByteBuffer slab = arena.slab(page);
+		int base = OffHeapPageArena.offset(page);
+		int used = (bitPosition + 63) >>> 6;
+		for (int i = 0; i < used; i++)
+			slab.putLong(base + (i << 3), words[i]);
+
+		if (sealed == pageIds.length) {
+			int capacity = Math.max(4, sealed * 2);
+			pageIds = Arrays.copyOf(pageIds, capacity);
+			firstTicks = Arrays.copyOf(firstTicks, capacity);
+			firstPrices = Arrays.copyOf(firstPrices, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+		pageIds[sealed] = page;
+		firstTicks[sealed] = openFirstTick;
+		firstPrices[sealed] = openFirstPrice;
+		counts[sealed++] = openCount;
+
+		words = new long[2];
+		bitPosition = 0;
+		openCount = 0;
+	}
+
+	private void writeTickDeltaOfDelta(long deltaOfDelta) {
+		if (deltaOfDelta == 0)
+			writeBits(0, 1);
+		else if (deltaOfDelta >= -64 && deltaOfDelta < 64)
+			writePrefixed(0b01, 2, deltaOfDelta, 7);
+		else if (deltaOfDelta >= -256 && deltaOfDelta < 256)
+			writePrefixed(0b011, 3, deltaOfDelta, 9);
+		else if (deltaOfDelta >= -2048 && deltaOfDelta < 2048)
+			writePrefixed(0b0111, 4, deltaOfDelta, 12);
+		else
+			writePrefixed(0b1111, 4, deltaOfDelta, 64);
+	}
+
+	private void writePriceDelta(long delta) {
+		if (delta == 0)
+			writeBits(0, 1);
+		else if (delta >= -64 && delta < 64)
+			writePrefixed(0b01, 2, delta, 7);
+		else if (delta >= -8192 && delta < 8192)
+			writePrefixed(0b011, 3, delta, 14);
+		else if (delta >= -(1 << 23) && delta < (1 << 23))
+			writePrefixed(0b0111, 4, delta, 24);
+		else
+			writePrefixed(0b1111, 4, delta, 64);
+	}
+
+	/**
+	 * Writes a prefix (its bits read first to last from the least significant), then value in width bits.
+	 */
+	private void writePrefixed(int prefix, int prefixBits, long value, int width) {
+		writeBits(prefix, prefixBits);
+		writeBits(value, width);
+	}
+
+	/**
+	 * Writes the low n bits of value, least significant first.
+	 */
+	private void writeBits(long value, int n) {
+		if (n < 64)
+			value &= (1L << n) - 1;
+		int word = bitPosition >>> 6;
+		int used = bitPosition & 63;
+		words[word] |= value << used;
+		if (used + n > 64)
+			words[word + 1] |= value >>> (64 - used);
+		bitPosition += n;
+	}
+
+	/**
+	 * Decodes one chunk's points in order.
+	 */
+	final class Cursor {
+		long[] heapWords;
+		ByteBuffer slab;
+		int base;
+		int remaining;
+		int position;
+		boolean first;
+
+		long tick;
+		long tickDelta;
+		long price;
+
+		void open(int chunk) {
+			if (chunk == sealed) {
+				heapWords = words;
+				slab = null;
+				remaining = openCount;
+				tick = openFirstTick;
+				price = openFirstPrice;
+			} else {
+				heapWords = null;
+				slab = arena.slab(pageIds[chunk]);
+				base = OffHeapPageArena.offset(pageIds[chunk]);
+				remaining = counts[chunk];
+				tick = firstTicks[chunk];
+				price = firstPrices[chunk];
+			}
+			position = 0;
+			tickDelta = 0;
+			first = true;
+		}
+
+		/**
+		 * @return	False at the end of the chunk.
+		 */
+		boolean next() {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			if (first) {
+				first = false;
+				return true;
+			}
+			tickDelta += readDeltaOfDelta();
+			tick += tickDelta;
+			price += readPriceDelta();
+			return true;
+		}
+
+		private long readDeltaOfDelta() {
+			switch (readPrefix()) {
+			case 0:		return 0;
+			case 1:		return readSigned(7);
+			case 2:		return readSigned(9);
+			case 3:		return readSigned(12);
+			default:	return readBits(64);
+			}
+		}
+
+		private long readPriceDelta() {
+			switch (readPrefix()) {
+			case 0:		return 0;
+			case 1:		return readSigned(7);
+			case 2:		return readSigned(14);
+			case 3:		return readSigned(24);
+			default:	return readBits(64);
+			}
+		}
+
+		/**
+		 * @return	The number of 1 bits before a 0, at most 4.
+		 */
+		private int readPrefix() {
+			int ones = 0;
+			while (ones < 4 && readBits(1) == 1)
+				ones++;
+			return ones;
+		}
+
+		private long readSigned(int n) {
+			return readBits(n) << (64 - n) >> (64 - n);
+		}
+
+		private long readBits(int n) {
+			int word = position >>> 6;
+			int used = position & 63;
+			long value = word(word) >>> used;
+			if (used + n > 64)
+				value |= word(word + 1) << (64 - used);
+			position += n;
+			return n == 64 ? value : value & ((1L << n) - 1);
+		}
+
+		private long word(int index) {
+			return heapWords != null ? heapWords[index] : slab.getLong(base + (index << 3));
+		}
+	}
+}
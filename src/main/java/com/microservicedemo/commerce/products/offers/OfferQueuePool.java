@@ -0,0 +1,141 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.Arrays;
+
+/** A pool of FIFO offer id queues, one per price level, held in shared primitive arrays.
+ *
+ * Each queued offer is a node - an offer id plus the index of the next node - so a queue is just its
+ * (head, tail) node indexes, packed into a single long that the owning book stores for the level.
+ * Nodes freed by removals are reused before the arrays grow, so steady state adds allocate nothing.
+ *
+ * Not thread safe - the owning book guards it with its own lock.
+ *
+ * @author Roberto Olivares (reo)
+ */
+final class OfferQueuePool {
+
+	// End of queue / free list marker
+	static final int NIL = -1;
+
+	// Results of remove() other than the queue's new (head, tail) value
+	static final long EMPTIED = -1L;
+	static final long NOT_QUEUED = -2L;
+
+	long[] offerIds;
+	int[] nextNodes;
+
+	// Nodes [0, used) have been handed out at least once; freed nodes are chained from freeHead
+	int used;
+	int freeHead = NIL;
+
+	OfferQueuePool(int initialCapacity) {
+		offerIds = new long[initialCapacity];
+		nextNodes = new int[initialCapacity];
+	}
+
+	/**
+	 * @param offerId
+	 * @return	A new queue holding just offerId.
+	 */
+	long newQueue(long offerId) {
+		int node = allocate(offerId);
+		return queue(node, node);
+	}
+
+	/**
+	 * Appends offerId to the tail of the queue.
+	 *
+	 * @return	The queue's new (head, tail) value, to be stored in place of the old one.
+	 */
+	long append(long queue, long offerId) {
+		int node = allocate(offerId);
+		nextNodes[tail(queue)] = node;
+		return queue(head(queue), node);
+	}
+
+	/**
+	 * Unlinks the first node holding offerId from the queue.
+	 *
+	 * @performance		O(queue length)
+	 *
+	 * @return	The queue's new (head, tail) value, EMPTIED if that was its only offer, or NOT_QUEUED if offerId is not in it.
+	 */
+	long remove(long queue, long offerId) {
+		int previous = NIL;
+		for (int node = head(queue); node != NIL; previous = node, node = nextNodes[node]) {
+			if (offerIds[node] != offerId)
+				continue;
+
+			int next = nextNodes[node];
+			int head = head(queue);
+			int tail = tail(queue);
+			if (previous == NIL) {
+				if (next == NIL) {
+					free(node);
+					return EMPTIED;
+				}
+				head = next;
+			} else {
+				nextNodes[previous] = next;
+			}
+			if (node == tail)
+				tail = previous;
+			free(node);
+			return queue(head, tail);
+		}
+		return NOT_QUEUED;
+	}
+
+	/**
+	 * @return	The oldest offer id in the queue.
+	 */
+	long oldestOfferId(long queue) {
+		return offerIds[head(queue)];
+	}
+
+	/**
+	 * @return	The node after the given one, oldest to newest, or NIL at the end of its queue.
+	 */
+	int nextNode(int node) {
+		return nextNodes[node];
+	}
+
+	long offerIdAt(int node) {
+		return offerIds[node];
+	}
+
+	private int allocate(long offerId) {
+		int node;
+		if (freeHead != NIL) {
+			node = freeHead;
+			freeHead = nextNodes[node];
+		} else {
+			if (used == offerIds.length) {
+				int capacity = Math.max(16, used * 2);
+				offerIds = Arrays.copyOf(offerIds, capacity);
+				nextNodes = Arrays.copyOf(nextNodes, capacity);
+			}
+			node = used++;
+		}
+		offerIds[node] = offerId;
+		nextNodes[node] = NIL;
+		return node;
+	}
+
+	private void free(int node) {
+		nextNodes[node] = freeHead;
+		freeHead = node;
+	}
+
+	static long queue(int head, int tail) {
+		return ((long) head << 32) | (tail & 0xFFFFFFFFL);
+	}
+
+	static int head(long queue) {
+		return (int) (queue >>> 32);
+	}
+
+	static int tail(long queue) {
+		return (int) queue;
+	}
+}
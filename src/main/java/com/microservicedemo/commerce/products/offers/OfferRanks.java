@@ -0,0 +1,39 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.math.BigDecimal;
+
+/** Order statistics over a book's offers - where a price ranks among them, and which offer holds a rank.
+ *
+ * Ranks count offers cheapest first, and oldest first within a price, from 0. Books of type
+ * {@link OfferBookType#RANKED} answer these in O(log levels); {@link ProductOfferManager} answers them for
+ * the other types by walking the book.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public interface OfferRanks {
+
+	/**
+	 * @return	The number of offers priced strictly below priceCents.
+	 */
+	public int countOffersBelow(long priceCents);
+
+	/**
+	 * @return	The number of offers priced at exactly priceCents.
+	 */
+	public int countOffersAt(long priceCents);
+
+	/**
+	 * Visits the offer at the given rank, if there is one.
+	 *
+	 * @param rank		0 for the cheapest (oldest) offer, size() - 1 for the dearest.
+	 * @param visitor	Called once, with the offer's price and id.
+	 * @return			True if the offer was visited, false if rank was out of range.
+	 */
+	public boolean visitOfferAtRank(long rank, OfferVisitor visitor);
+
+	/**
+	 * @return	The median offer price in dollars - the mean of the two middle prices for an even number
+	 * 			of offers - or null if there are none.
+	 */
+	public BigDecimal medianPrice();
+}
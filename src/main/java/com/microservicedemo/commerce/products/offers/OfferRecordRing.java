@@ -0,0 +1,123 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/** A ring of the last capacity fixed size records, numbered by sequence, for readers to pull.
+ *
+ * Each record's first long is its sequence &lt;&lt; 8 | type. Readers keep the last sequence number they have
+ * and read the records after it in batches, waiting briefly when they are caught up. Writers never wait for
+ * readers - a reader that falls more than capacity records behind has lost records, and is told so.
+ * The ring starts small and doubles as records arrive, up to capacity - so an idle ring costs little.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public abstract class OfferRecordRing {
+
+	// Identifies this run of the ring's owner - sequence numbers restart with it
+	final long epoch = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+
+	// Slots to start with - doubled as needed, up to capacity
+	static final int INITIAL_SLOTS = 1024;
+
+	final int recordLongs;
+	final int capacity;
+
+	// Guarded by this
+	long[] records;
+	long mask;
+	long lastSequence;
+	// Readers waiting for a record - appends only notify when there are some
+	int waiting;
+
+	/**
+	 * @param capacity		The most records kept - rounded up to a power of two.
+	 * @param recordLongs	The size of each record.
+	 */
+	protected OfferRecordRing(int capacity, int recordLongs) {
+		this.capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.recordLongs = recordLongs;
+		int slots = Math.min(this.capacity, INITIAL_SLOTS);
+		records = new long[slots * recordLongs];
+		mask = slots - 1;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public int getRecordLongs() {
+		return recordLongs;
+	}
+
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Copies the records after afterSequence into out, waiting up to waitMillis for there to be any.
+	 *
+	 * @param afterSequence		The last sequence number the reader has.
+	 * @param out				Receives whole records - getRecordLongs() longs each.
+	 * @param waitMillis		How long to wait if there are no records after afterSequence yet.
+	 * @return					The number of records copied (0 if none arrived in time), or -1 if the records
+	 * 							after afterSequence are no longer held.
+	 * @throws InterruptedException
+	 */
+	public synchronized int read(long afterSequence, long[] out, long waitMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + waitMillis;
+		while (lastSequence == afterSequence) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return 0;
+			waiting++;
+			try {
+				wait(remaining);
+			} finally {
+				waiting--;
+			}
+		}
+		if (afterSequence > lastSequence || lastSequence - afterSequence > mask + 1)
+			return -1;
+
+		int count = (int) Math.min(lastSequence - afterSequence, out.length / recordLongs);
+		for (int i = 0; i < count; i++)
+			System.arraycopy(records, (int) ((afterSequence + 1 + i) & mask) * recordLongs, out, i * recordLongs, recordLongs);
+		return count;
+	}
+
+	/**
+	 * Numbers the next record - call while holding this ring's monitor, then fill the record from the 
+	 * returned index, then call {@link #published}.
+	 *
+	 * @return	The index in records of the record's first long, which is already set.
+	 */
+	protected int claim(int type) {
+		long sequence = ++lastSequence;
+		if (sequence > mask + 1 && mask + 1 < capacity)
+			grow();
+		int slot = (int) (sequence & mask) * recordLongs;
+		records[slot] = sequence << 8 | type;
+		return slot;
+	}
+
+	/**
+	 * Doubles the slots, keeping every record held - call while holding this ring's monitor, with the ring full.
+	 */
+	private void grow() {
+		int slots = (int) (mask + 1) * 2;
+		long[] grown = new long[slots * recordLongs];
+		long grownMask = slots - 1;
+		for (long sequence = lastSequence - 1 - mask; sequence < lastSequence; sequence++)
+			System.arraycopy(records, (int) (sequence & mask) * recordLongs, grown, (int) (sequence & grownMask) * recordLongs, recordLongs);
+		records = grown;
+		mask = grownMask;
+	}
+
+	/**
+	 * Wakes any waiting readers - call while holding this ring's monitor.
+	 */
+	protected void published() {
+		if (waiting > 0)
+			notifyAll();
+	}
+}
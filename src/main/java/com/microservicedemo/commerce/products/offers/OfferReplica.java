@@ -0,0 +1,96 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/** A follower's copy of a primary's offer books.
+ *
+ * The follower loads a snapshot of the primary's books ({@link ProductOfferManager#writeReplicationSnapshot}),
+ * then applies the primary's {@link OfferReplicationLog} from the snapshot's base sequence on, in batches.
+ * Records the snapshot already reflects are skipped, as on a journal replay. Reads are served from the
+ * manager's books throughout - a new snapshot replaces them book by book.
+ *
+ * Not thread safe - one thread does the following.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferReplica {
+
+	public static final long NO_EPOCH = -1;
+
+	final ProductOfferManager manager;
+
+	long epoch = NO_EPOCH;
+	long appliedSequence;
+
+	// Each product's capture sequence in the last snapshot - dropped once the log has passed them all
+	HashMap<Long, Long> productSequences = new HashMap<>();
+	long lastCaptureSequence;
+
+	public OfferReplica(ProductOfferManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * @return	The epoch of the primary being followed, or NO_EPOCH before the first snapshot.
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * @return	The sequence number of the last change applied.
+	 */
+	public long getAppliedSequence() {
+		return appliedSequence;
+	}
+
+	/**
+	 * Replaces the manager's books with a snapshot's.
+	 *
+	 * @param snapshot	A snapshot file from the primary.
+	 * @param epoch		The primary's epoch.
+	 * @throws IOException
+	 */
+	public void load(Path snapshot, long epoch) throws IOException {
+		ProductOfferManager loaded = new ProductOfferManager(manager.getBookType());
+		HashMap<Long, Long> sequences = new HashMap<>();
+		long baseSequence = OfferSnapshot.load(snapshot, loaded, sequences);
+		manager.replaceProducts(loaded);
+
+		productSequences = sequences;
+		lastCaptureSequence = baseSequence;
+		for (long captured : sequences.values())
+			lastCaptureSequence = Math.max(lastCaptureSequence, captured);
+		appliedSequence = baseSequence;
+		this.epoch = epoch;
+	}
+
+	/**
+	 * Forgets the primary - the next {@link #load} starts afresh.
+	 */
+	public void reset() {
+		epoch = NO_EPOCH;
+	}
+
+	/**
+	 * Applies a batch of records read from the primary's log.
+	 *
+	 * @param records	Records as read by {@link OfferReplicationLog#read}.
+	 * @param count		The number of records.
+	 */
+	public void apply(long[] records, int count) {
+		ProductOfferManager.JournalReplay replay = manager.new JournalReplay(productSequences);
+		for (int i = 0; i < count; i++) {
+			int at = i * OfferReplicationLog.RECORD_LONGS;
+			long sequence = records[at] >>> 8;
+			replay.visit(sequence, (int) (records[at] & 0xFF), records[at + 1], records[at + 2], records[at + 3]);
+			appliedSequence = sequence;
+		}
+		replay.flush();
+
+		if (!productSequences.isEmpty() && appliedSequence >= lastCaptureSequence)
+			productSequences = new HashMap<>();
+	}
+}
@@ -0,0 +1,51 @@
+package com.microservicedemo.commerce.products.offers;
+
+/** The primary's recent offer changes, kept in memory for followers to pull.
+ *
+ * An {@link OfferRecordRing} of records (sequence &lt;&lt; 8 | type, productId, offerId, priceCents), as in the
+ * {@link OfferJournal}. Followers (and change feed subscribers) read the changes after the last sequence
+ * number they have. A follower that falls more than capacity records behind (or that was following an
+ * earlier run of the primary - a different epoch) starts again from a snapshot.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferReplicationLog extends OfferRecordRing implements OfferChangeLog {
+
+	public static final int RECORD_LONGS = 4;
+
+	/**
+	 * @param capacity	The most records kept - rounded up to a power of two, and grown to as changes arrive.
+	 */
+	public OfferReplicationLog(int capacity) {
+		super(capacity, RECORD_LONGS);
+	}
+
+	@Override
+	public synchronized long append(int type, long productId, long offerId, long priceCents) {
+		put(type, productId, offerId, priceCents);
+		published();
+		return lastSequence;
+	}
+
+	@Override
+	public synchronized long append(int type, long productId, long[] offerIds, long[] priceCents, int from, int to) {
+		for (int i = from; i < to; i++)
+			put(type, productId, offerIds[i], priceCents[i]);
+		published();
+		return lastSequence;
+	}
+
+	/**
+	 * Nothing to wait for - followers pull asynchronously.
+	 */
+	@Override
+	public void awaitDurable(long sequence) {
+	}
+
+	private void put(int type, long productId, long offerId, long priceCents) {
+		int slot = claim(type);
+		records[slot + 1] = productId;
+		records[slot + 2] = offerId;
+		records[slot + 3] = priceCents;
+	}
+}
@@ -0,0 +1,283 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.function.LongSupplier;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+
+/** Compact binary snapshots of every offer book, written alongside the {@link OfferJournal}.
+ *
+ * A snapshot is all longs: a header (MAGIC, VERSION, base sequence), then for each product its id, the
+ * journal sequence its book was captured at, its offer count, and its (priceCents, offerId) pairs in book
+ * order - then a trailer (END, product count). Books are captured one at a time while writes continue, so
+ * on replay a journal record is skipped if it is at or before its product's capture sequence. Each is copied
+ * out under its monitor and written after, so a slow channel - a follower's, say - never holds a book's writes off.
+ *
+ * Snapshots are read back through {@link MappedLongReader}, with bulk copies straight into addOffers batches.
+ * The same format carries a primary's books to a new follower, sequenced by its {@link OfferReplicationLog}.
+ * Books evicted by {@link OfferTiering} are copied in from its cold segments, so a snapshot always holds every book.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferSnapshot {
+
+	static final long MAGIC = 0x4F46464552534E50L;		// "OFFERSNP"
+	static final long VERSION = 1;
+	static final long END = 0x4F46464552454E44L;		// "OFFEREND"
+
+	static final String PREFIX = "offers-";
+	static final String SUFFIX = ".snapshot";
+
+	// Offers per addOffers call on load
+	static final int LOAD_BATCH = 8192;
+
+	/**
+	 * Writes a snapshot of the books to a temporary file, forces it, and renames it into place.
+	 *
+	 * @param directory		Where snapshots live.
+	 * @param baseSequence	Every journal record up to this one is reflected in every book.
+	 * @param books			The books to write.
+	 * @param journal		Gives each book's capture sequence, read under the book's monitor while its writes are held off.
+	 * @param tiering		Holds the books evicted from books, to write too - or null.
+	 * @return				The snapshot file.
+	 * @throws IOException
+	 */
+	public static Path write(Path directory, long baseSequence, Map<PRODUCTID, OfferBook> books, OfferJournal journal, OfferTiering tiering) throws IOException {
+		Path file = directory.resolve(snapshotName(baseSequence));
+		Path temp = directory.resolve(snapshotName(baseSequence) + ".tmp");
+
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			write(out, baseSequence, books, journal::getLastSequence, tiering, true);
+			out.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		return file;
+	}
+
+	/**
+	 * Writes a snapshot of the books to a channel.
+	 *
+	 * @param out				Where to write.
+	 * @param baseSequence		Every change up to this sequence number is reflected in every book.
+	 * @param books				The books to write.
+	 * @param captureSequence	Gives each book's capture sequence, called under the book's monitor.
+	 * @throws IOException
+	 */
+	public static void write(WritableByteChannel out, long baseSequence, Map<PRODUCTID, OfferBook> books, LongSupplier captureSequence) throws IOException {
+		write(out, baseSequence, books, captureSequence, null, false);
+	}
+
+	/**
+	 * Writes a snapshot of the books, and of those evicted from them, to a channel. Evictions are paused 
+	 * meanwhile, so every book is written once - as evicted, or as found in books.
+	 *
+	 * @param tiering			Holds the books evicted from books - or null.
+	 * @param journalSequences	Whether captureSequence gives journal sequences (rather than replication log sequences).
+	 * @see #write(WritableByteChannel, long, Map, LongSupplier)
+	 */
+	static void write(WritableByteChannel out, long baseSequence, Map<PRODUCTID, OfferBook> books, LongSupplier captureSequence, 
+			OfferTiering tiering, boolean journalSequences) throws IOException {
+		LongWriter writer = new LongWriter(out);
+		writer.put(MAGIC);
+		writer.put(VERSION);
+		writer.put(baseSequence);
+
+		long products = 0;
+		Lock evictions = tiering == null ? null : tiering.pauseEvictions();
+		try {
+			Set<Long> evicted = new HashSet<>();
+			BookCopy copy = new BookCopy();
+			if (tiering != null)
+				products += tiering.writeEvictedBooks(writer, copy, captureSequence, journalSequences, evicted);
+			for (Map.Entry<PRODUCTID, OfferBook> entry : books.entrySet()) {
+				if (!evicted.isEmpty() && evicted.contains(entry.getKey().longValueExact()))
+					continue;	// Loaded back since - its changes since are after its capture sequence
+				copy.copy(entry.getKey(), entry.getValue(), captureSequence);
+				copy.writeTo(writer);
+				products++;
+			}
+		} finally {
+			if (evictions != null)
+				evictions.unlock();
+		}
+
+		writer.put(END);
+		writer.put(products);
+		writer.flush();
+	}
+
+	/**
+	 * One book's record, copied out to be written - reused from book to book, growing to the largest.
+	 */
+	static final class BookCopy implements OfferVisitor {
+		long productId;
+		long captureSequence;
+		long[] pairs = new long[1024];
+		int longs;
+
+		/**
+		 * Copies the book, holding its writes off meanwhile.
+		 */
+		void copy(PRODUCTID productId, OfferBook book, LongSupplier captureSequence) throws IOException {
+			synchronized (book) {
+				int count = book.size();
+				start(productId.longValueExact(), captureSequence.getAsLong(), count);
+				int visited = book.visitOffersByPrice(null, null, 0, Integer.MAX_VALUE, this);
+				if (visited != count)
+					throw new IOException("offer book for " + productId + " changed while being copied");
+			}
+		}
+
+		/**
+		 * Starts a record of count pairs, to be visited in.
+		 */
+		void start(long productId, long captureSequence, int count) {
+			this.productId = productId;
+			this.captureSequence = captureSequence;
+			longs = 0;
+			if (pairs.length < count * 2L)
+				pairs = new long[Math.max(count * 2, pairs.length * 2)];
+		}
+
+		@Override
+		public boolean visit(long priceCents, long offerId) {
+			if (longs + 2 > pairs.length)
+				pairs = Arrays.copyOf(pairs, pairs.length * 2);
+			pairs[longs++] = priceCents;
+			pairs[longs++] = offerId;
+			return true;
+		}
+
+		void writeTo(LongWriter writer) throws IOException {
+			writer.put(productId);
+			writer.put(captureSequence);
+			writer.put(longs / 2);
+			for (int i = 0; i < longs; i++)
+				writer.put(pairs[i]);
+		}
+	}
+
+	/**
+	 * Loads a snapshot into the manager's books, creating them as needed.
+	 *
+	 * @param file					The snapshot.
+	 * @param manager				Receives the offers.
+	 * @param productSequences		Filled with each product's capture sequence.
+	 * @return						The snapshot's base sequence.
+	 * @throws IOException			If the snapshot is incomplete or not a snapshot.
+	 */
+	public static long load(Path file, ProductOfferManager manager, Map<Long, Long> productSequences) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			long longs = in.size() / 8;
+			if (longs < 5 || in.size() % 8 != 0)
+				throw new IOException(file + " is not an offer snapshot");
+			try (MappedLongReader trailer = new MappedLongReader(in, (longs - 2) * 8, 2)) {
+				if (trailer.next() != END)
+					throw new IOException(file + " is incomplete");
+			}
+
+			try (MappedLongReader reader = new MappedLongReader(in, 0, longs - 2)) {
+				if (reader.next() != MAGIC || reader.next() != VERSION)
+					throw new IOException(file + " is not an offer snapshot");
+				long baseSequence = reader.next();
+
+				long[] pairs = new long[LOAD_BATCH * 2];
+				long[] offerIds = new long[LOAD_BATCH];
+				long[] priceCents = new long[LOAD_BATCH];
+				long remainingLongs = longs - 5;
+				while (remainingLongs > 0) {
+					long productId = reader.next();
+					productSequences.put(productId, reader.next());
+					long count = reader.next();
+					remainingLongs -= 3 + count * 2;
+					if (count < 0 || remainingLongs < 0)
+						throw new IOException(file + " is corrupt");
+
+					OfferBook book = manager.getOrAddProduct(PRODUCTID.valueOf(productId));
+					while (count > 0) {
+						int batch = (int) Math.min(count, LOAD_BATCH);
+						reader.read(pairs, 0, batch * 2);
+						for (int i = 0; i < batch; i++) {
+							priceCents[i] = pairs[i * 2];
+							offerIds[i] = pairs[i * 2 + 1];
+						}
+						book.addOffers(offerIds, priceCents, 0, batch);
+						count -= batch;
+					}
+				}
+				return baseSequence;
+			}
+		}
+	}
+
+	/**
+	 * @return	The complete snapshots in the directory, newest first.
+	 */
+	public static List<Path> listSnapshots(Path directory) throws IOException {
+		List<Path> snapshots = new ArrayList<>();
+		try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path path : paths)
+				snapshots.add(path);
+		}
+		Collections.sort(snapshots, Collections.reverseOrder());		// Names are zero padded
+		return snapshots;
+	}
+
+	static String snapshotName(long baseSequence) {
+		return String.format("%s%020d%s", PREFIX, baseSequence, SUFFIX);
+	}
+
+	/**
+	 * Buffers longs into a direct buffer and writes it out when full; as an OfferVisitor it writes (priceCents, offerId) pairs.
+	 */
+	static class LongWriter implements OfferVisitor {
+		final WritableByteChannel out;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+		IOException failure;
+
+		LongWriter(WritableByteChannel out) {
+			this.out = out;
+		}
+
+		void put(long value) throws IOException {
+			if (!buffer.hasRemaining())
+				flush();
+			buffer.putLong(value);
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				out.write(buffer);
+			buffer.clear();
+		}
+
+		@Override
+		public boolean visit(long priceCents, long offerId) {
+			try {
+				put(priceCents);
+				put(offerId);
+				return true;
+			} catch (IOException e) {
+				failure = e;
+				return false;
+			}
+		}
+	}
+}
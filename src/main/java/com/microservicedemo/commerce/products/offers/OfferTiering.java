@@ -0,0 +1,464 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+
+/** Hot/cold tiering of a {@link ProductOfferManager}'s books - idle books are written to an {@link OfferColdStore}
+ * and dropped from memory, and loaded back by the next lookup of their product, so the books held in memory
+ * follow the working set rather than the catalog.
+ *
+ * Each lookup counts a use of its product. A sweep, every sweepMillis, halves every count and evicts:
+ * - every book unused for idleMillis, and
+ * - while more than maxHotOffers offers are held (if set), the books with the fewest recent uses, among
+ *   those unused since the last sweep - so a busy product's book outlasts a briefly used one.
+ *
+ * Eviction takes two sweeps. The first retires a book: it leaves the manager's map, but is held on to, and
+ * a lookup simply puts it back. The next writes it out (under its monitor) and lets it go. A book leaves the
+ * map under its monitor, and the manager only changes a book under its monitor once it has found it still
+ * mapped - so a request that found the book before it was retired, however long it took, changes the book
+ * it finds on looking again, never the one being written out.
+ *
+ * Offers that expire while their book is evicted are not read back for it: the expiry waits with the evicted
+ * book (16 bytes each), and is made when the book is next loaded.
+ *
+ * Snapshots pause eviction while they are written, and include the evicted books, each with the change
+ * sequence it was evicted at. A product's evicted book and its use count take about 100 bytes of heap.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public final class OfferTiering implements AutoCloseable {
+
+	/** A hot product's use - the sweep it was last used in, and its uses, halved every sweep */
+	static final class Usage {
+		volatile long lastSweep;
+		int uses;		// Racy increments - an estimate is enough
+
+		Usage(long lastSweep, int uses) {
+			this.lastSweep = lastSweep;
+			this.uses = uses;
+		}
+	}
+
+	/** An evicted product - retiring while its book is held, then cold once its book is written out */
+	static final class Evicted {
+		final int uses;
+		final long retiredSweep;
+		OfferBook book;
+		OfferColdStore.Record record;
+		long journalSequence;
+		long replicationSequence;
+		boolean gone;			// Loaded back (or dropped) - look again
+
+		// (offerId, priceCents) of offers that expired while evicted, to expire once loaded back
+		long[] expiries;
+		int expiryCount;
+
+		Evicted(int uses, long retiredSweep, OfferBook book) {
+			this.uses = uses;
+			this.retiredSweep = retiredSweep;
+			this.book = book;
+		}
+	}
+
+	protected Logger logger = Logger.getLogger(OfferTiering.class.getName());
+
+	final ProductOfferManager manager;
+	final OfferColdStore store;
+	final long idleSweeps;
+	final long maxHotOffers;
+
+	final ConcurrentHashMap<PRODUCTID, Usage> usage = new ConcurrentHashMap<>();
+	final ConcurrentHashMap<PRODUCTID, Evicted> evicted = new ConcurrentHashMap<>();
+
+	// Snapshots hold the read lock, so no book is evicted while one is written; sweeps hold the write lock
+	final ReentrantReadWriteLock evictionLock = new ReentrantReadWriteLock();
+	final ScheduledExecutorService sweeper;
+	volatile long sweep;
+
+	volatile long hotOffers;
+	final AtomicLong loads = new AtomicLong();
+	final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param manager		The manager whose books are tiered.
+	 * @param directory		Where evicted books are written - segments already there are deleted.
+	 * @param idleMillis	How long a book goes unused before it is evicted.
+	 * @param sweepMillis	How often books are considered for eviction.
+	 * @param maxHotOffers	The most offers to hold in memory before evicting books still in use - 0 for no limit.
+	 */
+	OfferTiering(ProductOfferManager manager, Path directory, long idleMillis, long sweepMillis, long maxHotOffers) throws IOException {
+		this.manager = manager;
+		this.store = new OfferColdStore(directory);
+		this.idleSweeps = Math.max(1, (idleMillis + sweepMillis - 1) / sweepMillis);
+		this.maxHotOffers = maxHotOffers;
+
+		sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "offer-tiering");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleWithFixedDelay(() -> {
+			try {
+				sweep();
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "offer tiering sweep failed", e);
+			}
+		}, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Counts a use of a hot product's book.
+	 *
+	 * @return	The book.
+	 */
+	OfferBook touch(PRODUCTID productId, OfferBook book) {
+		Usage used = usage.get(productId);
+		if (used == null)
+			used = usage.computeIfAbsent(productId, id -> new Usage(sweep, 0));
+		long current = sweep;
+		if (used.lastSweep != current)
+			used.lastSweep = current;
+		used.uses++;
+		return book;
+	}
+
+	/**
+	 * Puts a product's evicted book back in the manager's map - reading it back in if it is cold - then makes 
+	 * the expiries left with it.
+	 *
+	 * @return	The product's book, or null if it has none.
+	 * @throws UncheckedIOException	If the book could not be read back. It stays cold.
+	 */
+	OfferBook restore(PRODUCTID productId) {
+		while (true) {
+			Evicted product = evicted.get(productId);
+			if (product == null)
+				return manager.prodIdToProductsMap.get(productId);	// Never evicted, or restored meanwhile
+
+			OfferBook restored;
+			synchronized (product) {
+				if (product.gone)
+					continue;
+				OfferBook book = product.book;
+				if (book == null) {
+					book = manager.bookType.newBook();
+					try {
+						store.read(product.record, book);
+					} catch (IOException e) {
+						throw new UncheckedIOException("could not load the offers of " + productId, e);
+					}
+					store.release(product.record);
+					loads.incrementAndGet();
+				}
+				usage.put(productId, new Usage(sweep, product.uses));
+				OfferBook current = manager.prodIdToProductsMap.putIfAbsent(productId, book);
+				evicted.remove(productId, product);
+				product.gone = true;
+				if (current != null) {
+					if (book instanceof OffHeapProductOffers && book != product.book)
+						((OffHeapProductOffers) book).release();	// Replaced meanwhile - by a follower's new snapshot
+					return current;
+				}
+				restored = book;
+			}
+			// Through the manager, under the book's monitor and journaled, now the book is mapped again
+			for (int i = 0; i < product.expiryCount; i++)
+				manager.expireOffer(productId.longValueExact(), product.expiries[2 * i], product.expiries[2 * i + 1]);
+			return restored;
+		}
+	}
+
+	/**
+	 * Leaves an expiry with a product's evicted book, rather than load the book back for it.
+	 *
+	 * @return	False if the product has no evicted book - it is in the map, or has no book at all.
+	 */
+	boolean deferExpiry(PRODUCTID productId, long offerId, long priceCents) {
+		while (true) {
+			Evicted product = evicted.get(productId);
+			if (product == null)
+				return false;
+
+			synchronized (product) {
+				if (product.gone)
+					continue;
+				if (product.expiries == null)
+					product.expiries = new long[16];
+				else if (product.expiryCount * 2 == product.expiries.length)
+					product.expiries = Arrays.copyOf(product.expiries, product.expiries.length * 2);
+				product.expiries[product.expiryCount * 2] = offerId;
+				product.expiries[product.expiryCount * 2 + 1] = priceCents;
+				product.expiryCount++;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Forgets a product's evicted book, if it has one - its book has been dropped.
+	 */
+	void drop(PRODUCTID productId) {
+		Evicted product = evicted.get(productId);
+		if (product == null)
+			return;
+		synchronized (product) {
+			if (!product.gone && product.record != null)
+				store.release(product.record);
+			evicted.remove(productId, product);
+			product.gone = true;
+		}
+		usage.remove(productId);
+	}
+
+	/**
+	 * Forgets every evicted book - the manager's books have all been replaced.
+	 */
+	void dropAll() {
+		for (PRODUCTID productId : new ArrayList<>(evicted.keySet()))
+			drop(productId);
+	}
+
+	/**
+	 * Adds the ids of the products whose books are evicted.
+	 */
+	void addEvictedProductIds(List<PRODUCTID> productIds) {
+		productIds.addAll(evicted.keySet());
+	}
+
+	/**
+	 * Holds off evictions - for writing a snapshot of the hot books and the evicted ones together.
+	 *
+	 * @return	The lock held, to unlock once the snapshot is written.
+	 */
+	Lock pauseEvictions() {
+		Lock lock = evictionLock.readLock();
+		lock.lock();
+		return lock;
+	}
+
+	/**
+	 * Writes each evicted book as a snapshot record - call with evictions paused.
+	 *
+	 * @param writer				The snapshot.
+	 * @param copy					Holds each book while it is written, copied under its monitor.
+	 * @param captureSequence		Gives a retiring book's capture sequence, called under its monitor.
+	 * @param journalSequences		Whether a cold book's capture sequence is its journal sequence, or its replication log sequence.
+	 * @param written				Gets the product id of each book written.
+	 * @return						The number of books written.
+	 */
+	long writeEvictedBooks(OfferSnapshot.LongWriter writer, OfferSnapshot.BookCopy copy, LongSupplier captureSequence, 
+			boolean journalSequences, Set<Long> written) throws IOException {
+		long products = 0;
+		for (Map.Entry<PRODUCTID, Evicted> entry : evicted.entrySet()) {
+			Evicted product = entry.getValue();
+			long productId = entry.getKey().longValueExact();
+			synchronized (product) {
+				if (product.gone)
+					continue;
+				if (product.book != null) {
+					copy.copy(entry.getKey(), product.book, captureSequence);
+				} else {
+					copy.start(productId, journalSequences ? product.journalSequence : product.replicationSequence, product.record.count);
+					store.copy(product.record, copy);
+				}
+			}
+			copy.writeTo(writer);
+			written.add(productId);
+			products++;
+		}
+		return products;
+	}
+
+	/**
+	 * Writes out the books retired last sweep, then retires idle books - and the least used, beyond maxHotOffers -
+	 * and compacts sparse segments.
+	 */
+	void sweep() {
+		evictionLock.writeLock().lock();
+		try {
+			long current = ++sweep;
+			for (Map.Entry<PRODUCTID, Evicted> entry : evicted.entrySet())
+				if (entry.getValue().retiredSweep < current)
+					writeOut(entry.getKey(), entry.getValue());
+
+			long held = 0;
+			List<PRODUCTID> unused = new ArrayList<>();
+			long[] unusedUses = new long[64];		// (uses << 32) | index in unused - sorted, the least used first
+			for (Map.Entry<PRODUCTID, OfferBook> entry : manager.prodIdToProductsMap.entrySet()) {
+				Usage used = usage.computeIfAbsent(entry.getKey(), id -> new Usage(current, 0));
+				long idle = current - used.lastSweep;
+				int uses = used.uses;
+				used.uses = uses >>> 1;
+				if (idle >= idleSweeps && retire(entry.getKey(), entry.getValue(), uses))
+					continue;
+				held += entry.getValue().size();
+				if (idle > 0 && maxHotOffers > 0) {
+					if (unused.size() == unusedUses.length)
+						unusedUses = Arrays.copyOf(unusedUses, unused.size() * 2);
+					unusedUses[unused.size()] = ((long) Math.max(uses, 0) << 32) | unused.size();
+					unused.add(entry.getKey());
+				}
+			}
+
+			if (maxHotOffers > 0 && held > maxHotOffers) {
+				Arrays.sort(unusedUses, 0, unused.size());
+				for (int i = 0; i < unused.size() && held > maxHotOffers; i++) {
+					PRODUCTID productId = unused.get((int) unusedUses[i]);
+					OfferBook book = manager.prodIdToProductsMap.get(productId);
+					if (book != null && retire(productId, book, (int) (unusedUses[i] >>> 32)))
+						held -= book.size();
+				}
+			}
+			hotOffers = held;
+			usage.keySet().retainAll(manager.prodIdToProductsMap.keySet());
+
+			for (int segment : store.getSparseSegments())
+				compact(segment);
+		} finally {
+			evictionLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Takes a book out of the manager's map - under its monitor, so no change is under way and none follows - 
+	 * holding on to it until the next sweep.
+	 *
+	 * @return	False if the product's book had changed meanwhile.
+	 */
+	private boolean retire(PRODUCTID productId, OfferBook book, int uses) {
+		Evicted product = new Evicted(uses, sweep, book);
+		synchronized (product) {
+			evicted.put(productId, product);
+			boolean retired;
+			synchronized (book) {
+				retired = manager.prodIdToProductsMap.remove(productId, book);
+			}
+			if (!retired) {
+				evicted.remove(productId, product);
+				product.gone = true;
+				return false;
+			}
+		}
+		usage.remove(productId);
+		return true;
+	}
+
+	/**
+	 * Writes a retired book to the store and lets it go. If it can't be written, it is held on to until the next sweep.
+	 */
+	private void writeOut(PRODUCTID productId, Evicted product) {
+		synchronized (product) {
+			OfferBook book = product.book;
+			if (product.gone || book == null)
+				return;
+			try {
+				synchronized (book) {
+					OfferJournal journal = manager.journal;
+					OfferReplicationLog replicationLog = manager.replicationLog;
+					product.journalSequence = journal == null ? 0 : journal.getLastSequence();
+					product.replicationSequence = replicationLog == null ? 0 : replicationLog.getLastSequence();
+					product.record = store.write(productId.longValueExact(), book);
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "could not evict the offers of " + productId, e);
+				return;
+			}
+			product.book = null;
+			if (book instanceof OffHeapProductOffers)
+				((OffHeapProductOffers) book).release();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Moves the cold books in a sparse segment to the active one, so the segment can be deleted.
+	 */
+	private void compact(int segment) {
+		for (Map.Entry<PRODUCTID, Evicted> entry : evicted.entrySet()) {
+			Evicted product = entry.getValue();
+			synchronized (product) {
+				if (product.gone || product.record == null || product.record.segment != segment)
+					continue;
+				try {
+					product.record = store.move(entry.getKey().longValueExact(), product.record);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "could not compact cold offer segment " + segment, e);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return	The number of products whose books are in memory.
+	 */
+	public int getHotProducts() {
+		return manager.prodIdToProductsMap.size();
+	}
+
+	/**
+	 * @return	The number of offers in memory, as of the last sweep.
+	 */
+	public long getHotOffers() {
+		return hotOffers;
+	}
+
+	/**
+	 * @return	The number of products whose books are evicted.
+	 */
+	public int getEvictedProducts() {
+		return evicted.size();
+	}
+
+	/**
+	 * @return	Bytes of cold segment files on disk, and how many of them are live.
+	 */
+	public long getDiskBytes() {
+		return store.getDiskBytes();
+	}
+
+	public long getLiveDiskBytes() {
+		return store.getLiveBytes();
+	}
+
+	/**
+	 * @return	The number of books read back from disk.
+	 */
+	public long getLoads() {
+		return loads.get();
+	}
+
+	/**
+	 * @return	The number of books written out to disk.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Stops the sweeper and deletes the cold segments - call once the manager's books are no longer needed.
+	 */
+	@Override
+	public void close() {
+		sweeper.shutdownNow();
+		store.close();
+	}
+}
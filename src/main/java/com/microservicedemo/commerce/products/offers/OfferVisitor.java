@@ -0,0 +1,15 @@
+package com.microservicedemo.commerce.products.offers;
+
+/** Callback for walking the offers in a book, in price-time order, without copying them out.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public interface OfferVisitor {
+
+	/**
+	 * @param priceCents	The offer's price, in cents.
+	 * @param offerId		The offer id.
+	 * @return				True to continue to the next offer, false to stop.
+	 */
+	public boolean visit(long priceCents, long offerId);
+}
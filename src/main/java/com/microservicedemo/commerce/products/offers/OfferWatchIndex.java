@@ -0,0 +1,198 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Standing price watches - "tell me when an offer at or below this price appears for this product".
+ *
+ * Each product's watches are kept sorted by price threshold in primitive arrays (24 bytes or so a watch,
+ * so millions fit easily). A new offer at price p matches exactly the watches with a threshold of p or more -
+ * the tail of the product's arrays, found by binary search - so matching costs O(log n + matches) on the
+ * adding thread, however many watches there are. Matches go to an {@link OfferWatchMatchLog}, for watchers
+ * to pull asynchronously; one-shot watches are dropped as they match.
+ *
+ * Watches are held in memory only - they are not journaled, replicated or handed over with their books.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferWatchIndex {
+
+	final ConcurrentHashMap<Long, Thresholds> byProduct = new ConcurrentHashMap<>();
+	final OfferWatchMatchLog matches;
+	final AtomicLong nextWatchId = new AtomicLong();
+	final AtomicLong watches = new AtomicLong();
+
+	/**
+	 * @param matchLogCapacity	How many matches are kept for watchers to read.
+	 */
+	public OfferWatchIndex(int matchLogCapacity) {
+		matches = new OfferWatchMatchLog(matchLogCapacity);
+	}
+
+	/**
+	 * @param productId			The product to watch.
+	 * @param watcherId			Who the matches are for.
+	 * @param thresholdCents	Match offers at or below this price, in cents.
+	 * @param oneShot			Whether the watch ends with its first match.
+	 * @return					The watch's id.
+	 */
+	public long addWatch(long productId, long watcherId, long thresholdCents, boolean oneShot) {
+		long watchId = nextWatchId.incrementAndGet();
+		byProduct.compute(productId, (id, thresholds) -> {
+			if (thresholds == null)
+				thresholds = new Thresholds();
+			thresholds.add(thresholdCents, watchId, watcherId, oneShot);
+			return thresholds;
+		});
+		watches.incrementAndGet();
+		return watchId;
+	}
+
+	/**
+	 * @param thresholdCents	The threshold the watch was added with.
+	 * @return					True if the watch was found (it may have matched, if one-shot) and removed.
+	 */
+	public boolean removeWatch(long productId, long watchId, long thresholdCents) {
+		boolean[] removed = new boolean[1];
+		byProduct.computeIfPresent(productId, (id, thresholds) -> {
+			synchronized (thresholds) {
+				removed[0] = thresholds.remove(thresholdCents, watchId);
+				return thresholds.size == 0 ? null : thresholds;
+			}
+		});
+		if (removed[0])
+			watches.decrementAndGet();
+		return removed[0];
+	}
+
+	/**
+	 * Matches a new offer against the product's watches, logging a match for each watch at or above its price.
+	 *
+	 * @performance		O(log n + matches)
+	 *
+	 * @return	The number of watches matched.
+	 */
+	public int match(long productId, long offerId, long priceCents) {
+		Thresholds thresholds = byProduct.get(productId);
+		if (thresholds == null)
+			return 0;
+		int matched;
+		boolean emptied;
+		synchronized (thresholds) {
+			int from = thresholds.firstAtOrAbove(priceCents);
+			matched = thresholds.size - from;
+			if (matched == 0)
+				return 0;
+			matches.append(productId, offerId, priceCents, thresholds.watchIds, thresholds.watcherIds, from, thresholds.size);
+			int ended = thresholds.endOneShots(from);
+			watches.addAndGet(-ended);
+			emptied = thresholds.size == 0;
+		}
+		if (emptied)
+			byProduct.computeIfPresent(productId, (id, current) -> {
+				synchronized (current) {
+					return current.size == 0 ? null : current;
+				}
+			});
+		return matched;
+	}
+
+	/**
+	 * @return	The number of standing watches.
+	 */
+	public long size() {
+		return watches.get();
+	}
+
+	public OfferWatchMatchLog getMatches() {
+		return matches;
+	}
+
+	/**
+	 * One product's watches, sorted by threshold (then age).
+	 */
+	static final class Thresholds {
+		long[] thresholdCents = new long[4];
+		long[] watchIds = new long[4];
+		long[] watcherIds = new long[4];
+		boolean[] oneShots = new boolean[4];
+		int size;
+
+		synchronized void add(long threshold, long watchId, long watcherId, boolean oneShot) {
+			if (size == thresholdCents.length) {
+				int capacity = size * 2;
+				thresholdCents = Arrays.copyOf(thresholdCents, capacity);
+				watchIds = Arrays.copyOf(watchIds, capacity);
+				watcherIds = Arrays.copyOf(watcherIds, capacity);
+				oneShots = Arrays.copyOf(oneShots, capacity);
+			}
+			int at = firstAtOrAbove(threshold + 1);		// After any equal thresholds
+			int moved = size - at;
+			System.arraycopy(thresholdCents, at, thresholdCents, at + 1, moved);
+			System.arraycopy(watchIds, at, watchIds, at + 1, moved);
+			System.arraycopy(watcherIds, at, watcherIds, at + 1, moved);
+			System.arraycopy(oneShots, at, oneShots, at + 1, moved);
+			thresholdCents[at] = threshold;
+			watchIds[at] = watchId;
+			watcherIds[at] = watcherId;
+			oneShots[at] = oneShot;
+			size++;
+		}
+
+		boolean remove(long threshold, long watchId) {
+			for (int i = firstAtOrAbove(threshold); i < size && thresholdCents[i] == threshold; i++) {
+				if (watchIds[i] == watchId) {
+					removeRange(i, i + 1);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return	The index of the first threshold at or above price (size if none).
+		 */
+		int firstAtOrAbove(long price) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (thresholdCents[mid] < price)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		/**
+		 * Drops the one-shot watches from index from on, keeping the rest in order.
+		 *
+		 * @return	The number dropped.
+		 */
+		int endOneShots(int from) {
+			int kept = from;
+			for (int i = from; i < size; i++) {
+				if (oneShots[i])
+					continue;
+				thresholdCents[kept] = thresholdCents[i];
+				watchIds[kept] = watchIds[i];
+				watcherIds[kept] = watcherIds[i];
+				oneShots[kept++] = false;
+			}
+			int ended = size - kept;
+			size = kept;
+			return ended;
+		}
+
+		void removeRange(int from, int to) {
+			int moved = size - to;
+			System.arraycopy(thresholdCents, to, thresholdCents, from, moved);
+			System.arraycopy(watchIds, to, watchIds, from, moved);
+			System.arraycopy(watcherIds, to, watcherIds, from, moved);
+			System.arraycopy(oneShots, to, oneShots, from, moved);
+			size -= to - from;
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package com.microservicedemo.commerce.products.offers;
+
+/** Recent watch matches, for watchers to pull - an {@link OfferRecordRing} of records
+ * (sequence &lt;&lt; 8, watchId, watcherId, productId, offerId, priceCents).
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferWatchMatchLog extends OfferRecordRing {
+
+	public static final int RECORD_LONGS = 6;
+
+	public OfferWatchMatchLog(int capacity) {
+		super(capacity, RECORD_LONGS);
+	}
+
+	/**
+	 * Logs a match of one offer with each watch from index from up to to.
+	 *
+	 * @return	The last match's sequence number.
+	 */
+	public synchronized long append(long productId, long offerId, long priceCents, long[] watchIds, long[] watcherIds, int from, int to) {
+		for (int i = from; i < to; i++) {
+			int slot = claim(0);
+			records[slot + 1] = watchIds[i];
+			records[slot + 2] = watcherIds[i];
+			records[slot + 3] = productId;
+			records[slot + 4] = offerId;
+			records[slot + 5] = priceCents;
+		}
+		published();
+		return lastSequence;
+	}
+}
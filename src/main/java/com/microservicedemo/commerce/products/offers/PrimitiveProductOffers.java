@@ -0,0 +1,448 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+
+/** An offer book holding price levels (as long cents) in sorted primitive pages, each level
+ * with a FIFO queue of offer ids (as longs) in a pooled {@link OfferQueuePool}.
+ *
+ * The pages form a two level B+-tree: a sorted array of each page's lowest price is searched first,
+ * then the page itself. Each level costs 16 bytes in a full page (roughly 24 bytes at the average
+ * fill) and each queued offer a further 12 bytes, instead of a map entry plus a BigDecimal and a BigInteger.
+ *
+ * Offers at the same price are served in price-time priority - the oldest offer at the best level first.
+ *
+ * Writers take the book's write lock; readers run optimistically and only fall back to the read lock
+ * if a write keeps landing underneath them, so lookups do not block behind adds.
+ *
+ * Prices are held to the cent - offers are rounded half-even, query prices are rounded down.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class PrimitiveProductOffers implements OfferBook {
+
+	// Maximum number of price levels per page - a split leaves two half full pages
+	static final int PAGE_CAPACITY = 256;
+
+	// Optimistic attempts a reader makes before waiting for the read lock
+	static final int OPTIMISTIC_READ_ATTEMPTS = 3;
+
+	// Result of locate() when no offer is priced at or below the query
+	static final long NOT_FOUND = -1L;
+
+	final StampedLock lock = new StampedLock();
+
+	// Per page, the sorted level prices (in cents) and each level's queue in the pool
+	long[][] pagePrices = new long[4][];
+	long[][] pageQueues = new long[4][];
+	int[] pageSizes = new int[4];
+
+	// The lowest price held by each page - the top level of the search
+	long[] pageMinPrices = new long[4];
+
+	int pageCount;
+	volatile int size;
+
+	final OfferQueuePool queues = new OfferQueuePool(PAGE_CAPACITY);
+
+	/**
+	 * Appends an offer to its price level, creating the level if needed.
+	 *
+	 * @performance		O(log levels) search plus a copy of at most PAGE_CAPACITY entries for a new level
+	 *
+	 * @param offerId
+	 * @param price
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public void addOfferIdByPrice(OFFERID offerId, PRICE price) {
+		addOffer(offerId.longValueExact(), toCents(price, RoundingMode.HALF_EVEN));
+	}
+
+	/**
+	 * @performance		O(log levels), two branch-light binary searches and no locking unless a write races the read
+	 *
+	 * @param 	price
+	 * @return	The offerid of the oldest offer at the closest lower price to price, or null if non found.
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public OFFERID getClosestOfferIdToPrice(PRICE price) {
+		return toOfferId(readOldestOfferId(toCents(price, RoundingMode.FLOOR), false));
+	}
+
+	/**
+	 * @performance		As getClosestOfferIdToPrice, without allocating
+	 */
+	@Override
+	public long getClosestOfferIdAtOrBelow(long priceCents) {
+		return readOldestOfferId(priceCents, false);
+	}
+
+	/**
+	 * @performance		As getClosestOfferIdToPrice
+	 *
+	 * @param 	price
+	 * @return	The offerid of the oldest offer at the closest higher price to price, or null if non found.
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public OFFERID getClosestOfferIdAbovePrice(PRICE price) {
+		return toOfferId(readOldestOfferId(toCents(price, RoundingMode.CEILING), true));
+	}
+
+	/**
+	 * Walks the levels from the first at or above minPrice, and each level's queue from its head.
+	 *
+	 * @performance		O(log levels + offset + limit), under the read lock
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public int visitOffersByPrice(PRICE minPrice, PRICE maxPrice, long offset, int limit, OfferVisitor visitor) {
+		long minCents = minPrice == null ? Long.MIN_VALUE : toCents(minPrice, RoundingMode.CEILING);
+		long maxCents = maxPrice == null ? Long.MAX_VALUE : toCents(maxPrice, RoundingMode.FLOOR);
+		int visited = 0;
+
+		long stamp = lock.readLock();
+		try {
+			if (pageCount == 0 || limit <= 0)
+				return 0;
+			int page = Math.max(floorIndex(pageMinPrices, pageCount, minCents), 0);
+			int slot = ceilingIndex(pagePrices[page], pageSizes[page], minCents);
+
+			for (; page < pageCount; page++, slot = 0) {
+				long[] prices = pagePrices[page];
+				for (; slot < pageSizes[page]; slot++) {
+					if (prices[slot] > maxCents)
+						return visited;
+					for (int node = OfferQueuePool.head(pageQueues[page][slot]); node != OfferQueuePool.NIL; node = queues.nextNode(node)) {
+						if (offset > 0) {
+							offset--;
+							continue;
+						}
+						visited++;
+						if (!visitor.visit(prices[slot], queues.offerIdAt(node)) || visited == limit)
+							return visited;
+					}
+				}
+			}
+			return visited;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @performance		One write lock for the whole batch
+	 */
+	@Override
+	public void addOffers(long[] offerIds, long[] priceCents, int from, int to) {
+		long stamp = lock.writeLock();
+		try {
+			for (int i = from; i < to; i++)
+				insert(offerIds[i], priceCents[i]);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @performance		O(log levels + level length) under the write lock; readers are only held up if they 
+	 * 					fall back to the read lock
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public boolean removeOfferIdByPrice(OFFERID offerId, PRICE price) {
+		return removeOffer(offerId.longValueExact(), toCents(price, RoundingMode.HALF_EVEN));
+	}
+
+	@Override
+	public boolean removeOffer(long offerId, long priceCents) {
+		long stamp = lock.writeLock();
+		try {
+			long location = locate(priceCents);
+			if (location == NOT_FOUND)
+				return false;
+			int page = (int) (location >>> 32);
+			int slot = (int) location;
+			if (pagePrices[page][slot] != priceCents)
+				return false;
+
+			long queue = queues.remove(pageQueues[page][slot], offerId);
+			if (queue == OfferQueuePool.NOT_QUEUED)
+				return false;
+			if (queue == OfferQueuePool.EMPTIED)
+				removeLevel(page, slot);
+			else
+				pageQueues[page][slot] = queue;
+			size--;
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Takes from the head of the first level of the first page, dropping each level as it empties.
+	 * 
+	 * @performance		O(1) per offer taken, plus a copy of at most PAGE_CAPACITY entries per level emptied, 
+	 * 					all under one write lock
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public int takeOffers(long maxPriceCents, int limit, OfferVisitor taken) {
+		int took = 0;
+		long stamp = lock.writeLock();
+		try {
+			while (took < limit && pageCount > 0 && pagePrices[0][0] <= maxPriceCents) {
+				long priceCents = pagePrices[0][0];
+				long offerId = queues.oldestOfferId(pageQueues[0][0]);
+				long queue = queues.remove(pageQueues[0][0], offerId);
+				if (queue == OfferQueuePool.EMPTIED)
+					removeLevel(0, 0);
+				else
+					pageQueues[0][0] = queue;
+				size--;
+				took++;
+				if (!taken.visit(priceCents, offerId))
+					break;
+			}
+			return took;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Appends the offer to the queue at the given price, under the write lock.
+	 *
+	 * @param offerId
+	 * @param priceCents
+	 */
+	void addOffer(long offerId, long priceCents) {
+		long stamp = lock.writeLock();
+		try {
+			insert(offerId, priceCents);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Reads optimistically, retrying if a write lands underneath, then falls back to the read lock.
+	 *
+	 * @param priceCents
+	 * @param above			True for the closest level at or above priceCents, false for at or below.
+	 * @return				The oldest offer at that level, or null if there is none.
+	 */
+	private long readOldestOfferId(long priceCents, boolean above) {
+		for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0)
+				continue;
+			try {
+				long location = above ? locateCeiling(priceCents) : locate(priceCents);
+				long offerId = location == NOT_FOUND ? 0 : oldestOfferIdAt(location);
+				if (lock.validate(stamp))
+					return location == NOT_FOUND ? NO_OFFER : offerId;
+			} catch (RuntimeException e) {
+				// Torn read of pages being rewritten by a concurrent add - retry
+			}
+		}
+
+		long stamp = lock.readLock();
+		try {
+			long location = above ? locateCeiling(priceCents) : locate(priceCents);
+			return location == NOT_FOUND ? NO_OFFER : oldestOfferIdAt(location);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	static OFFERID toOfferId(long offerId) {
+		return offerId == NO_OFFER ? null : OFFERID.valueOf(offerId);
+	}
+
+	/**
+	 * @param priceCents
+	 * @return	The (page, slot) of the highest price level at or below priceCents, packed into a long, or NOT_FOUND.
+	 */
+	private long locate(long priceCents) {
+		int page = floorIndex(pageMinPrices, pageCount, priceCents);
+		if (page < 0)
+			return NOT_FOUND;
+		int slot = floorIndex(pagePrices[page], pageSizes[page], priceCents);
+		return ((long) page << 32) | slot;
+	}
+
+	/**
+	 * @param priceCents
+	 * @return	The (page, slot) of the lowest price level at or above priceCents, packed into a long, or NOT_FOUND.
+	 */
+	private long locateCeiling(long priceCents) {
+		if (pageCount == 0)
+			return NOT_FOUND;
+		int page = Math.max(floorIndex(pageMinPrices, pageCount, priceCents), 0);
+		int slot = ceilingIndex(pagePrices[page], pageSizes[page], priceCents);
+		if (slot == pageSizes[page]) {
+			// Everything on this page is cheaper - the next page starts above priceCents
+			if (++page == pageCount)
+				return NOT_FOUND;
+			slot = 0;
+		}
+		return ((long) page << 32) | slot;
+	}
+
+	private long oldestOfferIdAt(long location) {
+		return queues.oldestOfferId(pageQueues[(int) (location >>> 32)][(int) location]);
+	}
+
+	private void insert(long offerId, long priceCents) {
+		if (pageCount == 0)
+			insertPage(0, new long[PAGE_CAPACITY], new long[PAGE_CAPACITY], 0);
+
+		// Prices below every page go to the front of the first page
+		int page = Math.max(floorIndex(pageMinPrices, pageCount, priceCents), 0);
+		long[] prices = pagePrices[page];
+		int count = pageSizes[page];
+
+		int slot = floorIndex(prices, count, priceCents);
+		if (slot >= 0 && prices[slot] == priceCents) {
+			pageQueues[page][slot] = queues.append(pageQueues[page][slot], offerId);
+			size++;
+			return;
+		}
+		slot++;
+
+		if (count == PAGE_CAPACITY) {
+			splitPage(page);
+			if (slot > PAGE_CAPACITY / 2) {
+				slot -= PAGE_CAPACITY / 2;
+				page++;
+			}
+			prices = pagePrices[page];
+			count = pageSizes[page];
+		}
+
+		long[] levelQueues = pageQueues[page];
+		System.arraycopy(prices, slot, prices, slot + 1, count - slot);
+		System.arraycopy(levelQueues, slot, levelQueues, slot + 1, count - slot);
+		prices[slot] = priceCents;
+		levelQueues[slot] = queues.newQueue(offerId);
+		pageSizes[page] = count + 1;
+		if (slot == 0)
+			pageMinPrices[page] = priceCents;
+		size++;
+	}
+
+	/**
+	 * Closes the gap left by an emptied level, dropping its page if that was the page's last level.
+	 */
+	private void removeLevel(int page, int slot) {
+		int count = pageSizes[page] - 1;
+		if (count == 0) {
+			removePage(page);
+			return;
+		}
+		long[] prices = pagePrices[page];
+		long[] levelQueues = pageQueues[page];
+		System.arraycopy(prices, slot + 1, prices, slot, count - slot);
+		System.arraycopy(levelQueues, slot + 1, levelQueues, slot, count - slot);
+		pageSizes[page] = count;
+		if (slot == 0)
+			pageMinPrices[page] = prices[0];
+	}
+
+	private void removePage(int page) {
+		int tail = pageCount - page - 1;
+		System.arraycopy(pagePrices, page + 1, pagePrices, page, tail);
+		System.arraycopy(pageQueues, page + 1, pageQueues, page, tail);
+		System.arraycopy(pageSizes, page + 1, pageSizes, page, tail);
+		System.arraycopy(pageMinPrices, page + 1, pageMinPrices, page, tail);
+		pageCount--;
+		pagePrices[pageCount] = null;
+		pageQueues[pageCount] = null;
+	}
+
+	/**
+	 * Moves the upper half of a full page into a new page immediately after it.
+	 */
+	private void splitPage(int page) {
+		int half = PAGE_CAPACITY / 2;
+		long[] upperPrices = new long[PAGE_CAPACITY];
+		long[] upperQueues = new long[PAGE_CAPACITY];
+		System.arraycopy(pagePrices[page], half, upperPrices, 0, PAGE_CAPACITY - half);
+		System.arraycopy(pageQueues[page], half, upperQueues, 0, PAGE_CAPACITY - half);
+		pageSizes[page] = half;
+		insertPage(page + 1, upperPrices, upperQueues, PAGE_CAPACITY - half);
+	}
+
+	private void insertPage(int at, long[] prices, long[] levelQueues, int count) {
+		if (pageCount == pageMinPrices.length) {
+			int capacity = pageCount * 2;
+			pagePrices = Arrays.copyOf(pagePrices, capacity);
+			pageQueues = Arrays.copyOf(pageQueues, capacity);
+			pageSizes = Arrays.copyOf(pageSizes, capacity);
+			pageMinPrices = Arrays.copyOf(pageMinPrices, capacity);
+		}
+		int tail = pageCount - at;
+		System.arraycopy(pagePrices, at, pagePrices, at + 1, tail);
+		System.arraycopy(pageQueues, at, pageQueues, at + 1, tail);
+		System.arraycopy(pageSizes, at, pageSizes, at + 1, tail);
+		System.arraycopy(pageMinPrices, at, pageMinPrices, at + 1, tail);
+		pagePrices[at] = prices;
+		pageQueues[at] = levelQueues;
+		pageSizes[at] = count;
+		pageMinPrices[at] = count > 0 ? prices[0] : Long.MIN_VALUE;
+		pageCount++;
+	}
+
+	/**
+	 * Branch-light binary search - the loop body compiles to a conditional move rather than
+	 * an unpredictable branch, and always runs log2(n) times.
+	 *
+	 * @param sorted	Ascending values, of which the first n are in use.
+	 * @param n			The number of values in use.
+	 * @param key		The value to search for.
+	 * @return			The index of the last value <= key, or -1 if there is none.
+	 */
+	static int floorIndex(long[] sorted, int n, long key) {
+		if (n == 0 || sorted[0] > key)
+			return -1;
+		int base = 0;
+		while (n > 1) {
+			int half = n >>> 1;
+			base = (sorted[base + half] <= key) ? base + half : base;
+			n -= half;
+		}
+		return base;
+	}
+
+	/**
+	 * @return			The index of the first value >= key, or n if there is none.
+	 */
+	static int ceilingIndex(long[] sorted, int n, long key) {
+		return key == Long.MIN_VALUE ? 0 : floorIndex(sorted, n, key - 1) + 1;
+	}
+
+	/**
+	 * @param price		A price in dollars.
+	 * @param rounding	How to treat fractions of a cent.
+	 * @return			The price in whole cents.
+	 */
+	static long toCents(BigDecimal price, RoundingMode rounding) {
+		if (price instanceof PRICE)
+			return ((PRICE) price).toCents(rounding);
+		return price.movePointRight(2).setScale(0, rounding).longValueExact();
+	}
+}
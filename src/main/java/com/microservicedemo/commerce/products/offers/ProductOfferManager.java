@@ -1,31 +1,203 @@
 package com.microservicedemo.commerce.products.offers;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.microservicedemo.commerce.abstractions.ids.OFFERID;
 import com.microservicedemo.commerce.abstractions.ids.PRICE;
 import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
 import com.microservicedemo.commerce.exceptions.InvalidProductIdException;
 
-/** Manages a mapping of <productId to ProductOffers> 
+/** Manages a mapping of <productId to OfferBook> 
+ * 
+ * Safe for concurrent use from request threads: the product map is a ConcurrentHashMap, 
+ * books are created atomically by getOrAddProduct, and each book handles its own locking.
+ * 
+ * Every change to a book is made under the book's monitor, once the book is found to still be its product's 
+ * mapped book. A book leaves the map - handed to another node by removeProduct, or retired by tiering - under 
+ * its monitor too, so a change that found the book just before it left finds its product's book again, rather 
+ * than writing into one nobody will read. So changes to one book are serialized whatever its type - a 
+ * SKIP_LIST book's lock-free adds, and an LSM book's cheap appends, queue on the monitor like any other.
+ * 
+ * Offers may be given a time to live, after which an {@link OfferExpiryWheel} removes them.
+ * 
+ * Once {@link #openStore} has been called, every add and remove is written to an {@link OfferJournal} 
+ * (under the book's monitor, so a book and its journal records agree), and {@link OfferSnapshot}s are 
+ * written periodically so a restart only replays the journal written since the last one.
+ * Offers' times to live are not persisted.
+ * 
+ * After {@link #enableReplication}, every change is also kept in an {@link OfferReplicationLog} for
+ * followers, which catch up from {@link #writeReplicationSnapshot} and then apply the log through an {@link OfferReplica}.
+ * 
+ * After {@link #enableWatches}, each offer added is matched against the standing price watches in an {@link OfferWatchIndex}.
+ * 
+ * Buy orders take offers through {@link #matchOffers}, one order at a time per product; after {@link #enableMatchLog}
+ * their fills are also kept in an {@link OfferMatchLog} for consumers to read.
+ * 
+ * After {@link #enablePriceHistory}, each change of a product's best price is recorded in an {@link OfferPriceHistory}.
+ * 
+ * After {@link #enableTiering}, books left unused are evicted to disk by an {@link OfferTiering}, and every lookup 
+ * of a product - getProductOffersById, getOrAddProduct, and through them every query and change - loads its book back.
+ * 
+ * Rank, percentile and median queries are O(log n) with {@link OfferBookType#RANKED} books, and walk the book otherwise.
  * 
  * @author Roberto Olivares (reo)
  */
-public class ProductOfferManager {
+public class ProductOfferManager implements AutoCloseable {
 	
-	HashMap<PRODUCTID, ProductOffers> prodIdToProductsMap;
+	ConcurrentHashMap<PRODUCTID, OfferBook> prodIdToProductsMap;
+
+	// The kind of book created for newly added products
+	final OfferBookType bookType;
+
+	/** Passed as an offer's time to live when it has none */
+	public static final long NO_TTL = Long.MIN_VALUE;
+
+	// Resolution of offer expiry; the wheel (and its thread) is only started by the first offer with a TTL
+	final long expiryTickMillis;
+	volatile OfferExpiryWheel expiryWheel;
+
+	protected Logger logger = Logger.getLogger(ProductOfferManager.class.getName());
+
+	// Persistence - null until openStore
+	volatile OfferJournal journal;
+	// Replication to followers - null until enableReplication
+	volatile OfferReplicationLog replicationLog;
+	// Where each change is recorded first - the journal, the replication log, both, or neither (null)
+	volatile OfferChangeLog changeLog;
+	// Price watches - null until enableWatches
+	volatile OfferWatchIndex watchIndex;
+	// Fills of buy orders - null until enableMatchLog
+	volatile OfferMatchLog matchLog;
+	final AtomicLong lastOrderId = new AtomicLong();
+	// Best price history - null until enablePriceHistory
+	volatile OfferPriceHistory priceHistory;
+	// Hot/cold tiering of the books - null until enableTiering
+	volatile OfferTiering tiering;
+	Path storeDirectory;
+	ScheduledExecutorService snapshotter;
+	final Object snapshotLock = new Object();
 
 	public ProductOfferManager() {
-		prodIdToProductsMap = new HashMap<>();
+		this(OfferBookType.PRIMITIVE);
+	}
+
+	public ProductOfferManager(OfferBookType bookType) {
+		this(bookType, 100);
+	}
+
+	public ProductOfferManager(OfferBookType bookType, long expiryTickMillis) {
+		this.bookType = bookType;
+		this.expiryTickMillis = expiryTickMillis;
+		prodIdToProductsMap = new ConcurrentHashMap<>();
 	}
 	
-	public void addProduct(PRODUCTID productId, ProductOffers product) {
+	public void addProduct(PRODUCTID productId, OfferBook product) {
 		prodIdToProductsMap.put(productId, product);
+		OfferTiering tiering = this.tiering;
+		if (tiering != null)
+			tiering.drop(productId);	// Replaces any evicted book
+	}
+
+	/**
+	 * Adds an empty offer book, of this manager's {@link OfferBookType}, for the given product_id.
+	 * 
+	 * @param productId
+	 * @author Roberto Olivares (reo)
+	 */
+	public void addProduct(PRODUCTID productId) {
+		addProduct(productId, bookType.newBook());
+	}
+
+	/**
+	 * Atomically returns the offer book for the given product_id, creating an empty one if there is none yet.
+	 * 
+	 * @param productId
+	 * @return	The product's offer book - never null.
+	 * @author Roberto Olivares (reo)
+	 */
+	public OfferBook getOrAddProduct(PRODUCTID productId) {
+		OfferBook book = getProductOffersById(productId);	// Lock-free fast path for existing products
+		if (book != null)
+			return book;
+		return prodIdToProductsMap.computeIfAbsent(productId, id -> bookType.newBook());
 	}
 	
-	//
-	public ProductOffers getProductOffersById(PRODUCTID product_id) {
-		return prodIdToProductsMap.get(product_id);
+	/**
+	 * @return	The product's offer book - loaded back first if it has been evicted - or null if it has none.
+	 */
+	public OfferBook getProductOffersById(PRODUCTID product_id) {
+		OfferBook book = prodIdToProductsMap.get(product_id);
+		OfferTiering tiering = this.tiering;
+		if (tiering == null)
+			return book;
+		return book != null ? tiering.touch(product_id, book) : tiering.restore(product_id);
+	}
+
+	/**
+	 * Removes a product's offer book - for handing it to another node. Once this returns no change reaches 
+	 * the book: changes made after it find the product has no book.
+	 * 
+	 * @param productId
+	 * @return	The book removed, or null if the product had none.
+	 * @author Roberto Olivares (reo)
+	 */
+	public OfferBook removeProduct(PRODUCTID productId) {
+		while (true) {
+			OfferBook book = getProductOffersById(productId);
+			if (book == null)
+				return null;
+
+			OfferChangeLog changeLog = this.changeLog;
+			long sequence = 0;
+			synchronized (book) {
+				if (!prodIdToProductsMap.remove(productId, book))
+					continue;	// Replaced, or retired by tiering - look again
+				if (changeLog != null)
+					sequence = changeLog.append(OfferJournal.DROP, productId.longValueExact(), 0, 0);
+			}
+			if (changeLog != null)
+				changeLog.awaitDurable(sequence);
+			return book;
+		}
+	}
+
+	/**
+	 * @return	Whether book is still the product's mapped book - call under the book's monitor, before changing it.
+	 */
+	boolean isCurrent(PRODUCTID productId, OfferBook book) {
+		return prodIdToProductsMap.get(productId) == book;
+	}
+
+	/**
+	 * @return	A copy of the ids of the products with an offer book, evicted or not.
+	 */
+	public List<PRODUCTID> getProductIds() {
+		List<PRODUCTID> productIds = new ArrayList<>(prodIdToProductsMap.keySet());
+		OfferTiering tiering = this.tiering;
+		if (tiering != null)
+			tiering.addEvictedProductIds(productIds);
+		return productIds;
+	}
+
+	public OfferBookType getBookType() {
+		return bookType;
 	}
 	
 	/**
@@ -38,13 +210,626 @@ public class ProductOfferManager {
 	 * @author Roberto Olivares (reo)
 	 */
 	public void addOffer(OFFERID offer_id, PRODUCTID product_id, PRICE price) throws InvalidProductIdException {
-		ProductOffers product = getProductOffersById(product_id);	
-		if (product != null)
-			product.addOfferIdByPrice(offer_id, price);
-		else
-			throw new InvalidProductIdException();
+		addOffer(offer_id, product_id, price, NO_TTL);
+	}
+	
+	/**
+	 * Adds an offer_id, with the specified price, for the given product_id, to be removed once ttlMillis has passed.
+	 * 
+	 * @param offer_id
+	 * @param product_id
+	 * @param price
+	 * @param ttlMillis		The offer's time to live, in milliseconds - or NO_TTL for none.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public void addOffer(OFFERID offer_id, PRODUCTID product_id, PRICE price, long ttlMillis) throws InvalidProductIdException {
+		OfferBook product;
+		OfferChangeLog changeLog;
+		long sequence = 0;
+		while (true) {
+			product = getProductOffersById(product_id);	
+			if (product == null)
+				throw new InvalidProductIdException();
+
+			changeLog = this.changeLog;
+			synchronized (product) {
+				if (!isCurrent(product_id, product))
+					continue;
+				if (changeLog != null)
+					sequence = changeLog.append(OfferJournal.ADD, product_id.longValueExact(), offer_id.longValueExact(), toCents(price));
+				product.addOfferIdByPrice(offer_id, price);
+				// Scheduled before the book is let go, so a hand-over that follows finds the expiry pending
+				if (ttlMillis != NO_TTL)
+					getExpiryWheel().schedule(product_id.longValueExact(), offer_id.longValueExact(), toCents(price), ttlMillis);
+			}
+			break;
+		}
+		if (changeLog != null)
+			changeLog.awaitDurable(sequence);
+
+		OfferPriceHistory priceHistory = this.priceHistory;
+		if (priceHistory != null)
+			priceHistory.offerChanged(product_id.longValueExact(), product, toCents(price), true);
+
+		OfferWatchIndex watchIndex = this.watchIndex;
+		if (watchIndex != null)
+			watchIndex.match(product_id.longValueExact(), offer_id.longValueExact(), toCents(price));
 	}
 	
+	/**
+	 * Removes an offer_id, added at the specified price, from the given product_id.
+	 * 
+	 * @param offer_id
+	 * @param product_id
+	 * @param price			The price the offer was added at.
+	 * @return				True if the offer was found and removed.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public boolean removeOffer(OFFERID offer_id, PRODUCTID product_id, PRICE price) throws InvalidProductIdException {
+		OfferBook product;
+		OfferChangeLog changeLog;
+		long sequence = 0;
+		boolean removed;
+		while (true) {
+			product = getProductOffersById(product_id);
+			if (product == null)
+				throw new InvalidProductIdException();
+
+			changeLog = this.changeLog;
+			synchronized (product) {
+				if (!isCurrent(product_id, product))
+					continue;
+				if (changeLog != null)
+					sequence = changeLog.append(OfferJournal.REMOVE, product_id.longValueExact(), offer_id.longValueExact(), toCents(price));
+				removed = product.removeOfferIdByPrice(offer_id, price);
+			}
+			break;
+		}
+		if (changeLog != null)
+			changeLog.awaitDurable(sequence);
+
+		OfferPriceHistory priceHistory = this.priceHistory;
+		if (removed && priceHistory != null)
+			priceHistory.offerChanged(product_id.longValueExact(), product, toCents(price), false);
+		return removed;
+	}
+
+	/**
+	 * Removes an expired offer - called on the expiry wheel's thread. An evicted book is not loaded back for 
+	 * it: the expiry is left with the book, and made when the book is next used.
+	 * 
+	 * @return	True if the offer was still present.
+	 */
+	boolean expireOffer(long productId, long offerId, long priceCents) {
+		PRODUCTID product_id = PRODUCTID.valueOf(productId);
+		OfferBook product;
+		boolean removed;
+		while (true) {
+			// Not a use of the book - an expiry should not keep it hot
+			product = prodIdToProductsMap.get(product_id);
+			if (product == null) {
+				OfferTiering tiering = this.tiering;
+				if (tiering != null && tiering.deferExpiry(product_id, offerId, priceCents))
+					return false;
+				product = prodIdToProductsMap.get(product_id);	// Loaded back meanwhile?
+				if (product == null)
+					return false;	// Handed to another node, with the offer's time to live
+			}
+
+			OfferChangeLog changeLog = this.changeLog;
+			synchronized (product) {
+				if (!isCurrent(product_id, product))
+					continue;
+				if (changeLog != null)
+					changeLog.append(OfferJournal.EXPIRE, productId, offerId, priceCents);	// Not awaited - nobody is waiting on an expiry
+				removed = product.removeOffer(offerId, priceCents);
+			}
+			break;
+		}
+
+		OfferPriceHistory priceHistory = this.priceHistory;
+		if (removed && priceHistory != null)
+			priceHistory.offerChanged(productId, product, priceCents, false);
+		return removed;
+	}
+
+	/**
+	 * @return	The number of offers waiting to expire.
+	 */
+	public long getPendingExpiries() {
+		OfferExpiryWheel wheel = expiryWheel;
+		return wheel == null ? 0 : wheel.getPending();
+	}
+
+	/**
+	 * Visits the offers of the selected products that are waiting to expire, with their remaining times to live.
+	 * 
+	 * @see OfferExpiryWheel#visitPending
+	 */
+	public void visitPendingExpiries(LongPredicate productIds, OfferExpiryWheel.PendingVisitor visitor) {
+		OfferExpiryWheel wheel = expiryWheel;
+		if (wheel != null)
+			wheel.visitPending(productIds, visitor);
+	}
+
+	/**
+	 * Stops the expiry wheel's thread, if it was started, and closes the journal, if it was opened, and the 
+	 * cold store, if tiering was enabled.
+	 */
+	@Override
+	public void close() {
+		OfferExpiryWheel wheel = expiryWheel;
+		if (wheel != null)
+			wheel.close();
+
+		synchronized (snapshotLock) {
+			if (snapshotter != null)
+				snapshotter.shutdownNow();
+			OfferJournal journal = this.journal;
+			this.journal = null;
+			changeLog = replicationLog;
+			if (journal != null)
+				journal.close();
+		}
+
+		OfferTiering tiering = this.tiering;
+		if (tiering != null)
+			tiering.close();
+	}
+
+	/**
+	 * Restores the books from the directory's latest snapshot and the journal written since, then journals 
+	 * every change from here on. Call once, before serving requests.
+	 * 
+	 * @param directory					Where the journal and snapshots live - created if need be.
+	 * @param syncCommit				Whether adds and removes wait for their journal record to be forced to disk.
+	 * @param snapshotIntervalSeconds	How often to write a snapshot; 0 for only on request.
+	 * @return							The number of offers restored.
+	 * @throws IOException
+	 * @author Roberto Olivares (reo)
+	 */
+	public long openStore(Path directory, boolean syncCommit, long snapshotIntervalSeconds) throws IOException {
+		long started = System.currentTimeMillis();
+		Files.createDirectories(directory);
+
+		// Map the latest snapshot...
+		HashMap<Long, Long> productSequences = new HashMap<>();
+		long baseSequence = 0;
+		List<Path> snapshots = OfferSnapshot.listSnapshots(directory);
+		if (!snapshots.isEmpty())
+			baseSequence = OfferSnapshot.load(snapshots.get(0), this, productSequences);
+
+		// ...then replay just the journal tail
+		JournalReplay replay = new JournalReplay(productSequences);
+		long lastSequence = OfferJournal.replay(directory, baseSequence, replay);
+		replay.flush();
+
+		long offers = 0;
+		for (OfferBook book : prodIdToProductsMap.values())
+			offers += book.size();
+		logger.info("offer store " + directory + ": " + offers + " offers restored (" + replay.records 
+				+ " journal records replayed) in " + (System.currentTimeMillis() - started) + "ms");
+
+		synchronized (snapshotLock) {
+			storeDirectory = directory;
+			journal = new OfferJournal(directory, lastSequence, syncCommit);
+			changeLog = OfferChangeLog.both(journal, replicationLog);
+			if (snapshotIntervalSeconds > 0) {
+				snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "offer-snapshotter");
+					thread.setDaemon(true);
+					return thread;
+				});
+				snapshotter.scheduleWithFixedDelay(() -> {
+					try {
+						writeSnapshot();
+					} catch (IOException | RuntimeException e) {
+						logger.log(Level.WARNING, "offer snapshot failed", e);
+					}
+				}, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+			}
+		}
+		return offers;
+	}
+
+	/**
+	 * Writes a snapshot of every book, then deletes the journal segments and snapshots it replaces.
+	 * Writes carry on meanwhile - each book is only held while it is copied out.
+	 * 
+	 * @return	The snapshot written, or null if there is no store open.
+	 * @throws IOException
+	 * @author Roberto Olivares (reo)
+	 */
+	public Path writeSnapshot() throws IOException {
+		synchronized (snapshotLock) {
+			OfferJournal journal = this.journal;
+			if (journal == null)
+				return null;
+
+			long started = System.currentTimeMillis();
+			long baseSequence = journal.rotate();
+			Path snapshot = OfferSnapshot.write(storeDirectory, baseSequence, prodIdToProductsMap, journal, tiering);
+
+			journal.deleteSegmentsThrough(baseSequence);
+			for (Path older : OfferSnapshot.listSnapshots(storeDirectory))
+				if (!older.equals(snapshot))
+					Files.delete(older);
+
+			logger.info("offer snapshot " + snapshot.getFileName() + " written in " + (System.currentTimeMillis() - started) + "ms");
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Keeps the last logCapacity changes for followers from here on. Call before serving requests, or 
+	 * on promoting a follower (whose books then become its own followers' starting point).
+	 * 
+	 * @param logCapacity	How many changes a follower may fall behind by before it must start again from a snapshot.
+	 * @return				The replication log.
+	 * @author Roberto Olivares (reo)
+	 */
+	public OfferReplicationLog enableReplication(int logCapacity) {
+		synchronized (snapshotLock) {
+			if (replicationLog == null) {
+				replicationLog = new OfferReplicationLog(logCapacity);
+				changeLog = OfferChangeLog.both(journal, replicationLog);
+			}
+			return replicationLog;
+		}
+	}
+
+	/**
+	 * @return	The replication log, or null if replication is not enabled.
+	 */
+	public OfferReplicationLog getReplicationLog() {
+		return replicationLog;
+	}
+
+	/**
+	 * Writes a snapshot of every book for a new follower, sequenced by the replication log - the follower 
+	 * then reads the log from the snapshot's base sequence. Writes carry on meanwhile.
+	 * 
+	 * @param out	Where to write the snapshot.
+	 * @return		The snapshot's base sequence.
+	 * @throws IOException
+	 * @throws IllegalStateException	If replication is not enabled.
+	 * @author Roberto Olivares (reo)
+	 */
+	public long writeReplicationSnapshot(WritableByteChannel out) throws IOException {
+		OfferReplicationLog replicationLog = this.replicationLog;
+		if (replicationLog == null)
+			throw new IllegalStateException("offer replication is not enabled");
+		long baseSequence = replicationLog.getLastSequence();
+		OfferSnapshot.write(out, baseSequence, prodIdToProductsMap, replicationLog::getLastSequence, tiering, false);
+		return baseSequence;
+	}
+
+	/**
+	 * Matches every offer added from here on against standing price watches.
+	 * 
+	 * @param matchLogCapacity	How many matches are kept for watchers to read.
+	 * @return					The watch index.
+	 * @author Roberto Olivares (reo)
+	 */
+	public synchronized OfferWatchIndex enableWatches(int matchLogCapacity) {
+		if (watchIndex == null)
+			watchIndex = new OfferWatchIndex(matchLogCapacity);
+		return watchIndex;
+	}
+
+	/**
+	 * @return	The watch index, or null if watches are not enabled.
+	 */
+	public OfferWatchIndex getWatchIndex() {
+		return watchIndex;
+	}
+
+	/**
+	 * Keeps the fills of every buy order matched from here on in a ring for consumers to read.
+	 * 
+	 * @param capacity	How many fills are kept.
+	 * @return			The match log.
+	 * @author Roberto Olivares (reo)
+	 */
+	public synchronized OfferMatchLog enableMatchLog(int capacity) {
+		if (matchLog == null)
+			matchLog = new OfferMatchLog(capacity);
+		return matchLog;
+	}
+
+	/**
+	 * @return	The match log, or null if it is not enabled.
+	 */
+	public OfferMatchLog getMatchLog() {
+		return matchLog;
+	}
+
+	/**
+	 * Records each product's best price, as offers change from here on.
+	 * 
+	 * @param resolutionMillis	The time step - changes within one are recorded as its last best price.
+	 * @param retentionMillis	How long the history is kept.
+	 * @return					The price history.
+	 * @author Roberto Olivares (reo)
+	 */
+	public synchronized OfferPriceHistory enablePriceHistory(long resolutionMillis, long retentionMillis) {
+		if (priceHistory == null)
+			priceHistory = new OfferPriceHistory(resolutionMillis, retentionMillis);
+		return priceHistory;
+	}
+
+	/**
+	 * @return	The price history, or null if it is not enabled.
+	 */
+	public OfferPriceHistory getPriceHistory() {
+		return priceHistory;
+	}
+
+	/**
+	 * Evicts books left unused to disk from here on, loading each back on its product's next lookup.
+	 * 
+	 * @param directory		Where evicted books are written - cold segments left there by an earlier run are deleted.
+	 * @param idleMillis	How long a book goes unused before it is evicted.
+	 * @param sweepMillis	How often books are considered for eviction.
+	 * @param maxHotOffers	The most offers to hold in memory before books still in use are evicted, least used first - 0 for no limit.
+	 * @return				The tiering.
+	 * @throws IOException	If the directory could not be prepared.
+	 * @author Roberto Olivares (reo)
+	 */
+	public synchronized OfferTiering enableTiering(Path directory, long idleMillis, long sweepMillis, long maxHotOffers) throws IOException {
+		if (tiering == null)
+			tiering = new OfferTiering(this, directory, idleMillis, sweepMillis, maxHotOffers);
+		return tiering;
+	}
+
+	/**
+	 * @return	The tiering, or null if it is not enabled.
+	 */
+	public OfferTiering getTiering() {
+		return tiering;
+	}
+
+	/**
+	 * Replaces every book with those of another manager - a follower swapping in a fresh snapshot.
+	 * Readers see each product's old book or its new one, never neither.
+	 */
+	void replaceProducts(ProductOfferManager loaded) {
+		prodIdToProductsMap.putAll(loaded.prodIdToProductsMap);
+		prodIdToProductsMap.keySet().retainAll(loaded.prodIdToProductsMap.keySet());
+		OfferTiering tiering = this.tiering;
+		if (tiering != null)
+			tiering.dropAll();
+	}
+
+	/**
+	 * Applies journal records on startup (or replicated records on a follower), skipping any its product's 
+	 * snapshot already reflects. Runs of adds to one product go to its book as a batch.
+	 * 
+	 * Like any other change, each is made under the book's monitor once the book is found to still be mapped - 
+	 * a follower's books may be retired by tiering while it applies.
+	 */
+	class JournalReplay implements OfferJournal.RecordVisitor {
+		final HashMap<Long, Long> productSequences;
+		long[] offerIds = new long[OfferSnapshot.LOAD_BATCH];
+		long[] priceCents = new long[OfferSnapshot.LOAD_BATCH];
+		int batchSize;
+		long batchProductId;
+		long records;
+
+		JournalReplay(HashMap<Long, Long> productSequences) {
+			this.productSequences = productSequences;
+		}
+
+		@Override
+		public void visit(long sequence, int type, long productId, long offerId, long priceCents) {
+			Long captured = productSequences.get(productId);
+			if (captured != null && sequence <= captured)
+				return;
+			records++;
+
+			if (type == OfferJournal.ADD) {
+				if (batchSize == offerIds.length || (batchSize > 0 && productId != batchProductId))
+					flush();
+				batchProductId = productId;
+				offerIds[batchSize] = offerId;
+				this.priceCents[batchSize++] = priceCents;
+			} else if (type == OfferJournal.REMOVE || type == OfferJournal.EXPIRE || type == OfferJournal.FILL) {
+				flush();
+				PRODUCTID product_id = PRODUCTID.valueOf(productId);
+				while (true) {
+					OfferBook book = getOrAddProduct(product_id);
+					synchronized (book) {
+						if (!isCurrent(product_id, book))
+							continue;
+						book.removeOffer(offerId, priceCents);
+					}
+					break;
+				}
+			} else if (type == OfferJournal.DROP) {
+				flush();
+				PRODUCTID dropped = PRODUCTID.valueOf(productId);
+				OfferBook book;
+				while ((book = prodIdToProductsMap.get(dropped)) != null) {
+					synchronized (book) {
+						if (prodIdToProductsMap.remove(dropped, book))
+							break;
+					}
+				}
+				OfferTiering tiering = getTiering();
+				if (tiering != null)
+					tiering.drop(dropped);
+			}
+		}
+
+		void flush() {
+			if (batchSize == 0)
+				return;
+			PRODUCTID product_id = PRODUCTID.valueOf(batchProductId);
+			while (true) {
+				OfferBook book = getOrAddProduct(product_id);
+				synchronized (book) {
+					if (!isCurrent(product_id, book))
+						continue;
+					book.addOffers(offerIds, priceCents, 0, batchSize);
+				}
+				break;
+			}
+			batchSize = 0;
+		}
+	}
+
+	OfferExpiryWheel getExpiryWheel() {
+		OfferExpiryWheel wheel = expiryWheel;
+		if (wheel == null) {
+			synchronized (this) {
+				wheel = expiryWheel;
+				if (wheel == null)
+					expiryWheel = wheel = new OfferExpiryWheel(expiryTickMillis, this::expireOffer);
+			}
+		}
+		return wheel;
+	}
+
+	/**
+	 * @return	The price in whole cents, rounded half-even as the primitive book rounds it.
+	 */
+	public static long toCents(PRICE price) {
+		return price.toCents(RoundingMode.HALF_EVEN);
+	}
+
+	/**
+	 * Adds a batch of offers for the given product_id - offer ids and prices (in cents) as primitives.
+	 * 
+	 * @param product_id
+	 * @param offerIds
+	 * @param priceCents
+	 * @param from			Index of the first offer to add.
+	 * @param to			Index after the last offer to add.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public void addOffers(PRODUCTID product_id, long[] offerIds, long[] priceCents, int from, int to) throws InvalidProductIdException {
+		addOffers(product_id, offerIds, priceCents, null, from, to);
+	}
+
+	/**
+	 * As addOffers, each offer with a time to live.
+	 * 
+	 * @param ttlMillis		The offers' times to live, in milliseconds, NO_TTL for none - or null if none has one.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public void addOffers(PRODUCTID product_id, long[] offerIds, long[] priceCents, long[] ttlMillis, int from, int to) throws InvalidProductIdException {
+		OfferBook product;
+		OfferChangeLog changeLog;
+		long sequence = 0;
+		while (true) {
+			product = getProductOffersById(product_id);
+			if (product == null)
+				throw new InvalidProductIdException();
+
+			changeLog = this.changeLog;
+			synchronized (product) {
+				if (!isCurrent(product_id, product))
+					continue;
+				if (changeLog != null)
+					sequence = changeLog.append(OfferJournal.ADD, product_id.longValueExact(), offerIds, priceCents, from, to);
+				product.addOffers(offerIds, priceCents, from, to);
+				if (ttlMillis != null) {
+					for (int i = from; i < to; i++)
+						if (ttlMillis[i] != NO_TTL)
+							getExpiryWheel().schedule(product_id.longValueExact(), offerIds[i], priceCents[i], ttlMillis[i]);
+				}
+			}
+			break;
+		}
+		if (changeLog != null)
+			changeLog.awaitDurable(sequence);
+
+		OfferPriceHistory priceHistory = this.priceHistory;
+		if (priceHistory != null && to > from) {
+			long lowest = priceCents[from];
+			for (int i = from + 1; i < to; i++)
+				lowest = Math.min(lowest, priceCents[i]);
+			priceHistory.offerChanged(product_id.longValueExact(), product, lowest, true);
+		}
+
+		OfferWatchIndex watchIndex = this.watchIndex;
+		if (watchIndex != null) {
+			long productId = product_id.longValueExact();
+			for (int i = from; i < to; i++)
+				watchIndex.match(productId, offerIds[i], priceCents[i]);
+		}
+	}
+
+	/**
+	 * Fills a buy order: takes up to quantity of the product's cheapest offers (oldest first within a price) 
+	 * priced at or below maxPrice, atomically, so no offer is ever handed to two buyers. An order that finds 
+	 * fewer qualifying offers is partially filled, and the rest of it lapses.
+	 * 
+	 * Orders for a product are sequenced by its book's monitor - one matches at a time, and its fills are 
+	 * journaled (as FILL records) and logged in that order. Orders for different products run in parallel.
+	 * 
+	 * @param product_id	The product id. Throws InvalidProductIdException if not valid.
+	 * @param maxPrice		The most the buyer will pay for each offer - fractions of a cent are rounded down.
+	 * @param quantity		The number of offers wanted.
+	 * @param filled		Called with each offer taken, cheapest first, after the order is matched.
+	 * @return				The order's id, unique to this manager.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public long matchOffers(PRODUCTID product_id, PRICE maxPrice, int quantity, OfferVisitor filled) throws InvalidProductIdException {
+		long orderId = lastOrderId.incrementAndGet();
+		long productId = product_id.longValueExact();
+		long maxCents = PrimitiveProductOffers.toCents(maxPrice, RoundingMode.FLOOR);
+		long[][] fills = { new long[Math.max(1, Math.min(quantity, 16))], new long[Math.max(1, Math.min(quantity, 16))] };
+		int[] count = new int[1];
+
+		OfferBook product;
+		OfferChangeLog changeLog;
+		long sequence = 0;
+		while (true) {
+			product = getProductOffersById(product_id);
+			if (product == null)
+				throw new InvalidProductIdException();
+
+			changeLog = this.changeLog;
+			synchronized (product) {
+				if (!isCurrent(product_id, product))
+					continue;
+				product.takeOffers(maxCents, quantity, (priceCents, offerId) -> {
+					if (count[0] == fills[0].length) {
+						fills[0] = Arrays.copyOf(fills[0], count[0] * 2);
+						fills[1] = Arrays.copyOf(fills[1], count[0] * 2);
+					}
+					fills[0][count[0]] = offerId;
+					fills[1][count[0]++] = priceCents;
+					return true;
+				});
+				if (count[0] > 0) {
+					if (changeLog != null)
+						sequence = changeLog.append(OfferJournal.FILL, productId, fills[0], fills[1], 0, count[0]);
+					OfferMatchLog matchLog = this.matchLog;
+					if (matchLog != null)
+						matchLog.append(orderId, productId, fills[0], fills[1], 0, count[0]);
+				}
+			}
+			break;
+		}
+		if (changeLog != null && count[0] > 0)
+			changeLog.awaitDurable(sequence);
+
+		OfferPriceHistory priceHistory = this.priceHistory;
+		if (priceHistory != null && count[0] > 0)
+			priceHistory.offerChanged(productId, product, fills[1][0], false);
+
+		for (int i = 0; i < count[0]; i++)
+			filled.visit(fills[1][i], fills[0][i]);
+		return orderId;
+	}
+
 	/**
 	 * QueryClosestOffer returns the id of a offer corresponding to the specified product, which has its prices closest to the query parameter.
 	 * 
@@ -55,10 +840,117 @@ public class ProductOfferManager {
 	 * @author Roberto Olivares (reo)
 	 */
 	public OFFERID queryClosestOfferIdByPrice(PRODUCTID product_id, PRICE price) throws InvalidProductIdException {
-		ProductOffers product = getProductOffersById(product_id);
+		OfferBook product = getProductOffersById(product_id);
 		if (product == null)
 			throw new InvalidProductIdException();
 		OFFERID offerId = product.getClosestOfferIdToPrice(price);
 		return offerId;
 	}
+
+	/**
+	 * Returns the id of the oldest offer for the specified product at the closest price at or above the query parameter.
+	 * 
+	 * @param product_id	The product id. Throws InvalidProductIdException if not valid.
+	 * @param price			The price to return the immediately higher offer for.
+	 * @return				The offer that's immediately higher in price, or null if no offer higher found.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public OFFERID queryClosestOfferIdAbovePrice(PRODUCTID product_id, PRICE price) throws InvalidProductIdException {
+		OfferBook product = getProductOffersById(product_id);
+		if (product == null)
+			throw new InvalidProductIdException();
+		return product.getClosestOfferIdAbovePrice(price);
+	}
+
+	/**
+	 * Walks a page of the specified product's offers between two prices, cheapest (then oldest) first, in place.
+	 * With no price bounds this is a top-K query.
+	 * 
+	 * @param product_id	The product id. Throws InvalidProductIdException if not valid.
+	 * @param minPrice		The lowest price to visit, or null for no lower bound.
+	 * @param maxPrice		The highest price to visit, or null for no upper bound.
+	 * @param offset		The number of qualifying offers to skip.
+	 * @param limit			The maximum number of offers to visit.
+	 * @param visitor		Called for each offer, in order.
+	 * @return				The number of offers visited.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public int visitOffersByPrice(PRODUCTID product_id, PRICE minPrice, PRICE maxPrice, long offset, int limit, OfferVisitor visitor) throws InvalidProductIdException {
+		OfferBook product = getProductOffersById(product_id);
+		if (product == null)
+			throw new InvalidProductIdException();
+		return product.visitOffersByPrice(minPrice, maxPrice, offset, limit, visitor);
+	}
+
+	/**
+	 * @param product_id	The product id. Throws InvalidProductIdException if not valid.
+	 * @return				Order statistics over the product's offers - the book itself if it is RANKED, 
+	 * 						otherwise a walk of the book.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public OfferRanks getOfferRanks(PRODUCTID product_id) throws InvalidProductIdException {
+		OfferBook product = getProductOffersById(product_id);
+		if (product == null)
+			throw new InvalidProductIdException();
+		return product instanceof OfferRanks ? (OfferRanks) product : new LinearOfferRanks(product);
+	}
+
+	/**
+	 * @param product_id	The product id. Throws InvalidProductIdException if not valid.
+	 * @param price			Any price - fractions of a cent are allowed.
+	 * @return				The number of the product's offers priced strictly below price.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public int countOffersBelowPrice(PRODUCTID product_id, PRICE price) throws InvalidProductIdException {
+		return getOfferRanks(product_id).countOffersBelow(PrimitiveProductOffers.toCents(price, RoundingMode.CEILING));
+	}
+
+	/**
+	 * @param product_id	The product id. Throws InvalidProductIdException if not valid.
+	 * @param price			Any price - fractions of a cent are allowed, and match no offer.
+	 * @return				The number of the product's offers priced at exactly price.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public int countOffersAtPrice(PRODUCTID product_id, PRICE price) throws InvalidProductIdException {
+		long cents = PrimitiveProductOffers.toCents(price, RoundingMode.FLOOR);
+		if (cents != PrimitiveProductOffers.toCents(price, RoundingMode.CEILING))
+			return 0;
+		return getOfferRanks(product_id).countOffersAt(cents);
+	}
+
+	/**
+	 * Visits the product's offer at the given rank - 0 for the cheapest (then oldest).
+	 * 
+	 * @param product_id	The product id. Throws InvalidProductIdException if not valid.
+	 * @return				True if the offer was visited, false if there is no offer at that rank.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public boolean visitOfferAtRank(PRODUCTID product_id, long rank, OfferVisitor visitor) throws InvalidProductIdException {
+		return getOfferRanks(product_id).visitOfferAtRank(rank, visitor);
+	}
+
+	/**
+	 * @param product_id	The product id. Throws InvalidProductIdException if not valid.
+	 * @return				The product's median offer price, or null if it has no offers.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	public BigDecimal queryMedianOfferPrice(PRODUCTID product_id) throws InvalidProductIdException {
+		return getOfferRanks(product_id).medianPrice();
+	}
+
+	/**
+	 * The percentile rank of a price - the percentage of offers below it, counting those at it as half below.
+	 * 
+	 * @return	In [0, 100], or NaN when there are no offers.
+	 */
+	public static double percentileRank(int below, int at, int size) {
+		return size == 0 ? Double.NaN : 100.0 * (below + at / 2.0) / size;
+	}
 }
\ No newline at end of file
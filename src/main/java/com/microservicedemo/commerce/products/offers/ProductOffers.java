@@ -1,18 +1,66 @@
 package com.microservicedemo.commerce.products.offers;
 
-import java.util.TreeMap;
+import java.math.RoundingMode;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.microservicedemo.commerce.abstractions.ids.OFFERID;
 import com.microservicedemo.commerce.abstractions.ids.PRICE;
 
-public class ProductOffers {
+/** The reference, sorted map based, {@link OfferBook}.
+ * 
+ * Backed by a ConcurrentSkipListMap of FIFO queues (one per price level), so adds and lookups are 
+ * lock-free and safe from any thread. Offers at the same price are served oldest first.
+ * 
+ * Levels are keyed by whole cents, as in every other book - a price with fractions of a cent is added and 
+ * removed at its cents rounded half even, the cents the journal and the expiry wheel record it at.
+ * 
+ * Each level counts the offers added to it and not yet removed, adds still in flight included. The removal 
+ * that takes the count to zero drops the level from the map, and an add that finds its level dropped adds to 
+ * a new one - so no add is lost to a drop, no offer is ever moved between levels, and a level stays oldest 
+ * first. Lookups step over a level caught empty.
+ * 
+ * @author Roberto Olivares (reo)
+ */
+public class ProductOffers implements OfferBook {
 
-	// Ordered list of OFFERIDs for this product, sorted by PRICE
-	transient TreeMap<PRICE, OFFERID> priceToOffersMap = new TreeMap<>();	
+	// Ordered list of OFFERID queues for this product, sorted by PRICE
+	transient ConcurrentSkipListMap<PRICE, Level> priceToOffersMap = new ConcurrentSkipListMap<>();	
+
+	final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * A price level's FIFO queue, and its count of holds - offers added and not yet removed, or -1 once dropped.
+	 */
+	static final class Level extends ConcurrentLinkedQueue<OFFERID> {
+		private static final long serialVersionUID = 1L;
+
+		final AtomicInteger holds = new AtomicInteger();
+
+		/**
+		 * @return	False if the level has been dropped, and can no longer be added to.
+		 */
+		boolean hold() {
+			for (int held; (held = holds.get()) >= 0; ) {
+				if (holds.compareAndSet(held, held + 1))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return	True if that was the level's last hold, and it is now dropped.
+		 */
+		boolean release() {
+			return holds.decrementAndGet() == 0 && holds.compareAndSet(0, -1);
+		}
+	}
 	
 	/** 
-	 * Inserts and offer into the ordered (by price) OFFERID map.
+	 * Appends an offer to its price level's queue in the ordered (by price) OFFERID map.
 	 *  
 	 * @performance		Incurs O(log n) insertion cost in exchange for O(log n) lookup cost (by price)
 	 * 
@@ -20,23 +68,160 @@ public class ProductOffers {
 	 * @param price
 	 * @author Roberto Olivares (reo)
 	 */
+	@Override
 	public void addOfferIdByPrice(OFFERID offerId, PRICE price) {
-		priceToOffersMap.put(price, offerId);	// RB balanced tree - incurs O(log n) insertion cost in exchange for O(log n) lookup cost (by price)
+		price = toLevel(price);
+		while (true) {
+			Level level = priceToOffersMap.computeIfAbsent(price, p -> new Level());	// Skip list - incurs O(log n) insertion cost in exchange for O(log n) lookup cost (by price)
+			if (level.hold()) {
+				level.add(offerId);
+				break;
+			}
+			// The level was dropped as empty by a concurrent removal, and is on its way out of the map - retry
+			priceToOffersMap.remove(price, level);
+		}
+		size.incrementAndGet();
 	}
 	
 	/**
 	 * @performance		Incurs O(log n) insertion cost in exchange for O(log n) lookup cost (by price)
 	 * 
 	 * @param 	price
-	 * @return	The offerid of the offer with the closest lower price to price, or null if non found.
+	 * @return	The offerid of the oldest offer at the closest lower price to price, or null if non found.
 	 * @author Roberto Olivares (reo)
 	 */
+	@Override
 	public OFFERID getClosestOfferIdToPrice(PRICE price) {
-		Entry<PRICE, OFFERID> entry = priceToOffersMap.floorEntry(price);
-		if (entry == null)
-			return null;
-		OFFERID offerId = entry.getValue();	// Find the offerID with the closest lower price to price
-		return offerId;
+		Entry<PRICE, Level> entry = priceToOffersMap.floorEntry(price);
+		while (entry != null) {
+			OFFERID offerId = entry.getValue().peek();	// Find the oldest offerID with the closest lower price to price
+			if (offerId != null)
+				return offerId;
+			entry = priceToOffersMap.lowerEntry(entry.getKey());	// Level emptied by a concurrent removal
+		}
+		return null;
+	}
+
+	@Override
+	public long getClosestOfferIdAtOrBelow(long priceCents) {
+		OFFERID offerId = getClosestOfferIdToPrice(PRICE.valueOf(priceCents));
+		return offerId == null ? NO_OFFER : offerId.longValueExact();
+	}
+
+	/**
+	 * @performance		O(log n) lookup cost (by price)
+	 * 
+	 * @param 	price
+	 * @return	The offerid of the oldest offer at the closest higher price to price, or null if non found.
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public OFFERID getClosestOfferIdAbovePrice(PRICE price) {
+		Entry<PRICE, Level> entry = priceToOffersMap.ceilingEntry(price);
+		while (entry != null) {
+			OFFERID offerId = entry.getValue().peek();
+			if (offerId != null)
+				return offerId;
+			entry = priceToOffersMap.higherEntry(entry.getKey());	// Level emptied by a concurrent removal
+		}
+		return null;
+	}
+
+	/**
+	 * @performance		O(log n + offset + limit), iterating a live (weakly consistent) view of the map
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public int visitOffersByPrice(PRICE minPrice, PRICE maxPrice, long offset, int limit, OfferVisitor visitor) {
+		if (limit <= 0 || (minPrice != null && maxPrice != null && minPrice.compareTo(maxPrice) > 0))
+			return 0;
+		NavigableMap<PRICE, Level> range = priceToOffersMap;
+		if (minPrice != null)
+			range = range.tailMap(minPrice, true);
+		if (maxPrice != null)
+			range = range.headMap(maxPrice, true);
+
+		int visited = 0;
+		for (Entry<PRICE, Level> level : range.entrySet()) {
+			long priceCents = level.getKey().toCents(RoundingMode.HALF_EVEN);
+			for (OFFERID offerId : level.getValue()) {
+				if (offset > 0) {
+					offset--;
+					continue;
+				}
+				visited++;
+				if (!visitor.visit(priceCents, offerId.longValue()) || visited == limit)
+					return visited;
+			}
+		}
+		return visited;
+	}
+
+	@Override
+	public void addOffers(long[] offerIds, long[] priceCents, int from, int to) {
+		for (int i = from; i < to; i++)
+			addOfferIdByPrice(OFFERID.valueOf(offerIds[i]), PRICE.valueOf(priceCents[i]));
+	}
+
+	/**
+	 * @performance		O(log n + level length)
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public boolean removeOfferIdByPrice(OFFERID offerId, PRICE price) {
+		price = toLevel(price);
+		Level level = priceToOffersMap.get(price);
+		if (level == null || !level.remove(offerId))
+			return false;
+		size.decrementAndGet();
+		if (level.release())
+			priceToOffersMap.remove(price, level);
+		return true;
+	}
+
+	@Override
+	public boolean removeOffer(long offerId, long priceCents) {
+		return removeOfferIdByPrice(OFFERID.valueOf(offerId), PRICE.valueOf(priceCents));
+	}
+
+	/**
+	 * Polls the cheapest levels' queues - lock-free, and each offer is polled by exactly one taker.
+	 * 
+	 * @performance		O(log n) per level reached, O(1) per offer taken
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public int takeOffers(long maxPriceCents, int limit, OfferVisitor taken) {
+		PRICE maxPrice = PRICE.valueOf(maxPriceCents);
+		int took = 0;
+		Entry<PRICE, Level> level = priceToOffersMap.firstEntry();
+		while (took < limit && level != null && level.getKey().compareTo(maxPrice) <= 0) {
+			OFFERID offerId = level.getValue().poll();
+			if (offerId == null) {
+				// Emptied, or an add is still in flight - a new level at the same price is next, else the next price
+				Entry<PRICE, Level> next = priceToOffersMap.ceilingEntry(level.getKey());
+				level = next != null && next.getValue() == level.getValue() ? priceToOffersMap.higherEntry(level.getKey()) : next;
+				continue;
+			}
+			size.decrementAndGet();
+			took++;
+			if (level.getValue().release())
+				priceToOffersMap.remove(level.getKey(), level.getValue());
+			if (!taken.visit(level.getKey().toCents(RoundingMode.HALF_EVEN), offerId.longValue()))
+				break;
+		}
+		return took;
+	}
+
+	@Override
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return	The key of price's level - price itself, unless it has fractions of a cent.
+	 */
+	static PRICE toLevel(PRICE price) {
+		return price.scale() <= 2 ? price : PRICE.valueOf(price.toCents(RoundingMode.HALF_EVEN));
 	}
-		
 }
@@ -0,0 +1,597 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+
+/** An offer book holding price levels (as long cents) in an AVL tree, each level with a FIFO queue of
+ * offer ids in a pooled {@link OfferQueuePool}, and each tree node counting the offers in its subtree.
+ *
+ * The subtree counts make it an order-statistic tree: the rank of a price, the offer at a rank, and the
+ * median are found on one root to leaf path, O(log levels), rather than by walking the book - and
+ * visitOffersByPrice skips its offset the same way. Keeping them costs an add or remove one count update
+ * per level on its path, which the AVL rebalancing already visits.
+ *
+ * The tree lives in parallel primitive arrays indexed by node, with freed nodes chained for reuse. Each
+ * level costs about 33 bytes and each queued offer a further 12.
+ *
+ * Locking is as {@link PrimitiveProductOffers}: writers take the write lock, floor and ceiling lookups run
+ * optimistically, and rank queries take the read lock.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class RankedProductOffers implements OfferBook, OfferRanks {
+
+	// No node / end of the free list
+	static final int NIL = -1;
+
+	// Optimistic attempts a reader makes before waiting for the read lock
+	static final int OPTIMISTIC_READ_ATTEMPTS = 3;
+
+	// Deeper than any AVL tree of 2^31 nodes - a torn optimistic read can be sent round in circles
+	static final int MAX_DEPTH = 64;
+
+	final StampedLock lock = new StampedLock();
+
+	// Per node, the level's price (in cents), queue and offer count, then the subtree's offer count, children and height
+	long[] prices = new long[16];
+	long[] levelQueues = new long[16];
+	int[] levelSizes = new int[16];
+	int[] subtreeSizes = new int[16];
+	int[] lefts = new int[16];
+	int[] rights = new int[16];
+	byte[] heights = new byte[16];
+
+	int root = NIL;
+
+	// Nodes [0, used) have been handed out at least once; freed nodes are chained through lefts from freeHead
+	int used;
+	int freeHead = NIL;
+
+	final OfferQueuePool queues = new OfferQueuePool(16);
+
+	// Set by removeNode() when the offer was found
+	boolean removed;
+
+	/**
+	 * Appends an offer to its price level, creating the level if needed.
+	 *
+	 * @performance		O(log levels), with at most two rotations
+	 *
+	 * @param offerId
+	 * @param price
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public void addOfferIdByPrice(OFFERID offerId, PRICE price) {
+		long stamp = lock.writeLock();
+		try {
+			root = insert(root, offerId.longValueExact(), PrimitiveProductOffers.toCents(price, RoundingMode.HALF_EVEN));
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @performance		O(log levels), and no locking unless a write races the read
+	 *
+	 * @param 	price
+	 * @return	The offerid of the oldest offer at the closest lower price to price, or null if non found.
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public OFFERID getClosestOfferIdToPrice(PRICE price) {
+		return PrimitiveProductOffers.toOfferId(readOldestOfferId(PrimitiveProductOffers.toCents(price, RoundingMode.FLOOR), false));
+	}
+
+	/**
+	 * @performance		As getClosestOfferIdToPrice, without allocating
+	 */
+	@Override
+	public long getClosestOfferIdAtOrBelow(long priceCents) {
+		return readOldestOfferId(priceCents, false);
+	}
+
+	/**
+	 * @performance		As getClosestOfferIdToPrice
+	 *
+	 * @param 	price
+	 * @return	The offerid of the oldest offer at the closest higher price to price, or null if non found.
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public OFFERID getClosestOfferIdAbovePrice(PRICE price) {
+		return PrimitiveProductOffers.toOfferId(readOldestOfferId(PrimitiveProductOffers.toCents(price, RoundingMode.CEILING), true));
+	}
+
+	/**
+	 * Starts at the rank of the first offer at or above minPrice plus the offset, found from the subtree
+	 * counts, then walks the tree in order.
+	 *
+	 * @performance		O(log levels + limit) - the offset costs nothing beyond its level - under the read lock
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public int visitOffersByPrice(PRICE minPrice, PRICE maxPrice, long offset, int limit, OfferVisitor visitor) {
+		long minCents = minPrice == null ? Long.MIN_VALUE : PrimitiveProductOffers.toCents(minPrice, RoundingMode.CEILING);
+		long maxCents = maxPrice == null ? Long.MAX_VALUE : PrimitiveProductOffers.toCents(maxPrice, RoundingMode.FLOOR);
+
+		long stamp = lock.readLock();
+		try {
+			if (limit <= 0)
+				return 0;
+			int[] visited = new int[1];
+			walk(root, rankOf(minCents) + offset, maxCents, limit, visitor, visited);
+			return visited[0];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @performance		One write lock for the whole batch
+	 */
+	@Override
+	public void addOffers(long[] offerIds, long[] priceCents, int from, int to) {
+		long stamp = lock.writeLock();
+		try {
+			for (int i = from; i < to; i++)
+				root = insert(root, offerIds[i], priceCents[i]);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @performance		O(log levels + level length) under the write lock
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public boolean removeOfferIdByPrice(OFFERID offerId, PRICE price) {
+		return removeOffer(offerId.longValueExact(), PrimitiveProductOffers.toCents(price, RoundingMode.HALF_EVEN));
+	}
+
+	@Override
+	public boolean removeOffer(long offerId, long priceCents) {
+		long stamp = lock.writeLock();
+		try {
+			removed = false;
+			root = removeNode(root, offerId, priceCents);
+			return removed;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Takes from the head of the lowest level's queue, one removal at a time.
+	 * 
+	 * @performance		O(log levels) per offer taken, all under one write lock
+	 * @author Roberto Olivares (reo)
+	 */
+	@Override
+	public int takeOffers(long maxPriceCents, int limit, OfferVisitor taken) {
+		int took = 0;
+		long stamp = lock.writeLock();
+		try {
+			while (took < limit && root != NIL) {
+				int lowest = root;
+				while (lefts[lowest] != NIL)
+					lowest = lefts[lowest];
+				long priceCents = prices[lowest];
+				if (priceCents > maxPriceCents)
+					break;
+				long offerId = queues.oldestOfferId(levelQueues[lowest]);
+				root = removeNode(root, offerId, priceCents);
+				took++;
+				if (!taken.visit(priceCents, offerId))
+					break;
+			}
+			return took;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int size() {
+		long stamp = lock.tryOptimisticRead();
+		int size = sizeOf(root);
+		if (lock.validate(stamp))
+			return size;
+		stamp = lock.readLock();
+		try {
+			return sizeOf(root);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @performance		O(log levels) under the read lock
+	 */
+	@Override
+	public int countOffersBelow(long priceCents) {
+		long stamp = lock.readLock();
+		try {
+			return rankOf(priceCents);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @performance		O(log levels) under the read lock
+	 */
+	@Override
+	public int countOffersAt(long priceCents) {
+		long stamp = lock.readLock();
+		try {
+			int node = find(priceCents);
+			return node == NIL ? 0 : levelSizes[node];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @performance		O(log levels) to the level, then O(position within the level), under the read lock
+	 */
+	@Override
+	public boolean visitOfferAtRank(long rank, OfferVisitor visitor) {
+		long stamp = lock.readLock();
+		try {
+			if (rank < 0 || rank >= sizeOf(root))
+				return false;
+			int[] withinLevel = new int[1];
+			int node = select(rank, withinLevel);
+			visitor.visit(prices[node], offerIdAt(node, withinLevel[0]));
+			return true;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @performance		Two O(log levels) selects under one read lock
+	 */
+	@Override
+	public BigDecimal medianPrice() {
+		long stamp = lock.readLock();
+		try {
+			int size = sizeOf(root);
+			if (size == 0)
+				return null;
+			int[] withinLevel = new int[1];
+			long lower = prices[select((size - 1) / 2, withinLevel)];
+			long upper = prices[select(size / 2, withinLevel)];
+			return BigDecimal.valueOf(lower + upper, 2).divide(BigDecimal.valueOf(2));
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Reads optimistically, retrying if a write lands underneath, then falls back to the read lock.
+	 *
+	 * @param above		True for the closest level at or above priceCents, false for at or below.
+	 * @return			The oldest offer at that level, or NO_OFFER if there is none.
+	 */
+	private long readOldestOfferId(long priceCents, boolean above) {
+		for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0)
+				continue;
+			try {
+				int node = above ? ceiling(priceCents) : floor(priceCents);
+				long offerId = node == NIL ? 0 : queues.oldestOfferId(levelQueues[node]);
+				if (lock.validate(stamp))
+					return node == NIL ? NO_OFFER : offerId;
+			} catch (RuntimeException e) {
+				// Torn read of nodes being rotated by a concurrent add - retry
+			}
+		}
+
+		long stamp = lock.readLock();
+		try {
+			int node = above ? ceiling(priceCents) : floor(priceCents);
+			return node == NIL ? NO_OFFER : queues.oldestOfferId(levelQueues[node]);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return	The node of the highest level at or below priceCents, or NIL.
+	 */
+	private int floor(long priceCents) {
+		int best = NIL;
+		int node = root;
+		for (int depth = 0; node != NIL; depth++) {
+			checkDepth(depth);
+			if (prices[node] <= priceCents) {
+				best = node;
+				node = rights[node];
+			} else {
+				node = lefts[node];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return	The node of the lowest level at or above priceCents, or NIL.
+	 */
+	private int ceiling(long priceCents) {
+		int best = NIL;
+		int node = root;
+		for (int depth = 0; node != NIL; depth++) {
+			checkDepth(depth);
+			if (prices[node] >= priceCents) {
+				best = node;
+				node = lefts[node];
+			} else {
+				node = rights[node];
+			}
+		}
+		return best;
+	}
+
+	private static void checkDepth(int depth) {
+		if (depth == MAX_DEPTH)
+			throw new IllegalStateException("offer tree deeper than " + MAX_DEPTH);
+	}
+
+	private int find(long priceCents) {
+		int node = root;
+		while (node != NIL && prices[node] != priceCents)
+			node = prices[node] < priceCents ? rights[node] : lefts[node];
+		return node;
+	}
+
+	/**
+	 * @return	The number of offers priced below priceCents - the rank of the first offer at or above it.
+	 */
+	private int rankOf(long priceCents) {
+		int rank = 0;
+		int node = root;
+		while (node != NIL) {
+			if (prices[node] < priceCents) {
+				rank += sizeOf(lefts[node]) + levelSizes[node];
+				node = rights[node];
+			} else {
+				node = lefts[node];
+			}
+		}
+		return rank;
+	}
+
+	/**
+	 * @param rank			In [0, size).
+	 * @param withinLevel	Set to the offer's position in its level's queue.
+	 * @return				The node of the level holding the offer at rank.
+	 */
+	private int select(long rank, int[] withinLevel) {
+		int node = root;
+		while (true) {
+			int leftSize = sizeOf(lefts[node]);
+			if (rank < leftSize) {
+				node = lefts[node];
+			} else if (rank < leftSize + levelSizes[node]) {
+				withinLevel[0] = (int) (rank - leftSize);
+				return node;
+			} else {
+				rank -= leftSize + levelSizes[node];
+				node = rights[node];
+			}
+		}
+	}
+
+	private long offerIdAt(int node, int position) {
+		int queued = OfferQueuePool.head(levelQueues[node]);
+		for (; position > 0; position--)
+			queued = queues.nextNode(queued);
+		return queues.offerIdAt(queued);
+	}
+
+	/**
+	 * Visits the subtree's offers in order from the one at rank (counted within the subtree), while they are
+	 * priced at or below maxCents and the limit is not reached.
+	 *
+	 * @return	False once the walk should stop.
+	 */
+	private boolean walk(int node, long rank, long maxCents, int limit, OfferVisitor visitor, int[] visited) {
+		if (node == NIL)
+			return true;
+		int leftSize = sizeOf(lefts[node]);
+		if (rank < leftSize && !walk(lefts[node], rank, maxCents, limit, visitor, visited))
+			return false;
+
+		if (prices[node] > maxCents)
+			return false;
+		long position = Math.max(rank - leftSize, 0);
+		if (position < levelSizes[node]) {
+			int queued = OfferQueuePool.head(levelQueues[node]);
+			for (long skipped = 0; skipped < position; skipped++)
+				queued = queues.nextNode(queued);
+			for (; queued != OfferQueuePool.NIL; queued = queues.nextNode(queued)) {
+				visited[0]++;
+				if (!visitor.visit(prices[node], queues.offerIdAt(queued)) || visited[0] == limit)
+					return false;
+			}
+		}
+		return walk(rights[node], Math.max(rank - leftSize - levelSizes[node], 0), maxCents, limit, visitor, visited);
+	}
+
+	/**
+	 * @return	The subtree's new root.
+	 */
+	private int insert(int node, long offerId, long priceCents) {
+		if (node == NIL)
+			return allocate(offerId, priceCents);
+		// The child is linked after the call - an allocation may have replaced the arrays
+		if (priceCents < prices[node]) {
+			int left = insert(lefts[node], offerId, priceCents);
+			lefts[node] = left;
+		} else if (priceCents > prices[node]) {
+			int right = insert(rights[node], offerId, priceCents);
+			rights[node] = right;
+		} else {
+			levelQueues[node] = queues.append(levelQueues[node], offerId);
+			levelSizes[node]++;
+			subtreeSizes[node]++;
+			return node;
+		}
+		return rebalance(node);
+	}
+
+	/**
+	 * Removes the offer, setting removed if it was found.
+	 *
+	 * @return	The subtree's new root.
+	 */
+	private int removeNode(int node, long offerId, long priceCents) {
+		if (node == NIL)
+			return NIL;
+		if (priceCents < prices[node]) {
+			lefts[node] = removeNode(lefts[node], offerId, priceCents);
+		} else if (priceCents > prices[node]) {
+			rights[node] = removeNode(rights[node], offerId, priceCents);
+		} else {
+			long queue = queues.remove(levelQueues[node], offerId);
+			if (queue == OfferQueuePool.NOT_QUEUED)
+				return node;
+			removed = true;
+			if (queue != OfferQueuePool.EMPTIED) {
+				levelQueues[node] = queue;
+				levelSizes[node]--;
+				subtreeSizes[node]--;
+				return node;
+			}
+			return removeLevel(node);
+		}
+		return rebalance(node);
+	}
+
+	/**
+	 * Unlinks an emptied level's node, replacing it by its in-order successor if it has two children.
+	 *
+	 * @return	The subtree's new root.
+	 */
+	private int removeLevel(int node) {
+		int left = lefts[node];
+		int right = rights[node];
+		free(node);
+		if (left == NIL)
+			return right;
+		if (right == NIL)
+			return left;
+
+		int successor = right;
+		while (lefts[successor] != NIL)
+			successor = lefts[successor];
+		rights[successor] = removeMin(right);
+		lefts[successor] = left;
+		return rebalance(successor);
+	}
+
+	/**
+	 * @return	The subtree's new root, with its lowest node unlinked (but not freed).
+	 */
+	private int removeMin(int node) {
+		if (lefts[node] == NIL)
+			return rights[node];
+		lefts[node] = removeMin(lefts[node]);
+		return rebalance(node);
+	}
+
+	/**
+	 * Recounts the node, then rotates it if its children's heights differ by two.
+	 *
+	 * @return	The subtree's new root.
+	 */
+	private int rebalance(int node) {
+		update(node);
+		int balance = heightOf(lefts[node]) - heightOf(rights[node]);
+		if (balance > 1) {
+			if (heightOf(lefts[lefts[node]]) < heightOf(rights[lefts[node]]))
+				lefts[node] = rotateLeft(lefts[node]);
+			return rotateRight(node);
+		}
+		if (balance < -1) {
+			if (heightOf(rights[rights[node]]) < heightOf(lefts[rights[node]]))
+				rights[node] = rotateRight(rights[node]);
+			return rotateLeft(node);
+		}
+		return node;
+	}
+
+	private int rotateRight(int node) {
+		int left = lefts[node];
+		lefts[node] = rights[left];
+		rights[left] = node;
+		update(node);
+		update(left);
+		return left;
+	}
+
+	private int rotateLeft(int node) {
+		int right = rights[node];
+		rights[node] = lefts[right];
+		lefts[right] = node;
+		update(node);
+		update(right);
+		return right;
+	}
+
+	private void update(int node) {
+		subtreeSizes[node] = sizeOf(lefts[node]) + levelSizes[node] + sizeOf(rights[node]);
+		heights[node] = (byte) (Math.max(heightOf(lefts[node]), heightOf(rights[node])) + 1);
+	}
+
+	private int sizeOf(int node) {
+		return node == NIL ? 0 : subtreeSizes[node];
+	}
+
+	private int heightOf(int node) {
+		return node == NIL ? 0 : heights[node];
+	}
+
+	private int allocate(long offerId, long priceCents) {
+		int node;
+		if (freeHead != NIL) {
+			node = freeHead;
+			freeHead = lefts[node];
+		} else {
+			if (used == prices.length) {
+				int capacity = used * 2;
+				prices = Arrays.copyOf(prices, capacity);
+				levelQueues = Arrays.copyOf(levelQueues, capacity);
+				levelSizes = Arrays.copyOf(levelSizes, capacity);
+				subtreeSizes = Arrays.copyOf(subtreeSizes, capacity);
+				lefts = Arrays.copyOf(lefts, capacity);
+				rights = Arrays.copyOf(rights, capacity);
+				heights = Arrays.copyOf(heights, capacity);
+			}
+			node = used++;
+		}
+		prices[node] = priceCents;
+		levelQueues[node] = queues.newQueue(offerId);
+		levelSizes[node] = 1;
+		subtreeSizes[node] = 1;
+		lefts[node] = NIL;
+		rights[node] = NIL;
+		heights[node] = 1;
+		return node;
+	}
+
+	private void free(int node) {
+		lefts[node] = freeHead;
+		rights[node] = NIL;
+		freeHead = node;
+	}
+}
@@ -0,0 +1,476 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/** An immutable, compact trie of completions ranked by weight - for type-ahead.
+ *
+ * Each completion is keyed by its case-folded text, and by its folded text from each of its next few word starts,
+ * so "Spring in Action" completes both "spr" and "act". The keys share a radix tree - each chain of single-child
+ * nodes is one edge - laid out breadth first in flat arrays, with every edge label a slice of one array of the
+ * folded completions.
+ *
+ * Every node holds the greatest weight at or below it, and its children are contiguous, heaviest first. So the top
+ * completions of a prefix are found best-first, a node's first child and next sibling only being looked at once the
+ * node is the best left - visiting little more than the nodes on their paths, however many completions share the prefix.
+ *
+ * A trie never changes once a {@link Builder} has built it - a changed set of completions is built afresh.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public final class CompletionTrie {
+
+	// Word starts, after the first character, that also key a completion
+	static final int MAX_WORD_STARTS = 4;
+
+	public static final CompletionTrie EMPTY = new Builder().build();
+
+	// By completion, in the order added
+	final String[] completions;
+	final int[] weights;
+
+	// The folded completions, end to end
+	final char[] text;
+
+	// By node - node 0 is the root. A node's children and completions run to the next node's first
+	final int nodes;
+	final int[] labelStart;		// The node's edge label, in text
+	final int[] labelLength;
+	final int[] firstChild;
+	final int[] firstEntry;		// Of the completions keyed by exactly the node's path, heaviest first, in entries
+	final int[] best;			// The greatest weight of a completion at or below the node
+	final int[] entries;
+
+	/**
+	 * Gathers completions and weights, then builds a trie of them.
+	 */
+	public static final class Builder {
+		final HashMap<String, Integer> byFolded = new HashMap<>();
+		final List<String> completions = new ArrayList<>();
+		final List<String> folded = new ArrayList<>();
+		int[] weights = new int[16];
+
+		/**
+		 * Adds a completion - or, if one differing only in case has been added, adds to its weight.
+		 *
+		 * @param completion	Null or blank is ignored.
+		 * @param weight		Its popularity - not negative.
+		 */
+		public Builder add(String completion, int weight) {
+			if (completion == null || (completion = completion.trim()).isEmpty())
+				return this;
+			String key = TrigramIndex.fold(completion);
+			Integer existing = byFolded.get(key);
+			if (existing != null) {
+				weights[existing] = (int) Math.min(Integer.MAX_VALUE, (long) weights[existing] + weight);
+				return this;
+			}
+			if (completions.size() == weights.length)
+				weights = Arrays.copyOf(weights, weights.length * 2);
+			byFolded.put(key, completions.size());
+			weights[completions.size()] = weight;
+			completions.add(completion);
+			folded.add(key);
+			return this;
+		}
+
+		public CompletionTrie build() {
+			return new CompletionTrie(this);
+		}
+	}
+
+	private CompletionTrie(Builder builder) {
+		// The folded completions, end to end in text
+		int count = builder.completions.size();
+		completions = builder.completions.toArray(new String[count]);
+		weights = Arrays.copyOf(builder.weights, count);
+		int[] starts = new int[count + 1];
+		for (int c = 0; c < count; c++)
+			starts[c + 1] = starts[c] + builder.folded.get(c).length();
+		text = new char[starts[count]];
+		for (int c = 0; c < count; c++)
+			builder.folded.get(c).getChars(0, starts[c + 1] - starts[c], text, starts[c]);
+
+		// The keys - each completion from its start and from its next few word starts
+		Keys keyed = new Keys(text, weights, count * (1 + MAX_WORD_STARTS));
+		for (int c = 0; c < count; c++) {
+			keyed.add(starts[c], starts[c + 1], c);
+			for (int i = starts[c] + 1, words = 0; i < starts[c + 1] && words < MAX_WORD_STARTS; i++) {
+				if (Character.isLetterOrDigit(text[i]) && !Character.isLetterOrDigit(text[i - 1])) {
+					keyed.add(i, starts[c + 1], c);
+					words++;
+				}
+			}
+		}
+		int keys = keyed.size;
+		int[] keyStart = keyed.start;
+		int[] keyEntry = keyed.entry;
+		int[] sorted = keyed.sort();
+
+		// The radix tree, breadth first - a node's children are numbered together, so they're contiguous
+		int capacity = 2 * keys + 1;
+		int[] labelStart = new int[capacity];
+		int[] labelLength = new int[capacity];
+		int[] firstChild = new int[capacity + 1];
+		int[] firstEntry = new int[capacity + 1];
+		int[] entries = new int[keys];
+		int[] nodeLow = new int[capacity];
+		int[] nodeHigh = new int[capacity];
+		int[] nodeDepth = new int[capacity];
+		int nodes = 0;
+		int entryCount = 0;
+		if (keys > 0) {
+			nodeHigh[0] = keys;
+			nodes = 1;
+		}
+		for (int node = 0; node < nodes; node++) {
+			// Every key of the node shares its first depth characters - and, being sorted, as many more as the first and last share
+			int low = nodeLow[node];
+			int high = nodeHigh[node];
+			int depth = nodeDepth[node];
+			int first = sorted[low];
+			int last = sorted[high - 1];
+			int common = 0;
+			while (keyStart[first] + depth + common < starts[keyEntry[first] + 1]
+					&& keyStart[last] + depth + common < starts[keyEntry[last] + 1]
+					&& text[keyStart[first] + depth + common] == text[keyStart[last] + depth + common])
+				common++;
+			int end = depth + common;
+			labelStart[node] = keyStart[first] + depth;
+			labelLength[node] = common;
+
+			// Keys ending here sort first
+			firstEntry[node] = entryCount;
+			int k = low;
+			for (; k < high && keyStart[sorted[k]] + end == starts[keyEntry[sorted[k]] + 1]; k++)
+				entries[entryCount++] = keyEntry[sorted[k]];
+
+			// The rest, grouped by their next character, are the children
+			firstChild[node] = nodes;
+			while (k < high) {
+				char next = text[keyStart[sorted[k]] + end];
+				int groupEnd = k + 1;
+				while (groupEnd < high && text[keyStart[sorted[groupEnd]] + end] == next)
+					groupEnd++;
+				nodeLow[nodes] = k;
+				nodeHigh[nodes] = groupEnd;
+				nodeDepth[nodes] = end;
+				nodes++;
+				k = groupEnd;
+			}
+		}
+		firstChild[nodes] = nodes;
+		firstEntry[nodes] = entryCount;
+
+		// Children are numbered after their parents, so the best weights are found backwards
+		int[] best = new int[nodes];
+		for (int node = nodes - 1; node >= 0; node--) {
+			int weight = firstEntry[node] < firstEntry[node + 1] ? weights[entries[firstEntry[node]]] : 0;
+			for (int child = firstChild[node]; child < firstChild[node + 1]; child++)
+				weight = Math.max(weight, best[child]);
+			best[node] = weight;
+		}
+
+		// Renumbered breadth first again, each node's children heaviest first
+		this.nodes = nodes;
+		this.labelStart = new int[nodes];
+		this.labelLength = new int[nodes];
+		this.firstChild = new int[nodes + 1];
+		this.firstEntry = new int[nodes + 1];
+		this.best = new int[nodes];
+		this.entries = new int[entryCount];
+		int[] was = nodeLow;
+		int numbered = nodes > 0 ? 1 : 0;
+		was[0] = 0;
+		entryCount = 0;
+		for (int node = 0; node < nodes; node++) {
+			int old = was[node];
+			this.labelStart[node] = labelStart[old];
+			this.labelLength[node] = labelLength[old];
+			this.best[node] = best[old];
+			this.firstEntry[node] = entryCount;
+			for (int e = firstEntry[old]; e < firstEntry[old + 1]; e++)
+				this.entries[entryCount++] = entries[e];
+
+			this.firstChild[node] = numbered;
+			for (int child = firstChild[old]; child < firstChild[old + 1]; child++) {
+				// Insertion sort - there are no more children than characters
+				int i = numbered++;
+				for (; i > this.firstChild[node] && best[was[i - 1]] < best[child]; i--)
+					was[i] = was[i - 1];
+				was[i] = child;
+			}
+		}
+		this.firstChild[nodes] = nodes;
+		this.firstEntry[nodes] = entryCount;
+	}
+
+	/**
+	 * @param prefix	The start of a completion, or of one of its words, in any case.
+	 * @param limit		The most completions to return.
+	 * @return			The heaviest completions with a key starting with the prefix, heaviest first.
+	 * @performance		Proportional to the prefix, and to the nodes on the paths to the completions returned -
+	 * 					not to the number of completions.
+	 */
+	public List<String> complete(String prefix, int limit) {
+		List<String> matches = new ArrayList<>();
+		int start = find(TrigramIndex.fold(prefix));
+		if (start < 0 || limit <= 0)
+			return matches;
+
+		// Nodes, and (complemented) entries, best first - an entry is only taken once nothing left could outweigh it
+		HashSet<Integer> taken = new HashSet<>();
+		BestFirst queue = new BestFirst();
+		queue.push(best[start], start);
+		while (queue.size > 0 && matches.size() < limit) {
+			int item = queue.pop();
+			if (item < 0) {
+				int e = ~item;
+				// A completion may be keyed more than once under the prefix, by different words
+				if (taken.add(entries[e]))
+					matches.add(completions[entries[e]]);
+				if (e + 1 < firstEntry[owner(firstEntry, e) + 1])
+					queue.push(weights[entries[e + 1]], ~(e + 1));
+				continue;
+			}
+			if (firstEntry[item] < firstEntry[item + 1])
+				queue.push(weights[entries[firstEntry[item]]], ~firstEntry[item]);
+			if (firstChild[item] < firstChild[item + 1])
+				queue.push(best[firstChild[item]], firstChild[item]);
+			if (item != start && item + 1 < firstChild[owner(firstChild, item) + 1])
+				queue.push(best[item + 1], item + 1);
+		}
+		return matches;
+	}
+
+	/**
+	 * @return	The number of completions.
+	 */
+	public int size() {
+		return completions.length;
+	}
+
+	/**
+	 * @return	The number of nodes.
+	 */
+	public int getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return	The node whose path starts with the folded prefix, nearest the root, or -1 if none does.
+	 */
+	int find(String folded) {
+		if (nodes == 0)
+			return -1;
+		int node = 0;
+		int i = 0;
+		for (;;) {
+			for (int k = 0; k < labelLength[node]; k++, i++) {
+				if (i == folded.length())
+					return node;
+				if (text[labelStart[node] + k] != folded.charAt(i))
+					return -1;
+			}
+			if (i == folded.length())
+				return node;
+
+			// The child starting with the next character - no child's label is empty
+			char next = folded.charAt(i);
+			int child = firstChild[node];
+			while (child < firstChild[node + 1] && text[labelStart[child]] != next)
+				child++;
+			if (child == firstChild[node + 1])
+				return -1;
+			node = child;
+		}
+	}
+
+	/**
+	 * @param firsts	firstChild or firstEntry.
+	 * @return			The node whose children, or entries, include i.
+	 */
+	private int owner(int[] firsts, int i) {
+		int low = 0;
+		int high = nodes - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (firsts[middle] <= i)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * The keys of the completions - slices of the folded text - to be sorted by text, then heaviest first.
+	 */
+	static final class Keys {
+		// Ranges of keys shorter than this are insertion sorted
+		static final int INSERTION_SORT = 16;
+
+		final char[] text;
+		final int[] weights;
+		final int[] start;
+		final int[] end;
+		final int[] entry;
+		int size;
+
+		Keys(char[] text, int[] weights, int capacity) {
+			this.text = text;
+			this.weights = weights;
+			start = new int[capacity];
+			end = new int[capacity];
+			entry = new int[capacity];
+		}
+
+		void add(int from, int to, int completion) {
+			start[size] = from;
+			end[size] = to;
+			entry[size++] = completion;
+		}
+
+		/**
+		 * @return	The keys, in order.
+		 * @performance	A multikey quicksort - partitioning on one character at a time, so common prefixes are
+		 * 				compared once per partition, not once per comparison - over ints, not boxed keys.
+		 */
+		int[] sort() {
+			int[] keys = new int[size];
+			for (int k = 0; k < size; k++)
+				keys[k] = k;
+			sort(keys, 0, size, 0);
+			return keys;
+		}
+
+		/**
+		 * Sorts keys[low, high), whose first depth characters are the same.
+		 */
+		private void sort(int[] keys, int low, int high, int depth) {
+			while (high - low >= INSERTION_SORT) {
+				int pivot = median(charAt(keys[low], depth), charAt(keys[(low + high) >>> 1], depth), charAt(keys[high - 1], depth));
+				int less = low;
+				int greater = high - 1;
+				for (int i = low; i <= greater;) {
+					int c = charAt(keys[i], depth);
+					if (c < pivot)
+						swap(keys, less++, i++);
+					else if (c > pivot)
+						swap(keys, i, greater--);
+					else
+						i++;
+				}
+				sort(keys, low, less, depth);
+				sort(keys, greater + 1, high, depth);
+				if (pivot < 0) {
+					// Keys that have ended are the same text
+					sortByWeight(keys, less, greater + 1);
+					return;
+				}
+				low = less;
+				high = greater + 1;
+				depth++;
+			}
+			insertionSort(keys, low, high, depth);
+		}
+
+		/**
+		 * Sorts keys[low, high), all the same text, heaviest first - then in order of completion, as keys are added.
+		 */
+		private void sortByWeight(int[] keys, int low, int high) {
+			long[] packed = new long[high - low];
+			for (int i = low; i < high; i++)
+				packed[i - low] = (long) (Integer.MAX_VALUE - weights[entry[keys[i]]]) << 32 | keys[i];
+			Arrays.sort(packed);
+			for (int i = low; i < high; i++)
+				keys[i] = (int) packed[i - low];
+		}
+
+		private void insertionSort(int[] keys, int low, int high, int depth) {
+			for (int i = low + 1; i < high; i++) {
+				int key = keys[i];
+				int j = i;
+				for (; j > low && compare(keys[j - 1], key, depth) > 0; j--)
+					keys[j] = keys[j - 1];
+				keys[j] = key;
+			}
+		}
+
+		private int compare(int a, int b, int depth) {
+			for (int i = start[a] + depth, j = start[b] + depth; i < end[a] || j < end[b]; i++, j++) {
+				if (i == end[a])
+					return -1;
+				if (j == end[b])
+					return 1;
+				if (text[i] != text[j])
+					return text[i] - text[j];
+			}
+			int compared = Integer.compare(weights[entry[b]], weights[entry[a]]);
+			return compared != 0 ? compared : Integer.compare(entry[a], entry[b]);
+		}
+
+		/**
+		 * @return	The character at depth, or -1 past the end of the key.
+		 */
+		private int charAt(int key, int depth) {
+			return start[key] + depth < end[key] ? text[start[key] + depth] : -1;
+		}
+
+		private static int median(int a, int b, int c) {
+			return a < b ? (b < c ? b : Math.max(a, c)) : (a < c ? a : Math.max(b, c));
+		}
+
+		private static void swap(int[] keys, int i, int j) {
+			int swap = keys[i];
+			keys[i] = keys[j];
+			keys[j] = swap;
+		}
+	}
+
+	/**
+	 * A max-heap of nodes and (complemented) entries, by weight - on ties, entries first, in order, then the deepest
+	 * node (the last numbered), to reach the entries of a run of equal weights depth first.
+	 */
+	static final class BestFirst {
+		long[] priorities = new long[16];
+		int[] items = new int[16];
+		int size;
+
+		void push(int weight, int item) {
+			long priority = (long) weight << 32 | (item < 0 ? 0x80000000L | (item & 0x7FFFFFFFL) : item);
+			if (size == items.length) {
+				priorities = Arrays.copyOf(priorities, size * 2);
+				items = Arrays.copyOf(items, size * 2);
+			}
+			int i = size++;
+			for (int parent; i > 0 && priorities[parent = (i - 1) >>> 1] < priority; i = parent) {
+				priorities[i] = priorities[parent];
+				items[i] = items[parent];
+			}
+			priorities[i] = priority;
+			items[i] = item;
+		}
+
+		int pop() {
+			int top = items[0];
+			long priority = priorities[--size];
+			int item = items[size];
+			int i = 0;
+			for (int child; (child = 2 * i + 1) < size; i = child) {
+				if (child + 1 < size && priorities[child + 1] > priorities[child])
+					child++;
+				if (priorities[child] <= priority)
+					break;
+				priorities[i] = priorities[child];
+				items[i] = items[child];
+			}
+			priorities[i] = priority;
+			items[i] = item;
+			return top;
+		}
+	}
+}
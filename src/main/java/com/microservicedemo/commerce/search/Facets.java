@@ -0,0 +1,173 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** The facet value (a manufacturer, say) and amount (a price, in cents, say) of each document of an index, as
+ * bitsets by document number - for the index to filter its matches and count them by facet value.
+ *
+ * Each facet value has a bitset of its documents. Amounts are bucketed on a 1-2-5 scale, and each bucket is a
+ * bitset too, so a range of amounts is the union of the buckets inside it, plus the documents of the (at most two)
+ * buckets it only partly covers, checked one by one. The index keeps the bitsets in step as documents are added,
+ * killed and renumbered.
+ *
+ * @author Roberto Olivares (reo)
+ */
+final class Facets {
+
+	// A document's amount, when it has none
+	static final long NO_AMOUNT = Long.MIN_VALUE;
+
+	// Bucket b holds the amounts from BOUNDS[b] up to BOUNDS[b + 1] - the first, those below 1
+	static final long[] BOUNDS;
+	static {
+		ArrayList<Long> bounds = new ArrayList<>();
+		bounds.add(Long.MIN_VALUE + 1);
+		for (long decade = 1; decade <= 100_000_000_000_000L; decade *= 10) {
+			bounds.add(decade);
+			bounds.add(2 * decade);
+			bounds.add(5 * decade);
+		}
+		bounds.add(Long.MAX_VALUE);
+		BOUNDS = new long[bounds.size()];
+		for (int b = 0; b < BOUNDS.length; b++)
+			BOUNDS[b] = bounds.get(b);
+	}
+
+	final HashMap<String, Integer> facetIds = new HashMap<>();
+	final ArrayList<String> facetNames = new ArrayList<>();
+	final ArrayList<long[]> facetBits = new ArrayList<>();
+	final long[][] bucketBits = new long[BOUNDS.length - 1][];
+
+	// By document number - -1 for no facet value
+	int[] facetOf;
+	long[] amounts;
+
+	Facets(int capacity) {
+		facetOf = new int[capacity];
+		amounts = new long[capacity];
+		Arrays.fill(facetOf, -1);
+		Arrays.fill(amounts, NO_AMOUNT);
+		for (int b = 0; b < bucketBits.length; b++)
+			bucketBits[b] = new long[words(capacity)];
+	}
+
+	/**
+	 * @param facet		Null for none.
+	 * @param amount	NO_AMOUNT for none.
+	 */
+	void set(int document, String facet, long amount) {
+		int facetId = -1;
+		if (facet != null) {
+			Integer id = facetIds.get(facet);
+			if (id == null) {
+				id = facetNames.size();
+				facetIds.put(facet, id);
+				facetNames.add(facet);
+				facetBits.add(new long[words(facetOf.length)]);
+			}
+			facetId = id;
+		}
+		facetOf[document] = facetId;
+		amounts[document] = amount;
+		mark(document);
+	}
+
+	void resized(int capacity) {
+		int from = facetOf.length;
+		facetOf = Arrays.copyOf(facetOf, capacity);
+		amounts = Arrays.copyOf(amounts, capacity);
+		Arrays.fill(facetOf, from, capacity, -1);
+		Arrays.fill(amounts, from, capacity, NO_AMOUNT);
+		for (int f = 0; f < facetBits.size(); f++)
+			facetBits.set(f, Arrays.copyOf(facetBits.get(f), words(capacity)));
+		for (int b = 0; b < bucketBits.length; b++)
+			bucketBits[b] = Arrays.copyOf(bucketBits[b], words(capacity));
+	}
+
+	void moved(int from, int to) {
+		if (from == to)
+			return;
+		unmark(from);
+		facetOf[to] = facetOf[from];
+		amounts[to] = amounts[from];
+		facetOf[from] = -1;
+		amounts[from] = NO_AMOUNT;
+		mark(to);
+	}
+
+	void killed(int document) {
+		unmark(document);
+		facetOf[document] = -1;
+		amounts[document] = NO_AMOUNT;
+	}
+
+	/**
+	 * @return	The documents with an amount from minAmount to maxAmount (inclusive) - or null if every amount,
+	 * 			and none, is in range.
+	 * @performance	A pass over the bitsets of the buckets in range, then over those of the buckets at its ends.
+	 */
+	long[] inRange(long minAmount, long maxAmount, int documents) {
+		if (minAmount == Long.MIN_VALUE && maxAmount == Long.MAX_VALUE)
+			return null;
+		long[] bits = new long[words(documents)];
+		if (minAmount > maxAmount)
+			return bits;
+
+		int low = bucket(minAmount);
+		int high = bucket(maxAmount);
+		for (int b = low; b <= high; b++) {
+			long[] bucket = bucketBits[b];
+			boolean whole = BOUNDS[b] >= minAmount && BOUNDS[b + 1] - 1 <= maxAmount;
+			for (int w = 0; w < bits.length; w++) {
+				long word = bucket[w];
+				if (!whole) {
+					// Only some of the bucket is in range
+					for (long rest = word; rest != 0; rest &= rest - 1) {
+						int document = w << 6 | Long.numberOfTrailingZeros(rest);
+						if (amounts[document] < minAmount || amounts[document] > maxAmount)
+							word &= ~(1L << document);
+					}
+				}
+				bits[w] |= word;
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * @return	The id of the facet value, or -1 if no document has ever had it.
+	 */
+	int facetId(String facet) {
+		Integer id = facetIds.get(facet);
+		return id == null ? -1 : id;
+	}
+
+	private void mark(int document) {
+		if (facetOf[document] >= 0)
+			facetBits.get(facetOf[document])[document >>> 6] |= 1L << document;
+		if (amounts[document] != NO_AMOUNT)
+			bucketBits[bucket(amounts[document])][document >>> 6] |= 1L << document;
+	}
+
+	private void unmark(int document) {
+		if (facetOf[document] >= 0)
+			facetBits.get(facetOf[document])[document >>> 6] &= ~(1L << document);
+		if (amounts[document] != NO_AMOUNT)
+			bucketBits[bucket(amounts[document])][document >>> 6] &= ~(1L << document);
+	}
+
+	/**
+	 * @return	The bucket holding the amount.
+	 */
+	static int bucket(long amount) {
+		int b = Arrays.binarySearch(BOUNDS, amount);
+		b = b >= 0 ? b : -b - 2;
+		return Math.max(0, Math.min(b, BOUNDS.length - 2));
+	}
+
+	static int words(int documents) {
+		return (documents + 63) >>> 6;
+	}
+}
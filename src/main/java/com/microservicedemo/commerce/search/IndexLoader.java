@@ -0,0 +1,72 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/** Loads an in-memory index of a repository's records a page at a time in id order, then keeps it current
+ * as the records are written.
+ *
+ * Writes reach the index through a JPA entity listener, which JPA - not Spring - creates, so the listener
+ * can't be given the index; it calls {@link #changed} and {@link #removed} on a static IndexLoader instead,
+ * which pass them on to the index it last loaded (and drop them before then).
+ *
+ * @author Roberto Olivares (reo)
+ */
+public final class IndexLoader<T> {
+
+	// Records read per repository query while loading
+	public static final int LOAD_PAGE = 1000;
+
+	/** The index kept current */
+	public interface Indexed<T> {
+		void put(T record);
+		void remove(T record);
+	}
+
+	/** Reads the records after an id, in id order - a repository's findByIdGreaterThanOrderByIdAsc, say */
+	public interface PageReader<T> {
+		List<T> read(long afterId, int size);
+	}
+
+	private volatile Indexed<T> current;
+
+	/**
+	 * Puts every record into the index, which is kept current from then on.
+	 *
+	 * @return	The number of records loaded.
+	 */
+	public long load(Indexed<T> index, PageReader<T> pages, ToLongFunction<T> id) {
+		current = index;
+
+		long loaded = 0;
+		long after = Long.MIN_VALUE;
+		List<T> page;
+		do {
+			page = pages.read(after, LOAD_PAGE);
+			for (T record : page) {
+				index.put(record);
+				after = id.applyAsLong(record);
+			}
+			loaded += page.size();
+		} while (page.size() == LOAD_PAGE);
+		return loaded;
+	}
+
+	/**
+	 * Call from the listener's PostPersist and PostUpdate callbacks.
+	 */
+	public void changed(T record) {
+		Indexed<T> index = current;
+		if (index != null)
+			index.put(record);
+	}
+
+	/**
+	 * Call from the listener's PostRemove callback.
+	 */
+	public void removed(T record) {
+		Indexed<T> index = current;
+		if (index != null)
+			index.remove(record);
+	}
+}
@@ -0,0 +1,205 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.locks.StampedLock;
+
+/** The documents and posting lists an index of terms shares, whatever its terms are.
+ *
+ * Each document is a key (a database id, say) and a value returned when it matches (a product number, say).
+ * Documents are numbered as they are added, so posting lists only ever append. Changing a document adds it
+ * afresh and marks the old one dead, to be skipped by queries; once dead documents outnumber half the live
+ * ones, the live ones are renumbered and every list is rewritten without the dead.
+ *
+ * @param <T>	The terms.
+ *
+ * @author Roberto Olivares (reo)
+ */
+abstract class PostingIndex<T> {
+
+	// Dead documents tolerated before a rewrite, however few are live
+	static final int MIN_DEAD_DOCUMENTS = 1024;
+
+	final StampedLock lock = new StampedLock();
+	final HashMap<T, PostingList> postings = new HashMap<>();
+	final HashMap<Long, Integer> documentsByKey = new HashMap<>();
+
+	// By document number - values are null once a document is dead
+	long[] keys = new long[1024];
+	String[] values = new String[1024];
+	int documents;
+	int liveDocuments;
+
+	/**
+	 * @return	True if a document with the key was found and removed.
+	 */
+	public boolean remove(long key) {
+		long stamp = lock.writeLock();
+		try {
+			Integer document = documentsByKey.remove(key);
+			if (document == null)
+				return false;
+			kill(document);
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return	The number of (live) documents.
+	 */
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return liveDocuments;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return	The number of distinct terms indexed.
+	 */
+	public int getTerms() {
+		long stamp = lock.readLock();
+		try {
+			return postings.size();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return	Bytes of encoded postings and skip entries, across every term.
+	 */
+	public long getPostingBytes() {
+		long stamp = lock.readLock();
+		try {
+			long bytes = 0;
+			for (PostingList list : postings.values())
+				bytes += list.getBytes();
+			return bytes;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Adds a document, killing any with the same key - the caller holds the write lock, and adds the
+	 * document's terms next.
+	 *
+	 * @return	The document's number.
+	 */
+	int add(long key, String value) {
+		Integer old = documentsByKey.get(key);
+		if (old != null)
+			kill(old);
+
+		if (documents == keys.length) {
+			keys = Arrays.copyOf(keys, documents * 2);
+			values = Arrays.copyOf(values, documents * 2);
+			resized(keys.length);
+		}
+		int document = documents++;
+		keys[document] = key;
+		values[document] = value;
+		documentsByKey.put(key, document);
+		liveDocuments++;
+		return document;
+	}
+
+	/**
+	 * @param document	The document last added.
+	 */
+	void addTerm(T term, int document) {
+		postings.computeIfAbsent(term, t -> new PostingList()).add(document);
+	}
+
+	/**
+	 * Rewrites the lists if enough documents are dead - called, under the write lock, once a document's terms are added.
+	 */
+	void added() {
+		if (documents - liveDocuments > Math.max(MIN_DEAD_DOCUMENTS, liveDocuments / 2))
+			compact();
+	}
+
+	/**
+	 * @return	Cursors over the terms' lists, rarest first - or null if a term has none.
+	 */
+	PostingList.Conjunction conjunction(Collection<T> terms) {
+		PostingList.Cursor[] cursors = new PostingList.Cursor[terms.size()];
+		int i = 0;
+		for (T term : terms) {
+			PostingList list = postings.get(term);
+			if (list == null)
+				return null;
+			cursors[i++] = new PostingList.Cursor(list);
+		}
+		Arrays.sort(cursors, (a, b) -> Integer.compare(a.list.count, b.list.count));
+		return new PostingList.Conjunction(cursors);
+	}
+
+	/**
+	 * The per-document arrays have grown to capacity - for subclasses to grow theirs.
+	 */
+	void resized(int capacity) {
+	}
+
+	/**
+	 * A live document has been renumbered to an earlier one, by a rewrite - for subclasses to move theirs.
+	 */
+	void moved(int from, int to) {
+	}
+
+	/**
+	 * A document has died - for subclasses to drop theirs.
+	 */
+	void killed(int document) {
+	}
+
+	private void kill(int document) {
+		values[document] = null;
+		liveDocuments--;
+		killed(document);
+	}
+
+	/**
+	 * Renumbers the live documents from 0, in order, and rewrites every list without the dead ones.
+	 */
+	private void compact() {
+		int[] renumbered = new int[documents];
+		int live = 0;
+		for (int document = 0; document < documents; document++) {
+			if (values[document] == null) {
+				renumbered[document] = -1;
+			} else {
+				renumbered[document] = live;
+				keys[live] = keys[document];
+				values[live] = values[document];
+				documentsByKey.put(keys[live], live);
+				moved(document, live);
+				live++;
+			}
+		}
+		for (int document = live; document < documents; document++)
+			killed(document);
+		Arrays.fill(values, live, documents, null);
+		documents = live;
+
+		for (Iterator<PostingList> i = postings.values().iterator(); i.hasNext();) {
+			PostingList list = i.next();
+			PostingList rewritten = new PostingList();
+			PostingList.Cursor cursor = new PostingList.Cursor(list);
+			while (cursor.next() != PostingList.NO_MORE)
+				if (renumbered[cursor.document] >= 0)
+					rewritten.add(renumbered[cursor.document]);
+			if (rewritten.count == 0)
+				i.remove();
+			else
+				list.replaceWith(rewritten);
+		}
+	}
+}
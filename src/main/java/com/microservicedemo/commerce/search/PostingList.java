@@ -0,0 +1,171 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.Arrays;
+
+/** The documents a term appears in, in order, as varint-encoded gaps - a byte or two a posting.
+ *
+ * A skip entry every {@link #SKIP_INTERVAL} postings lets a {@link Cursor} advance to a document without
+ * decoding the postings between.
+ *
+ * @author Roberto Olivares (reo)
+ */
+final class PostingList {
+
+	// Postings between skip entries
+	static final int SKIP_INTERVAL = 64;
+
+	// A cursor's document once its list is exhausted
+	static final int NO_MORE = Integer.MAX_VALUE;
+
+	byte[] bytes = new byte[8];
+	int length;
+	int count;
+	int last = -1;
+
+	// Skip entry k is the document of posting (k + 1) * SKIP_INTERVAL - 1, and where the next posting starts
+	int[] skipDocuments = new int[0];
+	int[] skipOffsets = new int[0];
+	int skips;
+
+	/**
+	 * @param document	Greater than any document already in the list - a repeat of the last is ignored.
+	 */
+	void add(int document) {
+		if (document == last)
+			return;
+		if (count > 0 && count % SKIP_INTERVAL == 0) {
+			if (skips == skipDocuments.length) {
+				skipDocuments = Arrays.copyOf(skipDocuments, Math.max(4, skips * 2));
+				skipOffsets = Arrays.copyOf(skipOffsets, skipDocuments.length);
+			}
+			skipDocuments[skips] = last;
+			skipOffsets[skips] = length;
+			skips++;
+		}
+		if (length + 5 > bytes.length)
+			bytes = Arrays.copyOf(bytes, Math.max(length + 5, bytes.length * 2));
+		int gap = document - last;
+		while ((gap & ~0x7F) != 0) {
+			bytes[length++] = (byte) (gap | 0x80);
+			gap >>>= 7;
+		}
+		bytes[length++] = (byte) gap;
+		count++;
+		last = document;
+	}
+
+	void replaceWith(PostingList other) {
+		bytes = other.length < bytes.length / 2 ? Arrays.copyOf(other.bytes, other.length) : other.bytes;
+		length = other.length;
+		count = other.count;
+		last = other.last;
+		skipDocuments = other.skipDocuments;
+		skipOffsets = other.skipOffsets;
+		skips = other.skips;
+	}
+
+	/**
+	 * @return	Bytes of encoded postings and skip entries.
+	 */
+	long getBytes() {
+		return length + skips * 8L;
+	}
+
+	/**
+	 * Reads a list in order.
+	 */
+	static final class Cursor {
+		final PostingList list;
+		int document = -1;
+		int index;			// Of the next posting
+		int offset;			// Of the next posting
+		int skip;			// The first skip entry not yet passed
+
+		Cursor(PostingList list) {
+			this.list = list;
+		}
+
+		/**
+		 * @return	The next document, or NO_MORE.
+		 */
+		int next() {
+			if (index == list.count)
+				return document = NO_MORE;
+			byte[] bytes = list.bytes;
+			int gap = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = bytes[offset++];
+				gap |= (b & 0x7F) << shift;
+				if (b >= 0)
+					break;
+			}
+			index++;
+			return document += gap;
+		}
+
+		/**
+		 * @return	The first document at or after target, or NO_MORE.
+		 * @performance	Jumps by binary search of the skip entries, then decodes at most SKIP_INTERVAL postings.
+		 */
+		int advance(int target) {
+			if (document >= target)
+				return document;
+
+			// The last skip entry before target, if it is ahead of the cursor
+			int low = skip;
+			int high = list.skips - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (list.skipDocuments[middle] < target)
+					low = middle + 1;
+				else
+					high = middle - 1;
+			}
+			if (high >= skip) {
+				skip = high + 1;
+				int skipIndex = skip * SKIP_INTERVAL;
+				if (skipIndex > index) {
+					index = skipIndex;
+					document = list.skipDocuments[high];
+					offset = list.skipOffsets[high];
+				}
+			}
+
+			while (document < target)
+				next();
+			return document;
+		}
+	}
+
+	/**
+	 * The documents in every one of a set of lists, by leapfrogging their cursors.
+	 */
+	static final class Conjunction {
+		final Cursor[] cursors;
+		int document = -1;
+
+		/**
+		 * @param cursors	Rarest first, ideally.
+		 */
+		Conjunction(Cursor[] cursors) {
+			this.cursors = cursors;
+		}
+
+		/**
+		 * @return	The next document, or NO_MORE.
+		 */
+		int next() {
+			int candidate = cursors[0].next();
+			for (int i = 1; i < cursors.length && candidate != NO_MORE;) {
+				int found = cursors[i].advance(candidate);
+				if (found == candidate) {
+					i++;
+				} else {
+					candidate = found == NO_MORE ? NO_MORE : cursors[0].advance(found);
+					i = 1;
+				}
+			}
+			return document = candidate;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.microservicedemo.commerce.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Function;
+
+/** Fetches the records an index matched, by the values (record numbers, say) it holds for them.
+ *
+ * Values are looked up LOOKUP_CHUNK at a time - a repository IN (...) query each - and the records put back
+ * in the order of the values. A streamed search holds the values of STREAM_WINDOW matches at a time, and
+ * fetches only a page of records at a time, so its memory is bounded however many records match.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public final class RecordFetcher<T> {
+
+	// Values per repository IN (...) query
+	public static final int LOOKUP_CHUNK = 500;
+
+	// Matches found per pass over the index by a streamed search
+	public static final int STREAM_WINDOW = 65536;
+
+	/** Finds the records with the values, in any order - a repository's findByNumberIn, say */
+	public interface Lookup<T> {
+		List<T> find(List<String> values);
+	}
+
+	/** Called for each record a streamed search finds */
+	public interface Visitor<T> {
+		void visit(T record) throws IOException;
+	}
+
+	private final Lookup<T> lookup;
+	private final Function<T, String> valueOf;
+
+	/**
+	 * @param lookup	Finds records by value.
+	 * @param valueOf	A record's value, as indexed.
+	 */
+	public RecordFetcher(Lookup<T> lookup, Function<T, String> valueOf) {
+		this.lookup = lookup;
+		this.valueOf = valueOf;
+	}
+
+	/**
+	 * @return	The records with the values, in the same order - leaving out any no longer found.
+	 */
+	public List<T> fetch(List<String> values) {
+		// The repository returns them in no particular order
+		HashMap<String, T> byValue = new HashMap<>();
+		for (int from = 0; from < values.size(); from += LOOKUP_CHUNK)
+			for (T record : lookup.find(values.subList(from, Math.min(from + LOOKUP_CHUNK, values.size()))))
+				byValue.put(valueOf.apply(record), record);
+		List<T> records = new ArrayList<>(values.size());
+		for (String value : values) {
+			T record = byValue.get(value);
+			if (record != null)
+				records.add(record);
+		}
+		return records;
+	}
+
+	/**
+	 * Visits every record whose indexed text contains substring, in key order, fetching them pageSize at a time.
+	 *
+	 * @return	The number of records visited.
+	 * @performance	Memory is bounded by STREAM_WINDOW values and a page of records, however many match.
+	 */
+	public int stream(TrigramIndex index, String substring, int pageSize, Visitor<T> visitor) throws IOException {
+		int streamed = 0;
+		long after = Long.MIN_VALUE;
+		TrigramIndex.Page window;
+		do {
+			window = index.searchAfter(substring, after, STREAM_WINDOW);
+			for (int from = 0; from < window.values.size(); from += pageSize) {
+				for (T record : fetch(window.values.subList(from, Math.min(from + pageSize, window.values.size())))) {
+					visitor.visit(record);
+					streamed++;
+				}
+			}
+			after = window.lastKey;
+		} while (window.values.size() == STREAM_WINDOW);
+		return streamed;
+	}
+}
@@ -0,0 +1,128 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/** An in-memory inverted index for keyword search - "which documents contain all of these words?".
+ *
+ * A document's text fields are split into lower-cased words of letters and digits, and each word's
+ * {@link PostingList} holds the numbers of its documents in order.
+ *
+ * Queries are words, all of which must match, optionally in groups separated by OR, any of which may. Groups
+ * are evaluated by leapfrogging cursors over their lists, rarest first, and groups are merged; matches come
+ * in document order, so evaluation stops once a page is found, however common the words.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public final class TextIndex extends PostingIndex<String> {
+
+	/** The query word separating alternatives */
+	public static final String OR = "OR";
+
+	/**
+	 * Adds a document, replacing any with the same key.
+	 *
+	 * @param key		The document's identity.
+	 * @param value		What a search matching the document returns.
+	 * @param fields	The text to index - null fields are skipped.
+	 */
+	public void put(long key, String value, String... fields) {
+		long stamp = lock.writeLock();
+		try {
+			int document = add(key, value);
+			for (String field : fields) {
+				if (field == null)
+					continue;
+				for (String word : tokenize(field))
+					addTerm(word, document);
+			}
+			added();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @param query	Words to match all of, in groups separated by OR to match any of - case doesn't matter,
+	 * 				and punctuation separates words (but OR must be upper case).
+	 * @param limit	The most values to return.
+	 * @return		The values of the matching documents, oldest first.
+	 * @performance	Proportional to the postings skipped over to the first limit matches, not to every match.
+	 */
+	public List<String> search(String query, int limit) {
+		List<List<String>> groups = parse(query);
+		List<String> matches = new ArrayList<>();
+		if (groups.isEmpty() || limit <= 0)
+			return matches;
+
+		long stamp = lock.readLock();
+		try {
+			List<PostingList.Conjunction> conjunctions = new ArrayList<>(groups.size());
+			for (List<String> group : groups) {
+				PostingList.Conjunction conjunction = conjunction(group);
+				if (conjunction != null && conjunction.next() != PostingList.NO_MORE)
+					conjunctions.add(conjunction);
+			}
+
+			while (!conjunctions.isEmpty()) {
+				int document = PostingList.NO_MORE;
+				for (PostingList.Conjunction conjunction : conjunctions)
+					document = Math.min(document, conjunction.document);
+				if (values[document] != null) {
+					matches.add(values[document]);
+					if (matches.size() == limit)
+						break;
+				}
+				for (Iterator<PostingList.Conjunction> i = conjunctions.iterator(); i.hasNext();) {
+					PostingList.Conjunction conjunction = i.next();
+					if (conjunction.document == document && conjunction.next() == PostingList.NO_MORE)
+						i.remove();
+				}
+			}
+			return matches;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Splits text into words - maximal runs of letters and digits - lower-cased.
+	 */
+	public static List<String> tokenize(String text) {
+		List<String> words = new ArrayList<>();
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				word.append(Character.toLowerCase(c));
+			} else if (word.length() > 0) {
+				words.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * @return	The query's groups of words, without duplicates, leaving out empty groups.
+	 */
+	static List<List<String>> parse(String query) {
+		List<List<String>> groups = new ArrayList<>();
+		List<String> group = new ArrayList<>();
+		for (String term : query.trim().split("\\s+")) {
+			if (term.equals(OR)) {
+				if (!group.isEmpty())
+					groups.add(group);
+				group = new ArrayList<>();
+				continue;
+			}
+			for (String word : tokenize(term))
+				if (!group.contains(word))
+					group.add(word);
+		}
+		if (!group.isEmpty())
+			groups.add(group);
+		return groups;
+	}
+}
@@ -0,0 +1,355 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/** An in-memory trigram index for case-insensitive substring search - "which documents contain this text?".
+ *
+ * A document's text is case-folded, and each of its three-character substrings (its trigrams) has a
+ * {@link PostingList} of the documents containing it. A query of three or more characters intersects the
+ * lists of its own trigrams, rarest first, for the documents that have them all - a small set, however many
+ * documents there are - and only those candidates are checked for the whole query, in their folded text.
+ * Shorter queries have no trigrams to narrow by, so they check the documents in turn, until enough match.
+ *
+ * Matches come in document order - the order documents were last put - or, a page at a time, in key order,
+ * for keyset pagination.
+ *
+ * Documents may also have a facet value and an amount (a manufacturer and a price, say), held as bitsets by
+ * {@link Facets}, for a faceted search to filter its matches by and count them by - in one pass over the
+ * bitset of the text matches.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public final class TrigramIndex extends PostingIndex<Long> {
+
+	/** A page of matches, in key order */
+	public static final class Page {
+		public final List<String> values;
+		public final long lastKey;		// Of the last match - or, if there were none, the key the page was after
+
+		Page(List<String> values, long lastKey) {
+			this.values = values;
+			this.lastKey = lastKey;
+		}
+	}
+
+	/** A page of a faceted search, in key order - with the number of matches, and of matches by facet value */
+	public static final class FacetPage {
+		public final List<String> values;
+		public final long lastKey;		// Of the last match - or, if there were none, the key the page was after
+		public final int total;			// Matches on every page
+		public final LinkedHashMap<String, Integer> facetCounts;	// Matches but for the facet value, by facet value, most first
+
+		FacetPage(List<String> values, long lastKey, int total, LinkedHashMap<String, Integer> facetCounts) {
+			this.values = values;
+			this.lastKey = lastKey;
+			this.total = total;
+			this.facetCounts = facetCounts;
+		}
+	}
+
+	/** Called for each live match, under the read lock */
+	interface DocumentVisitor {
+		/**
+		 * @return	False to stop.
+		 */
+		boolean visit(int document);
+	}
+
+	// By document number - the folded text, null once a document is dead
+	String[] texts = new String[keys.length];
+
+	// Null until a document is put with a facet value or amount
+	Facets facets;
+
+	/**
+	 * Adds a document, replacing any with the same key.
+	 *
+	 * @param key		The document's identity.
+	 * @param value		What a search matching the document returns.
+	 * @param text		The text to search - null for none.
+	 */
+	public void put(long key, String value, String text) {
+		put(key, value, text, null, Facets.NO_AMOUNT);
+	}
+
+	/**
+	 * Adds a document with a facet value and an amount, replacing any with the same key.
+	 *
+	 * @param facet		The document's facet value - null for none.
+	 * @param amount	The document's amount - Long.MIN_VALUE for none.
+	 */
+	public void put(long key, String value, String text, String facet, long amount) {
+		String folded = text == null ? "" : fold(text);
+		long stamp = lock.writeLock();
+		try {
+			int document = add(key, value);
+			texts[document] = folded;
+			for (int i = 0; i + 3 <= folded.length(); i++)
+				addTerm(trigram(folded, i), document);
+			if (facet != null || amount != Facets.NO_AMOUNT) {
+				if (facets == null)
+					facets = new Facets(keys.length);
+				facets.set(document, facet, amount);
+			}
+			added();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @param substring	The text to find, in any case.
+	 * @param limit		The most values to return.
+	 * @return			The values of the documents containing the substring, oldest first.
+	 * @performance		Proportional to the postings of the substring's trigrams skipped over to the first limit
+	 * 					matches, and to the candidates checked - not to the number of documents.
+	 */
+	public List<String> search(String substring, int limit) {
+		List<String> matches = new ArrayList<>();
+		if (limit <= 0)
+			return matches;
+
+		long stamp = lock.readLock();
+		try {
+			visit(fold(substring), document -> {
+				matches.add(values[document]);
+				return matches.size() < limit;
+			});
+			return matches;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @param substring	The text to find, in any case.
+	 * @param afterKey	The last key of the previous page (or Long.MIN_VALUE for the first).
+	 * @param limit		The page size.
+	 * @return			The documents containing the substring with the least keys after afterKey, in key order.
+	 * @performance		Checks every candidate - matches are found in document order, not key order - but holds
+	 * 					only a heap of the limit least keys, so memory is bounded by the page, not by the matches.
+	 */
+	public Page searchAfter(String substring, long afterKey, int limit) {
+		LeastKeys least = new LeastKeys(Math.max(limit, 0));
+		List<String> matches = new ArrayList<>();
+
+		long stamp = lock.readLock();
+		try {
+			if (limit > 0) {
+				visit(fold(substring), document -> {
+					if (keys[document] > afterKey)
+						least.offer(keys[document], document);
+					return true;
+				});
+			}
+			int[] documentsByKey = least.sorted();
+			for (int document : documentsByKey)
+				matches.add(values[document]);
+			return new Page(matches, documentsByKey.length == 0 ? afterKey : keys[documentsByKey[documentsByKey.length - 1]]);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @param substring	The text to find, in any case - empty for every document.
+	 * @param facet		The facet value to find - null for any.
+	 * @param minAmount	The least amount to find - Long.MIN_VALUE for any (or none).
+	 * @param maxAmount	The greatest amount to find - Long.MAX_VALUE for any (or none).
+	 * @param afterKey	The last key of the previous page (or Long.MIN_VALUE for the first).
+	 * @param limit		The page size.
+	 * @return			The documents matching all of them with the least keys after afterKey, in key order, how many match
+	 * 					on every page, and how many match the substring and amounts by facet value, whatever the facet.
+	 * @performance		Sets a bit for each text match, then filters and counts them in one pass over the bitsets - a
+	 * 					word of 64 documents at a time - holding only the page's heap of keys, whatever the matches.
+	 */
+	public FacetPage searchFaceted(String substring, String facet, long minAmount, long maxAmount, long afterKey, int limit) {
+		LeastKeys least = new LeastKeys(Math.max(limit, 0));
+		List<String> matches = new ArrayList<>();
+
+		long stamp = lock.readLock();
+		try {
+			long[] matched = new long[Facets.words(documents)];
+			visit(fold(substring), document -> {
+				matched[document >>> 6] |= 1L << document;
+				return true;
+			});
+
+			// Without facets, no document has a facet value or an amount
+			boolean anyAmount = minAmount == Long.MIN_VALUE && maxAmount == Long.MAX_VALUE;
+			long[] inRange = facets != null ? facets.inRange(minAmount, maxAmount, documents)
+					: anyAmount ? null : new long[matched.length];
+			int facetId = facet == null || facets == null ? -1 : facets.facetId(facet);
+			long[] ofFacet = facetId >= 0 ? facets.facetBits.get(facetId) : null;
+			int[] counts = new int[facets == null ? 0 : facets.facetNames.size()];
+
+			int total = 0;
+			for (int w = 0; w < matched.length; w++) {
+				long word = inRange == null ? matched[w] : matched[w] & inRange[w];
+				if (facets != null) {
+					for (long rest = word; rest != 0; rest &= rest - 1) {
+						int facetOf = facets.facetOf[w << 6 | Long.numberOfTrailingZeros(rest)];
+						if (facetOf >= 0)
+							counts[facetOf]++;
+					}
+				}
+				if (facet != null)
+					word = ofFacet == null ? 0 : word & ofFacet[w];
+				total += Long.bitCount(word);
+				for (long rest = word; rest != 0; rest &= rest - 1) {
+					int document = w << 6 | Long.numberOfTrailingZeros(rest);
+					if (keys[document] > afterKey)
+						least.offer(keys[document], document);
+				}
+			}
+
+			Integer[] byCount = new Integer[counts.length];
+			int counted = 0;
+			for (int f = 0; f < counts.length; f++)
+				if (counts[f] > 0)
+					byCount[counted++] = f;
+			Arrays.sort(byCount, 0, counted, (a, b) -> counts[a] != counts[b] ? counts[b] - counts[a]
+					: facets.facetNames.get(a).compareTo(facets.facetNames.get(b)));
+			LinkedHashMap<String, Integer> facetCounts = new LinkedHashMap<>();
+			for (int i = 0; i < counted; i++)
+				facetCounts.put(facets.facetNames.get(byCount[i]), counts[byCount[i]]);
+
+			int[] documentsByKey = least.sorted();
+			for (int document : documentsByKey)
+				matches.add(values[document]);
+			return new FacetPage(matches, documentsByKey.length == 0 ? afterKey : keys[documentsByKey[documentsByKey.length - 1]],
+					total, facetCounts);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Visits the live documents containing the folded substring, in document order - under the read lock.
+	 */
+	private void visit(String folded, DocumentVisitor visitor) {
+		if (folded.length() < 3) {
+			for (int document = 0; document < documents; document++)
+				if (values[document] != null && texts[document].contains(folded) && !visitor.visit(document))
+					return;
+			return;
+		}
+
+		LinkedHashSet<Long> trigrams = new LinkedHashSet<>();
+		for (int i = 0; i + 3 <= folded.length(); i++)
+			trigrams.add(trigram(folded, i));
+		PostingList.Conjunction candidates = conjunction(trigrams);
+		if (candidates == null)
+			return;
+
+		for (int document = candidates.next(); document != PostingList.NO_MORE; document = candidates.next()) {
+			// Having every trigram is not enough - they must also be in order, and adjacent
+			if (values[document] != null && (folded.length() == 3 || texts[document].contains(folded)) && !visitor.visit(document))
+				return;
+		}
+	}
+
+	/**
+	 * @return	The text, each character lower-cased on its own - so the folded text lines up with the original.
+	 */
+	static String fold(String text) {
+		char[] folded = new char[text.length()];
+		for (int i = 0; i < folded.length; i++)
+			folded[i] = Character.toLowerCase(text.charAt(i));
+		return new String(folded);
+	}
+
+	/**
+	 * @return	The three characters at i, packed.
+	 */
+	static long trigram(String folded, int i) {
+		return (long) folded.charAt(i) << 32 | (long) folded.charAt(i + 1) << 16 | folded.charAt(i + 2);
+	}
+
+	/**
+	 * The documents with the least keys offered - a max-heap on key, of at most limit, grown as needed.
+	 */
+	static final class LeastKeys {
+		final int limit;
+		long[] keys = new long[16];
+		int[] documents = new int[16];
+		int size;
+
+		LeastKeys(int limit) {
+			this.limit = limit;
+		}
+
+		void offer(long key, int document) {
+			if (size < limit) {
+				if (size == keys.length) {
+					keys = Arrays.copyOf(keys, Math.min(limit, size * 2));
+					documents = Arrays.copyOf(documents, keys.length);
+				}
+				int i = size++;
+				for (int parent; i > 0 && keys[parent = (i - 1) >>> 1] < key; i = parent) {
+					keys[i] = keys[parent];
+					documents[i] = documents[parent];
+				}
+				keys[i] = key;
+				documents[i] = document;
+			} else if (limit > 0 && key < keys[0]) {
+				siftDown(key, document, size);
+			}
+		}
+
+		/**
+		 * @return	The documents, by increasing key - emptying the heap.
+		 */
+		int[] sorted() {
+			int[] sorted = new int[size];
+			for (int n = size; n > 0; n--) {
+				sorted[n - 1] = documents[0];
+				siftDown(keys[n - 1], documents[n - 1], n - 1);
+			}
+			size = 0;
+			return sorted;
+		}
+
+		/**
+		 * Replaces the root with (key, document), in a heap of size n.
+		 */
+		private void siftDown(long key, int document, int n) {
+			int i = 0;
+			for (int child; (child = 2 * i + 1) < n; i = child) {
+				if (child + 1 < n && keys[child + 1] > keys[child])
+					child++;
+				if (keys[child] <= key)
+					break;
+				keys[i] = keys[child];
+				documents[i] = documents[child];
+			}
+			keys[i] = key;
+			documents[i] = document;
+		}
+	}
+
+	@Override
+	void resized(int capacity) {
+		texts = Arrays.copyOf(texts, capacity);
+		if (facets != null)
+			facets.resized(capacity);
+	}
+
+	@Override
+	void moved(int from, int to) {
+		texts[to] = texts[from];
+		if (facets != null)
+			facets.moved(from, to);
+	}
+
+	@Override
+	void killed(int document) {
+		texts[document] = null;
+		if (facets != null)
+			facets.killed(document);
+	}
+}
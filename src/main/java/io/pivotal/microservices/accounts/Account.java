@@ -5,6 +5,7 @@ import java.math.BigDecimal;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.Id;
 import javax.persistence.Table;
 
@@ -16,6 +17,7 @@ import javax.persistence.Table;
  */
 @Entity
 @Table(name = "T_ACCOUNT")
+@EntityListeners(AccountSearchIndex.Listener.class)
 public class Account implements Serializable {
 
 	private static final long serialVersionUID = 1L;
@@ -1,7 +1,9 @@
 package io.pivotal.microservices.accounts;
 
+import java.util.Collection;
 import java.util.List;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.Repository;
 
@@ -29,6 +31,27 @@ public interface AccountRepository extends Repository<Account, Long> {
 	 */
 	public List<Account> findByOwnerContainingIgnoreCase(String partialName);
 
+	/**
+	 * Find the accounts with any of the specified account numbers - one query for a whole batch.
+	 * 
+	 * @author Roberto Olivares (reo)
+	 * 
+	 * @param accountNumbers
+	 * @return The accounts found - always non-null, but may be empty.
+	 */
+	public List<Account> findByNumberIn(Collection<String> accountNumbers);
+
+	/**
+	 * Find the accounts after the specified id, in id order - a page at a time, for walking every account.
+	 * 
+	 * @author Roberto Olivares (reo)
+	 * 
+	 * @param id	The last id of the previous page (or Long.MIN_VALUE).
+	 * @param page	The page size (page number 0).
+	 * @return The next accounts - always non-null, but empty once past the last.
+	 */
+	public List<Account> findByIdGreaterThanOrderByIdAsc(Long id, Pageable page);
+
 	/**
 	 * Fetch the number of accounts known to the system.
 	 * 
@@ -0,0 +1,125 @@
+package io.pivotal.microservices.accounts;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import com.microservicedemo.commerce.search.IndexLoader;
+import com.microservicedemo.commerce.search.RecordFetcher;
+import com.microservicedemo.commerce.search.TrigramIndex;
+
+/**
+ * reo - Substring search of the accounts' owners, held in memory in a {@link TrigramIndex}.
+ *
+ * The index is loaded from the repository at startup by an {@link IndexLoader}, and kept current by a
+ * JPA entity {@link Listener} as accounts are persisted, updated and removed. Searches find the matching
+ * account numbers in the index, then fetch those accounts with a {@link RecordFetcher}.
+ *
+ * @author Roberto Olivares
+ */
+@Component
+public class AccountSearchIndex implements IndexLoader.Indexed<Account> {
+
+	/** Called for each account a streamed search finds */
+	public interface AccountVisitor extends RecordFetcher.Visitor<Account> {
+	}
+
+	// Keeps the index current for the JPA listener - JPA, not Spring, creates listeners
+	static final IndexLoader<Account> LOADER = new IndexLoader<>();
+
+	protected Logger logger = Logger.getLogger(AccountSearchIndex.class.getName());
+
+	@Autowired
+	protected AccountRepository accountRepository;
+
+	protected final TrigramIndex owners = new TrigramIndex();
+	protected final RecordFetcher<Account> fetcher = new RecordFetcher<>(
+			numbers -> accountRepository.findByNumberIn(numbers), Account::getNumber);
+
+	/**
+	 * Indexes every account.
+	 */
+	@PostConstruct
+	public void load() {
+		long started = System.currentTimeMillis();
+		LOADER.load(this, (after, size) -> accountRepository.findByIdGreaterThanOrderByIdAsc(after, new PageRequest(0, size)),
+				Account::getId);
+
+		logger.info("account search index: " + owners.size() + " accounts, " + owners.getTerms() + " owner trigrams, "
+				+ owners.getPostingBytes() + " posting bytes in " + (System.currentTimeMillis() - started) + "ms");
+	}
+
+	/**
+	 * The indexed equivalent of {@link AccountRepository#findByOwnerContainingIgnoreCase}.
+	 * 
+	 * @param partialName	Any string.
+	 * @param limit			The most accounts to return.
+	 * @return				The accounts whose owner contains it, in any case, in the order they were last indexed, oldest
+	 * 						first - always non-null, but may be empty.
+	 */
+	public List<Account> byOwner(String partialName, int limit) {
+		return fetcher.fetch(owners.search(partialName, limit));
+	}
+
+	/**
+	 * A page of {@link #byOwner(String, int)}, in id order - for keyset pagination.
+	 * 
+	 * @param afterId	The id of the last account of the previous page (or Long.MIN_VALUE for the first).
+	 * @param size		The page size.
+	 * @return			The accounts whose owner contains partialName with the least ids after afterId.
+	 * @performance		Memory is bounded by the page, however many accounts match.
+	 */
+	public List<Account> byOwner(String partialName, long afterId, int size) {
+		return fetcher.fetch(owners.searchAfter(partialName, afterId, size).values);
+	}
+
+	/**
+	 * Visits every account whose owner contains partialName, in id order, fetching them a page at a time.
+	 * 
+	 * @return	The number of accounts visited.
+	 * @performance	Memory is bounded by a window of numbers and a page of accounts, however many match - see {@link RecordFetcher#stream}.
+	 */
+	public int streamByOwner(String partialName, int pageSize, AccountVisitor visitor) throws IOException {
+		return fetcher.stream(owners, partialName, pageSize, visitor);
+	}
+
+	public TrigramIndex getOwners() {
+		return owners;
+	}
+
+	@Override
+	public void put(Account account) {
+		owners.put(account.getId(), account.getNumber(), account.getOwner());
+	}
+
+	@Override
+	public void remove(Account account) {
+		owners.remove(account.getId());
+	}
+
+	/**
+	 * reo - Updates the search index as JPA writes accounts.
+	 */
+	public static class Listener {
+
+		@PostPersist
+		@PostUpdate
+		void changed(Account account) {
+			LOADER.changed(account);
+		}
+
+		@PostRemove
+		void removed(Account account) {
+			LOADER.removed(account);
+		}
+	}
+}
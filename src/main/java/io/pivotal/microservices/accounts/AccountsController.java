@@ -1,13 +1,25 @@
 package io.pivotal.microservices.accounts;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletResponse;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.pivotal.microservices.exceptions.AccountNotFoundException;
 
 /**
@@ -16,16 +28,27 @@ import io.pivotal.microservices.exceptions.AccountNotFoundException;
  * REST URLs:	
  * 		http://localhost:3333/accounts/123456789
  * 		http://localhost:3333/accounts/owner/lee
+ * 		http://localhost:3333/accounts/owner/lee/page?afterId=42
+ * 		http://localhost:3333/accounts/owner/lee/stream
  * 
  * @author Paul Chapman
  */
 @RestController
 public class AccountsController {
 
+	// Largest page of a paginated owner search
+	public static final int MAX_PAGE_SIZE = 1000;
+
 	protected Logger logger = Logger.getLogger(AccountsController.class
 			.getName());
 	protected AccountRepository accountRepository;
 
+	@Autowired(required = false)
+	protected AccountSearchIndex accountSearchIndex;
+
+	@Value("${accounts.search.page-size:100}")
+	protected int searchPageSize = 100;
+
 	/**
 	 * Create an instance plugging in the respository of Accounts.
 	 * 
@@ -66,7 +89,8 @@ public class AccountsController {
 	/**
 	 * Fetch accounts with the specified name. A partial case-insensitive match
 	 * is supported. So <code>http://.../accounts/owner/a</code> will find any
-	 * accounts with upper or lower case 'a' in their name.
+	 * accounts with upper or lower case 'a' in their name. Owners are matched in
+	 * memory, by the {@link AccountSearchIndex}, when there is one.
 	 * 
 	 * @param partialName
 	 * @return A non-null, non-empty set of accounts.
@@ -79,8 +103,9 @@ public class AccountsController {
 				+ accountRepository.getClass().getName() + " for "
 				+ partialName);
 
-		List<Account> accounts = accountRepository
-				.findByOwnerContainingIgnoreCase(partialName);
+		List<Account> accounts = accountSearchIndex != null
+				? accountSearchIndex.byOwner(partialName, Integer.MAX_VALUE)
+				: accountRepository.findByOwnerContainingIgnoreCase(partialName);
 		logger.info("accounts-service byOwner() found: " + accounts);
 
 		if (accounts == null || accounts.size() == 0)
@@ -89,4 +114,101 @@ public class AccountsController {
 			return accounts;
 		}
 	}
+
+	/**
+	 * Fetch a page of the accounts with the specified owner, in id order - keyset (seek) pagination, so
+	 * <code>http://.../accounts/owner/a/page?afterId=42</code> returns the accounts after id 42 whose owner
+	 * contains 'a', and the last id of one page is the afterId of the next. Unlike {@link #byOwner(String)},
+	 * the memory taken stays bounded however many accounts match.
+	 * 
+	 * @param partialName
+	 * @param afterId
+	 *            The id of the last account of the previous page - omit for the first page.
+	 * @param size
+	 *            The page size - accounts.search.page-size if omitted, and at most MAX_PAGE_SIZE.
+	 * @return A non-null set of accounts - fewer than size (possibly none) on the last page.
+	 */
+	@RequestMapping("/accounts/owner/{name}/page")
+	public List<Account> byOwnerPage(@PathVariable("name") String partialName,
+			@RequestParam(value = "afterId", required = false) Long afterId,
+			@RequestParam(value = "size", required = false) Integer size) {
+		logger.info("accounts-service byOwnerPage() invoked: " + partialName + " after " + afterId);
+
+		long after = afterId == null ? Long.MIN_VALUE : afterId;
+		int pageSize = pageSize(size);
+		return accountSearchIndex != null
+				? accountSearchIndex.byOwner(partialName, after, pageSize)
+				: scanByOwner(partialName, after, pageSize);
+	}
+
+	/**
+	 * Stream every account with the specified owner, in id order, as newline delimited JSON - the accounts
+	 * are fetched and written a page at a time, so however many match, only a page is held.
+	 * 
+	 * @param partialName
+	 * @param size
+	 *            Accounts fetched per repository query - accounts.search.page-size if omitted.
+	 * @param response
+	 *            Where the accounts are streamed.
+	 * @throws IOException
+	 */
+	@RequestMapping("/accounts/owner/{name}/stream")
+	public void byOwnerStream(@PathVariable("name") String partialName,
+			@RequestParam(value = "size", required = false) Integer size,
+			HttpServletResponse response) throws IOException {
+		logger.info("accounts-service byOwnerStream() invoked: " + partialName);
+
+		response.setContentType("application/x-ndjson");
+		ObjectMapper mapper = new ObjectMapper();
+		Writer out = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+		AccountSearchIndex.AccountVisitor write = account -> {
+			out.write(mapper.writeValueAsString(account));
+			out.write('\n');
+		};
+
+		int pageSize = pageSize(size);
+		int streamed = 0;
+		if (accountSearchIndex != null) {
+			streamed = accountSearchIndex.streamByOwner(partialName, pageSize, write);
+		} else {
+			long after = Long.MIN_VALUE;
+			List<Account> page;
+			do {
+				page = scanByOwner(partialName, after, pageSize);
+				for (Account account : page) {
+					write.visit(account);
+					after = account.getId();
+				}
+				streamed += page.size();
+			} while (page.size() == pageSize);
+		}
+		out.flush();
+		logger.info("accounts-service byOwnerStream() streamed: " + streamed);
+	}
+
+	private int pageSize(Integer size) {
+		return Math.max(1, Math.min(size == null ? searchPageSize : size, MAX_PAGE_SIZE));
+	}
+
+	/**
+	 * Without a search index, reads the accounts after afterId a page at a time, in id order, until size
+	 * of them match.
+	 */
+	private List<Account> scanByOwner(String partialName, long afterId, int size) {
+		String folded = partialName.toLowerCase();
+		List<Account> matches = new ArrayList<>(size);
+		List<Account> page;
+		do {
+			page = accountRepository.findByIdGreaterThanOrderByIdAsc(afterId, new PageRequest(0, size));
+			for (Account account : page) {
+				afterId = account.getId();
+				if (account.getOwner() != null && account.getOwner().toLowerCase().contains(folded)) {
+					matches.add(account);
+					if (matches.size() == size)
+						return matches;
+				}
+			}
+		} while (page.size() == size);
+		return matches;
+	}
 }
@@ -0,0 +1,263 @@
+package io.pivotal.microservices.products;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+import org.springframework.web.client.RestClientException;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.products.offers.OfferBook;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * reo - Answers a stream of (product, price) next cheapest queries, writing one newline delimited JSON
+ * answer per row, in the order the rows were read.
+ *
+ * Rows are read a batch at a time. Each batch checks its not yet seen product numbers with one repository
+ * query, then answers its rows in parallel on the common fork/join pool - each task takes a run of rows
+ * straight to the books' primitive price API, so no PRICE or OFFERID is built per row. With an
+ * {@link OfferPartitioner}, the rows of products owned by other instances go to them as one sub-batch per
+ * owner while the local rows are being answered, and their answers are spliced back in place.
+ *
+ * @author Roberto Olivares
+ */
+class BatchOfferQuery {
+
+	// Rows per batch
+	static final int BATCH_SIZE = 8192;
+
+	// Rows one fork/join task answers without splitting further
+	static final int SPLIT_THRESHOLD = 1024;
+
+	// What became of each row of the batch
+	static final byte ANSWERED = 0;
+	static final byte MALFORMED = 1;
+	static final byte UNKNOWN_PRODUCT = 2;
+	static final byte FORWARDED = 3;
+	static final byte UNFORWARDED = 4;
+
+	protected Logger logger = Logger.getLogger(BatchOfferQuery.class.getName());
+
+	protected final ProductRepository productRepository;
+	protected final ProductOfferManager offerManager;
+	protected final OfferPartitioner partitioner;
+
+	// Product numbers already checked against the repository - PRODUCTID if known, null if not
+	protected final HashMap<String, PRODUCTID> checkedProducts = new HashMap<>();
+
+	// The current batch
+	protected final String[] productNumbers = new String[BATCH_SIZE];
+	protected final long[] priceCents = new long[BATCH_SIZE];
+	protected final byte[] outcomes = new byte[BATCH_SIZE];
+	protected final String[] messages = new String[BATCH_SIZE];		// Why a row was malformed
+	protected final PRODUCTID[] productIds = new PRODUCTID[BATCH_SIZE];
+	protected final long[] answers = new long[BATCH_SIZE];
+	protected final String[] forwardedAnswers = new String[BATCH_SIZE];
+	protected int batchSize;
+
+	protected long rowsRead;
+	protected long forwardedRows;
+
+	public BatchOfferQuery(ProductRepository productRepository, ProductOfferManager offerManager) {
+		this(productRepository, offerManager, null);
+	}
+
+	/**
+	 * @param partitioner	Routes other instances' products to them - or null to answer every row here.
+	 */
+	public BatchOfferQuery(ProductRepository productRepository, ProductOfferManager offerManager, OfferPartitioner partitioner) {
+		this.productRepository = productRepository;
+		this.offerManager = offerManager;
+		this.partitioner = partitioner;
+	}
+
+	/**
+	 * Reads every row from the reader and writes its answer - a batch at a time, so the first answers are
+	 * on their way while later rows are still being read.
+	 *
+	 * @param reader	The (CSV or JSON) rows, read {@link OfferRowReader#forPriceQueries() for price queries}.
+	 * @param out		Where the answers go.
+	 * @throws IOException	If the input is unreadable, or the output unwritable. The answers so far have been written.
+	 */
+	public void query(OfferRowReader reader, OutputStream out) throws IOException {
+		long started = System.currentTimeMillis();
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+
+		while (true) {
+			try {
+				if (!reader.next())
+					break;
+				productNumbers[batchSize] = reader.productNumber;
+				priceCents[batchSize] = reader.priceCents;
+			} catch (IllegalArgumentException e) {
+				outcomes[batchSize] = MALFORMED;
+				messages[batchSize] = e.getMessage();
+			}
+
+			rowsRead++;
+			if (++batchSize == BATCH_SIZE)
+				flush(writer);
+		}
+		flush(writer);
+
+		logger.info("batch next cheapest: " + rowsRead + " rows (" + forwardedRows + " forwarded) in "
+				+ (System.currentTimeMillis() - started) + "ms");
+	}
+
+	/**
+	 * Answers the batch and writes the answers out.
+	 */
+	protected void flush(Writer writer) throws IOException {
+		if (batchSize == 0)
+			return;
+		BulkOfferLoader.lookupProducts(productRepository, checkedProducts, productNumbers, batchSize);
+
+		Map<URI, StringBuilder> forwards = new LinkedHashMap<>();
+		Map<URI, List<Integer>> forwardRows = new HashMap<>();
+		for (int row = 0; row < batchSize; row++) {
+			if (outcomes[row] == MALFORMED)
+				continue;
+			PRODUCTID productId = checkedProducts.get(productNumbers[row]);
+			if (productId == null) {
+				outcomes[row] = UNKNOWN_PRODUCT;
+				continue;
+			}
+
+			URI owner = partitioner == null ? null : partitioner.ownerOf(productId);
+			if (owner != null) {
+				appendRow(forwards.computeIfAbsent(owner, uri -> new StringBuilder()), productNumbers[row], priceCents[row]).append("}\n");
+				forwardRows.computeIfAbsent(owner, uri -> new ArrayList<>()).add(row);
+				outcomes[row] = FORWARDED;
+				continue;
+			}
+			productIds[row] = productId;
+		}
+
+		// Answer the local rows while the forwarded ones are out
+		ForkJoinTask<Void> local = ForkJoinPool.commonPool().submit(new AnswerRows(0, batchSize));
+		for (Map.Entry<URI, StringBuilder> forward : forwards.entrySet())
+			splice(forward.getKey(), forward.getValue().toString(), forwardRows.get(forward.getKey()));
+		local.join();
+
+		StringBuilder line = new StringBuilder(128);
+		for (int row = 0; row < batchSize; row++) {
+			line.setLength(0);
+			switch (outcomes[row]) {
+			case ANSWERED:
+				appendRow(line, productNumbers[row], priceCents[row]).append(",\"nextCheapestOfferId\":");
+				line.append(answers[row] == OfferBook.NO_OFFER ? "null" : Long.toString(answers[row])).append('}');
+				break;
+			case MALFORMED:
+				appendQuoted(line.append("{\"error\":"), messages[row]).append('}');
+				break;
+			case UNKNOWN_PRODUCT:
+				appendRow(line, productNumbers[row], priceCents[row]).append(",\"error\":\"ProductID not found\"}");
+				break;
+			case FORWARDED:
+				line.append(forwardedAnswers[row]);
+				break;
+			case UNFORWARDED:
+				appendRow(line, productNumbers[row], priceCents[row]).append(",\"error\":\"Owner unavailable\"}");
+				break;
+			}
+			writer.append(line).append('\n');
+		}
+		writer.flush();
+
+		Arrays.fill(productNumbers, 0, batchSize, null);
+		Arrays.fill(outcomes, 0, batchSize, ANSWERED);
+		Arrays.fill(messages, 0, batchSize, null);
+		Arrays.fill(productIds, 0, batchSize, null);
+		Arrays.fill(forwardedAnswers, 0, batchSize, null);
+		batchSize = 0;
+	}
+
+	/**
+	 * Sends rows to their owner and puts its answers, one line per row, in their places.
+	 */
+	protected void splice(URI owner, String rows, List<Integer> batchRows) {
+		try {
+			String[] lines = partitioner.forwardPriceQueries(owner, rows).split("\n");
+			if (lines.length == batchRows.size()) {
+				for (int i = 0; i < lines.length; i++)
+					forwardedAnswers[batchRows.get(i)] = lines[i];
+				forwardedRows += lines.length;
+				return;
+			}
+			logger.warning("batch next cheapest: " + owner + " answered " + lines.length + " of " + batchRows.size() + " rows");
+		} catch (RestClientException e) {
+			logger.warning("batch next cheapest: could not forward " + batchRows.size() + " rows to " + owner + ": " + e);
+		}
+		for (int row : batchRows)
+			outcomes[row] = UNFORWARDED;
+	}
+
+	/**
+	 * Answers the local rows of a run of the batch, halving it until it is under SPLIT_THRESHOLD rows.
+	 */
+	protected class AnswerRows extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final int from;
+		final int to;
+
+		AnswerRows(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > SPLIT_THRESHOLD) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new AnswerRows(from, middle), new AnswerRows(middle, to));
+				return;
+			}
+			for (int row = from; row < to; row++) {
+				if (productIds[row] == null)
+					continue;
+				OfferBook book = offerManager.getProductOffersById(productIds[row]);
+				answers[row] = book == null ? OfferBook.NO_OFFER : book.getClosestOfferIdAtOrBelow(priceCents[row]);
+			}
+		}
+	}
+
+	/**
+	 * Appends the unclosed start of a row - <code>{"productId":"...","price":1.00</code>.
+	 */
+	static StringBuilder appendRow(StringBuilder line, String productNumber, long priceCents) {
+		appendQuoted(line.append("{\"productId\":"), productNumber);
+		return line.append(",\"price\":").append(BigDecimal.valueOf(priceCents, 2).toPlainString());
+	}
+
+	static StringBuilder appendQuoted(StringBuilder line, String text) {
+		line.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\')
+				line.append('\\').append(c);
+			else if (c < ' ')
+				line.append(String.format("\\u%04x", (int) c));
+			else
+				line.append(c);
+		}
+		return line.append('"');
+	}
+}
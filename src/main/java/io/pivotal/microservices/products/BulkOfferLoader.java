@@ -0,0 +1,254 @@
+package io.pivotal.microservices.products;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.springframework.web.client.RestClientException;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.exceptions.InvalidProductIdException;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * reo - Loads a stream of offer rows into the {@link ProductOfferManager} in batches.
+ *
+ * Rows are buffered in primitive arrays, a batch at a time. Each batch looks up its not yet seen
+ * product numbers with one repository query, then hands each product's offers to its book as a group.
+ * With an {@link OfferPartitioner}, the offers of products owned by other instances are forwarded to them instead.
+ *
+ * @author Roberto Olivares
+ */
+class BulkOfferLoader {
+
+	// Rows per batch
+	static final int BATCH_SIZE = 8192;
+
+	// Product numbers per repository IN (...) query
+	static final int LOOKUP_CHUNK = 500;
+
+	// Unknown product numbers and malformed row messages echoed back in the summary
+	static final int MAX_REPORTED = 10;
+
+	protected Logger logger = Logger.getLogger(BulkOfferLoader.class.getName());
+
+	protected final ProductRepository productRepository;
+	protected final ProductOfferManager offerManager;
+	protected final OfferPartitioner partitioner;
+
+	// Product numbers already checked against the repository - PRODUCTID if known, null if not
+	protected final HashMap<String, PRODUCTID> checkedProducts = new HashMap<>();
+
+	// The current batch
+	protected final String[] productNumbers = new String[BATCH_SIZE];
+	protected final long[] offerIds = new long[BATCH_SIZE];
+	protected final long[] priceCents = new long[BATCH_SIZE];
+	protected final long[] ttlMillis = new long[BATCH_SIZE];
+	protected int batchSize;
+	protected boolean batchExpires;		// Whether any of the batch's offers has a time to live
+
+	// The current batch's offers regrouped by product
+	protected final long[] groupedOfferIds = new long[BATCH_SIZE];
+	protected final long[] groupedPriceCents = new long[BATCH_SIZE];
+	protected final long[] groupedTtlMillis = new long[BATCH_SIZE];
+	protected final int[] rowGroups = new int[BATCH_SIZE];
+
+	protected long rowsRead;
+	protected long offersAdded;
+	protected long unknownProductRows;
+	protected long malformedRows;
+	protected long forwardedRows;
+	protected long unforwardedRows;
+	protected final List<String> unknownProducts = new ArrayList<>();
+	protected final List<String> malformedMessages = new ArrayList<>();
+
+	public BulkOfferLoader(ProductRepository productRepository, ProductOfferManager offerManager) {
+		this(productRepository, offerManager, null);
+	}
+
+	/**
+	 * @param partitioner	Routes other instances' products to them - or null to add every offer here.
+	 */
+	public BulkOfferLoader(ProductRepository productRepository, ProductOfferManager offerManager, OfferPartitioner partitioner) {
+		this.productRepository = productRepository;
+		this.offerManager = offerManager;
+		this.partitioner = partitioner;
+	}
+
+	/**
+	 * Reads every row from the reader and adds the offers.
+	 *
+	 * @param reader	The (CSV or JSON) rows.
+	 * @return			A summary of the load.
+	 */
+	public LinkedHashMap<String, String> load(OfferRowReader reader) {
+		long started = System.currentTimeMillis();
+		String abortedBy = null;
+
+		try {
+			while (true) {
+				try {
+					if (!reader.next())
+						break;
+				} catch (IllegalArgumentException e) {
+					malformedRows++;
+					if (malformedMessages.size() < MAX_REPORTED)
+						malformedMessages.add(e.getMessage());
+					continue;
+				}
+
+				rowsRead++;
+				productNumbers[batchSize] = reader.productNumber;
+				offerIds[batchSize] = reader.offerId;
+				priceCents[batchSize] = reader.priceCents;
+				ttlMillis[batchSize] = reader.ttlMillis;
+				batchExpires |= reader.ttlMillis != ProductOfferManager.NO_TTL;
+				if (++batchSize == BATCH_SIZE)
+					flush();
+			}
+		} catch (IOException e) {
+			abortedBy = e.getMessage();		// Unreadable input - keep what was loaded so far
+		}
+		flush();
+
+		long elapsed = System.currentTimeMillis() - started;
+		logger.info("bulk offer load: " + offersAdded + " offers added from " + rowsRead + " rows in " + elapsed + "ms");
+
+		LinkedHashMap<String, String> summary = new LinkedHashMap<>();
+		summary.put("RowsRead", "" + rowsRead);
+		summary.put("OffersAdded", "" + offersAdded);
+		summary.put("UnknownProductRows", "" + unknownProductRows);
+		summary.put("MalformedRows", "" + malformedRows);
+		summary.put("Products", "" + checkedProducts.size());
+		if (partitioner != null) {
+			summary.put("ForwardedRows", "" + forwardedRows);
+			summary.put("UnforwardedRows", "" + unforwardedRows);
+		}
+		summary.put("ElapsedMillis", "" + elapsed);
+		if (!unknownProducts.isEmpty())
+			summary.put("UnknownProducts", "" + unknownProducts);
+		if (!malformedMessages.isEmpty())
+			summary.put("Malformed", "" + malformedMessages);
+		if (abortedBy != null)
+			summary.put("AbortedBy", abortedBy);
+		return summary;
+	}
+
+	/**
+	 * Validates the batch's products, then adds its offers one product group at a time.
+	 */
+	protected void flush() {
+		if (batchSize == 0)
+			return;
+		lookupProducts();
+
+		// Counting sort of the rows by product, keeping their order within each product
+		HashMap<String, Integer> groups = new HashMap<>();
+		List<String> groupProducts = new ArrayList<>();
+		for (int row = 0; row < batchSize; row++) {
+			Integer group = groups.get(productNumbers[row]);
+			if (group == null) {
+				group = groupProducts.size();
+				groups.put(productNumbers[row], group);
+				groupProducts.add(productNumbers[row]);
+			}
+			rowGroups[row] = group;
+		}
+
+		int[] groupStarts = new int[groupProducts.size() + 1];
+		for (int row = 0; row < batchSize; row++)
+			groupStarts[rowGroups[row] + 1]++;
+		for (int group = 0; group < groupProducts.size(); group++)
+			groupStarts[group + 1] += groupStarts[group];
+
+		int[] next = Arrays.copyOf(groupStarts, groupProducts.size());
+		for (int row = 0; row < batchSize; row++) {
+			int at = next[rowGroups[row]]++;
+			groupedOfferIds[at] = offerIds[row];
+			groupedPriceCents[at] = priceCents[row];
+			groupedTtlMillis[at] = ttlMillis[row];
+		}
+
+		Map<URI, StringBuilder> forwards = new HashMap<>();
+		Map<URI, Integer> forwardCounts = new HashMap<>();
+		for (int group = 0; group < groupProducts.size(); group++) {
+			int from = groupStarts[group];
+			int to = groupStarts[group + 1];
+			PRODUCTID productId = checkedProducts.get(groupProducts.get(group));
+			if (productId == null) {
+				unknownProductRows += to - from;
+				continue;
+			}
+
+			URI owner = partitioner == null ? null : partitioner.ownerOf(productId);
+			if (owner != null) {
+				StringBuilder rows = forwards.computeIfAbsent(owner, uri -> new StringBuilder());
+				for (int at = from; at < to; at++)
+					OfferPartitioner.appendRow(rows, productId, groupedOfferIds[at], groupedPriceCents[at], groupedTtlMillis[at]);
+				forwardCounts.merge(owner, to - from, Integer::sum);
+				continue;
+			}
+			try {
+				offerManager.getOrAddProduct(productId);
+				offerManager.addOffers(productId, groupedOfferIds, groupedPriceCents, batchExpires ? groupedTtlMillis : null, from, to);
+				offersAdded += to - from;
+			} catch (InvalidProductIdException e) {
+				unknownProductRows += to - from;
+			}
+		}
+
+		for (Map.Entry<URI, StringBuilder> forward : forwards.entrySet()) {
+			int rows = forwardCounts.get(forward.getKey());
+			try {
+				partitioner.forward(forward.getKey(), forward.getValue().toString());
+				forwardedRows += rows;
+			} catch (RestClientException e) {
+				logger.warning("bulk offer load: could not forward " + rows + " rows to " + forward.getKey() + ": " + e);
+				unforwardedRows += rows;
+			}
+		}
+
+		Arrays.fill(productNumbers, 0, batchSize, null);
+		batchSize = 0;
+		batchExpires = false;
+	}
+
+	/**
+	 * Checks the batch's not yet seen product numbers against the repository.
+	 */
+	protected void lookupProducts() {
+		for (String number : lookupProducts(productRepository, checkedProducts, productNumbers, batchSize))
+			if (checkedProducts.get(number) == null && unknownProducts.size() < MAX_REPORTED)
+				unknownProducts.add(number);
+	}
+
+	/**
+	 * Checks the not yet seen product numbers among the first count against the repository, LOOKUP_CHUNK 
+	 * at a time, recording each in checked - as its PRODUCTID if known, null if not. Null numbers are skipped.
+	 *
+	 * @return	The numbers newly checked.
+	 */
+	static List<String> lookupProducts(ProductRepository productRepository, Map<String, PRODUCTID> checked, String[] numbers, int count) {
+		List<String> unchecked = new ArrayList<>();
+		for (int row = 0; row < count; row++) {
+			String number = numbers[row];
+			if (number != null && !checked.containsKey(number)) {
+				checked.put(number, null);
+				unchecked.add(number);
+			}
+		}
+
+		for (int from = 0; from < unchecked.size(); from += LOOKUP_CHUNK) {
+			List<String> chunk = unchecked.subList(from, Math.min(from + LOOKUP_CHUNK, unchecked.size()));
+			for (Product product : productRepository.findByNumberIn(chunk))
+				checked.put(product.getNumber(), PRODUCTID.valueOf(product.getNumber()));
+		}
+		return unchecked;
+	}
+}
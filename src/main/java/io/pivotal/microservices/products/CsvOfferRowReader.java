@@ -0,0 +1,167 @@
+package io.pivotal.microservices.products;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * reo - Reads <code>productId,offerId,price</code> rows (or <code>productId,price</code> query rows) from a CSV body, one line at a time.
+ * An optional header line is skipped. Fields are parsed straight from the bytes, so the only
+ * allocation per row is the product number string.
+ *
+ * @author Roberto Olivares
+ */
+class CsvOfferRowReader extends OfferRowReader {
+
+	protected final InputStream in;
+
+	// Raw input, refilled as it is consumed
+	protected final byte[] buffer = new byte[64 * 1024];
+	protected int position;
+	protected int limit;
+
+	// The current line, without its terminator
+	protected byte[] line = new byte[256];
+	protected int lineLength;
+	protected long lineNumber;
+
+	public CsvOfferRowReader(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		while (readLine()) {
+			if (lineLength == 0)
+				continue;
+
+			int firstComma = indexOf(',', 0);
+			int secondComma = firstComma < 0 ? -1 : withOfferIds ? indexOf(',', firstComma + 1) : firstComma;
+			if (secondComma < 0)
+				throw new IllegalArgumentException("Line " + lineNumber + (withOfferIds ? ": expected productId,offerId,price" : ": expected productId,price"));
+
+			// A header has a non-numeric offer id (or price) - only allowed on the first line
+			if (lineNumber == 1 && !isDigit(line[skipSpaces(firstComma + 1, withOfferIds ? secondComma : lineLength)]))
+				continue;
+
+			int start = skipSpaces(0, firstComma);
+			int end = trimSpaces(start, firstComma);
+			if (start == end)
+				throw new IllegalArgumentException("Line " + lineNumber + ": missing productId");
+			productNumber = new String(line, start, end - start, StandardCharsets.US_ASCII);
+			if (withOfferIds)
+				offerId = parseLong(firstComma + 1, secondComma);
+			priceCents = parseCents(secondComma + 1, lineLength);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads up to the next '\n' into line, dropping any '\r'.
+	 *
+	 * @return	False at the end of the input.
+	 */
+	protected boolean readLine() throws IOException {
+		lineLength = 0;
+		boolean any = false;
+		while (true) {
+			if (position == limit) {
+				limit = in.read(buffer);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					if (any)
+						lineNumber++;
+					return any;
+				}
+			}
+			any = true;
+			byte b = buffer[position++];
+			if (b == '\n') {
+				lineNumber++;
+				return true;
+			}
+			if (b == '\r')
+				continue;
+			if (lineLength == line.length)
+				line = Arrays.copyOf(line, line.length * 2);
+			line[lineLength++] = b;
+		}
+	}
+
+	protected long parseLong(int from, int to) {
+		from = skipSpaces(from, to);
+		to = trimSpaces(from, to);
+		if (from == to)
+			throw new IllegalArgumentException("Line " + lineNumber + ": missing offerId");
+		long value = 0;
+		for (int i = from; i < to; i++) {
+			if (!isDigit(line[i]) || value > (Long.MAX_VALUE - 9) / 10)
+				throw new IllegalArgumentException("Line " + lineNumber + ": bad offerId");
+			value = value * 10 + (line[i] - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Parses a plain dollars[.cents] price; anything with more than two decimals goes through BigDecimal.
+	 */
+	protected long parseCents(int from, int to) {
+		from = skipSpaces(from, to);
+		to = trimSpaces(from, to);
+		if (from == to)
+			throw new IllegalArgumentException("Line " + lineNumber + ": missing price");
+		long cents = 0;
+		int decimals = -1;
+		for (int i = from; i < to; i++) {
+			byte b = line[i];
+			if (b == '.' && decimals < 0) {
+				decimals = 0;
+			} else if (isDigit(b) && decimals < 2 && cents < Long.MAX_VALUE / 100) {
+				cents = cents * 10 + (b - '0');
+				if (decimals >= 0)
+					decimals++;
+			} else {
+				try {
+					return toCents(new BigDecimal(new String(line, from, to - from, StandardCharsets.US_ASCII)));
+				} catch (ArithmeticException | NumberFormatException e) {
+					throw new IllegalArgumentException("Line " + lineNumber + ": bad price");
+				}
+			}
+		}
+		for (int d = Math.max(decimals, 0); d < 2; d++)
+			cents *= 10;
+		return cents;
+	}
+
+	protected int indexOf(char c, int from) {
+		for (int i = from; i < lineLength; i++)
+			if (line[i] == c)
+				return i;
+		return -1;
+	}
+
+	protected int skipSpaces(int from, int to) {
+		while (from < to && line[from] == ' ')
+			from++;
+		return from;
+	}
+
+	protected int trimSpaces(int from, int to) {
+		while (to > from && line[to - 1] == ' ')
+			to--;
+		return to;
+	}
+
+	protected static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+}
@@ -0,0 +1,93 @@
+package io.pivotal.microservices.products;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * reo - Reads newline delimited JSON rows, <code>{"productId": "123456020", "offerId": 1, "price": 100.00}</code>,
+ * using Jackson's streaming parser so only the current row is ever held in memory.
+ * Offer ids and prices may also be given as strings. Price query rows have no offer id. An offer row may give 
+ * the offer a time to live, as <code>"ttlMillis"</code> - as rows handed over by another instance do.
+ *
+ * @author Roberto Olivares
+ */
+class JsonOfferRowReader extends OfferRowReader {
+
+	protected static final JsonFactory jsonFactory = new JsonFactory();
+
+	protected final JsonParser parser;
+	protected long rowNumber;
+
+	public JsonOfferRowReader(InputStream in) throws IOException {
+		parser = jsonFactory.createParser(in);
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		JsonToken token = parser.nextToken();
+		if (token == null)
+			return false;
+		rowNumber++;
+		if (token != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			throw new IllegalArgumentException("Row " + rowNumber + ": expected a JSON object");
+		}
+
+		productNumber = null;
+		ttlMillis = ProductOfferManager.NO_TTL;
+		boolean hasOfferId = false;
+		boolean hasPrice = false;
+		String badField = null;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			try {
+				switch (field) {
+				case "productId":
+					productNumber = parser.getValueAsString();
+					break;
+				case "offerId":
+					offerId = value == JsonToken.VALUE_NUMBER_INT ? parser.getLongValue() : Long.parseLong(textOf(value));
+					hasOfferId = true;
+					break;
+				case "price":
+					priceCents = toCents(value.isNumeric() ? parser.getDecimalValue() : new BigDecimal(textOf(value)));
+					hasPrice = true;
+					break;
+				case "ttlMillis":
+					ttlMillis = Math.max(0, value == JsonToken.VALUE_NUMBER_INT ? parser.getLongValue() : Long.parseLong(textOf(value)));
+					break;
+				default:
+					parser.skipChildren();
+				}
+			} catch (NumberFormatException | ArithmeticException e) {
+				badField = field;
+				parser.skipChildren();
+			}
+		}
+
+		if (badField != null)
+			throw new IllegalArgumentException("Row " + rowNumber + ": bad " + badField);
+		if (productNumber == null || !hasPrice || (withOfferIds && !hasOfferId))
+			throw new IllegalArgumentException("Row " + rowNumber + (withOfferIds ? ": expected productId, offerId and price" : ": expected productId and price"));
+		return true;
+	}
+
+	protected String textOf(JsonToken value) throws IOException {
+		if (value != JsonToken.VALUE_STRING)
+			throw new NumberFormatException(value.asString());
+		return parser.getText();
+	}
+
+	@Override
+	public void close() throws IOException {
+		parser.close();
+	}
+}
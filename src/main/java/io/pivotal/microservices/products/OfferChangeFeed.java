@@ -0,0 +1,315 @@
+package io.pivotal.microservices.products;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.products.offers.OfferJournal;
+import com.microservicedemo.commerce.products.offers.OfferMatchLog;
+import com.microservicedemo.commerce.products.offers.OfferRecordRing;
+import com.microservicedemo.commerce.products.offers.OfferReplicationLog;
+import com.microservicedemo.commerce.products.offers.OfferWatchIndex;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * reo - Pushes offer adds, removes and expiries to subscribers as server-sent events, instead of them 
+ * polling the offer queries for changes.
+ * 
+ * Each subscriber is a cursor over the offer manager's {@link OfferReplicationLog} - the log is the only 
+ * buffer, and writers never wait on it. A subscriber's thread reads up to batch-records changes at a time
+ * and sends them as one <code>offers</code> event, whose id (<code>epoch:sequence</code>) resumes the feed
+ * after a reconnect (as the SSE Last-Event-ID). A subscriber more than maxLag changes behind - or behind 
+ * what the log still holds - is either skipped ahead to the newest change, after a <code>gap</code> event
+ * (DROP), or sent a <code>lagged</code> event and disconnected, to resume from its last event id at its 
+ * own pace (DISCONNECT).
+ * The <code>offers</code> feed is off unless <code>offers.feed.enabled</code> is true, which also keeps the
+ * replication log on a primary (32 bytes a change, up to <code>offers.replication.log-capacity</code>).
+ * 
+ * Price watch matches are fed the same way, from the {@link OfferWatchIndex}'s match log, as <code>matches</code> events,
+ * and the fills of matched buy orders from the {@link OfferMatchLog}, as <code>fills</code> events.
+ *
+ * @author Roberto Olivares
+ */
+@Component
+public class OfferChangeFeed {
+
+	/** What happens to a subscriber that falls too far behind */
+	public enum LagPolicy { DROP, DISCONNECT }
+
+	/** Appends a subscriber's record to its frame, if it wants it */
+	interface RecordWriter {
+		void append(StringBuilder frame, long[] records, int at);
+	}
+
+	// Idle subscribers get a comment this often, so dead connections are noticed
+	static final long KEEPALIVE_MILLIS = 15000;
+
+	protected Logger logger = Logger.getLogger(OfferChangeFeed.class.getName());
+
+	@Autowired
+	protected ProductOfferManager offerManager;
+
+	@Value("${offers.feed.enabled:false}")
+	protected boolean enabled;
+
+	@Value("${offers.feed.max-subscribers:64}")
+	protected int maxSubscribers;
+
+	@Value("${offers.feed.batch-records:1024}")
+	protected int batchRecords;
+
+	@Value("${offers.feed.batch-millis:50}")
+	protected long batchMillis;
+
+	protected final AtomicInteger subscribers = new AtomicInteger();
+
+	protected final ExecutorService senders = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "offer-feed");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Starts a subscription.
+	 * 
+	 * @param productId		Only this product's changes, or null for all.
+	 * @param lastEventId	Resume after this event id (<code>epoch:sequence</code>), or null for changes from now on.
+	 * @param policy		What to do when the subscriber falls behind.
+	 * @param maxLag		How many changes the subscriber may fall behind by.
+	 * @return				The subscriber's emitter, or null if the feed is not enabled, there is no change log here, or 
+	 * 						there are too many subscribers.
+	 */
+	public SseEmitter subscribe(PRODUCTID productId, String lastEventId, LagPolicy policy, long maxLag) {
+		if (!enabled)
+			return null;
+		long product = productId == null ? 0 : productId.longValueExact();
+		return subscribe(offerManager.getReplicationLog(), "offers", (frame, records, at) -> {
+			if (product == 0 || product == records[at + 1])
+				appendChange(frame, records[at] >>> 8, (int) (records[at] & 0xFF), records[at + 1], records[at + 2], records[at + 3]);
+		}, lastEventId, policy, maxLag);
+	}
+
+	/**
+	 * Starts a subscription to a watcher's price watch matches.
+	 * 
+	 * @param watcherId		The watcher whose matches to send.
+	 * @return				The subscriber's emitter, or null if watches are not enabled here or there are too many subscribers.
+	 * @see #subscribe(PRODUCTID, String, LagPolicy, long)
+	 */
+	public SseEmitter subscribeMatches(long watcherId, String lastEventId, LagPolicy policy, long maxLag) {
+		OfferWatchIndex watchIndex = offerManager.getWatchIndex();
+		return subscribe(watchIndex == null ? null : watchIndex.getMatches(), "matches", (frame, records, at) -> {
+			if (records[at + 2] == watcherId)
+				appendMatch(frame, records[at] >>> 8, records[at + 1], records[at + 3], records[at + 4], records[at + 5]);
+		}, lastEventId, policy, maxLag);
+	}
+
+	/**
+	 * Starts a subscription to the fills of matched buy orders.
+	 * 
+	 * @param productId		Only this product's fills, or null for all.
+	 * @return				The subscriber's emitter, or null if there is no match log here or there are too many subscribers.
+	 * @see #subscribe(PRODUCTID, String, LagPolicy, long)
+	 */
+	public SseEmitter subscribeFills(PRODUCTID productId, String lastEventId, LagPolicy policy, long maxLag) {
+		long product = productId == null ? 0 : productId.longValueExact();
+		return subscribe(offerManager.getMatchLog(), "fills", (frame, records, at) -> {
+			if (product == 0 || product == records[at + 2])
+				appendFill(frame, records[at] >>> 8, records[at + 1], records[at + 2], records[at + 3], records[at + 4]);
+		}, lastEventId, policy, maxLag);
+	}
+
+	protected SseEmitter subscribe(OfferRecordRing log, String eventName, RecordWriter writer, String lastEventId, LagPolicy policy, long maxLag) {
+		if (log == null)
+			return null;
+		if (subscribers.incrementAndGet() > maxSubscribers) {
+			subscribers.decrementAndGet();
+			return null;
+		}
+
+		SseEmitter emitter = newEmitter();
+		Subscriber subscriber = new Subscriber(log, emitter, eventName, writer, policy, maxLag);
+		emitter.onCompletion(subscriber::close);
+		emitter.onTimeout(subscriber::close);
+		subscriber.start(lastEventId);
+		senders.execute(subscriber);
+		return emitter;
+	}
+
+	/**
+	 * @return	A new subscriber's emitter - which never times out.
+	 */
+	protected SseEmitter newEmitter() {
+		return new SseEmitter(0L);
+	}
+
+	public int getSubscribers() {
+		return subscribers.get();
+	}
+
+	@PreDestroy
+	public void close() {
+		senders.shutdownNow();
+	}
+
+	/**
+	 * Appends one change to a JSON array.
+	 */
+	static void appendChange(StringBuilder frame, long sequence, int type, long productId, long offerId, long priceCents) {
+		frame.append(frame.length() == 1 ? "" : ",")
+			.append("{\"sequence\":").append(sequence)
+			.append(",\"type\":\"").append(typeName(type))
+			.append("\",\"productId\":\"").append(productId).append('"');
+		if (type != OfferJournal.DROP)
+			frame.append(",\"offerId\":").append(offerId)
+				.append(",\"price\":").append(BigDecimal.valueOf(priceCents, 2).toPlainString());
+		frame.append('}');
+	}
+
+	/**
+	 * Appends one watch match to a JSON array.
+	 */
+	static void appendMatch(StringBuilder frame, long sequence, long watchId, long productId, long offerId, long priceCents) {
+		frame.append(frame.length() == 1 ? "" : ",")
+			.append("{\"sequence\":").append(sequence)
+			.append(",\"watchId\":").append(watchId)
+			.append(",\"productId\":\"").append(productId)
+			.append("\",\"offerId\":").append(offerId)
+			.append(",\"price\":").append(BigDecimal.valueOf(priceCents, 2).toPlainString())
+			.append('}');
+	}
+
+	/**
+	 * Appends one fill of a buy order to a JSON array.
+	 */
+	static void appendFill(StringBuilder frame, long sequence, long orderId, long productId, long offerId, long priceCents) {
+		frame.append(frame.length() == 1 ? "" : ",")
+			.append("{\"sequence\":").append(sequence)
+			.append(",\"orderId\":").append(orderId)
+			.append(",\"productId\":\"").append(productId)
+			.append("\",\"offerId\":").append(offerId)
+			.append(",\"price\":").append(BigDecimal.valueOf(priceCents, 2).toPlainString())
+			.append('}');
+	}
+
+	static String typeName(int type) {
+		switch (type) {
+		case OfferJournal.ADD:		return "add";
+		case OfferJournal.REMOVE:	return "remove";
+		case OfferJournal.EXPIRE:	return "expire";
+		case OfferJournal.FILL:		return "fill";
+		default:					return "drop";
+		}
+	}
+
+	/**
+	 * One subscription - its thread reads the log after its cursor and sends what it finds.
+	 */
+	class Subscriber implements Runnable {
+		final OfferRecordRing log;
+		final SseEmitter emitter;
+		final String eventName;
+		final RecordWriter writer;
+		final LagPolicy policy;
+		final long maxLag;
+		final long[] records;
+		final StringBuilder frame = new StringBuilder();
+		volatile boolean open = true;
+		long cursor;
+
+		Subscriber(OfferRecordRing log, SseEmitter emitter, String eventName, RecordWriter writer, LagPolicy policy, long maxLag) {
+			this.log = log;
+			this.emitter = emitter;
+			this.eventName = eventName;
+			this.writer = writer;
+			this.policy = policy;
+			this.maxLag = maxLag;
+			this.records = new long[batchRecords * log.getRecordLongs()];
+		}
+
+		/**
+		 * Positions the cursor - after the last event id if it is from this log, else at the newest change.
+		 */
+		void start(String lastEventId) {
+			cursor = log.getLastSequence();
+			if (lastEventId == null)
+				return;
+			int colon = lastEventId.indexOf(':');
+			try {
+				if (colon > 0 && Long.parseLong(lastEventId.substring(0, colon)) == log.getEpoch())
+					cursor = Math.min(cursor, Long.parseLong(lastEventId.substring(colon + 1)));
+			} catch (NumberFormatException e) {
+				// Not one of our ids - start from now
+			}
+		}
+
+		void close() {
+			open = false;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (open) {
+					long lag = log.getLastSequence() - cursor;
+					int count = lag > maxLag ? -1 : log.read(cursor, records, KEEPALIVE_MILLIS);
+					if (count < 0) {
+						if (!fellBehind())
+							break;
+					} else if (count == 0) {
+						emitter.send(SseEmitter.event().comment("keepalive"));
+					} else {
+						send(count);
+						if (count < batchRecords)
+							Thread.sleep(batchMillis);	// Let the next frame fill
+					}
+				}
+				emitter.complete();
+			} catch (IOException | IllegalStateException e) {
+				// The subscriber has gone
+			} catch (InterruptedException e) {
+				emitter.complete();
+			} finally {
+				open = false;
+				subscribers.decrementAndGet();
+			}
+		}
+
+		void send(int count) throws IOException {
+			frame.setLength(0);
+			frame.append('[');
+			for (int i = 0; i < count; i++)
+				writer.append(frame, records, i * log.getRecordLongs());
+			cursor = records[(count - 1) * log.getRecordLongs()] >>> 8;
+			if (frame.length() > 1)
+				emitter.send(SseEmitter.event().id(log.getEpoch() + ":" + cursor).name(eventName).data(frame.append(']').toString()));
+		}
+
+		/**
+		 * @return	True to carry on from the newest change (DROP), false to disconnect.
+		 */
+		boolean fellBehind() throws IOException {
+			long last = log.getLastSequence();
+			if (policy == LagPolicy.DISCONNECT) {
+				emitter.send(SseEmitter.event().name("lagged").data("{\"lastSequence\":" + cursor + "}"));
+				return false;
+			}
+			emitter.send(SseEmitter.event().id(log.getEpoch() + ":" + last).name("gap")
+					.data("{\"fromSequence\":" + (cursor + 1) + ",\"toSequence\":" + last + "}"));
+			logger.info("offer feed subscriber skipped " + (last - cursor) + " changes");
+			cursor = last;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package io.pivotal.microservices.products;
+
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.LinkedHashMap;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.products.offers.OfferReplicationLog;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * reo - A RESTful controller for the feeds of offer changes - server-sent events of offer changes, price watch 
+ * matches and fills for subscribers (see {@link OfferChangeFeed}), and the replication snapshot and log 
+ * followers copy the offer books from (see {@link OfferReplicationFollower}).
+ * 
+ * @author Roberto Olivares
+ */
+@RestController
+public class OfferFeedController {
+
+	protected Logger logger = Logger.getLogger(OfferFeedController.class.getName());
+
+	@Autowired
+	protected ProductOfferManager offerManager;
+
+	@Autowired(required = false)
+	protected OfferReplicationFollower offerFollower;
+
+	@Autowired(required = false)
+	protected OfferChangeFeed offerChangeFeed;
+
+	// The largest replication log batch served - what a follower asks for
+	@Value("${offers.replication.batch-records:65536}")
+	protected int replicationBatchRecords;
+
+	/** Server-sent event feed of every offer add, remove and expiry, in batches - see {@link OfferChangeFeed}.
+	 * 
+	 * @param lastEventId		The id of the last event received, to resume after it.
+	 * @param afterSequence		Or an id to resume after, as a parameter.
+	 * @param lagPolicy			DROP (skip ahead) or DISCONNECT when the subscriber falls more than maxLag changes behind.
+	 * @param maxLag			How many changes the subscriber may fall behind by.
+	 * 
+	 * @return The event stream - or 503 if the feed is not enabled, this instance has no change log, or it is 
+	 * 			at its subscriber limit.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/offers/feed", produces = "text/event-stream")
+	public ResponseEntity<SseEmitter> offerFeed(
+			@RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+			@RequestParam(value = "afterSequence", required = false) String afterSequence,
+			@RequestParam(value = "lagPolicy", defaultValue = "DROP") OfferChangeFeed.LagPolicy lagPolicy,
+			@RequestParam(value = "maxLag", defaultValue = "100000") long maxLag
+	) {
+		return subscribe(null, lastEventId != null ? lastEventId : afterSequence, lagPolicy, maxLag);
+	}
+
+	/** Server-sent event feed of one product's offer adds, removes and expiries.
+	 * 
+	 * @see #offerFeed(String, String, OfferChangeFeed.LagPolicy, long)
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/{productIdString}/offers/feed", produces = "text/event-stream")
+	public ResponseEntity<SseEmitter> productOfferFeed(
+			@PathVariable("productIdString") String productIdString,
+			@RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+			@RequestParam(value = "afterSequence", required = false) String afterSequence,
+			@RequestParam(value = "lagPolicy", defaultValue = "DROP") OfferChangeFeed.LagPolicy lagPolicy,
+			@RequestParam(value = "maxLag", defaultValue = "100000") long maxLag
+	) {
+		return subscribe(PRODUCTID.valueOf(productIdString), lastEventId != null ? lastEventId : afterSequence, lagPolicy, maxLag);
+	}
+
+	/** Server-sent event feed of the fills of matched buy orders - or 503 unless <code>offers.matching.enabled</code>
+	 * keeps them.
+	 * 
+	 * @param productIdString	Only this product's fills, or absent for all.
+	 * @see #offerFeed(String, String, OfferChangeFeed.LagPolicy, long)
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/offers/fills/feed", produces = "text/event-stream")
+	public ResponseEntity<SseEmitter> offerFillFeed(
+			@RequestParam(value = "productId", required = false) String productIdString,
+			@RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+			@RequestParam(value = "afterSequence", required = false) String afterSequence,
+			@RequestParam(value = "lagPolicy", defaultValue = "DROP") OfferChangeFeed.LagPolicy lagPolicy,
+			@RequestParam(value = "maxLag", defaultValue = "100000") long maxLag
+	) {
+		SseEmitter emitter = offerChangeFeed == null ? null : offerChangeFeed.subscribeFills(
+				productIdString == null ? null : PRODUCTID.valueOf(productIdString), lastEventId != null ? lastEventId : afterSequence, lagPolicy, maxLag);
+		if (emitter == null)
+			return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+		return new ResponseEntity<>(emitter, HttpStatus.OK);
+	}
+
+	/** Server-sent event feed of a watcher's price watch matches.
+	 * 
+	 * @see #offerFeed(String, String, OfferChangeFeed.LagPolicy, long)
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/offers/watches/feed", produces = "text/event-stream")
+	public ResponseEntity<SseEmitter> offerWatchFeed(
+			@RequestParam("watcherId") long watcherId,
+			@RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+			@RequestParam(value = "afterSequence", required = false) String afterSequence,
+			@RequestParam(value = "lagPolicy", defaultValue = "DROP") OfferChangeFeed.LagPolicy lagPolicy,
+			@RequestParam(value = "maxLag", defaultValue = "100000") long maxLag
+	) {
+		SseEmitter emitter = offerChangeFeed == null ? null 
+				: offerChangeFeed.subscribeMatches(watcherId, lastEventId != null ? lastEventId : afterSequence, lagPolicy, maxLag);
+		if (emitter == null)
+			return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+		return new ResponseEntity<>(emitter, HttpStatus.OK);
+	}
+
+	private ResponseEntity<SseEmitter> subscribe(PRODUCTID productId, String lastEventId, OfferChangeFeed.LagPolicy lagPolicy, long maxLag) {
+		SseEmitter emitter = offerChangeFeed == null ? null : offerChangeFeed.subscribe(productId, lastEventId, lagPolicy, maxLag);
+		if (emitter == null)
+			return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+		return new ResponseEntity<>(emitter, HttpStatus.OK);
+	}
+
+	/** REST API for a follower's first copy of the offer books - this primary's epoch (8 bytes), then an
+	 * offer snapshot, whose base sequence is where the follower starts reading the replication log.
+	 * 
+	 * @return The snapshot, streamed - or 404 if replication is not enabled here.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/offers/replication/snapshot", produces = "application/octet-stream")
+	public ResponseEntity<StreamingResponseBody> replicationSnapshot() {
+		OfferReplicationLog replicationLog = offerManager.getReplicationLog();
+		if (replicationLog == null)
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		return new ResponseEntity<>(out -> {
+			new DataOutputStream(out).writeLong(replicationLog.getEpoch());
+			long baseSequence = offerManager.writeReplicationSnapshot(Channels.newChannel(out));
+			logger.info("offer replication snapshot sent at sequence " + baseSequence);
+		}, HttpStatus.OK);
+	}
+
+	/** REST API for a follower's next batch of offer changes - records of 4 longs 
+	 * (sequence &lt;&lt; 8 | type, productId, offerId, priceCents). Waits up to waitMillis when there are none yet.
+	 * 
+	 * @param epoch				The epoch of the primary the follower's copy came from.
+	 * @param afterSequence		The last sequence number the follower applied.
+	 * @param maxRecords		The largest batch to return - at most offers.replication.batch-records.
+	 * @param waitMillis		How long to wait for a change, at most 5 seconds.
+	 * 
+	 * @return The records (possibly none) - or 410 if the follower must reload a snapshot, 404 if replication 
+	 * 			is not enabled here.
+	 * @throws InterruptedException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/offers/replication/log", produces = "application/octet-stream")
+	public ResponseEntity<byte[]> replicationLog(
+			@RequestParam("epoch") long epoch,
+			@RequestParam("afterSequence") long afterSequence,
+			@RequestParam(value = "maxRecords", defaultValue = "65536") int maxRecords,
+			@RequestParam(value = "waitMillis", defaultValue = "1000") long waitMillis
+	) throws InterruptedException {
+		OfferReplicationLog replicationLog = offerManager.getReplicationLog();
+		if (replicationLog == null)
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		if (epoch != replicationLog.getEpoch())
+			return new ResponseEntity<>(HttpStatus.GONE);
+
+		long[] records = new long[Math.max(1, Math.min(maxRecords, replicationBatchRecords)) * OfferReplicationLog.RECORD_LONGS];
+		int count = replicationLog.read(afterSequence, records, Math.min(waitMillis, 5000));
+		if (count < 0)
+			return new ResponseEntity<>(HttpStatus.GONE);
+
+		ByteBuffer body = ByteBuffer.allocate(count * OfferReplicationLog.RECORD_LONGS * 8);
+		body.asLongBuffer().put(records, 0, count * OfferReplicationLog.RECORD_LONGS);
+		return new ResponseEntity<>(body.array(), HttpStatus.OK);
+	}
+
+	/** REST API for this instance's replication role - primary or follower - and position.
+	 * 
+	 * @return JSON response with the role and sequence numbers.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/offers/replication/status")
+	public String replicationStatus() {
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		OfferReplicationLog replicationLog = offerManager.getReplicationLog();
+		if (offerFollower != null && offerFollower.isFollowing()) {
+			result.put("Role", 				"follower");
+			result.put("Primary", 			offerFollower.getPrimaryUrl());
+			result.put("AppliedSequence", 	"" + offerFollower.getAppliedSequence());
+		} else if (replicationLog != null) {
+			result.put("Role", 				"primary");
+			result.put("Epoch", 			"" + replicationLog.getEpoch());
+			result.put("LastSequence", 		"" + replicationLog.getLastSequence());
+		} else {
+			result.put("Role", 				"none");
+		}
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for failing over - a follower stops following and becomes a primary, with the books it has.
+	 * 
+	 * @return JSON response with whether this instance was promoted.
+	 * @throws InterruptedException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/offers/replication/promote", method = RequestMethod.POST)
+	public String promoteReplica() throws InterruptedException {
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("Promoted", "" + (offerFollower != null && offerFollower.promote()));
+		return ProductsController.toJson(result);
+	}
+}
@@ -0,0 +1,151 @@
+package io.pivotal.microservices.products;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.products.offers.OfferPriceHistory;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * reo - A RESTful controller for each product's best offer price over time, recorded by the 
+ * {@link OfferPriceHistory} when <code>offers.history.enabled</code> is true.
+ * 
+ * @author Roberto Olivares
+ */
+@RestController
+public class OfferHistoryController {
+
+	protected Logger logger = Logger.getLogger(OfferHistoryController.class.getName());
+
+	@Autowired
+	protected ProductRepository productRepository;
+
+	@Autowired
+	protected ProductOfferManager offerManager;
+
+	/** REST API for a product's best offer price over time - a point for each change, starting with the 
+	 * price in effect at fromMillis.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param fromMillis		The start of the range, in epoch milliseconds.
+	 * @param toMillis			The end of the range, in epoch milliseconds - absent for now.
+	 * @param limit				The most points returned, at most ProductOffersController.MAX_OFFER_PAGE.
+	 * 
+	 * @return JSON response with the points, oldest first (a null price while the product had no offers).
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/{productIdString}/offers/history")
+	public String offerPriceHistory(
+			@PathVariable("productIdString") String productIdString,
+			@RequestParam(value = "from", defaultValue = "0") long fromMillis,
+			@RequestParam(value = "to", defaultValue = "" + Long.MAX_VALUE) long toMillis,
+			@RequestParam(value = "limit", defaultValue = "100") int limit
+	) {
+		OfferPriceHistory priceHistory = offerManager.getPriceHistory();
+		if (priceHistory == null)
+			return "Offer price history is not enabled";
+		Product product = productRepository.findByNumber(productIdString);
+		if (product == null)
+			return "ProductID not found: " + productIdString;
+
+		int pageSize = Math.max(0, Math.min(limit, ProductOffersController.MAX_OFFER_PAGE));
+		List<Map<String, String>> points = new ArrayList<>(Math.min(pageSize, 64));
+		priceHistory.visitPoints(PRODUCTID.valueOf(productIdString).longValueExact(), fromMillis, toMillis, pageSize, (timeMillis, priceCents) -> {
+			LinkedHashMap<String, String> point = new LinkedHashMap<>();
+			point.put("Time", 	"" + timeMillis);
+			point.put("Price", 	priceCents == OfferPriceHistory.NO_PRICE ? "null" : BigDecimal.valueOf(priceCents, 2).toPlainString());
+			return points.add(point);
+		});
+
+		LinkedHashMap<String, Object> result = new LinkedHashMap<>();
+		result.put("ProductID", 	productIdString);
+		result.put("From", 			"" + fromMillis);
+		result.put("To", 			"" + toMillis);
+		result.put("Limit", 		"" + pageSize);
+		result.put("Points", 		points);
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for a product's best offer price over time, summarized per bucket - the lowest and highest 
+	 * price in effect during it, and the time weighted average.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param fromMillis		The start of the first bucket, in epoch milliseconds - absent for a day ago.
+	 * @param toMillis			The end of the range, in epoch milliseconds - absent for now.
+	 * @param bucketMillis		The bucket width - at most OfferPriceHistory.MAX_BUCKETS buckets may be asked for.
+	 * 
+	 * @return JSON response with the buckets in which the product had offers, oldest first.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/{productIdString}/offers/history/downsample")
+	public String downsampleOfferPriceHistory(
+			@PathVariable("productIdString") String productIdString,
+			@RequestParam(value = "from", required = false) Long fromMillis,
+			@RequestParam(value = "to", defaultValue = "" + Long.MAX_VALUE) long toMillis,
+			@RequestParam(value = "bucketMillis", defaultValue = "3600000") long bucketMillis
+	) {
+		OfferPriceHistory priceHistory = offerManager.getPriceHistory();
+		if (priceHistory == null)
+			return "Offer price history is not enabled";
+		Product product = productRepository.findByNumber(productIdString);
+		if (product == null)
+			return "ProductID not found: " + productIdString;
+
+		long from = fromMillis != null ? fromMillis : System.currentTimeMillis() - 24 * 3600 * 1000L;
+		List<Map<String, String>> buckets = new ArrayList<>();
+		try {
+			priceHistory.downsample(PRODUCTID.valueOf(productIdString).longValueExact(), from, toMillis, bucketMillis, (bucketStart, points, minCents, maxCents, avgCents) -> {
+				LinkedHashMap<String, String> bucket = new LinkedHashMap<>();
+				bucket.put("Time", 		"" + bucketStart);
+				bucket.put("Points", 	"" + points);
+				bucket.put("Min", 		BigDecimal.valueOf(minCents, 2).toPlainString());
+				bucket.put("Max", 		BigDecimal.valueOf(maxCents, 2).toPlainString());
+				bucket.put("Avg", 		BigDecimal.valueOf(Math.round(avgCents), 2).toPlainString());
+				buckets.add(bucket);
+			});
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+
+		LinkedHashMap<String, Object> result = new LinkedHashMap<>();
+		result.put("ProductID", 	productIdString);
+		result.put("From", 			"" + from);
+		result.put("To", 			"" + toMillis);
+		result.put("BucketMillis", 	"" + bucketMillis);
+		result.put("Buckets", 		buckets);
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for the offer price history's size.
+	 * 
+	 * @return JSON response with the products and points held, and the bytes they take.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/offers/history/stats")
+	public String offerPriceHistoryStats() {
+		OfferPriceHistory priceHistory = offerManager.getPriceHistory();
+		if (priceHistory == null)
+			return "Offer price history is not enabled";
+
+		long points = priceHistory.getPoints();
+		long bytes = priceHistory.getBytes();
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("ResolutionMillis", 	"" + priceHistory.getResolutionMillis());
+		result.put("Products", 			"" + priceHistory.getProducts());
+		result.put("Points", 			"" + points);
+		result.put("Bytes", 			"" + bytes);
+		result.put("BytesPerPoint", 	points == 0 ? "null" : String.format("%.2f", (double) bytes / points));
+		return ProductsController.toJson(result);
+	}
+}
@@ -0,0 +1,55 @@
+package io.pivotal.microservices.products;
+
+import java.net.URI;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+
+/**
+ * reo - Sends per-product offer requests (<code>/products/{productId}/offers/...</code>) for products owned
+ * by another products-service instance to that instance, with a 307 redirect - so the method, and any body,
+ * is kept. The web tier routes to the owner directly; this catches clients with a stale or no ring.
+ *
+ * @author Roberto Olivares
+ */
+public class OfferOwnerInterceptor extends HandlerInterceptorAdapter {
+
+	protected final OfferPartitioner partitioner;
+
+	public OfferOwnerInterceptor(OfferPartitioner partitioner) {
+		this.partitioner = partitioner;
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+		if (request.getHeader(OfferPartitioner.FORWARDED_HEADER) != null)
+			return true;
+
+		// The product id is the path segment after /products/
+		String path = request.getRequestURI();
+		int start = path.indexOf("/products/") + "/products/".length();
+		int end = path.indexOf('/', start);
+		if (start < "/products/".length() || end < 0)
+			return true;
+
+		PRODUCTID productId;
+		try {
+			productId = PRODUCTID.valueOf(path.substring(start, end));
+		} catch (NumberFormatException e) {
+			return true;	// Let the controller report it
+		}
+
+		URI owner = partitioner.ownerOf(productId);
+		if (owner == null)
+			return true;
+
+		String query = request.getQueryString();
+		response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+		response.setHeader("Location", owner.resolve(path) + (query == null ? "" : "?" + query));
+		return false;
+	}
+}
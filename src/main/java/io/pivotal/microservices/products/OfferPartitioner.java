@@ -0,0 +1,260 @@
+package io.pivotal.microservices.products;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.client.serviceregistry.Registration;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.exceptions.InvalidProductIdException;
+import com.microservicedemo.commerce.products.offers.OfferBook;
+import com.microservicedemo.commerce.products.offers.OfferPartitionRing;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * reo - Decides which products-service instance owns each product's offers, from the instances registered
+ * in Eureka, using an {@link OfferPartitionRing}.
+ *
+ * Offer requests for products owned elsewhere are redirected there by {@link OfferOwnerInterceptor}, and
+ * bulk loads forward those rows. When instances join or leave, this node hands the books it no longer
+ * owns to their new owners, through the owner's bulk load endpoint - offers with a time to live go with 
+ * what is left of it, and expire on their new owner.
+ *
+ * Until this instance appears in its own registry view (or if partitioning is disabled, or this instance
+ * is following a primary) it owns everything.
+ *
+ * @author Roberto Olivares
+ */
+@Component
+public class OfferPartitioner {
+
+	/** Marks requests already routed by a node, which their receiver must handle itself */
+	public static final String FORWARDED_HEADER = "X-Offers-Forwarded";
+
+	// Offers per handover request
+	static final int HANDOVER_BATCH = 8192;
+
+	protected Logger logger = Logger.getLogger(OfferPartitioner.class.getName());
+
+	@Autowired
+	protected DiscoveryClient discoveryClient;
+
+	@Autowired(required = false)
+	protected Registration registration;
+
+	@Autowired
+	protected ProductOfferManager offerManager;
+
+	@Autowired
+	protected OfferReplicationFollower offerFollower;
+
+	@Value("${spring.application.name}")
+	protected String serviceId;
+
+	@Value("${offers.partitioning.enabled:true}")
+	protected boolean enabled;
+
+	// Plain (not load balanced) - requests go to one particular node
+	protected final RestTemplate restTemplate = new RestTemplate();
+
+	protected volatile OfferPartitionRing ring;
+
+	/**
+	 * Rebuilds the ring if the registered instances have changed, then hands over any books this node has lost.
+	 */
+	@Scheduled(fixedDelayString = "${offers.partitioning.refresh-millis:10000}")
+	public synchronized void refresh() {
+		if (!enabled || registration == null || offerFollower.isFollowing())
+			return;
+
+		Map<String, URI> nodes = new TreeMap<>();
+		for (ServiceInstance instance : discoveryClient.getInstances(serviceId))
+			if (!OfferPartitionRing.isFollower(instance.getMetadata()))
+				nodes.put(nodeName(instance), instance.getUri());
+		if (!nodes.containsKey(localNode()))
+			return;		// Not registered yet, or deregistering - keep the current ring
+		if (ring != null && ring.hasNodes(nodes))
+			return;
+
+		ring = new OfferPartitionRing(nodes);
+		logger.info("offer partition ring is now " + ring);
+		handOver();
+	}
+
+	/**
+	 * @return	The base URI of the node owning the product, or null if this node owns it.
+	 */
+	public URI ownerOf(PRODUCTID productId) {
+		OfferPartitionRing current = ring;
+		if (current == null)
+			return null;
+		String owner = current.ownerOf(productId);
+		return owner == null || owner.equals(localNode()) ? null : current.uriOf(owner);
+	}
+
+	/**
+	 * Posts newline delimited JSON offer rows to a node's bulk endpoint, marked as already routed.
+	 *
+	 * @throws RestClientException	If the rows may not have been loaded - including any answer but a 2xx.
+	 */
+	public void forward(URI owner, String rows) {
+		postRows(owner.resolve("/products/offers/bulk"), rows);
+	}
+
+	/**
+	 * Posts newline delimited JSON (product, price) rows to a node's batch next cheapest endpoint, marked as 
+	 * already routed.
+	 *
+	 * @return	The node's answers, one line per row in the same order.
+	 * @throws RestClientException	If the node did not answer with a 2xx.
+	 */
+	public String forwardPriceQueries(URI owner, String rows) {
+		return postRows(owner.resolve("/products/offers/nextCheapestByPrice/batch"), rows);
+	}
+
+	/**
+	 * Errors throw, but a redirect (a follower sending writes to its primary, or a node whose ring differs 
+	 * from ours) comes back as an answer - and delivered nothing.
+	 *
+	 * @return	The response body.
+	 */
+	protected String postRows(URI uri, String rows) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.valueOf("application/x-ndjson"));
+		headers.set(FORWARDED_HEADER, localNode());
+		ResponseEntity<String> response = post(uri, new HttpEntity<>(rows, headers));
+		if (!response.getStatusCode().is2xxSuccessful())
+			throw new RestClientException(uri + " answered " + response.getStatusCode());
+		return response.getBody();
+	}
+
+	protected ResponseEntity<String> post(URI uri, HttpEntity<String> request) {
+		return restTemplate.postForEntity(uri, request, String.class);
+	}
+
+	/**
+	 * Appends one offer as a row for {@link #forward}.
+	 *
+	 * @param ttlMillis		The offer's remaining time to live, or ProductOfferManager.NO_TTL if it has none.
+	 */
+	public static void appendRow(StringBuilder rows, PRODUCTID productId, long offerId, long priceCents, long ttlMillis) {
+		rows.append("{\"productId\":\"").append(productId).append("\",\"offerId\":").append(offerId)
+			.append(",\"price\":").append(BigDecimal.valueOf(priceCents, 2).toPlainString());
+		if (ttlMillis != ProductOfferManager.NO_TTL)
+			rows.append(",\"ttlMillis\":").append(ttlMillis);
+		rows.append("}\n");
+	}
+
+	/**
+	 * Moves every book whose product is now owned elsewhere to its owner, each offer with the time it has left 
+	 * to live. Whatever of a book can't be sent is put back, to be retried at the next membership change.
+	 */
+	protected void handOver() {
+		// New requests for the products are already being redirected to their owners. Once a book is removed, 
+		// no change reaches it - a request that found it just before finds the product has no book here
+		List<PRODUCTID> lost = new ArrayList<>();
+		List<OfferBook> lostBooks = new ArrayList<>();
+		List<URI> lostOwners = new ArrayList<>();
+		for (PRODUCTID productId : offerManager.getProductIds()) {
+			URI owner = ownerOf(productId);
+			if (owner == null)
+				continue;
+			OfferBook book = offerManager.removeProduct(productId);
+			if (book == null)
+				continue;
+			lost.add(productId);
+			lostBooks.add(book);
+			lostOwners.add(owner);
+		}
+		if (lost.isEmpty())
+			return;
+
+		// Offers with a time to live are scheduled before their add lets go of the book, so all are pending by now
+		HashSet<Long> lostIds = new HashSet<>();
+		for (PRODUCTID productId : lost)
+			lostIds.add(productId.longValueExact());
+		HashMap<Long, HashMap<Long, Long>> ttls = new HashMap<>();
+		offerManager.visitPendingExpiries(lostIds::contains, (productId, offerId, priceCents, ttlMillis) ->
+				ttls.computeIfAbsent(productId, id -> new HashMap<>()).put(offerId, ttlMillis));
+
+		for (int i = 0; i < lost.size(); i++) {
+			PRODUCTID productId = lost.get(i);
+			OfferBook book = lostBooks.get(i);
+			URI owner = lostOwners.get(i);
+			HashMap<Long, Long> productTtls = ttls.getOrDefault(productId.longValueExact(), new HashMap<>());
+			StringBuilder rows = new StringBuilder();
+			int[] batched = new int[1];
+			long[] sent = new long[1];
+			try {
+				book.visitOffersByPrice(null, null, 0, Integer.MAX_VALUE, (priceCents, offerId) -> {
+					appendRow(rows, productId, offerId, priceCents, productTtls.getOrDefault(offerId, ProductOfferManager.NO_TTL));
+					if (++batched[0] == HANDOVER_BATCH) {
+						forward(owner, rows.toString());
+						sent[0] += batched[0];
+						rows.setLength(0);
+						batched[0] = 0;
+					}
+					return true;
+				});
+				if (batched[0] > 0)
+					forward(owner, rows.toString());
+				logger.info("handed " + book.size() + " offers for " + productId + " to " + owner);
+			} catch (RestClientException e) {
+				logger.warning("could not hand offers for " + productId + " to " + owner + " after " + sent[0] + ": " + e);
+				putBack(productId, book, sent[0]);
+			}
+		}
+	}
+
+	/**
+	 * Re-adds (through the manager, so it is journaled) what is left of a book after its first sent offers.
+	 * Their expiries are still pending here, so offers with a time to live go on expiring.
+	 */
+	protected void putBack(PRODUCTID productId, OfferBook book, long sent) {
+		long[][] unsent = { new long[1024], new long[1024] };
+		int[] count = new int[1];
+		book.visitOffersByPrice(null, null, sent, Integer.MAX_VALUE, (priceCents, offerId) -> {
+			if (count[0] == unsent[0].length) {
+				unsent[0] = Arrays.copyOf(unsent[0], count[0] * 2);
+				unsent[1] = Arrays.copyOf(unsent[1], count[0] * 2);
+			}
+			unsent[0][count[0]] = offerId;
+			unsent[1][count[0]++] = priceCents;
+			return true;
+		});
+		try {
+			offerManager.getOrAddProduct(productId);
+			offerManager.addOffers(productId, unsent[0], unsent[1], 0, count[0]);
+		} catch (InvalidProductIdException e) {
+			// Not possible - the book was just created
+		}
+	}
+
+	protected String localNode() {
+		return nodeName(registration);
+	}
+
+	protected static String nodeName(ServiceInstance instance) {
+		return instance.getHost() + ":" + instance.getPort();
+	}
+}
@@ -0,0 +1,26 @@
+package io.pivotal.microservices.products;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+/**
+ * Offer partitioning across products-service instances - see {@link OfferPartitioner}.
+ * Schedules the partitioner's refresh and redirects requests for other instances' products.
+ * 
+ * @author Roberto Olivares (reo)
+ */
+@Configuration
+@EnableScheduling
+public class OfferPartitioningConfiguration extends WebMvcConfigurerAdapter {
+
+	@Autowired
+	protected OfferPartitioner offerPartitioner;
+
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(new OfferOwnerInterceptor(offerPartitioner)).addPathPatterns("/products/*/offers/**");
+	}
+}
@@ -0,0 +1,41 @@
+package io.pivotal.microservices.products;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/**
+ * reo - Sends offer writes (adds, removes and bulk loads) and price watch requests reaching a follower to its 
+ * primary, with a 307 redirect - so the method, and any body, is kept. Reads are served by the follower.
+ *
+ * A write another node has already routed here (a partition hand over or forwarded bulk rows, marked with
+ * {@link OfferPartitioner#FORWARDED_HEADER}) is refused with 409 instead: its sender's ring is stale, and 
+ * following the redirect would land it wherever the primary is rather than where its sender meant it to go. 
+ * The sender keeps what it could not deliver.
+ *
+ * @author Roberto Olivares
+ */
+public class OfferReplicaInterceptor extends HandlerInterceptorAdapter {
+
+	protected final OfferReplicationFollower follower;
+
+	public OfferReplicaInterceptor(OfferReplicationFollower follower) {
+		this.follower = follower;
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+		if (!follower.isFollowing())
+			return true;
+		if (request.getHeader(OfferPartitioner.FORWARDED_HEADER) != null) {
+			response.setStatus(HttpServletResponse.SC_CONFLICT);
+			return false;
+		}
+
+		String query = request.getQueryString();
+		response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+		response.setHeader("Location", follower.getPrimaryUrl() + request.getRequestURI() + (query == null ? "" : "?" + query));
+		return false;
+	}
+}
@@ -0,0 +1,27 @@
+package io.pivotal.microservices.products;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+/**
+ * Offer replication from a primary to followers - see {@link OfferReplicationFollower}.
+ * Sends offer writes reaching a follower to its primary.
+ * 
+ * @author Roberto Olivares (reo)
+ */
+@Configuration
+public class OfferReplicationConfiguration extends WebMvcConfigurerAdapter {
+
+	@Autowired
+	protected OfferReplicationFollower offerFollower;
+
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(new OfferReplicaInterceptor(offerFollower))
+				.addPathPatterns("/products/*/offers/add", "/products/*/offers/remove", "/products/offers/bulk",
+						"/products/*/offers/watches/**", "/products/offers/watches/**",
+						"/products/*/offers/match", "/products/offers/fills/**");
+	}
+}
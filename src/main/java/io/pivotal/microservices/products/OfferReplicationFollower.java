@@ -0,0 +1,273 @@
+package io.pivotal.microservices.products;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import com.netflix.appinfo.ApplicationInfoManager;
+
+import com.microservicedemo.commerce.products.offers.OfferPartitionRing;
+import com.microservicedemo.commerce.products.offers.OfferReplica;
+import com.microservicedemo.commerce.products.offers.OfferReplicationLog;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * reo - Keeps this instance's offer books a copy of a primary's, when <code>offers.replication.primary-url</code> 
+ * is set. A thread loads the primary's replication snapshot, then long-polls its replication log for batches
+ * of changes and applies them. If the primary restarts, or this instance falls too far behind, it starts 
+ * again from a new snapshot - serving the old books meanwhile.
+ * 
+ * A follower serves offer reads; {@link OfferReplicaInterceptor} sends writes to the primary. 
+ * {@link #promote} stops following and makes this instance a primary, with the books it has - keeping a
+ * replication log for followers of its own if <code>offers.replication.enabled</code> (or <code>offers.feed.enabled</code>) is true.
+ * 
+ * A follower registers with Eureka metadata <code>offers.role=follower</code> (see {@link OfferPartitionRing#ROLE_METADATA}),
+ * so no partition ring gives it products of its own; promoting re-registers it as a primary.
+ * 
+ * Requests to the primary time out after <code>offers.replication.connect-timeout-millis</code> and
+ * <code>read-timeout-millis</code>. Promoting waits up to <code>stop-millis</code> for the thread, then closes
+ * its connection and waits again - and nothing is applied once following has stopped.
+ *
+ * @author Roberto Olivares
+ */
+@Component
+public class OfferReplicationFollower {
+
+	protected Logger logger = Logger.getLogger(OfferReplicationFollower.class.getName());
+
+	@Autowired
+	protected ProductOfferManager offerManager;
+
+	@Autowired(required = false)
+	protected ApplicationInfoManager applicationInfoManager;
+
+	@Value("${offers.replication.primary-url:}")
+	protected String primaryUrl;
+
+	@Value("${offers.replication.enabled:false}")
+	protected boolean replicationEnabled;
+
+	@Value("${offers.feed.enabled:false}")
+	protected boolean feedEnabled;
+
+	@Value("${offers.replication.log-capacity:1048576}")
+	protected int logCapacity;
+
+	@Value("${offers.replication.batch-records:65536}")
+	protected int batchRecords;
+
+	@Value("${offers.replication.poll-millis:1000}")
+	protected long pollMillis;
+
+	@Value("${offers.replication.connect-timeout-millis:5000}")
+	protected int connectTimeoutMillis;
+
+	// Beyond a long poll's poll-millis
+	@Value("${offers.replication.read-timeout-millis:30000}")
+	protected int readTimeoutMillis;
+
+	@Value("${offers.replication.stop-millis:5000}")
+	protected long stopMillis;
+
+	protected FollowerRequestFactory requestFactory;
+	// Plain (not load balanced) - the primary is one particular instance
+	protected RestTemplate restTemplate;
+
+	// Held while applying to the books, and while promoting
+	protected final Object applyLock = new Object();
+
+	protected OfferReplica replica;
+	protected Thread thread;
+	protected volatile boolean following;
+
+	@PostConstruct
+	public void start() {
+		if (primaryUrl.isEmpty())
+			return;
+		requestFactory = new FollowerRequestFactory();
+		requestFactory.setConnectTimeout(connectTimeoutMillis);
+		requestFactory.setReadTimeout(Math.max(readTimeoutMillis, (int) Math.min(2 * pollMillis, Integer.MAX_VALUE)));
+		restTemplate = new RestTemplate(requestFactory);
+		replica = new OfferReplica(offerManager);
+		following = true;
+		registerRole(OfferPartitionRing.FOLLOWER_ROLE);
+		thread = new Thread(this::follow, "offer-follower");
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("following offers from " + primaryUrl);
+	}
+
+	@PreDestroy
+	public void stop() {
+		following = false;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * @return	True while this instance is following a primary.
+	 */
+	public boolean isFollowing() {
+		return following;
+	}
+
+	public String getPrimaryUrl() {
+		return primaryUrl;
+	}
+
+	/**
+	 * @return	The sequence number of the last change applied, or -1 if not following.
+	 */
+	public long getAppliedSequence() {
+		OfferReplica replica = this.replica;
+		return following ? replica.getAppliedSequence() : -1;
+	}
+
+	/**
+	 * Stops following and, if replication is enabled, starts keeping a replication log of this instance's own changes.
+	 * 
+	 * @return	False if this instance was not following.
+	 */
+	public synchronized boolean promote() throws InterruptedException {
+		if (!following)
+			return false;
+		stop();
+		thread.join(stopMillis);
+		if (thread.isAlive()) {
+			// Stuck in a read - close it under the thread
+			logger.warning("offer follower still running after " + stopMillis + "ms - closing its connection");
+			requestFactory.disconnect();
+			thread.join(stopMillis);
+		}
+		if ((replicationEnabled || feedEnabled) && logCapacity > 0) {
+			synchronized (applyLock) {
+				offerManager.enableReplication(logCapacity);
+			}
+		}
+		registerRole(OfferPartitionRing.PRIMARY_ROLE);
+		logger.info("promoted to offer primary at sequence " + replica.getAppliedSequence() + " of " + primaryUrl);
+		return true;
+	}
+
+	/**
+	 * Sets this instance's role in its Eureka metadata - before it first registers, when called while starting.
+	 */
+	protected void registerRole(String role) {
+		if (applicationInfoManager != null)
+			applicationInfoManager.registerAppMetadata(Collections.singletonMap(OfferPartitionRing.ROLE_METADATA, role));
+	}
+
+	protected void follow() {
+		long[] records = new long[batchRecords * OfferReplicationLog.RECORD_LONGS];
+		while (following) {
+			try {
+				if (replica.getEpoch() == OfferReplica.NO_EPOCH)
+					loadSnapshot();
+				else
+					applyLog(records);
+			} catch (HttpClientErrorException e) {
+				if (e.getStatusCode() == HttpStatus.GONE) {
+					logger.info("offer replication log no longer holds sequence " + replica.getAppliedSequence() + " - reloading");
+					replica.reset();
+				} else if (!retryAfter(e)) {
+					break;
+				}
+			} catch (RestClientException | IOException e) {
+				if (!retryAfter(e))
+					break;
+			}
+		}
+	}
+
+	/**
+	 * @return	False if following has stopped.
+	 */
+	protected boolean retryAfter(Exception e) {
+		if (!following)
+			return false;
+		logger.log(Level.WARNING, "offer replication from " + primaryUrl + " failed - retrying", e);
+		try {
+			Thread.sleep(pollMillis);
+			return true;
+		} catch (InterruptedException interrupted) {
+			return false;
+		}
+	}
+
+	protected void loadSnapshot() throws IOException {
+		long started = System.currentTimeMillis();
+		Path file = Files.createTempFile("offers-replica-", ".snapshot");
+		try {
+			long epoch = restTemplate.execute(primaryUrl + "/products/offers/replication/snapshot", HttpMethod.GET, null, response -> {
+				InputStream body = response.getBody();
+				long primaryEpoch = new DataInputStream(body).readLong();
+				Files.copy(body, file, StandardCopyOption.REPLACE_EXISTING);
+				return primaryEpoch;
+			});
+			synchronized (applyLock) {
+				if (!following)
+					return;
+				replica.load(file, epoch);
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+		logger.info("offer replica loaded from " + primaryUrl + " at sequence " + replica.getAppliedSequence() 
+				+ " in " + (System.currentTimeMillis() - started) + "ms");
+	}
+
+	protected void applyLog(long[] records) {
+		byte[] batch = restTemplate.getForObject(primaryUrl 
+				+ "/products/offers/replication/log?epoch={epoch}&afterSequence={after}&maxRecords={max}&waitMillis={wait}",
+				byte[].class, replica.getEpoch(), replica.getAppliedSequence(), batchRecords, pollMillis);
+		if (batch == null || batch.length == 0)
+			return;
+		int count = batch.length / (OfferReplicationLog.RECORD_LONGS * 8);
+		ByteBuffer.wrap(batch).asLongBuffer().get(records, 0, count * OfferReplicationLog.RECORD_LONGS);
+		synchronized (applyLock) {
+			if (following)
+				replica.apply(records, count);
+		}
+	}
+
+	/**
+	 * Remembers the connection it last opened, so {@link #promote} can close it under a blocked read.
+	 */
+	static class FollowerRequestFactory extends SimpleClientHttpRequestFactory {
+
+		protected volatile HttpURLConnection connection;
+
+		@Override
+		protected void prepareConnection(HttpURLConnection connection, String httpMethod) throws IOException {
+			super.prepareConnection(connection, httpMethod);
+			this.connection = connection;
+		}
+
+		void disconnect() {
+			HttpURLConnection connection = this.connection;
+			if (connection != null)
+				connection.disconnect();
+		}
+	}
+}
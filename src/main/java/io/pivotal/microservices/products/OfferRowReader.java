@@ -0,0 +1,55 @@
+package io.pivotal.microservices.products;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * reo - Incremental reader of (product, offer, price) rows from a bulk offer upload.
+ * Rows are read one at a time into the reader's fields, so the body is never buffered whole.
+ *
+ * @author Roberto Olivares
+ */
+abstract class OfferRowReader implements Closeable {
+
+	// The current row
+	protected String productNumber;
+	protected long offerId;
+	protected long priceCents;
+	protected long ttlMillis = ProductOfferManager.NO_TTL;		// If the row gives none
+
+	// Query rows are (product, price) - with no offer id, and prices rounded down as the offer queries round them
+	protected boolean withOfferIds = true;
+	protected RoundingMode priceRounding = RoundingMode.HALF_EVEN;
+
+	/**
+	 * Reads (product, price) rows from here on, for price queries.
+	 *
+	 * @return	This reader.
+	 */
+	public OfferRowReader forPriceQueries() {
+		withOfferIds = false;
+		priceRounding = RoundingMode.FLOOR;
+		return this;
+	}
+
+	/**
+	 * Reads the next row into productNumber, offerId, priceCents and ttlMillis.
+	 *
+	 * @return	True if a row was read, false at the end of the input.
+	 * @throws IllegalArgumentException		If the row is malformed. The reader has skipped it, so reading may continue.
+	 * @throws IOException					If the input itself is broken. Reading may not continue.
+	 */
+	public abstract boolean next() throws IOException;
+
+	/**
+	 * @param price		A price in dollars.
+	 * @return			The price in whole cents, rounded half-even like Product prices (down, for price queries).
+	 */
+	protected long toCents(BigDecimal price) {
+		return price.setScale(2, priceRounding).unscaledValue().longValueExact();
+	}
+}
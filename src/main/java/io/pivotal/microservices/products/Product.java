@@ -7,6 +7,7 @@ import java.util.TreeMap;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.Id;
 import javax.persistence.Table;
 
@@ -20,6 +21,7 @@ import com.microservicedemo.commerce.abstractions.ids.PRICE;
  */
 @Entity
 @Table(name = "T_PRODUCT")
+@EntityListeners({ ProductSearchIndex.Listener.class, ProductCompletions.Listener.class })
 public class Product implements Serializable {
 
 	private static final long serialVersionUID = 1L;
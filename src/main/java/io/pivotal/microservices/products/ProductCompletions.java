@@ -0,0 +1,184 @@
+package io.pivotal.microservices.products;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import com.microservicedemo.commerce.search.CompletionTrie;
+import com.microservicedemo.commerce.search.IndexLoader;
+
+/**
+ * reo - Type-ahead completions of product names and manufacturers, from an immutable {@link CompletionTrie}.
+ *
+ * A completion's popularity is the number of products with that name (or manufacturer), plus the number of
+ * times those products have been looked up by number. The products are loaded from the repository at startup
+ * by an {@link IndexLoader}, and kept current by a JPA entity {@link Listener}; a background thread rebuilds
+ * the trie at most every products.completion.rebuild-millis once the catalog or the lookups have changed, and
+ * swaps it in whole - so completions never wait on a rebuild, and never see half of one.
+ *
+ * @author Roberto Olivares
+ */
+@Component
+public class ProductCompletions implements IndexLoader.Indexed<Product> {
+
+	// Keeps the completions current for the JPA listener - JPA, not Spring, creates listeners
+	static final IndexLoader<Product> LOADER = new IndexLoader<>();
+
+	protected Logger logger = Logger.getLogger(ProductCompletions.class.getName());
+
+	@Autowired
+	protected ProductRepository productRepository;
+
+	@Value("${products.completion.rebuild-millis:5000}")
+	protected long rebuildMillis;
+
+	// By product id
+	protected final ConcurrentHashMap<Long, Completable> products = new ConcurrentHashMap<>();
+	protected final AtomicBoolean changed = new AtomicBoolean();
+
+	protected volatile CompletionTrie trie = CompletionTrie.EMPTY;
+	protected volatile long buildMillis;
+	protected ScheduledExecutorService rebuilder;
+
+	/**
+	 * What a product adds to the completions.
+	 */
+	static final class Completable {
+		final String name;
+		final String manufacturer;
+		final AtomicInteger lookups;
+
+		Completable(String name, String manufacturer, AtomicInteger lookups) {
+			this.name = name;
+			this.manufacturer = manufacturer;
+			this.lookups = lookups;
+		}
+	}
+
+	/**
+	 * Loads every product, builds the first trie and starts rebuilding.
+	 */
+	@PostConstruct
+	public void load() {
+		LOADER.load(this, (after, size) -> productRepository.findByIdGreaterThanOrderByIdAsc(after, new PageRequest(0, size)),
+				Product::getId);
+		changed.set(false);
+		rebuild();
+
+		rebuilder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "product-completions");
+			thread.setDaemon(true);
+			return thread;
+		});
+		rebuilder.scheduleWithFixedDelay(() -> {
+			try {
+				if (changed.getAndSet(false))
+					rebuild();
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "product completions rebuild failed", e);
+			}
+		}, rebuildMillis, rebuildMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (rebuilder != null)
+			rebuilder.shutdownNow();
+	}
+
+	/**
+	 * @param prefix	The start of a product name or manufacturer, or of one of their words, in any case.
+	 * @param limit		The most completions to return.
+	 * @return			The most popular names and manufacturers with the prefix, most popular first.
+	 * @performance		A few microseconds, from the current trie - however many products there are.
+	 */
+	public List<String> complete(String prefix, int limit) {
+		return trie.complete(prefix, limit);
+	}
+
+	/**
+	 * Counts a lookup of the product, towards the popularity of its name and manufacturer.
+	 */
+	public void lookedUp(Product product) {
+		Completable completable = products.get(product.getId());
+		if (completable != null) {
+			completable.lookups.incrementAndGet();
+			changed.set(true);
+		}
+	}
+
+	public CompletionTrie getTrie() {
+		return trie;
+	}
+
+	public long getBuildMillis() {
+		return buildMillis;
+	}
+
+	/**
+	 * Builds a trie of the products as they are now, and swaps it in.
+	 */
+	void rebuild() {
+		long started = System.currentTimeMillis();
+		CompletionTrie.Builder builder = new CompletionTrie.Builder();
+		for (Completable completable : products.values()) {
+			int popularity = 1 + completable.lookups.get();
+			builder.add(completable.name, popularity);
+			builder.add(completable.manufacturer, popularity);
+		}
+		CompletionTrie built = builder.build();
+		trie = built;
+		buildMillis = System.currentTimeMillis() - started;
+
+		logger.info("product completions: " + built.size() + " completions, " + built.getNodes() + " nodes in "
+				+ buildMillis + "ms");
+	}
+
+	@Override
+	public void put(Product product) {
+		// An updated product keeps its lookups
+		products.compute(product.getId(), (id, old) -> new Completable(product.getName(), product.getManufacturer(),
+				old == null ? new AtomicInteger() : old.lookups));
+		changed.set(true);
+	}
+
+	@Override
+	public void remove(Product product) {
+		if (products.remove(product.getId()) != null)
+			changed.set(true);
+	}
+
+	/**
+	 * reo - Marks the completions changed as JPA writes products.
+	 */
+	public static class Listener {
+
+		@PostPersist
+		@PostUpdate
+		void changed(Product product) {
+			LOADER.changed(product);
+		}
+
+		@PostRemove
+		void removed(Product product) {
+			LOADER.removed(product);
+		}
+	}
+}
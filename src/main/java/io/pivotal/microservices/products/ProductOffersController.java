@@ -0,0 +1,650 @@
+package io.pivotal.microservices.products;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.exceptions.InvalidProductIdException;
+import com.microservicedemo.commerce.products.offers.OfferBook;
+import com.microservicedemo.commerce.products.offers.OfferTiering;
+import com.microservicedemo.commerce.products.offers.OfferWatchIndex;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * reo - A RESTful controller for the offers of products, held by the {@link ProductOfferManager} - adding and 
+ * removing them, one at a time or in bulk, querying them by price, page and rank, standing price watches on 
+ * them, and matching buy orders against them.
+ * 
+ * @author Roberto Olivares
+ */
+@RestController
+public class ProductOffersController {
+
+	// Largest page of offers returned by the range and top-K queries
+	public static final int MAX_OFFER_PAGE = 1000;
+
+	protected Logger logger = Logger.getLogger(ProductOffersController.class.getName());
+
+	@Autowired
+	protected ProductRepository productRepository;
+
+	@Autowired
+	protected ProductOfferManager offerManager;
+
+	@Autowired(required = false)
+	protected OfferPartitioner offerPartitioner;
+
+	// The longest time to live an offer may be added with
+	@Value("${offers.expiry.max-ttl-seconds:2592000}")
+	protected long maxTtlSeconds;
+
+	/** REST API for addProductOffer functionality.
+	 * 
+	 * @see http://www.baeldung.com/spring-requestmapping
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param offerIdString		An offer ID string
+	 * @param priceString		The price to try to find the next cheapest offer for.
+	 * @param ttlSeconds		Optional time to live - the offer is removed once it has passed. From 1 to 
+	 * 							offers.expiry.max-ttl-seconds.
+	 * 
+	 * @return JSON response with transaction info - or 400 if ttlSeconds is out of range.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(
+			  value = "/products/{productIdString}/offers/add", 
+			  params = { "offerIdString", "priceString" }
+			  ) 
+	//@ResponseBody	
+	public ResponseEntity<String> addProductOffer(
+			@PathVariable("productIdString") String productIdString,
+			@RequestParam("offerIdString") String offerIdString,
+			@RequestParam("priceString") String priceString,
+			@RequestParam(value = "ttlSeconds", required = false) Long ttlSeconds
+	) throws InvalidProductIdException {
+		if (ttlSeconds != null && (ttlSeconds < 1 || ttlSeconds > maxTtlSeconds))
+			return new ResponseEntity<>("ttlSeconds must be from 1 to " + maxTtlSeconds, HttpStatus.BAD_REQUEST);
+
+		/*
+		logger.info("products-service bySearchText() invoked: "
+				+ productRepository.getClass().getName() + " for "
+				+ searchText);
+		 */
+		
+		// Attempt to locate the product
+		Product product = productRepository.findByNumber(productIdString);
+		if (product == null)
+			return new ResponseEntity<>("ProductID not found: " + productIdString, HttpStatus.OK);
+		
+		// Generate the required synonyms 
+		PRICE price = PRICE.valueOf(priceString);
+		PRODUCTID productId = PRODUCTID.valueOf(productIdString);
+		OFFERID offerId = OFFERID.valueOf(offerIdString);
+
+		// If a product exists, but not a productoffers list for it, create it now (atomically - requests race here)
+		offerManager.getOrAddProduct(productId);
+		
+		// Add offer to this product id in the offermanager, expiring it if it has a time to live
+		if (ttlSeconds == null)
+			offerManager.addOffer(offerId, productId, price);
+		else
+			offerManager.addOffer(offerId, productId, price, TimeUnit.SECONDS.toMillis(ttlSeconds));
+
+		// Return a description of the transaction
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("OfferId", 	"" + priceString);
+		result.put("Price", 	"" + offerId);
+		result.put("ProductId", "" + productIdString);
+		result.put("Product", 	"" + product);
+		if (ttlSeconds != null)
+			result.put("TtlSeconds", "" + ttlSeconds);
+		
+		// Convert response to JSON
+		String jsonResult = ProductsController.toJson(result);
+		return new ResponseEntity<>(jsonResult, HttpStatus.OK);
+	}
+
+	/** REST API for removing an offer before it sells or expires.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param offerIdString		The offer ID to remove
+	 * @param priceString		The price the offer was added at
+	 * 
+	 * @return JSON response with whether the offer was found and removed.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(
+			  value = "/products/{productIdString}/offers/remove", 
+			  params = { "offerIdString", "priceString" }
+			  ) 
+	public String removeProductOffer(
+			@PathVariable("productIdString") String productIdString,
+			@RequestParam("offerIdString") String offerIdString,
+			@RequestParam("priceString") String priceString
+	) throws InvalidProductIdException {
+		// Only products with an offer book can have offers to remove
+		PRODUCTID productId = PRODUCTID.valueOf(productIdString);
+		if (offerManager.getProductOffersById(productId) == null)
+			return "ProductID not found: " + productIdString;
+		
+		boolean removed = offerManager.removeOffer(OFFERID.valueOf(offerIdString), productId, PRICE.valueOf(priceString));
+
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("OfferId", 	"" + offerIdString);
+		result.put("Price", 	"" + priceString);
+		result.put("ProductId", "" + productIdString);
+		result.put("Removed", 	"" + removed);
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for bulk offer loading - a CSV body of <code>productId,offerId,price</code> lines.
+	 * 
+	 * The body is streamed, never buffered whole: rows are parsed incrementally, their product ids 
+	 * checked in batches, and their offers added to the offer books a product group at a time.
+	 * 
+	 * @param body			The request body.
+	 * @param forwardedBy	Set when another products-service instance forwarded the rows.
+	 * 
+	 * @return JSON summary of the load.
+	 * @throws IOException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/offers/bulk", method = RequestMethod.POST, consumes = "text/csv")
+	public String addProductOffersCsv(InputStream body,
+			@RequestHeader(value = OfferPartitioner.FORWARDED_HEADER, required = false) String forwardedBy
+	) throws IOException {
+		try (OfferRowReader reader = new CsvOfferRowReader(body)) {
+			return ProductsController.toJson(bulkOfferLoader(forwardedBy).load(reader));
+		}
+	}
+
+	/** REST API for bulk offer loading - a newline delimited JSON body of 
+	 * <code>{"productId": "123456020", "offerId": 1, "price": 100.00}</code> rows.
+	 * 
+	 * @see #addProductOffersCsv(InputStream, String)
+	 * 
+	 * @param body			The request body.
+	 * @param forwardedBy	Set when another products-service instance forwarded the rows.
+	 * 
+	 * @return JSON summary of the load.
+	 * @throws IOException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/offers/bulk", method = RequestMethod.POST, consumes = { "application/x-ndjson", "application/json" })
+	public String addProductOffersJson(InputStream body,
+			@RequestHeader(value = OfferPartitioner.FORWARDED_HEADER, required = false) String forwardedBy
+	) throws IOException {
+		try (OfferRowReader reader = new JsonOfferRowReader(body)) {
+			return ProductsController.toJson(bulkOfferLoader(forwardedBy).load(reader));
+		}
+	}
+
+	/**
+	 * Rows forwarded by another instance are all for this one - only route rows straight from a client.
+	 */
+	private BulkOfferLoader bulkOfferLoader(String forwardedBy) {
+		return new BulkOfferLoader(productRepository, offerManager, forwardedBy == null ? offerPartitioner : null);
+	}
+
+	/** REST API for batch nextCheapestOfferByPrice queries - a CSV body of <code>productId,price</code> lines.
+	 * 
+	 * The answers are newline delimited JSON, one line per row in the rows' order - 
+	 * <code>{"productId":"123456020","price":100.00,"nextCheapestOfferId":1}</code> (null if none), or the 
+	 * row with an <code>"error"</code> instead. They are streamed back a batch at a time while the body is read;
+	 * each batch checks its products in bulk and queries the books in parallel.
+	 * 
+	 * @param body			The request body.
+	 * @param forwardedBy	Set when another products-service instance forwarded the rows.
+	 * @param response		Where the answers are streamed.
+	 * 
+	 * @throws IOException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/offers/nextCheapestByPrice/batch", method = RequestMethod.POST, consumes = "text/csv")
+	public void nextCheapestOffersByPriceCsv(InputStream body,
+			@RequestHeader(value = OfferPartitioner.FORWARDED_HEADER, required = false) String forwardedBy,
+			HttpServletResponse response
+	) throws IOException {
+		try (OfferRowReader reader = new CsvOfferRowReader(body).forPriceQueries()) {
+			response.setContentType("application/x-ndjson");
+			batchOfferQuery(forwardedBy).query(reader, response.getOutputStream());
+		}
+	}
+
+	/** REST API for batch nextCheapestOfferByPrice queries - a newline delimited JSON body of 
+	 * <code>{"productId": "123456020", "price": 100.00}</code> rows.
+	 * 
+	 * @see #nextCheapestOffersByPriceCsv(InputStream, String, HttpServletResponse)
+	 * 
+	 * @param body			The request body.
+	 * @param forwardedBy	Set when another products-service instance forwarded the rows.
+	 * @param response		Where the answers are streamed.
+	 * 
+	 * @throws IOException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/offers/nextCheapestByPrice/batch", method = RequestMethod.POST, consumes = { "application/x-ndjson", "application/json" })
+	public void nextCheapestOffersByPriceJson(InputStream body,
+			@RequestHeader(value = OfferPartitioner.FORWARDED_HEADER, required = false) String forwardedBy,
+			HttpServletResponse response
+	) throws IOException {
+		try (OfferRowReader reader = new JsonOfferRowReader(body).forPriceQueries()) {
+			response.setContentType("application/x-ndjson");
+			batchOfferQuery(forwardedBy).query(reader, response.getOutputStream());
+		}
+	}
+
+	private BatchOfferQuery batchOfferQuery(String forwardedBy) {
+		return new BatchOfferQuery(productRepository, offerManager, forwardedBy == null ? offerPartitioner : null);
+	}
+
+	/** REST API for nextCheapestOfferByPrice functionality.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param priceString		The price to try to find the next cheapest offer for.
+	 * 
+	 * @return JSON response including the next cheapest offer's ID (or null if none).
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/{productIdString}/offers/nextCheapestByPrice/{priceString}")
+	public String nextCheapestOfferByPrice(
+			@PathVariable("productIdString") String productIdString,
+			@PathVariable("priceString") String priceString
+	) throws InvalidProductIdException {
+		/*
+		logger.info("products-service bySearchText() invoked: "
+				+ productRepository.getClass().getName() + " for "
+				+ searchText);
+		 */
+		
+		// Attempt to locate the product
+		Product product = productRepository.findByNumber(productIdString);
+		if (product == null)
+			return "ProductID not found: " + productIdString;
+		
+		// Generate the required key synonyms
+		PRICE price = PRICE.valueOf(priceString);
+		PRODUCTID productId = PRODUCTID.valueOf(productIdString);
+		
+		// Add offer to this product id in the offermanager 
+		OFFERID offerId = offerManager.queryClosestOfferIdByPrice(productId, price);
+
+		// Return a description of the transaction
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("NextCheapestOfferID", 	"" + offerId);
+		result.put("TargetPrice", 			"" + priceString);
+		result.put("ProductID", 			"" + productIdString);
+		result.put("Product", 				"" + product);
+		
+		// Convert response to JSON
+		String jsonResult = ProductsController.toJson(result);
+		return jsonResult;
+	}
+
+	/** REST API for nextAboveByPrice functionality - the nearest offer at or above a price.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param priceString		The price to find the next dearer offer for.
+	 * 
+	 * @return JSON response including the next dearer offer's ID (or null if none).
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/{productIdString}/offers/nextAboveByPrice/{priceString}")
+	public String nextAboveOfferByPrice(
+			@PathVariable("productIdString") String productIdString,
+			@PathVariable("priceString") String priceString
+	) throws InvalidProductIdException {
+		// Attempt to locate the product
+		Product product = productRepository.findByNumber(productIdString);
+		if (product == null)
+			return "ProductID not found: " + productIdString;
+
+		PRICE price = PRICE.valueOf(priceString);
+		PRODUCTID productId = PRODUCTID.valueOf(productIdString);
+		OFFERID offerId = offerManager.getProductOffersById(productId) == null ? null
+				: offerManager.queryClosestOfferIdAbovePrice(productId, price);
+
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("NextAboveOfferID", 	"" + offerId);
+		result.put("TargetPrice", 		"" + priceString);
+		result.put("ProductID", 		"" + productIdString);
+		result.put("Product", 			"" + product);
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for the K cheapest offers of a product, a page at a time.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param offset			The number of offers to skip (for the following pages).
+	 * @param limit				The page size (K), at most MAX_OFFER_PAGE.
+	 * 
+	 * @return JSON response with the page of offers, cheapest (then oldest) first.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/{productIdString}/offers/cheapest")
+	public String cheapestOffers(
+			@PathVariable("productIdString") String productIdString,
+			@RequestParam(value = "offset", defaultValue = "0") long offset,
+			@RequestParam(value = "limit", defaultValue = "10") int limit
+	) throws InvalidProductIdException {
+		return offerPage(productIdString, null, null, offset, limit);
+	}
+
+	/** REST API for the offers of a product between two prices (inclusive), a page at a time.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param minPriceString	The lowest price wanted, or absent for no lower bound.
+	 * @param maxPriceString	The highest price wanted, or absent for no upper bound.
+	 * @param offset			The number of offers to skip (for the following pages).
+	 * @param limit				The page size, at most MAX_OFFER_PAGE.
+	 * 
+	 * @return JSON response with the page of offers, cheapest (then oldest) first.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/{productIdString}/offers/byPriceRange")
+	public String offersByPriceRange(
+			@PathVariable("productIdString") String productIdString,
+			@RequestParam(value = "minPrice", required = false) String minPriceString,
+			@RequestParam(value = "maxPrice", required = false) String maxPriceString,
+			@RequestParam(value = "offset", defaultValue = "0") long offset,
+			@RequestParam(value = "limit", defaultValue = "100") int limit
+	) throws InvalidProductIdException {
+		PRICE minPrice = minPriceString == null ? null : PRICE.valueOf(minPriceString);
+		PRICE maxPrice = maxPriceString == null ? null : PRICE.valueOf(maxPriceString);
+		return offerPage(productIdString, minPrice, maxPrice, offset, limit);
+	}
+
+	/**
+	 * Builds one page of a product's offers, visiting the book in place rather than copying it.
+	 */
+	private String offerPage(String productIdString, PRICE minPrice, PRICE maxPrice, long offset, int limit) throws InvalidProductIdException {
+		Product product = productRepository.findByNumber(productIdString);
+		if (product == null)
+			return "ProductID not found: " + productIdString;
+
+		PRODUCTID productId = PRODUCTID.valueOf(productIdString);
+		int pageSize = Math.max(0, Math.min(limit, MAX_OFFER_PAGE));
+		long skip = Math.max(0, offset);
+
+		List<Map<String, String>> offers = new ArrayList<>(Math.min(pageSize, 64));
+		if (offerManager.getProductOffersById(productId) != null) {
+			offerManager.visitOffersByPrice(productId, minPrice, maxPrice, skip, pageSize, (priceCents, offerId) -> {
+				LinkedHashMap<String, String> offer = new LinkedHashMap<>();
+				offer.put("OfferId", 	"" + offerId);
+				offer.put("Price", 		BigDecimal.valueOf(priceCents, 2).toPlainString());
+				return offers.add(offer);
+			});
+		}
+
+		LinkedHashMap<String, Object> result = new LinkedHashMap<>();
+		result.put("ProductID", 	productIdString);
+		result.put("MinPrice", 		"" + minPrice);
+		result.put("MaxPrice", 		"" + maxPrice);
+		result.put("Offset", 		"" + skip);
+		result.put("Limit", 		"" + pageSize);
+		result.put("NextOffset", 	offers.size() == pageSize && pageSize > 0 ? "" + (skip + pageSize) : "null");
+		result.put("Offers", 		offers);
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for where a price ranks among a product's offers - O(log n) with RANKED offer books.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param priceString		The price to rank.
+	 * 
+	 * @return JSON response with the number of offers below and at the price, and its percentile rank 
+	 * 			(offers at the price counting as half below; null if there are no offers).
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/{productIdString}/offers/priceRank/{priceString}")
+	public String offerPriceRank(
+			@PathVariable("productIdString") String productIdString,
+			@PathVariable("priceString") String priceString
+	) throws InvalidProductIdException {
+		Product product = productRepository.findByNumber(productIdString);
+		if (product == null)
+			return "ProductID not found: " + productIdString;
+
+		PRICE price = PRICE.valueOf(priceString);
+		PRODUCTID productId = PRODUCTID.valueOf(productIdString);
+		OfferBook book = offerManager.getProductOffersById(productId);
+		int size = book == null ? 0 : book.size();
+		int below = book == null ? 0 : offerManager.countOffersBelowPrice(productId, price);
+		int at = book == null ? 0 : offerManager.countOffersAtPrice(productId, price);
+
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("ProductID", 	productIdString);
+		result.put("Price", 		priceString);
+		result.put("OffersBelow", 	"" + below);
+		result.put("OffersAt", 		"" + at);
+		result.put("Offers", 		"" + size);
+		result.put("Percentile", 	size == 0 ? "null" : "" + ProductOfferManager.percentileRank(below, at, size));
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for the offer holding a rank among a product's offers - 0 for the cheapest (then oldest).
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param rank				The rank wanted.
+	 * 
+	 * @return JSON response with the offer's ID and price (null if no offer has that rank).
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/{productIdString}/offers/atRank/{rank}")
+	public String offerAtRank(
+			@PathVariable("productIdString") String productIdString,
+			@PathVariable("rank") long rank
+	) throws InvalidProductIdException {
+		Product product = productRepository.findByNumber(productIdString);
+		if (product == null)
+			return "ProductID not found: " + productIdString;
+
+		PRODUCTID productId = PRODUCTID.valueOf(productIdString);
+		String[] offer = { "null", "null" };
+		if (offerManager.getProductOffersById(productId) != null) {
+			offerManager.visitOfferAtRank(productId, rank, (priceCents, offerId) -> {
+				offer[0] = "" + offerId;
+				offer[1] = BigDecimal.valueOf(priceCents, 2).toPlainString();
+				return true;
+			});
+		}
+
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("ProductID", 	productIdString);
+		result.put("Rank", 			"" + rank);
+		result.put("OfferId", 		offer[0]);
+		result.put("Price", 		offer[1]);
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for the median offer price of a product.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * 
+	 * @return JSON response with the median price (the mean of the two middle prices for an even number 
+	 * 			of offers; null if there are none).
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/{productIdString}/offers/median")
+	public String medianOfferPrice(
+			@PathVariable("productIdString") String productIdString
+	) throws InvalidProductIdException {
+		Product product = productRepository.findByNumber(productIdString);
+		if (product == null)
+			return "ProductID not found: " + productIdString;
+
+		PRODUCTID productId = PRODUCTID.valueOf(productIdString);
+		OfferBook book = offerManager.getProductOffersById(productId);
+		BigDecimal median = book == null ? null : offerManager.queryMedianOfferPrice(productId);
+
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("ProductID", 	productIdString);
+		result.put("Offers", 		"" + (book == null ? 0 : book.size()));
+		result.put("MedianPrice", 	median == null ? "null" : median.toPlainString());
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for how many offer books are in memory, and how many evicted to disk.
+	 * 
+	 * @return JSON response with the hot and evicted products, the offers in memory, the cold segments' size, 
+	 * 			and the books evicted and loaded back so far.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/offers/tiering/stats")
+	public String offerTieringStats() {
+		OfferTiering tiering = offerManager.getTiering();
+		if (tiering == null)
+			return "Offer tiering is not enabled";
+
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("HotProducts", 		"" + tiering.getHotProducts());
+		result.put("HotOffers", 		"" + tiering.getHotOffers());
+		result.put("EvictedProducts", 	"" + tiering.getEvictedProducts());
+		result.put("DiskBytes", 		"" + tiering.getDiskBytes());
+		result.put("LiveDiskBytes", 	"" + tiering.getLiveDiskBytes());
+		result.put("Evictions", 		"" + tiering.getEvictions());
+		result.put("Loads", 			"" + tiering.getLoads());
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for registering a price watch - a notification when an offer at or below maxPriceString is added.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param maxPriceString	The watch's target price.
+	 * @param watcherId			Who is watching - their matches are read from <code>/products/offers/watches/feed?watcherId=</code>.
+	 * @param oneShot			Whether the watch ends with its first match (the default) or stands.
+	 * 
+	 * @return JSON response with the watch's id, and the cheapest offer already at or below the price, if any.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/{productIdString}/offers/watches/add", params = { "maxPriceString", "watcherId" })
+	public String addOfferWatch(
+			@PathVariable("productIdString") String productIdString,
+			@RequestParam("maxPriceString") String maxPriceString,
+			@RequestParam("watcherId") long watcherId,
+			@RequestParam(value = "oneShot", defaultValue = "true") boolean oneShot
+	) throws InvalidProductIdException {
+		OfferWatchIndex watchIndex = offerManager.getWatchIndex();
+		if (watchIndex == null)
+			return "Offer watches are not enabled";
+		Product product = productRepository.findByNumber(productIdString);
+		if (product == null)
+			return "ProductID not found: " + productIdString;
+
+		PRODUCTID productId = PRODUCTID.valueOf(productIdString);
+		PRICE maxPrice = PRICE.valueOf(maxPriceString);
+		long watchId = watchIndex.addWatch(productId.longValueExact(), watcherId, ProductOfferManager.toCents(maxPrice), oneShot);
+
+		// Registered first, so an offer added meanwhile is matched by one or the other (or both)
+		offerManager.getOrAddProduct(productId);
+		OFFERID current = offerManager.queryClosestOfferIdByPrice(productId, maxPrice);
+
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("WatchId", 			"" + watchId);
+		result.put("ProductId", 		"" + productIdString);
+		result.put("MaxPrice", 			"" + maxPriceString);
+		result.put("OneShot", 			"" + oneShot);
+		result.put("CurrentOfferId", 	"" + current);
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for cancelling a price watch.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param watchId			The watch's id.
+	 * @param maxPriceString	The price the watch was added with.
+	 * 
+	 * @return JSON response with whether the watch was found and removed.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/{productIdString}/offers/watches/remove", params = { "watchId", "maxPriceString" })
+	public String removeOfferWatch(
+			@PathVariable("productIdString") String productIdString,
+			@RequestParam("watchId") long watchId,
+			@RequestParam("maxPriceString") String maxPriceString
+	) {
+		OfferWatchIndex watchIndex = offerManager.getWatchIndex();
+		boolean removed = watchIndex != null 
+				&& watchIndex.removeWatch(PRODUCTID.valueOf(productIdString).longValueExact(), watchId, ProductOfferManager.toCents(PRICE.valueOf(maxPriceString)));
+
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		result.put("WatchId", 	"" + watchId);
+		result.put("ProductId", "" + productIdString);
+		result.put("Removed", 	"" + removed);
+		return ProductsController.toJson(result);
+	}
+
+	/** REST API for matching a buy order - takes up to quantity of the cheapest offers priced at or below 
+	 * maxPriceString, atomically, so no offer is ever handed to two buyers. Fewer qualifying offers fill the 
+	 * order partially; the rest of it lapses.
+	 * 
+	 * @param productIdString	A valid product ID string
+	 * @param maxPriceString	The most the buyer will pay for each offer.
+	 * @param quantity			The number of offers wanted, at most MAX_OFFER_PAGE.
+	 * 
+	 * @return JSON response with the order's id and the offers it took, cheapest first.
+	 * @throws InvalidProductIdException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/{productIdString}/offers/match", params = "maxPriceString")
+	public String matchOffers(
+			@PathVariable("productIdString") String productIdString,
+			@RequestParam("maxPriceString") String maxPriceString,
+			@RequestParam(value = "quantity", defaultValue = "1") int quantity
+	) throws InvalidProductIdException {
+		Product product = productRepository.findByNumber(productIdString);
+		if (product == null)
+			return "ProductID not found: " + productIdString;
+
+		PRODUCTID productId = PRODUCTID.valueOf(productIdString);
+		List<Map<String, String>> fills = new ArrayList<>(Math.max(0, Math.min(quantity, 64)));
+		offerManager.getOrAddProduct(productId);
+		long orderId = offerManager.matchOffers(productId, PRICE.valueOf(maxPriceString), Math.min(quantity, MAX_OFFER_PAGE), (priceCents, offerId) -> {
+			LinkedHashMap<String, String> fill = new LinkedHashMap<>();
+			fill.put("OfferId", 	"" + offerId);
+			fill.put("Price", 		BigDecimal.valueOf(priceCents, 2).toPlainString());
+			return fills.add(fill);
+		});
+
+		LinkedHashMap<String, Object> result = new LinkedHashMap<>();
+		result.put("OrderId", 		"" + orderId);
+		result.put("ProductID", 	productIdString);
+		result.put("MaxPrice", 		maxPriceString);
+		result.put("Quantity", 		"" + quantity);
+		result.put("Filled", 		"" + fills.size());
+		result.put("Fills", 		fills);
+		return ProductsController.toJson(result);
+	}
+}
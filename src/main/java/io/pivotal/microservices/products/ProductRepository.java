@@ -1,10 +1,11 @@
 package io.pivotal.microservices.products;
 
+import java.util.Collection;
 import java.util.List;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.Repository;
-import org.springframework.data.repository.query.Param;
 
 /**
  * reo - Repository for Product data implemented using Spring Data JPA.
@@ -21,6 +22,17 @@ public interface ProductRepository extends Repository<Product, Long> {
 	 */
 	public Product findByNumber(String ProductNumber);
 
+	/**
+	 * Find the Products with any of the specified Product numbers - one query for a whole batch.
+	 * 
+	 * @author Roberto Olivares (reo)
+	 * 
+	 * @param productNumbers
+	 * 
+	 * @return The Products found - always non-null, but may be empty.
+	 */
+	public List<Product> findByNumberIn(Collection<String> productNumbers);
+
 	/**
 	 * Find Products whose name contains the specified string
 	 * 
@@ -31,29 +43,18 @@ public interface ProductRepository extends Repository<Product, Long> {
 	public List<Product> findByNameContainingIgnoreCase(String partialName);
 
 	/**
-	 * Find Products whose details contain the specified string anywhere (in name, manufacturer, description, etc.)
+	 * Find the Products after the specified id, in id order - a page at a time, for walking the whole catalog.
+	 * Keyword search is done in memory, by the {@link ProductSearchIndex} this feeds.
 	 * 
 	 * @author Roberto Olivares (reo)
 	 * 
-	 * @param searchText	Any alphabetic string.
-	 * 
-	 * Failed to create query method public abstract 
-	 * 	java.util.List io.pivotal.microservices.products.ProductRepository
-	 * 		.findBySearchTextIgnoreCase(java.lang.String)! 
-	 * 
-	 * No property searchText found for type Product!
+	 * @param id	The last id of the previous page (or Long.MIN_VALUE).
+	 * @param page	The page size (page number 0).
 	 * 
-	 * @return The list of matching Products - always non-null, but may be empty.
+	 * @return The next Products - always non-null, but empty once past the last.
 	 */
-//	@Query("")
-//	@Query("SELECT p FROM Product")
-	//@Query("SELECT p FROM Product WHERE CONTAINS(p.MANUFACTURER, :#{#searchText}) OR CONTAINS(p.NAME, :#{#searchText})")
-	//@Query("select u from User u where u.firstname = :#{#customer.firstname}")
-	//@Query("select u from User u where u.age = ?#{[0]}")
-	// https://spring.io/blog/2014/07/15/spel-support-in-spring-data-jpa-query-definitions
-//	public List<Product> findBySearchTextIgnoreCase(@Param("searchText") String searchText);
-	// TODO 	REO - IMPLEMENT KEYWORD SEARCH ACROSS ENTIRE PRODCUT DESCRIPTION
-	
+	public List<Product> findByIdGreaterThanOrderByIdAsc(Long id, Pageable page);
+
 	/**
 	 * Fetch the number of Products known to the system.
 	 * 
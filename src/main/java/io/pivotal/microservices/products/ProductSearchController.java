@@ -0,0 +1,224 @@
+package io.pivotal.microservices.products;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+import com.microservicedemo.commerce.search.CompletionTrie;
+import com.microservicedemo.commerce.search.TextIndex;
+import com.microservicedemo.commerce.search.TrigramIndex;
+
+import io.pivotal.microservices.exceptions.ProductNotFoundException;
+
+/**
+ * reo - A RESTful controller for searching products beyond {@link ProductsController}'s lookups - keyset pages and 
+ * streams of name matches, faceted and keyword search, and type-ahead completions, all answered from memory by
+ * the {@link ProductSearchIndex} and {@link ProductCompletions}.
+ * 
+ * @author Roberto Olivares
+ */
+@RestController
+public class ProductSearchController {
+
+	// Most products returned by a keyword search, or in a page of a name search
+	public static final int MAX_SEARCH_RESULTS = 1000;
+
+	// Most completions returned by a type-ahead query
+	public static final int MAX_COMPLETIONS = 100;
+
+	protected Logger logger = Logger.getLogger(ProductSearchController.class.getName());
+
+	@Autowired
+	protected ProductSearchIndex productSearchIndex;
+
+	@Value("${products.search.page-size:100}")
+	protected int searchPageSize;
+
+	@Autowired
+	protected ProductCompletions productCompletions;
+
+	/**
+	 * Fetch a page of the products with the specified name, in id order - keyset (seek) pagination, so 
+	 * <code>http://.../products/byname/a/page?afterId=42</code> returns the products after id 42 whose name contains 'a',
+	 * and the last id of one page is the afterId of the next. Unlike {@link ProductsController#byName(String)}, the memory 
+	 * taken stays bounded however many products match.
+	 * 
+	 * @param partialName
+	 * @param afterId		The id of the last product of the previous page - omit for the first page.
+	 * @param size			The page size - products.search.page-size if omitted, and at most MAX_SEARCH_RESULTS.
+	 * @return A non-null set of products - fewer than size (possibly none) on the last page.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/byname/{name}/page")
+	public List<Product> byNamePage(@PathVariable("name") String partialName,
+			@RequestParam(value = "afterId", required = false) Long afterId,
+			@RequestParam(value = "size", required = false) Integer size) {
+		logger.info("products-service byNamePage() invoked: " + partialName + " after " + afterId);
+
+		int pageSize = Math.max(1, Math.min(size == null ? searchPageSize : size, MAX_SEARCH_RESULTS));
+		return productSearchIndex.byName(partialName, afterId == null ? Long.MIN_VALUE : afterId, pageSize);
+	}
+
+	/**
+	 * Stream every product with the specified name, in id order, as newline delimited JSON - the products 
+	 * are fetched and written a page at a time, so however many match, only a page is held.
+	 * 
+	 * @param partialName
+	 * @param size			Products fetched per repository query - products.search.page-size if omitted.
+	 * @param response		Where the products are streamed.
+	 * 
+	 * @throws IOException
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/byname/{name}/stream")
+	public void byNameStream(@PathVariable("name") String partialName,
+			@RequestParam(value = "size", required = false) Integer size,
+			HttpServletResponse response) throws IOException {
+		logger.info("products-service byNameStream() invoked: " + partialName);
+
+		response.setContentType("application/x-ndjson");
+		ObjectMapper mapper = new ObjectMapper();
+		Writer out = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+		int pageSize = Math.max(1, Math.min(size == null ? searchPageSize : size, MAX_SEARCH_RESULTS));
+		int streamed = productSearchIndex.streamByName(partialName, pageSize, product -> {
+			out.write(mapper.writeValueAsString(product));
+			out.write('\n');
+		});
+		out.flush();
+		logger.info("products-service byNameStream() streamed: " + streamed);
+	}
+
+	/**
+	 * Fetch a page of the products with the specified name, manufacturer and price range, in id order, with facet 
+	 * counts - the number of products of each manufacturer that would match, whatever the manufacturer. So 
+	 * <code>http://.../products/search/faceted?manufacturer=usa.gov&amp;maxPrice=10</code> finds the products from usa.gov
+	 * under $10, and counts those under $10 by manufacturer. Pages are keyset paginated, like {@link #byNamePage}.
+	 * 
+	 * @param partialName	Text from the name - omit for any name.
+	 * @param manufacturer	The manufacturer - omit for any.
+	 * @param minPrice		The least price - omit for any.
+	 * @param maxPrice		The greatest price - omit for any.
+	 * @param afterId		The id of the last product of the previous page - omit for the first page.
+	 * @param size			The page size - products.search.page-size if omitted, and at most MAX_SEARCH_RESULTS.
+	 * @return JSON with the page of products, the id to continue after, the total matches and the manufacturer counts 
+	 * 			- or 400 if a price is malformed.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/search/faceted")
+	public ResponseEntity<ProductSearchIndex.FacetedProducts> byFacets(
+			@RequestParam(value = "name", defaultValue = "") String partialName,
+			@RequestParam(value = "manufacturer", required = false) String manufacturer,
+			@RequestParam(value = "minPrice", required = false) String minPrice,
+			@RequestParam(value = "maxPrice", required = false) String maxPrice,
+			@RequestParam(value = "afterId", required = false) Long afterId,
+			@RequestParam(value = "size", required = false) Integer size) {
+		logger.info("products-service byFacets() invoked: " + partialName + " [" + manufacturer + "] " + minPrice + ".." + maxPrice);
+
+		long minCents;
+		long maxCents;
+		try {
+			minCents = minPrice == null || minPrice.isEmpty() ? Long.MIN_VALUE : PRICE.valueOf(minPrice).toCents(RoundingMode.CEILING);
+			maxCents = maxPrice == null || maxPrice.isEmpty() ? Long.MAX_VALUE : PRICE.valueOf(maxPrice).toCents(RoundingMode.FLOOR);
+		} catch (NumberFormatException | ArithmeticException e) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+
+		int pageSize = Math.max(1, Math.min(size == null ? searchPageSize : size, MAX_SEARCH_RESULTS));
+		return new ResponseEntity<>(productSearchIndex.byNameFaceted(partialName,
+				manufacturer == null || manufacturer.isEmpty() ? null : manufacturer, minCents, maxCents,
+				afterId == null ? Long.MIN_VALUE : afterId, pageSize), HttpStatus.OK);
+	}
+
+	/**
+	 * Type-ahead - the most popular product names and manufacturers starting with the prefix, or with a word 
+	 * starting with it, case-insensitively. So <code>http://.../products/complete/spr</code> completes 'Spring in Action', 
+	 * 'Learning Spring' and 'SpringSource'. Popularity is the number of products with the name or manufacturer, 
+	 * plus how often they have been looked up.
+	 * 
+	 * @param prefix
+	 * @param limit			The most completions to return (at most MAX_COMPLETIONS).
+	 * @return A non-null set of completions, most popular first - empty if nothing completes the prefix - or 400
+	 * 			if limit is less than 1.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/complete/{prefix:.+}")
+	public ResponseEntity<List<String>> complete(@PathVariable("prefix") String prefix,
+			@RequestParam(value = "limit", defaultValue = "10") int limit) {
+		if (limit < 1)
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		return new ResponseEntity<>(productCompletions.complete(prefix, Math.min(limit, MAX_COMPLETIONS)), HttpStatus.OK);
+	}
+
+	/**
+	 * Fetch products by keyword, from the in-memory {@link ProductSearchIndex}. Every word must appear in 
+	 * the product's number, name or manufacturer, case-insensitively - so <code>http://.../products/search/text/usa gov</code>
+	 * finds the products made by usa.gov - and groups of words may be separated by OR.
+	 * 
+	 * @param searchText
+	 * @param limit			The most products to return (at most MAX_SEARCH_RESULTS).
+	 * @return A non-null, non-empty set of products, in the order they were last indexed - oldest first - or 400
+	 * 			if limit is less than 1.
+	 * @throws ProductNotFoundException		If there are no matches at all.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/search/text/{searchText}")
+	public ResponseEntity<List<Product>> bySearchText(@PathVariable("searchText") String searchText,
+			@RequestParam(value = "limit", defaultValue = "" + MAX_SEARCH_RESULTS) int limit) {
+		if (limit < 1)
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		logger.info("products-service bySearchText() invoked: "
+				+ productSearchIndex.getClass().getName() + " for "
+				+ searchText);
+
+		List<Product> products = productSearchIndex.search(searchText, Math.min(limit, MAX_SEARCH_RESULTS));
+
+		logger.info("products-service bySearchText() found: " + products);
+
+		if (products == null || products.size() == 0)
+			throw new ProductNotFoundException(searchText);
+		else {
+			return new ResponseEntity<>(products, HttpStatus.OK);
+		}
+	}	
+
+	/** REST API for the size of the product keyword search index, and of the type-ahead completions.
+	 * 
+	 * @return JSON response with the products and distinct words indexed, the distinct trigrams of their names,
+	 * 			the bytes their postings take, and the completions, their trie's nodes and its last build time.
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/search/stats")
+	public String productSearchStats() {
+		TextIndex index = productSearchIndex.getIndex();
+		LinkedHashMap<String, String> result = new LinkedHashMap<>();
+		TrigramIndex names = productSearchIndex.getNames();
+		result.put("Products", 				"" + index.size());
+		result.put("Words", 				"" + index.getTerms());
+		result.put("PostingBytes", 			"" + index.getPostingBytes());
+		result.put("NameTrigrams", 			"" + names.getTerms());
+		result.put("NamePostingBytes", 		"" + names.getPostingBytes());
+		CompletionTrie completions = productCompletions.getTrie();
+		result.put("Completions", 			"" + completions.size());
+		result.put("CompletionNodes", 		"" + completions.getNodes());
+		result.put("CompletionBuildMillis", "" + productCompletions.getBuildMillis());
+		return ProductsController.toJson(result);
+	}
+}
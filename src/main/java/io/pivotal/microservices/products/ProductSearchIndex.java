@@ -0,0 +1,180 @@
+package io.pivotal.microservices.products;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import com.microservicedemo.commerce.search.IndexLoader;
+import com.microservicedemo.commerce.search.RecordFetcher;
+import com.microservicedemo.commerce.search.TextIndex;
+import com.microservicedemo.commerce.search.TrigramIndex;
+
+/**
+ * reo - Keyword search over the products' numbers, names and manufacturers, held in memory in a {@link TextIndex},
+ * and substring search of their names, in a {@link TrigramIndex} - which also holds each product's manufacturer
+ * and price, as bitsets, for faceted search.
+ *
+ * The indexes are loaded from the repository at startup by an {@link IndexLoader}, and kept current by a
+ * JPA entity {@link Listener} as products are persisted, updated and removed. Searches find the matching
+ * product numbers in an index, then fetch those products with a {@link RecordFetcher}.
+ *
+ * @author Roberto Olivares
+ */
+@Component
+public class ProductSearchIndex implements IndexLoader.Indexed<Product> {
+
+	/** A page of a faceted search, in id order - with how many products match, and how many by manufacturer */
+	public static class FacetedProducts {
+		public final List<Product> products;
+		public final long lastId;								// Of the last product - the afterId of the next page
+		public final int total;									// Matches on every page
+		public final LinkedHashMap<String, Integer> manufacturers;	// Matches of any manufacturer, by manufacturer, most first
+
+		FacetedProducts(List<Product> products, long lastId, int total, LinkedHashMap<String, Integer> manufacturers) {
+			this.products = products;
+			this.lastId = lastId;
+			this.total = total;
+			this.manufacturers = manufacturers;
+		}
+	}
+
+	/** Called for each product a streamed search finds */
+	public interface ProductVisitor extends RecordFetcher.Visitor<Product> {
+	}
+
+	// Keeps the index current for the JPA listener - JPA, not Spring, creates listeners
+	static final IndexLoader<Product> LOADER = new IndexLoader<>();
+
+	protected Logger logger = Logger.getLogger(ProductSearchIndex.class.getName());
+
+	@Autowired
+	protected ProductRepository productRepository;
+
+	protected final TextIndex index = new TextIndex();
+	protected final TrigramIndex names = new TrigramIndex();
+	protected final RecordFetcher<Product> fetcher = new RecordFetcher<>(
+			numbers -> productRepository.findByNumberIn(numbers), Product::getNumber);
+
+	/**
+	 * Indexes every product.
+	 */
+	@PostConstruct
+	public void load() {
+		long started = System.currentTimeMillis();
+		LOADER.load(this, (after, size) -> productRepository.findByIdGreaterThanOrderByIdAsc(after, new PageRequest(0, size)),
+				Product::getId);
+
+		logger.info("product search index: " + index.size() + " products, " + index.getTerms() + " words, "
+				+ names.getTerms() + " name trigrams, " + (index.getPostingBytes() + names.getPostingBytes()) 
+				+ " posting bytes in " + (System.currentTimeMillis() - started) + "ms");
+	}
+
+	/**
+	 * @param searchText	Words to match all of, in groups separated by OR to match any of - see {@link TextIndex#search}.
+	 * @param limit			The most products to return.
+	 * @return				The matching products, in the order they were last indexed, oldest first - always non-null, 
+	 * 						but may be empty.
+	 */
+	public List<Product> search(String searchText, int limit) {
+		return fetcher.fetch(index.search(searchText, limit));
+	}
+
+	/**
+	 * The indexed equivalent of {@link ProductRepository#findByNameContainingIgnoreCase}.
+	 * 
+	 * @param partialName	Any string.
+	 * @param limit			The most products to return.
+	 * @return				The products whose name contains it, in any case, in the order they were last indexed, oldest
+	 * 						first - always non-null, but may be empty.
+	 */
+	public List<Product> byName(String partialName, int limit) {
+		return fetcher.fetch(names.search(partialName, limit));
+	}
+
+	/**
+	 * A page of {@link #byName(String, int)}, in id order - for keyset pagination.
+	 * 
+	 * @param afterId	The id of the last product of the previous page (or Long.MIN_VALUE for the first).
+	 * @param size		The page size.
+	 * @return			The products whose name contains partialName with the least ids after afterId.
+	 * @performance		Memory is bounded by the page, however many products match.
+	 */
+	public List<Product> byName(String partialName, long afterId, int size) {
+		return fetcher.fetch(names.searchAfter(partialName, afterId, size).values);
+	}
+
+	/**
+	 * A page of the products whose name contains partialName, made by manufacturer and priced from minCents to 
+	 * maxCents - with the number of matches by manufacturer, whatever the manufacturer, for facets.
+	 * 
+	 * @param partialName	Any string - empty for every product.
+	 * @param manufacturer	Null for any.
+	 * @param minCents		Long.MIN_VALUE for any price.
+	 * @param maxCents		Long.MAX_VALUE for any price.
+	 * @param afterId		The id of the last product of the previous page (or Long.MIN_VALUE for the first).
+	 * @param size			The page size.
+	 * @performance			One pass over bitsets of the name matches, manufacturers and price buckets - not a table scan.
+	 */
+	public FacetedProducts byNameFaceted(String partialName, String manufacturer, long minCents, long maxCents, long afterId, int size) {
+		TrigramIndex.FacetPage page = names.searchFaceted(partialName, manufacturer, minCents, maxCents, afterId, size);
+		return new FacetedProducts(fetcher.fetch(page.values), page.lastKey, page.total, page.facetCounts);
+	}
+
+	/**
+	 * Visits every product whose name contains partialName, in id order, fetching them a page at a time.
+	 * 
+	 * @return	The number of products visited.
+	 * @performance	Memory is bounded by a window of numbers and a page of products, however many match - see {@link RecordFetcher#stream}.
+	 */
+	public int streamByName(String partialName, int pageSize, ProductVisitor visitor) throws IOException {
+		return fetcher.stream(names, partialName, pageSize, visitor);
+	}
+
+	public TextIndex getIndex() {
+		return index;
+	}
+
+	public TrigramIndex getNames() {
+		return names;
+	}
+
+	@Override
+	public void put(Product product) {
+		index.put(product.getId(), product.getNumber(), product.getNumber(), product.getName(), product.getManufacturer());
+		names.put(product.getId(), product.getNumber(), product.getName(), product.getManufacturer(),
+				product.price == null ? Long.MIN_VALUE : product.getPrice().movePointRight(2).longValue());
+	}
+
+	@Override
+	public void remove(Product product) {
+		index.remove(product.getId());
+		names.remove(product.getId());
+	}
+
+	/**
+	 * reo - Updates the search index as JPA writes products.
+	 */
+	public static class Listener {
+
+		@PostPersist
+		@PostUpdate
+		void changed(Product product) {
+			LOADER.changed(product);
+		}
+
+		@PostRemove
+		void removed(Product product) {
+			LOADER.removed(product);
+		}
+	}
+}
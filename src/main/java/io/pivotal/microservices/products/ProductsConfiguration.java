@@ -1,13 +1,17 @@
 package io.pivotal.microservices.products;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -17,6 +21,9 @@ import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
 
+import com.microservicedemo.commerce.products.offers.OfferBookType;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
 /**
  * The Products Spring configuration.
  * 
@@ -63,6 +70,73 @@ public class ProductsConfiguration {
 		return dataSource;
 	}
 
+	/**
+	 * Creates the in-memory offer books for all products. 
+	 * The book implementation is chosen by the <code>offers.book-type</code> property (PRIMITIVE, OFF_HEAP, RANKED, LSM or SKIP_LIST).
+	 * If <code>offers.store.directory</code> is set, the books are restored from (and journaled to) it.
+	 * If <code>offers.replication.enabled</code> or <code>offers.feed.enabled</code> is true, and
+	 * <code>offers.replication.primary-url</code> does not make this instance a follower, changes are kept for
+	 * followers and feed subscribers in a replication log of up to <code>offers.replication.log-capacity</code> 
+	 * records, grown as changes arrive - 32 bytes a change.
+	 * If <code>offers.watches.enabled</code> is true, new offers are matched against standing price watches
+	 * (24 bytes or so a watch), with up to the last <code>offers.watches.match-log-capacity</code> matches kept
+	 * for watchers (48 bytes a match). If <code>offers.matching.enabled</code> is true, the fills of matched buy
+	 * orders are kept for consumers in a log of up to <code>offers.matching.fill-log-capacity</code> records
+	 * (40 bytes a fill) - orders are matched either way.
+	 * If <code>offers.history.enabled</code> is true, each product's best price is recorded every 
+	 * <code>offers.history.resolution-millis</code> it changes, and kept for <code>offers.history.retention-days</code> 
+	 * - from 2 bits a point for regular small moves to 17 bytes for irregular large ones, in off-heap pages, 
+	 * plus a few dozen bytes of heap per product.
+	 * If <code>offers.tiering.enabled</code> is true, books unused for <code>offers.tiering.idle-minutes</code>
+	 * (or the least used, beyond <code>offers.tiering.max-hot-offers</code>) are evicted to 
+	 * <code>offers.tiering.directory</code>, which must then be set, until next used.
+	 * 
+	 * @author Roberto Olivares (reo)
+	 */
+	@Bean
+	public ProductOfferManager offerManager(@Value("${offers.book-type:PRIMITIVE}") OfferBookType bookType,
+			@Value("${offers.expiry.tick-millis:100}") long expiryTickMillis,
+			@Value("${offers.store.directory:}") String storeDirectory,
+			@Value("${offers.store.sync-commit:true}") boolean syncCommit,
+			@Value("${offers.store.snapshot-interval-seconds:300}") long snapshotIntervalSeconds,
+			@Value("${offers.replication.enabled:false}") boolean replicationEnabled,
+			@Value("${offers.replication.primary-url:}") String primaryUrl,
+			@Value("${offers.replication.log-capacity:1048576}") int replicationLogCapacity,
+			@Value("${offers.feed.enabled:false}") boolean feedEnabled,
+			@Value("${offers.watches.enabled:false}") boolean watchesEnabled,
+			@Value("${offers.watches.match-log-capacity:1048576}") int watchMatchLogCapacity,
+			@Value("${offers.matching.enabled:false}") boolean matchLogEnabled,
+			@Value("${offers.matching.fill-log-capacity:1048576}") int fillLogCapacity,
+			@Value("${offers.history.enabled:false}") boolean historyEnabled,
+			@Value("${offers.history.resolution-millis:1000}") long historyResolutionMillis,
+			@Value("${offers.history.retention-days:365}") long historyRetentionDays,
+			@Value("${offers.tiering.enabled:false}") boolean tieringEnabled,
+			@Value("${offers.tiering.directory:}") String tieringDirectory,
+			@Value("${offers.tiering.idle-minutes:10}") long tieringIdleMinutes,
+			@Value("${offers.tiering.sweep-seconds:10}") long tieringSweepSeconds,
+			@Value("${offers.tiering.max-hot-offers:0}") long maxHotOffers) throws IOException {
+		logger.info("offerManager() invoked: " + bookType);
+		ProductOfferManager offerManager = new ProductOfferManager(bookType, expiryTickMillis);
+		if (!storeDirectory.isEmpty())
+			offerManager.openStore(Paths.get(storeDirectory), syncCommit, snapshotIntervalSeconds);
+		if ((replicationEnabled || feedEnabled) && primaryUrl.isEmpty() && replicationLogCapacity > 0)
+			offerManager.enableReplication(replicationLogCapacity);
+		if (watchesEnabled)
+			offerManager.enableWatches(watchMatchLogCapacity);
+		if (matchLogEnabled)
+			offerManager.enableMatchLog(fillLogCapacity);
+		if (historyEnabled)
+			offerManager.enablePriceHistory(historyResolutionMillis, TimeUnit.DAYS.toMillis(historyRetentionDays));
+		if (tieringEnabled) {
+			// The cold store deletes what it finds there, and grows with the catalog - no place for a default
+			if (tieringDirectory.isEmpty())
+				throw new IllegalStateException("offers.tiering.enabled needs offers.tiering.directory");
+			offerManager.enableTiering(Paths.get(tieringDirectory), TimeUnit.MINUTES.toMillis(tieringIdleMinutes), 
+					TimeUnit.SECONDS.toMillis(tieringSweepSeconds), maxHotOffers);
+		}
+		return offerManager;
+	}
+
 	private void populateDBWithRandomEntries(JdbcTemplate jdbcTemplate, List<Map<String, Object>> products) {
 		// Populate with random prices
 		Random rand = new Random();
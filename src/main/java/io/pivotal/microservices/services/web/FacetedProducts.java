@@ -0,0 +1,62 @@
+package io.pivotal.microservices.services.web;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Faceted product search results DTO - a page of products, with how many match in all, and how many of each
+ * manufacturer would match - used to interact with the {@link WebProductsService}.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class FacetedProducts {
+
+	protected List<Product> products;
+	protected long lastId;
+	protected int total;
+	protected LinkedHashMap<String, Integer> manufacturers;
+
+	/**
+	 * Default constructor for Jackson only.
+	 */
+	protected FacetedProducts() {
+	}
+
+	public List<Product> getProducts() {
+		return products;
+	}
+
+	protected void setProducts(List<Product> products) {
+		this.products = products;
+	}
+
+	/**
+	 * @return	The id of the last product - the afterId of the next page.
+	 */
+	public long getLastId() {
+		return lastId;
+	}
+
+	protected void setLastId(long lastId) {
+		this.lastId = lastId;
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	protected void setTotal(int total) {
+		this.total = total;
+	}
+
+	/**
+	 * @return	The number of matches by manufacturer, whatever the manufacturer searched for - most first.
+	 */
+	public LinkedHashMap<String, Integer> getManufacturers() {
+		return manufacturers;
+	}
+
+	protected void setManufacturers(LinkedHashMap<String, Integer> manufacturers) {
+		this.manufacturers = manufacturers;
+	}
+}
@@ -0,0 +1,85 @@
+package io.pivotal.microservices.services.web;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.web.client.RestTemplate;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.products.offers.OfferPartitionRing;
+
+/**
+ * Finds the products-service instance that owns a product's offers, so offer calls go straight to it
+ * rather than round-robin. Builds the same {@link OfferPartitionRing} as the products-service instances,
+ * from the same Eureka registrations - less followers, which own nothing - refreshing it every REFRESH_MILLIS.
+ * 
+ * @author Roberto Olivares (reo)
+ */
+public class OfferPartitionRouter {
+
+	static final long REFRESH_MILLIS = 10000;
+
+	@Autowired
+	protected DiscoveryClient discoveryClient;
+
+	protected final String serviceId;
+
+	// Plain (not load balanced) - requests go to the owner
+	protected final RestTemplate restTemplate = new RestTemplate();
+
+	protected volatile OfferPartitionRing ring;
+	protected volatile long refreshedAt;
+
+	protected Logger logger = Logger.getLogger(OfferPartitionRouter.class.getName());
+
+	/**
+	 * @param serviceId		The products service's registered name.
+	 */
+	public OfferPartitionRouter(String serviceId) {
+		this.serviceId = serviceId;
+	}
+
+	/**
+	 * @param productNumber
+	 * @return	The base URI of the instance owning the product's offers, or null if unknown (no instances
+	 * 			registered, or not a product number) - the load balanced service URL will do.
+	 */
+	public URI ownerOf(String productNumber) {
+		OfferPartitionRing current = currentRing();
+		if (current.isEmpty())
+			return null;
+		try {
+			return current.uriOf(current.ownerOf(PRODUCTID.valueOf(productNumber)));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public RestTemplate getRestTemplate() {
+		return restTemplate;
+	}
+
+	protected OfferPartitionRing currentRing() {
+		OfferPartitionRing current = ring;
+		long now = System.currentTimeMillis();
+		if (current != null && now - refreshedAt < REFRESH_MILLIS)
+			return current;
+
+		Map<String, URI> nodes = new TreeMap<>();
+		for (ServiceInstance instance : discoveryClient.getInstances(serviceId))
+			if (!OfferPartitionRing.isFollower(instance.getMetadata()))
+				nodes.put(instance.getHost() + ":" + instance.getPort(), instance.getUri());
+		if (current == null || !current.hasNodes(nodes)) {
+			current = new OfferPartitionRing(nodes);
+			logger.info("offer partition ring is now " + current);
+			ring = current;
+		}
+		refreshedAt = now;
+		return current;
+	}
+}
@@ -15,6 +15,8 @@ import org.springframework.web.bind.annotation.InitBinder;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 
 /**
  * Products web client controller.
@@ -66,25 +68,41 @@ public class WebProductsController {
 	}
 
 	/** PAGE - Returns the "products" search results page.
-	 * Uses the products microservice to find all products with a manufacturer name.
+	 * Uses the products microservice to find a page of the products with a name, in id order - optionally 
+	 * only those of a manufacturer, and under a price - and the number of matches by manufacturer, as facets.
 	 *  
 	 * @param model
 	 * @param name
+	 * @param manufacturer	Null or empty for any.
+	 * @param maxPrice		Null or empty for any.
+	 * @param afterId		The id of the last product of the previous page - null for the first page.
 	 * @return
 	 * @author Roberto Olivares (reo)
 	 */
 	@RequestMapping("/products/byname/{name}")
-	public String byName(Model model, @PathVariable("name") String name) {
-		logger.info("web-service byName() invoked: " + name);
+	public String byName(Model model, @PathVariable("name") String name,
+			@RequestParam(value = "manufacturer", required = false) String manufacturer,
+			@RequestParam(value = "maxPrice", required = false) String maxPrice,
+			@RequestParam(value = "afterId", required = false) Long afterId) {
+		logger.info("web-service byName() invoked: " + name + " [" + manufacturer + "] under " + maxPrice + " after " + afterId);
 
 		// reo - invoke web products service to do the search for us
-		List<Product> products = productsService.findByName(name);
+		FacetedProducts found = productsService.findByName(name, manufacturer, maxPrice, afterId);
+		List<Product> products = found == null ? null : found.getProducts();
 		logger.info("web-service byName() found: " + products);
 		
-		// Update HTML model with product results. 
+		// Update HTML model with product results and facets - and, if the page is full, where the next one starts 
 		model.addAttribute("search", name);
-		if (products != null)
+		model.addAttribute("manufacturer", StringUtils.hasText(manufacturer) ? manufacturer : null);
+		model.addAttribute("maxPrice", StringUtils.hasText(maxPrice) ? maxPrice : null);
+		if (found != null)
+			model.addAttribute("manufacturers", found.getManufacturers());
+		if (products != null && !products.isEmpty()) {
 			model.addAttribute("products", products);
+			model.addAttribute("total", found.getTotal());
+			if (products.size() >= productsService.getPageSize())
+				model.addAttribute("nextAfterId", found.getLastId());
+		}
 		
 		// Return the ??
 		return "products";
@@ -129,7 +147,65 @@ public class WebProductsController {
 			return byNumber(model, productNumber);					// Return results based on product number
 		} else {
 			String searchText = criteria.getSearchText();
-			return byName(model, searchText);			// Return results based on search text
+			return byName(model, searchText, null, null, null);		// Return results based on search text
 		}
 	}
+
+	/** JSON - Type-ahead completions of product names and manufacturers, for the product search form.
+	 * 
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/complete/{prefix:.+}", produces = "application/json")
+	@ResponseBody
+	public String complete(@PathVariable("prefix") String prefix,
+			@RequestParam(value = "limit", defaultValue = "10") int limit) {
+		return productsService.complete(prefix, limit);
+	}
+
+	/** JSON - Adds an offer, via the products-service instance owning the product.
+	 * 
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/{productNumber}/offers/add", params = { "offerIdString", "priceString" })
+	@ResponseBody
+	public String addOffer(@PathVariable("productNumber") String productNumber,
+			@RequestParam("offerIdString") String offerId,
+			@RequestParam("priceString") String price) {
+		return productsService.addOffer(productNumber, offerId, price);
+	}
+
+	/** JSON - Removes an offer, via the products-service instance owning the product.
+	 * 
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping(value = "/products/{productNumber}/offers/remove", params = { "offerIdString", "priceString" })
+	@ResponseBody
+	public String removeOffer(@PathVariable("productNumber") String productNumber,
+			@RequestParam("offerIdString") String offerId,
+			@RequestParam("priceString") String price) {
+		return productsService.removeOffer(productNumber, offerId, price);
+	}
+
+	/** JSON - The next cheapest offer at or below a price, from the products-service instance owning the product.
+	 * 
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/{productNumber}/offers/nextCheapestByPrice/{price:.+}")
+	@ResponseBody
+	public String nextCheapestOfferByPrice(@PathVariable("productNumber") String productNumber,
+			@PathVariable("price") String price) {
+		return productsService.nextCheapestOfferByPrice(productNumber, price);
+	}
+
+	/** JSON - A page of the product's cheapest offers, from the products-service instance owning the product.
+	 * 
+	 * @author Roberto Olivares (reo)
+	 */
+	@RequestMapping("/products/{productNumber}/offers/cheapest")
+	@ResponseBody
+	public String cheapestOffers(@PathVariable("productNumber") String productNumber,
+			@RequestParam(value = "offset", defaultValue = "0") long offset,
+			@RequestParam(value = "limit", defaultValue = "10") int limit) {
+		return productsService.cheapestOffers(productNumber, offset, limit);
+	}
 }
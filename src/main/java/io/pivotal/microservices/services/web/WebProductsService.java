@@ -1,5 +1,6 @@
 package io.pivotal.microservices.services.web;
 
+import java.net.URI;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
@@ -7,6 +8,7 @@ import java.util.logging.Logger;
 import javax.annotation.PostConstruct;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.client.loadbalancer.LoadBalanced;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
@@ -33,8 +35,14 @@ public class WebProductsService {
 	@LoadBalanced
 	protected RestTemplate restTemplate;
 
+	@Autowired
+	protected OfferPartitionRouter offerRouter;
+
 	protected String serviceUrl;
 
+	@Value("${products.search.page-size:100}")
+	protected int pageSize = 100;
+
 	protected Logger logger = Logger.getLogger(WebProductsService.class.getName());
 
 	public WebProductsService(String serviceUrl) {
@@ -73,28 +81,34 @@ public class WebProductsService {
 	}
 	
 	/**
+	 * A page of the products whose name contains name, in id order - at most getPageSize() of them - with the 
+	 * number of matches, and of matches by manufacturer.
+	 * 
 	 * @param name
-	 * @return
+	 * @param manufacturer	Null or empty for any.
+	 * @param maxPrice		Null or empty for any.
+	 * @param afterId		The id of the last product of the previous page - null for the first page.
+	 * @return	The page, or null if nothing could be found.
 	 * @author Roberto Olivares (reo)
 	 */
-	public List<Product> findByName(String name) {
-		logger.info("findByName() invoked:  for " + name);
-		Product[] products = null;
+	public FacetedProducts findByName(String name, String manufacturer, String maxPrice, Long afterId) {
+		logger.info("findByName() invoked:  for " + name + " [" + manufacturer + "] under " + maxPrice + " after " + afterId);
 
 		try {
-			// Forward to actual microservice
-			products = restTemplate.getForObject(
-					serviceUrl + "/products/byname/{name}", Product[].class, name);
-		} catch (HttpClientErrorException e) { // 404
-			// Nothing found
-		}
-
-		if (products == null || products.length == 0)
+			// Forward to actual microservice - a page at a time, not every match at once
+			return restTemplate.getForObject(serviceUrl + "/products/search/faceted?name={name}&manufacturer={manufacturer}"
+					+ "&maxPrice={maxPrice}&afterId={afterId}&size={size}", FacetedProducts.class,
+					name, manufacturer == null ? "" : manufacturer, maxPrice == null ? "" : maxPrice, 
+					afterId == null ? "" : afterId, pageSize);
+		} catch (HttpClientErrorException e) { // 400 - a malformed price, say
 			return null;
-		else
-			return Arrays.asList(products);
+		}
 	}
 	
+	public int getPageSize() {
+		return pageSize;
+	}
+
 	/**
 	 * @param searchText
 	 * @return
@@ -117,4 +131,65 @@ public class WebProductsService {
 			return Arrays.asList(products);
 	}
 
+	/**
+	 * @return	The products service's JSON response, with the most popular product names and manufacturers starting with the prefix.
+	 * @author Roberto Olivares (reo)
+	 */
+	public String complete(String prefix, int limit) {
+		return restTemplate.getForObject(serviceUrl + "/products/complete/{prefix}?limit={limit}", String.class, prefix, limit);
+	}
+
+	/**
+	 * Adds an offer, on the products-service instance that owns the product.
+	 * 
+	 * @return	The products service's JSON response.
+	 * @author Roberto Olivares (reo)
+	 */
+	public String addOffer(String productNumber, String offerId, String price) {
+		logger.info("addOffer() invoked: for " + productNumber);
+		return getOffers(productNumber, "/products/{number}/offers/add?offerIdString={offerId}&priceString={price}",
+				productNumber, offerId, price);
+	}
+
+	/**
+	 * Removes an offer, on the products-service instance that owns the product.
+	 * 
+	 * @return	The products service's JSON response.
+	 * @author Roberto Olivares (reo)
+	 */
+	public String removeOffer(String productNumber, String offerId, String price) {
+		logger.info("removeOffer() invoked: for " + productNumber);
+		return getOffers(productNumber, "/products/{number}/offers/remove?offerIdString={offerId}&priceString={price}",
+				productNumber, offerId, price);
+	}
+
+	/**
+	 * @return	The products service's JSON response, naming the next cheapest offer at or below price.
+	 * @author Roberto Olivares (reo)
+	 */
+	public String nextCheapestOfferByPrice(String productNumber, String price) {
+		logger.info("nextCheapestOfferByPrice() invoked: for " + productNumber);
+		return getOffers(productNumber, "/products/{number}/offers/nextCheapestByPrice/{price}", productNumber, price);
+	}
+
+	/**
+	 * @return	The products service's JSON response, with a page of the product's cheapest offers.
+	 * @author Roberto Olivares (reo)
+	 */
+	public String cheapestOffers(String productNumber, long offset, int limit) {
+		logger.info("cheapestOffers() invoked: for " + productNumber);
+		return getOffers(productNumber, "/products/{number}/offers/cheapest?offset={offset}&limit={limit}", productNumber, offset, limit);
+	}
+
+	/**
+	 * Sends an offer call straight to the instance owning the product, or through the load balancer if 
+	 * no owner is known yet (the instance it reaches redirects to the owner).
+	 */
+	protected String getOffers(String productNumber, String path, Object... variables) {
+		URI owner = offerRouter.ownerOf(productNumber);
+		if (owner == null)
+			return restTemplate.getForObject(serviceUrl + path, String.class, variables);
+		return offerRouter.getRestTemplate().getForObject(owner.toString() + path, String.class, variables);
+	}
+
 }
@@ -26,6 +26,7 @@ public class WebServer {
 	 */
 	public static final String ACCOUNTS_SERVICE_URL = "http://ACCOUNTS-SERVICE";
 	public static final String PRODUCTS_SERVICE_URL = "http://PRODUCTS-SERVICE";
+	public static final String PRODUCTS_SERVICE_ID = "products-service";
 
 	/**
 	 * Run the application using Spring Boot and an embedded servlet engine.
@@ -89,6 +90,18 @@ public class WebServer {
 		return new WebProductsService(PRODUCTS_SERVICE_URL);
 	}
 
+	/**
+	 * Routes offer calls to the products-service instance owning the product.
+	 * 
+	 * @author Roberto Olivares (reo)
+	 * 
+	 * @return A new router.
+	 */
+	@Bean
+	public OfferPartitionRouter offerPartitionRouter() {
+		return new OfferPartitionRouter(PRODUCTS_SERVICE_ID);
+	}
+
 	/**
 	 * Create and expose the controller, passing it the {@link WebProductsService} to use.
 	 * The product controller handles requests and invokes methods on the local WebProductsService 
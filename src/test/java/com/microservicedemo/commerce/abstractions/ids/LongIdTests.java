@@ -0,0 +1,89 @@
+package com.microservicedemo.commerce.abstractions.ids;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * {@link PRODUCTID} and {@link OFFERID} - equal, hashed and ordered by value within their own kind, never
+ * equal to an id of the other kind, and parsed the fast way to what BigInteger parses.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class LongIdTests {
+
+	@Test
+	public void equalsOnlyItsOwnKind() {
+		Assert.assertEquals(PRODUCTID.valueOf(42), new PRODUCTID("42"));
+		Assert.assertEquals(OFFERID.valueOf(42), new OFFERID("42"));
+		Assert.assertEquals(PRODUCTID.valueOf(42).hashCode(), new PRODUCTID("42").hashCode());
+
+		Assert.assertNotEquals(PRODUCTID.valueOf(42), OFFERID.valueOf(42));
+		Assert.assertNotEquals(OFFERID.valueOf(42), PRODUCTID.valueOf(42));
+		Assert.assertNotEquals(PRODUCTID.valueOf(42), PRODUCTID.valueOf(43));
+		Assert.assertNotEquals(PRODUCTID.valueOf(42), Long.valueOf(42));
+		Assert.assertFalse(PRODUCTID.valueOf(42).equals(null));
+
+		// A set of ids of both kinds keeps both
+		Set<Object> ids = new HashSet<>(Arrays.asList(PRODUCTID.valueOf(7), OFFERID.valueOf(7), new PRODUCTID("7"), OFFERID.valueOf(7)));
+		Assert.assertEquals(2, ids.size());
+	}
+
+	@Test
+	public void ordersByValue() {
+		List<PRODUCTID> productIds = Arrays.asList(PRODUCTID.valueOf(3), PRODUCTID.valueOf(-1), PRODUCTID.valueOf(Long.MAX_VALUE), PRODUCTID.valueOf(0));
+		productIds.sort(null);
+		Assert.assertEquals(Arrays.asList(PRODUCTID.valueOf(-1), PRODUCTID.valueOf(0), PRODUCTID.valueOf(3), PRODUCTID.valueOf(Long.MAX_VALUE)), productIds);
+
+		Assert.assertTrue(OFFERID.valueOf(Long.MIN_VALUE).compareTo(OFFERID.valueOf(Long.MAX_VALUE)) < 0);
+		Assert.assertEquals(0, OFFERID.valueOf(5).compareTo(new OFFERID("5")));
+		Assert.assertTrue(OFFERID.valueOf(6).compareTo(OFFERID.valueOf(5)) > 0);
+	}
+
+	@Test
+	public void parsesAsBigIntegerDoes() {
+		// Either side of the 18 digits parsed fast, and of a long's range
+		for (String id : Arrays.asList("0", "-0", "+0", "7", "-7", "+7", "007", "123456001",
+				"999999999999999999", "-999999999999999999", "1000000000000000000", "-1000000000000000000",
+				"9223372036854775807", "-9223372036854775808", "+9223372036854775807", "00000000000000000000042"))
+			assertParsesAsBigInteger(id);
+
+		Random random = new Random(20);
+		for (int i = 0; i < 100_000; i++) {
+			long value = random.nextLong() >> random.nextInt(64);
+			assertParsesAsBigInteger(Long.toString(value));
+		}
+	}
+
+	@Test
+	public void rejectsWhatDoesNotFitALong() {
+		for (String id : Arrays.asList("", "-", "+", "1.0", "1e3", " 1", "1 ", "--1", "12a", "0x10",
+				"9223372036854775808", "-9223372036854775809", "99999999999999999999")) {
+			try {
+				PRODUCTID.valueOf(id);
+				Assert.fail("parsed " + id);
+			} catch (NumberFormatException e) {
+				// As expected
+			}
+			try {
+				new OFFERID(id);
+				Assert.fail("parsed " + id);
+			} catch (NumberFormatException e) {
+				// As expected
+			}
+		}
+	}
+
+	static void assertParsesAsBigInteger(String id) {
+		BigInteger expected = new BigInteger(id);
+		Assert.assertEquals(id, expected.longValueExact(), PRODUCTID.valueOf(id).longValueExact());
+		Assert.assertEquals(id, expected, new PRODUCTID(id).toBigInteger());
+		Assert.assertEquals(id, expected.toString(), OFFERID.valueOf(id).toString());
+	}
+}
@@ -0,0 +1,91 @@
+package com.microservicedemo.commerce.abstractions.ids;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * {@link PRICE}s parsed the fast way - checked against BigDecimal for their value, their scale and their cents,
+ * on the edges of the fast path (signs, points, 16 and 17 digits, 2 and 3 decimals) and on random prices, and
+ * rejecting what BigDecimal rejects.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class PriceTests {
+
+	static final List<String> EDGES = Arrays.asList(
+			"0", "-0", "+0", "0.0", "0.00", "-0.00", "1", "1.", ".5", "-.5", "+.05", "1.5", "1.50", "-1.05", "007.10",
+			"9999999999999999", "-9999999999999999", "99999999999999.99", "-99999999999999.99",		// 16 digits
+			"10000000000000000", "999999999999999.99", "9999999999999999.9",						// 17 digits
+			"1.005", "1.995", "-1.005", "-2.675", "0.001", "-0.009", "12.3456789",					// More than 2 decimals
+			"92233720368547758.07", "1e2", "1E-2", "-1.5e1");
+
+	@Test
+	public void parsesAsBigDecimalDoes() {
+		for (String price : EDGES)
+			assertParsesAsBigDecimal(price);
+
+		Random random = new Random(20);
+		for (int i = 0; i < 100_000; i++) {
+			StringBuilder price = new StringBuilder();
+			if (random.nextInt(4) == 0)
+				price.append(random.nextBoolean() ? '-' : '+');
+			int digits = random.nextInt(19);
+			int point = random.nextInt(digits + 2) - 1;
+			for (int d = 0; d < digits; d++) {
+				if (d == point)
+					price.append('.');
+				price.append((char) ('0' + random.nextInt(10)));
+			}
+			if (digits > 0)
+				assertParsesAsBigDecimal(price.toString());
+		}
+	}
+
+	@Test
+	public void rejectsWhatBigDecimalRejects() {
+		for (String price : Arrays.asList("", "-", "+", ".", "-.", "1.2.3", "1,50", "$1", " 1", "1 ", "--1", "1-", "abc", "1.5x")) {
+			try {
+				PRICE.valueOf(price);
+				Assert.fail("parsed " + price);
+			} catch (NumberFormatException e) {
+				// As BigDecimal does...
+			}
+			try {
+				new BigDecimal(price);
+				Assert.fail("BigDecimal parsed " + price);
+			} catch (NumberFormatException e) {
+				// ...which this checks
+			}
+		}
+	}
+
+	@Test
+	public void buildsPricesFromCents() {
+		for (long cents : new long[] { 0, 1, -1, 99, 100, 12_345, Long.MAX_VALUE, Long.MIN_VALUE }) {
+			PRICE price = PRICE.valueOf(cents);
+			Assert.assertEquals(BigDecimal.valueOf(cents, 2), price);
+			Assert.assertEquals(2, price.scale());
+			Assert.assertEquals(cents, price.toCents(RoundingMode.UNNECESSARY));
+		}
+	}
+
+	static void assertParsesAsBigDecimal(String text) {
+		PRICE price = PRICE.valueOf(text);
+		BigDecimal expected = new BigDecimal(text);
+		// Equal to BigDecimal's parse, scale and all
+		Assert.assertEquals(text, expected, price);
+		Assert.assertEquals(text, expected.scale(), price.scale());
+		Assert.assertEquals(text, expected.toString(), price.toString());
+		for (RoundingMode rounding : Arrays.asList(RoundingMode.FLOOR, RoundingMode.CEILING, RoundingMode.HALF_EVEN)) {
+			BigDecimal cents = expected.movePointRight(2).setScale(0, rounding);
+			if (cents.unscaledValue().bitLength() < 64)
+				Assert.assertEquals(text + " " + rounding, cents.longValueExact(), price.toCents(rounding));
+		}
+	}
+}
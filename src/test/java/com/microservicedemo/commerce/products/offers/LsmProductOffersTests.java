@@ -0,0 +1,40 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * {@link LsmProductOffers} with a memtable of a few entries, so that it is merged into runs, and its runs
+ * down the levels and compacted, many times over - checked against {@link OfferBookTests.Model}, and for losing
+ * or duplicating offers under concurrent adds, removes and takes.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class LsmProductOffersTests {
+
+	static final int MEMTABLE_CAPACITY = 16;
+
+	@Test
+	public void matchesTheModelMergingInline() {
+		// No background merges - every merge is an adder's that filled the memtable, so each run is the same every time
+		for (long seed = 0; seed < 5; seed++) {
+			LsmProductOffers book = new LsmProductOffers(Integer.MAX_VALUE, MEMTABLE_CAPACITY);
+			OfferBookTests.matchesModel(OfferBookType.LSM, book, new Random(seed));
+			Assert.assertTrue(book.runs.length > 1);
+		}
+	}
+
+	@Test
+	public void matchesTheModelMergingInTheBackground() {
+		for (long seed = 0; seed < 5; seed++)
+			OfferBookTests.matchesModel(OfferBookType.LSM, new LsmProductOffers(4, MEMTABLE_CAPACITY), new Random(seed));
+	}
+
+	@Test
+	public void conservesOffersWhileMerging() throws InterruptedException {
+		for (int round = 0; round < 5; round++)
+			OfferBookTests.conservesOffers(OfferBookType.LSM, new LsmProductOffers(4, MEMTABLE_CAPACITY));
+	}
+}
@@ -0,0 +1,251 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+
+/**
+ * Every {@link OfferBookType}, checked against a simple model of a price-time book - a sorted map of FIFO
+ * queues - and for losing or duplicating offers under concurrent adds, removes and takes.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferBookTests {
+
+	static final int OPERATIONS = 20_000;
+	static final int PRICE_LEVELS = 40;
+
+	/** The reference book - price levels in order, each oldest first */
+	static class Model {
+		final TreeMap<Long, ArrayDeque<Long>> levels = new TreeMap<>();
+		int size;
+
+		void add(long offerId, long priceCents) {
+			levels.computeIfAbsent(priceCents, price -> new ArrayDeque<>()).addLast(offerId);
+			size++;
+		}
+
+		boolean remove(long offerId, long priceCents) {
+			ArrayDeque<Long> level = levels.get(priceCents);
+			if (level == null || !level.remove(offerId))
+				return false;
+			if (level.isEmpty())
+				levels.remove(priceCents);
+			size--;
+			return true;
+		}
+
+		long oldest(Map.Entry<Long, ArrayDeque<Long>> level) {
+			return level == null ? OfferBook.NO_OFFER : level.getValue().peekFirst();
+		}
+
+		List<Long> visit(long minCents, long maxCents, long offset, int limit) {
+			List<Long> visited = new ArrayList<>();
+			for (Map.Entry<Long, ArrayDeque<Long>> level : levels.subMap(minCents, true, maxCents, true).entrySet()) {
+				for (long offerId : level.getValue()) {
+					if (offset > 0) {
+						offset--;
+					} else if (visited.size() < limit * 2L) {
+						visited.add(level.getKey());
+						visited.add(offerId);
+					}
+				}
+			}
+			return visited;
+		}
+
+		List<Long> take(long maxCents, int limit) {
+			List<Long> taken = new ArrayList<>();
+			Iterator<Map.Entry<Long, ArrayDeque<Long>>> levelIterator = levels.headMap(maxCents, true).entrySet().iterator();
+			while (taken.size() < limit * 2 && levelIterator.hasNext()) {
+				Map.Entry<Long, ArrayDeque<Long>> level = levelIterator.next();
+				while (taken.size() < limit * 2 && !level.getValue().isEmpty()) {
+					taken.add(level.getKey());
+					taken.add(level.getValue().pollFirst());
+					size--;
+				}
+				if (level.getValue().isEmpty())
+					levelIterator.remove();
+			}
+			return taken;
+		}
+	}
+
+	@Test
+	public void everyBookTypeMatchesTheModel() {
+		for (OfferBookType type : OfferBookType.values())
+			matchesModel(type, type.newBook(), new Random(7));
+	}
+
+	@Test
+	public void everyBookTypeConservesOffersUnderConcurrency() throws InterruptedException {
+		for (OfferBookType type : OfferBookType.values())
+			conservesOffers(type, type.newBook());
+	}
+
+	static void matchesModel(OfferBookType type, OfferBook book, Random random) {
+		Model model = new Model();
+		List<long[]> held = new ArrayList<>();		// (offerId, priceCents) of the offers added, some since removed
+		long nextOfferId = 1;
+
+		for (int operation = 0; operation < OPERATIONS; operation++) {
+			String at = type + " operation " + operation;
+			int choice = random.nextInt(100);
+			if (choice < 45) {
+				long priceCents = price(random);
+				book.addOfferIdByPrice(OFFERID.valueOf(nextOfferId), PRICE.valueOf(priceCents));
+				model.add(nextOfferId, priceCents);
+				held.add(new long[] { nextOfferId++, priceCents });
+			} else if (choice < 55) {
+				int count = 1 + random.nextInt(20);
+				long[] offerIds = new long[count];
+				long[] priceCents = new long[count];
+				for (int i = 0; i < count; i++) {
+					offerIds[i] = nextOfferId++;
+					priceCents[i] = price(random);
+					model.add(offerIds[i], priceCents[i]);
+					held.add(new long[] { offerIds[i], priceCents[i] });
+				}
+				book.addOffers(offerIds, priceCents, 0, count);
+			} else if (choice < 70 && !held.isEmpty()) {
+				long[] offer = held.get(random.nextInt(held.size()));
+				// Sometimes at the wrong price, which must not find it
+				long priceCents = random.nextInt(10) == 0 ? offer[1] + 1 : offer[1];
+				boolean removed = random.nextBoolean() ? book.removeOffer(offer[0], priceCents)
+						: book.removeOfferIdByPrice(OFFERID.valueOf(offer[0]), PRICE.valueOf(priceCents));
+				Assert.assertEquals(at, model.remove(offer[0], priceCents), removed);
+			} else if (choice < 75) {
+				long maxCents = price(random);
+				int limit = 1 + random.nextInt(10);
+				List<Long> taken = new ArrayList<>();
+				int count = book.takeOffers(maxCents, limit, (priceCents, offerId) -> taken.add(priceCents) && taken.add(offerId));
+				List<Long> expected = model.take(maxCents, limit);
+				Assert.assertEquals(at, expected, taken);
+				Assert.assertEquals(at, expected.size() / 2, count);
+			} else if (choice < 85) {
+				long priceCents = price(random);
+				Assert.assertEquals(at, model.oldest(model.levels.floorEntry(priceCents)), book.getClosestOfferIdAtOrBelow(priceCents));
+				OFFERID below = book.getClosestOfferIdToPrice(PRICE.valueOf(priceCents));
+				Assert.assertEquals(at, model.oldest(model.levels.floorEntry(priceCents)), below == null ? OfferBook.NO_OFFER : below.longValue());
+				OFFERID above = book.getClosestOfferIdAbovePrice(PRICE.valueOf(priceCents));
+				Assert.assertEquals(at, model.oldest(model.levels.ceilingEntry(priceCents)), above == null ? OfferBook.NO_OFFER : above.longValue());
+			} else {
+				long minCents = price(random);
+				long maxCents = minCents + random.nextInt(20);
+				long offset = random.nextInt(5);
+				int limit = 1 + random.nextInt(30);
+				List<Long> visited = new ArrayList<>();
+				int count = book.visitOffersByPrice(PRICE.valueOf(minCents), PRICE.valueOf(maxCents), offset, limit,
+						(priceCents, offerId) -> visited.add(priceCents) && visited.add(offerId));
+				Assert.assertEquals(at, model.visit(minCents, maxCents, offset, limit), visited);
+				Assert.assertEquals(at, visited.size() / 2, count);
+			}
+			Assert.assertEquals(at, model.size, book.size());
+		}
+
+		List<Long> visited = new ArrayList<>();
+		book.visitOffersByPrice(null, null, 0, Integer.MAX_VALUE, (priceCents, offerId) -> visited.add(priceCents) && visited.add(offerId));
+		Assert.assertEquals(type.toString(), model.visit(Long.MIN_VALUE, Long.MAX_VALUE, 0, Integer.MAX_VALUE), visited);
+	}
+
+	/**
+	 * Adders add offers of their own, removers remove some of them, takers take whatever is cheap enough - then
+	 * every offer must have been taken, removed or left in the book, exactly once.
+	 */
+	static void conservesOffers(OfferBookType type, OfferBook book) throws InterruptedException {
+		int adders = 4;
+		int perAdder = 5_000;
+		ConcurrentLinkedQueue<long[]> added = new ConcurrentLinkedQueue<>();
+		ConcurrentLinkedQueue<Long> removed = new ConcurrentLinkedQueue<>();
+		ConcurrentLinkedQueue<Long> taken = new ConcurrentLinkedQueue<>();
+		ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+		AtomicBoolean adding = new AtomicBoolean(true);
+		CountDownLatch addersDone = new CountDownLatch(adders);
+		List<Thread> threads = new ArrayList<>();
+
+		for (int a = 0; a < adders; a++) {
+			int adder = a;
+			threads.add(new Thread(() -> {
+				try {
+					Random random = new Random(adder);
+					for (int i = 0; i < perAdder; i++) {
+						long offerId = (long) adder * perAdder + i + 1;
+						long priceCents = price(random);
+						if (i % 3 == 0)
+							book.addOffers(new long[] { offerId }, new long[] { priceCents }, 0, 1);
+						else
+							book.addOfferIdByPrice(OFFERID.valueOf(offerId), PRICE.valueOf(priceCents));
+						added.add(new long[] { offerId, priceCents });
+						if (i % 4 == 0 && book.removeOffer(offerId, priceCents))
+							removed.add(offerId);
+					}
+				} catch (Throwable e) {
+					failures.add(e);
+				} finally {
+					addersDone.countDown();
+				}
+			}));
+		}
+		for (int t = 0; t < 2; t++) {
+			threads.add(new Thread(() -> {
+				try {
+					Random random = new Random();
+					while (adding.get()) {
+						long maxCents = price(random);
+						long[] last = { Long.MIN_VALUE };
+						book.takeOffers(maxCents, 1 + random.nextInt(8), (priceCents, offerId) -> {
+							if (priceCents > maxCents || priceCents < last[0])
+								failures.add(new AssertionError(type + " took " + priceCents + " after " + last[0] + ", max " + maxCents));
+							last[0] = priceCents;
+							taken.add(offerId);
+							return true;
+						});
+					}
+				} catch (Throwable e) {
+					failures.add(e);
+				}
+			}));
+		}
+		for (Thread thread : threads)
+			thread.start();
+		addersDone.await();
+		adding.set(false);
+		for (Thread thread : threads)
+			thread.join();
+		if (!failures.isEmpty())
+			throw new AssertionError(type + " failed", failures.peek());
+
+		Set<Long> remaining = new HashSet<>();
+		book.visitOffersByPrice(null, null, 0, Integer.MAX_VALUE, (priceCents, offerId) -> {
+			Assert.assertTrue(type + " holds " + offerId + " twice", remaining.add(offerId));
+			return true;
+		});
+		Assert.assertEquals(type.toString(), remaining.size(), book.size());
+
+		Set<Long> accounted = new HashSet<>(remaining);
+		for (long offerId : taken)
+			Assert.assertTrue(type + " accounts for " + offerId + " twice", accounted.add(offerId));
+		for (long offerId : removed)
+			Assert.assertTrue(type + " accounts for " + offerId + " twice", accounted.add(offerId));
+		Assert.assertEquals(type + " lost offers", added.size(), accounted.size());
+	}
+
+	static long price(Random random) {
+		return 1000 + random.nextInt(PRICE_LEVELS);
+	}
+}
@@ -0,0 +1,146 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The {@link OfferExpiryWheel}, moved on by hand a tick at a time - its own thread is given a tick too long
+ * to ever come round - and then left to run in real time.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferExpiryWheelTests {
+
+	// Long enough that the wheel's thread never ticks during a test, so the test can tick it instead
+	static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	// Past the second ring, so some offers cascade down twice
+	static final int MAX_DELAY_TICKS = 3 * OfferExpiryWheel.WHEEL_SIZE * OfferExpiryWheel.WHEEL_SIZE / 2;
+
+	List<OfferExpiryWheel> wheels = new ArrayList<>();
+
+	@After
+	public void closeWheels() {
+		for (OfferExpiryWheel wheel : wheels)
+			wheel.close();
+	}
+
+	@Test
+	public void expiresEachOfferOnItsTick() {
+		Map<Long, Long> expiredAt = new HashMap<>();		// offerId -> tick
+		OfferExpiryWheel[] wheel = new OfferExpiryWheel[1];
+		wheel[0] = open(HOUR_MILLIS, (productId, offerId, priceCents) -> {
+			Assert.assertEquals(offerId * 10, productId);
+			Assert.assertEquals(offerId + 100, priceCents);
+			Assert.assertNull("offer " + offerId + " expired twice", expiredAt.put(offerId, wheel[0].currentTick));
+		});
+
+		Random random = new Random(8);
+		Map<Long, Long> dueAt = new HashMap<>();
+		long nextOfferId = 1;
+		for (long tick = 0; tick <= MAX_DELAY_TICKS; tick++) {
+			// Some each tick, some of them already due - which go in the next tick
+			for (int i = random.nextInt(3); i > 0; i--) {
+				long offerId = nextOfferId++;
+				long delayTicks = random.nextInt(MAX_DELAY_TICKS);
+				wheel[0].schedule(offerId * 10, offerId, offerId + 100, delayTicks * HOUR_MILLIS);
+				dueAt.put(offerId, Math.max(delayTicks, tick + 1));
+			}
+			synchronized (wheel[0].wheelLock) {
+				wheel[0].drainIncoming();
+				wheel[0].advance();
+			}
+		}
+		while (wheel[0].getPending() > 0) {
+			synchronized (wheel[0].wheelLock) {
+				wheel[0].advance();
+			}
+		}
+
+		Assert.assertEquals(dueAt, expiredAt);
+	}
+
+	@Test
+	public void countsAndVisitsThePendingOffers() {
+		List<Long> expired = new ArrayList<>();
+		OfferExpiryWheel wheel = open(HOUR_MILLIS, (productId, offerId, priceCents) -> expired.add(offerId));
+		for (long offerId = 1; offerId <= 1000; offerId++)
+			wheel.schedule(offerId % 4, offerId, 100, offerId * HOUR_MILLIS);
+
+		Map<Long, Long> ttls = new HashMap<>();
+		wheel.visitPending(productId -> productId == 1, (productId, offerId, priceCents, ttlMillis) -> {
+			Assert.assertEquals(1, productId);
+			Assert.assertNull(ttls.put(offerId, ttlMillis));
+		});
+		Assert.assertEquals(250, ttls.size());
+		for (Map.Entry<Long, Long> ttl : ttls.entrySet())
+			Assert.assertEquals((long) ttl.getKey() * HOUR_MILLIS, (long) ttl.getValue());
+		Assert.assertEquals(1000, wheel.getPending());
+
+		for (int tick = 1; tick <= 600; tick++) {
+			synchronized (wheel.wheelLock) {
+				wheel.advance();
+			}
+			Assert.assertEquals(tick, expired.size());
+			Assert.assertEquals(1000 - tick, wheel.getPending());
+		}
+	}
+
+	@Test
+	public void carriesOnPastAFailingExpiry() {
+		List<Long> expired = new ArrayList<>();
+		OfferExpiryWheel wheel = open(HOUR_MILLIS, (productId, offerId, priceCents) -> {
+			if (offerId % 3 == 0)
+				throw new IllegalStateException("offer " + offerId);
+			expired.add(offerId);
+		});
+		for (long offerId = 1; offerId <= 30; offerId++)
+			wheel.schedule(1, offerId, 100, HOUR_MILLIS);
+		synchronized (wheel.wheelLock) {
+			wheel.drainIncoming();
+			wheel.advance();
+		}
+
+		Assert.assertEquals(20, expired.size());
+		Assert.assertEquals(0, wheel.getPending());
+	}
+
+	@Test(timeout = 10_000)
+	public void expiresOffersInRealTime() throws InterruptedException {
+		long tickMillis = 2;
+		Map<Long, Long> expiredNanos = new ConcurrentHashMap<>();
+		OfferExpiryWheel wheel = open(tickMillis, (productId, offerId, priceCents) -> expiredNanos.put(offerId, System.nanoTime()));
+
+		Random random = new Random(9);
+		Map<Long, long[]> scheduled = new HashMap<>();		// offerId -> (nanos scheduled, ttlMillis)
+		for (long offerId = 1; offerId <= 2000; offerId++) {
+			long ttlMillis = random.nextInt(200);
+			scheduled.put(offerId, new long[] { System.nanoTime(), ttlMillis });
+			wheel.schedule(1, offerId, 100, ttlMillis);
+		}
+		while (expiredNanos.size() < scheduled.size() || wheel.getPending() > 0)
+			Thread.sleep(tickMillis);
+
+		// A deadline is rounded to the wheel's ticks, so an offer may go up to a tick early
+		for (Map.Entry<Long, long[]> offer : scheduled.entrySet()) {
+			long livedMillis = TimeUnit.NANOSECONDS.toMillis(expiredNanos.get(offer.getKey()) - offer.getValue()[0]);
+			Assert.assertTrue("offer " + offer.getKey() + " lived " + livedMillis + "ms of " + offer.getValue()[1],
+					livedMillis >= offer.getValue()[1] - tickMillis);
+		}
+	}
+
+	OfferExpiryWheel open(long tickMillis, OfferExpiryWheel.Expirer expirer) {
+		OfferExpiryWheel wheel = new OfferExpiryWheel(tickMillis, expirer);
+		wheels.add(wheel);
+		return wheel;
+	}
+}
@@ -0,0 +1,169 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.exceptions.InvalidProductIdException;
+
+/**
+ * The fills {@link ProductOfferManager#matchOffers} logs to its {@link OfferMatchLog} - the same offers, in the
+ * same order, as the order was handed, cheapest first and oldest first within a price, nothing for an order that
+ * filled nothing, and under concurrent orders every offer filled once only, each order's fills together - and
+ * the log's readers told when the fills they wanted have been overwritten.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferMatchLogTests {
+
+	static final PRODUCTID ACME = PRODUCTID.valueOf(123456001L);
+	static final PRODUCTID GLOBEX = PRODUCTID.valueOf(123456002L);
+
+	@Test
+	public void logsEachOrdersFillsAsTheOrderWasHandedThem() throws InvalidProductIdException {
+		for (OfferBookType type : OfferBookType.values()) {
+			ProductOfferManager manager = new ProductOfferManager(type);
+			OfferMatchLog log = manager.enableMatchLog(1024);
+			manager.getOrAddProduct(ACME);
+			manager.getOrAddProduct(GLOBEX);
+			manager.addOffers(ACME, new long[] { 1, 2, 3, 4, 5 }, new long[] { 300, 100, 200, 100, 500 }, 0, 5);
+			manager.addOffers(GLOBEX, new long[] { 6 }, new long[] { 100 }, 0, 1);
+
+			List<String> handed = new ArrayList<>();
+			long first = manager.matchOffers(ACME, PRICE.valueOf("2.009"), 3, (priceCents, offerId) -> handed.add(fill(0, ACME, offerId, priceCents)));
+			long nothing = manager.matchOffers(ACME, PRICE.valueOf("2.99"), 1, (priceCents, offerId) -> handed.add("nothing"));
+			long partly = manager.matchOffers(ACME, PRICE.valueOf("10.00"), 5, (priceCents, offerId) -> handed.add(fill(0, ACME, offerId, priceCents)));
+			long globex = manager.matchOffers(GLOBEX, PRICE.valueOf("1.00"), 1, (priceCents, offerId) -> handed.add(fill(0, GLOBEX, offerId, priceCents)));
+
+			Assert.assertTrue(type.name(), first < nothing && nothing < partly && partly < globex);
+			// Cheapest first, the older of equal prices first - and the rest of an order that runs out lapses
+			Assert.assertEquals(type.name(), Arrays.asList(
+					fill(0, ACME, 2, 100), fill(0, ACME, 4, 100), fill(0, ACME, 3, 200),
+					fill(0, ACME, 1, 300), fill(0, ACME, 5, 500),
+					fill(0, GLOBEX, 6, 100)), handed);
+			Assert.assertEquals(type.name(), Arrays.asList(
+					fill(first, ACME, 2, 100), fill(first, ACME, 4, 100), fill(first, ACME, 3, 200),
+					fill(partly, ACME, 1, 300), fill(partly, ACME, 5, 500),
+					fill(globex, GLOBEX, 6, 100)), fills(log, 0));
+			Assert.assertEquals(type.name(), 0, manager.getProductOffersById(ACME).size());
+		}
+	}
+
+	@Test
+	public void fillsEachOfferOnceUnderConcurrentOrders() throws Throwable {
+		ProductOfferManager manager = new ProductOfferManager(OfferBookType.PRIMITIVE);
+		OfferMatchLog log = manager.enableMatchLog(1 << 16);
+		int offers = 5_000;
+		for (PRODUCTID productId : Arrays.asList(ACME, GLOBEX)) {
+			long[] offerIds = new long[offers];
+			long[] priceCents = new long[offers];
+			for (int o = 0; o < offers; o++) {
+				offerIds[o] = productId.longValue() * offers + o;
+				priceCents[o] = 100 + o % 200;
+			}
+			manager.getOrAddProduct(productId);
+			manager.addOffers(productId, offerIds, priceCents, 0, offers);
+		}
+
+		// Each order's fills, as it was handed them
+		ConcurrentHashMap<Long, List<String>> handed = new ConcurrentHashMap<>();
+		List<Thread> buyers = new ArrayList<>();
+		for (int b = 0; b < 4; b++) {
+			Random random = new Random(b);
+			buyers.add(new Thread(() -> {
+				try {
+					for (int order = 0; order < 2_000; order++) {
+						PRODUCTID productId = random.nextBoolean() ? ACME : GLOBEX;
+						List<String> fills = new ArrayList<>();
+						long orderId = manager.matchOffers(productId, PRICE.valueOf(100 + random.nextInt(250)), 1 + random.nextInt(4),
+								(priceCents, offerId) -> fills.add(fill(0, productId, offerId, priceCents)));
+						if (!fills.isEmpty())
+							handed.put(orderId, fills);
+					}
+				} catch (InvalidProductIdException e) {
+					throw new AssertionError(e);
+				}
+			}));
+		}
+		for (Thread buyer : buyers)
+			buyer.start();
+		for (Thread buyer : buyers)
+			buyer.join();
+
+		// The log holds each order's fills together and in the order handed - and no offer twice
+		long[] records = new long[OfferMatchLog.RECORD_LONGS];
+		Set<Long> filled = new HashSet<>();
+		int orders = 0;
+		long lastOrderId = -1;
+		List<String> order = new ArrayList<>();
+		for (long sequence = 0; log.read(sequence, records, 0) > 0; sequence++) {
+			long orderId = records[1];
+			if (orderId != lastOrderId) {
+				if (lastOrderId != -1)
+					Assert.assertEquals(handed.get(lastOrderId), order);
+				Assert.assertTrue(handed.containsKey(orderId));
+				order = new ArrayList<>();
+				lastOrderId = orderId;
+				orders++;
+			}
+			order.add(fill(0, PRODUCTID.valueOf(records[2]), records[3], records[4]));
+			Assert.assertTrue("offer " + records[3] + " filled twice", filled.add(records[3]));
+		}
+		Assert.assertEquals(handed.get(lastOrderId), order);
+		Assert.assertEquals(handed.size(), orders);
+		Assert.assertEquals(2 * offers - filled.size(), manager.getProductOffersById(ACME).size() + manager.getProductOffersById(GLOBEX).size());
+	}
+
+	@Test
+	public void tellsReadersTheFillsTheyWantedAreGone() throws InvalidProductIdException, InterruptedException {
+		ProductOfferManager manager = new ProductOfferManager(OfferBookType.PRIMITIVE);
+		OfferMatchLog log = manager.enableMatchLog(16);
+		manager.getOrAddProduct(ACME);
+		long[] offerIds = new long[40];
+		long[] priceCents = new long[40];
+		for (int o = 0; o < 40; o++) {
+			offerIds[o] = o + 1;
+			priceCents[o] = 100 + o;
+		}
+		manager.addOffers(ACME, offerIds, priceCents, 0, 40);
+		long orderId = manager.matchOffers(ACME, PRICE.valueOf("10.00"), 40, (price, offerId) -> true);
+
+		long[] records = new long[40 * OfferMatchLog.RECORD_LONGS];
+		Assert.assertEquals(40, log.getLastSequence());
+		Assert.assertEquals(-1, log.read(0, records, 0));
+		Assert.assertEquals(-1, log.read(23, records, 0));
+		Assert.assertEquals(16, log.read(24, records, 0));
+		Assert.assertEquals(fill(orderId, ACME, 25, 124), fill(records[1], PRODUCTID.valueOf(records[2]), records[3], records[4]));
+		Assert.assertEquals(0, log.read(40, records, 0));
+	}
+
+	static String fill(long orderId, PRODUCTID productId, long offerId, long priceCents) {
+		return orderId + "/" + productId.longValue() + "/" + offerId + "/" + priceCents;
+	}
+
+	/**
+	 * @return	Every fill logged after afterSequence, as fill().
+	 */
+	static List<String> fills(OfferMatchLog log, long afterSequence) {
+		long[] records = new long[64 * OfferMatchLog.RECORD_LONGS];
+		List<String> fills = new ArrayList<>();
+		try {
+			for (int count; (count = log.read(afterSequence, records, 0)) > 0; afterSequence += count)
+				for (int at = 0; at < count * OfferMatchLog.RECORD_LONGS; at += OfferMatchLog.RECORD_LONGS)
+					fills.add(fill(records[at + 1], PRODUCTID.valueOf(records[at + 2]), records[at + 3], records[at + 4]));
+		} catch (InterruptedException e) {
+			throw new AssertionError(e);
+		}
+		return Collections.unmodifiableList(fills);
+	}
+}
@@ -0,0 +1,206 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * {@link OfferPriceSeries} points decoded as they were recorded - across every width of tick delta of delta and
+ * price delta, either side of each width's edges, through runs of sealed chunks read from every chunk boundary,
+ * and after same tick replacements - and the buckets {@link OfferPriceHistory#downsample} sums them into.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferPriceSeriesTests {
+
+	// One arena for the class - each takes a 64MB slab on its first page
+	static final OffHeapPageArena ARENA = new OffHeapPageArena();
+
+	static final long NO_PRICE = OfferPriceHistory.NO_PRICE;
+
+	@Test
+	public void decodesDeltasEitherSideOfEveryWidth() {
+		// Each tick delta of delta, then back again - so both signs of each
+		long[] deltasOfDelta = { 0, 1, 63, 64, 65, 255, 256, 257, 2047, 2048, 2049, 1L << 40 };
+		long[] priceDeltas = { 0, 1, -1, 63, -64, 64, -65, 8191, -8192, 8192, -8193, (1 << 23) - 1, -(1 << 23), 1 << 23, -(1 << 23) - 1,
+				1L << 50, -(1L << 51), Long.MAX_VALUE / 4 };
+		long baseDelta = 5_000;
+		List<Long> tickDeltas = new ArrayList<>();
+		for (long deltaOfDelta : deltasOfDelta) {
+			tickDeltas.add(baseDelta + deltaOfDelta);
+			tickDeltas.add(baseDelta);
+		}
+
+		TreeMap<Long, Long> points = new TreeMap<>();
+		long tick = 1_000;
+		long price = 10_000;
+		points.put(tick, price);
+		for (int i = 0; i < Math.max(tickDeltas.size(), priceDeltas.length); i++) {
+			tick += i < tickDeltas.size() ? tickDeltas.get(i) : 1;
+			price += i < priceDeltas.length ? priceDeltas[i] : 0;
+			points.put(tick, price);
+		}
+		// A book emptied and refilled - the widest deltas there are, either way
+		for (long priceCents : new long[] { NO_PRICE, 1, NO_PRICE, Long.MAX_VALUE, NO_PRICE, 0 })
+			points.put(tick += 1, priceCents);
+
+		OfferPriceSeries series = record(points);
+		Assert.assertEquals(0, series.sealed);
+		Assert.assertEquals(points.size(), series.getPoints());
+		assertVisits(points, series, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+		Assert.assertEquals(tick, series.getLastTick());
+		Assert.assertEquals(0, series.getLastPrice());
+	}
+
+	@Test
+	public void decodesAcrossChunkBoundaries() {
+		for (long seed = 0; seed < 3; seed++) {
+			Random random = new Random(seed);
+			TreeMap<Long, Long> points = new TreeMap<>();
+			long tick = random.nextInt(1_000_000);
+			long price = 50_000;
+			for (int i = 0; i < 40_000; i++) {
+				switch (random.nextInt(8)) {
+				case 0:		tick += 1 + random.nextInt(1 << 20); price += random.nextInt(1 << 25) - (1 << 24); break;
+				case 1:		tick += 10; break;
+				case 2:		price = random.nextInt(4) == 0 ? NO_PRICE : random.nextInt(100_000); tick += 1; break;
+				default:	tick += 1 + random.nextInt(20); price += random.nextInt(200) - 100;
+				}
+				points.put(tick, price);
+			}
+
+			int pagesBefore = ARENA.getPagesInUse();
+			OfferPriceSeries series = record(points);
+			Assert.assertTrue(series.sealed > 4);
+			Assert.assertEquals(pagesBefore + series.sealed, ARENA.getPagesInUse());
+			Assert.assertEquals(points.size(), series.getPoints());
+			assertVisits(points, series, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+
+			// From each chunk's first point, either side of it, and from the open chunk's
+			List<Long> starts = new ArrayList<>();
+			for (int chunk = 0; chunk < series.sealed; chunk++)
+				starts.add(series.firstTicks[chunk]);
+			starts.add(series.openFirstTick);
+			for (long start : starts) {
+				for (long from = start - 1; from <= start + 1; from++) {
+					assertVisits(points, series, from, from + 5_000, Integer.MAX_VALUE);
+					assertVisits(points, series, from, Long.MAX_VALUE, 3);
+				}
+			}
+			for (int range = 0; range < 100; range++) {
+				long from = points.firstKey() - 10 + (long) (random.nextDouble() * (points.lastKey() - points.firstKey() + 20));
+				assertVisits(points, series, from, from + random.nextInt(1 << 22), 1 + random.nextInt(2_000));
+			}
+
+			// Trimming keeps the point in effect at the trim - and every point after it
+			long trim = series.firstTicks[series.sealed / 2] + 1;
+			series.trimBefore(trim);
+			Assert.assertTrue(series.firstTicks[0] <= trim);
+			assertVisits(points, series, trim, Long.MAX_VALUE, Integer.MAX_VALUE);
+
+			series.free();
+			Assert.assertEquals(pagesBefore, ARENA.getPagesInUse());
+		}
+	}
+
+	@Test
+	public void keepsTheLastPriceOfATick() {
+		OfferPriceSeries series = new OfferPriceSeries(ARENA);
+		series.record(1, 100);
+		series.record(2, 200);
+		series.record(2, 300);
+		Assert.assertEquals(300, series.getLastPrice());
+		series.record(3, 400);
+		series.record(3, 300);		// Back to the price before it - as if the tick never changed it
+		Assert.assertEquals(300, series.getLastPrice());
+		Assert.assertEquals(2, series.getLastTick());
+		series.record(3, 350);
+		series.record(5, 350);
+		Assert.assertEquals(Arrays.asList("1=100", "2=300", "3=350", "5=350"), visit(series, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE));
+
+		// The point in effect at the start, then those up to the end - within the limit
+		Assert.assertEquals(Arrays.asList("2=300", "3=350"), visit(series, 2, 4, Integer.MAX_VALUE));
+		Assert.assertEquals(Arrays.asList("3=350", "5=350"), visit(series, 4, 5, Integer.MAX_VALUE));
+		Assert.assertEquals(Arrays.asList("1=100"), visit(series, 1, 10, 1));
+		Assert.assertEquals(Arrays.asList(), visit(series, 0, 0, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void downsamplesIntoBuckets() {
+		OfferPriceHistory history = new OfferPriceHistory(1_000, Long.MAX_VALUE, ARENA);
+		OfferPriceSeries series = new OfferPriceSeries(ARENA);
+		history.series.put(1L, series);
+		long[][] points = { { 0, 100 }, { 5, 200 }, { 12, NO_PRICE }, { 15, 150 }, { 25, 300 }, { 30, 400 }, { 40, NO_PRICE }, { 55, 500 } };
+		for (long[] point : points)
+			series.record(point[0], point[1]);
+
+		List<String> buckets = new ArrayList<>();
+		Assert.assertEquals(6, history.downsample(1L, 0, 70_000, 10_000, (bucketMillis, changes, minCents, maxCents, avgCents) ->
+				buckets.add(bucket(bucketMillis, changes, minCents, maxCents, avgCents))));
+		Assert.assertEquals(Arrays.asList(
+				bucket(0, 2, 100, 200, 150),
+				// The price carried in counts, the time without offers does not
+				bucket(10_000, 2, 150, 200, (200 * 2 + 150 * 5) / 7.0),
+				bucket(20_000, 1, 150, 300, 225),
+				// A price replaced right at a bucket's start was never in effect in it
+				bucket(30_000, 1, 400, 400, 400),
+				// 40s to 50s had no offers
+				bucket(50_000, 1, 500, 500, 500),
+				bucket(60_000, 0, 500, 500, 500)), buckets);
+
+		// Buckets start from the start asked for, and begin with the price in effect then
+		buckets.clear();
+		Assert.assertEquals(2, history.downsample(1L, 17_000, 33_000, 10_000, (bucketMillis, changes, minCents, maxCents, avgCents) ->
+				buckets.add(bucket(bucketMillis, changes, minCents, maxCents, avgCents))));
+		Assert.assertEquals(Arrays.asList(
+				bucket(17_000, 1, 150, 300, (150 * 8 + 300 * 2) / 10.0),
+				bucket(27_000, 1, 300, 400, (300 * 3 + 400 * 3) / 6.0)), buckets);
+
+		Assert.assertEquals(0, history.downsample(2L, 0, 70_000, 10_000, (bucketMillis, changes, minCents, maxCents, avgCents) ->
+				Assert.fail("no history")));
+		history.removeProduct(1L);
+	}
+
+	/**
+	 * @return	A series of the points, recorded in order.
+	 */
+	static OfferPriceSeries record(TreeMap<Long, Long> points) {
+		OfferPriceSeries series = new OfferPriceSeries(ARENA);
+		for (Map.Entry<Long, Long> point : points.entrySet())
+			series.record(point.getKey(), point.getValue());
+		return series;
+	}
+
+	/**
+	 * Checks the series visits what the model holds from fromTick to toTick - the point in effect at fromTick, then
+	 * those after it - up to the limit.
+	 */
+	static void assertVisits(TreeMap<Long, Long> points, OfferPriceSeries series, long fromTick, long toTick, int limit) {
+		List<String> expected = new ArrayList<>();
+		Map.Entry<Long, Long> inEffect = points.floorEntry(fromTick);
+		if (inEffect != null)
+			expected.add(inEffect.getKey() + "=" + inEffect.getValue());
+		for (Map.Entry<Long, Long> point : points.subMap(fromTick, false, toTick, true).entrySet()) {
+			if (expected.size() == limit)
+				break;
+			expected.add(point.getKey() + "=" + point.getValue());
+		}
+		Assert.assertEquals("from " + fromTick + " to " + toTick, expected, visit(series, fromTick, toTick, limit));
+	}
+
+	static List<String> visit(OfferPriceSeries series, long fromTick, long toTick, int limit) {
+		List<String> visited = new ArrayList<>();
+		Assert.assertEquals(series.visit(fromTick, toTick, limit, (tick, priceCents) -> visited.add(tick + "=" + priceCents)), visited.size());
+		return visited;
+	}
+
+	static String bucket(long bucketMillis, int changes, long minCents, long maxCents, double avgCents) {
+		return bucketMillis + ": " + changes + " " + minCents + ".." + maxCents + " ~" + String.format("%.3f", avgCents);
+	}
+}
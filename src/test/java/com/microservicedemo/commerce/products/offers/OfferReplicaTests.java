@@ -0,0 +1,206 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.exceptions.InvalidProductIdException;
+
+/**
+ * An {@link OfferReplica} following a primary {@link ProductOfferManager} - from a snapshot taken while the
+ * primary's books are being written, then through its replication log - must end with the primary's books.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferReplicaTests {
+
+	static final int PRODUCTS = 20;
+	static final int WRITERS = 3;
+	static final int CHANGES = 50_000;
+
+	// Records applied per batch - small, so the replica applies many batches
+	static final int BATCH_RECORDS = 100;
+
+	Path directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("offer-replica-tests-");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		try (Stream<Path> paths = Files.list(directory)) {
+			paths.forEach(path -> path.toFile().delete());
+		}
+		Files.delete(directory);
+	}
+
+	@Test
+	public void followsFromASnapshotTakenDuringWrites() throws Exception {
+		ProductOfferManager primary = new ProductOfferManager(OfferBookType.PRIMITIVE);
+		OfferReplicationLog log = primary.enableReplication(1 << 20);
+		Writers writers = new Writers(primary, 1);
+		awaitSequence(log, CHANGES / 2);
+		Path snapshot = snapshot(primary, "mid-write");
+		writers.join();
+
+		OfferReplica replica = new OfferReplica(new ProductOfferManager(OfferBookType.PRIMITIVE));
+		Assert.assertEquals(OfferReplica.NO_EPOCH, replica.getEpoch());
+		replica.load(snapshot, log.getEpoch());
+		Assert.assertEquals(log.getEpoch(), replica.getEpoch());
+		catchUp(replica, log);
+
+		Assert.assertEquals(log.getLastSequence(), replica.getAppliedSequence());
+		Assert.assertEquals(OfferStoreTests.books(primary), OfferStoreTests.books(replica.manager));
+	}
+
+	@Test
+	public void followsWhileThePrimaryWrites() throws Exception {
+		ProductOfferManager primary = new ProductOfferManager(OfferBookType.PRIMITIVE);
+		OfferReplicationLog log = primary.enableReplication(1 << 20);
+		Writers writers = new Writers(primary, 2);
+		awaitSequence(log, CHANGES / 10);
+
+		OfferReplica replica = new OfferReplica(new ProductOfferManager(OfferBookType.PRIMITIVE));
+		replica.load(snapshot(primary, "following"), log.getEpoch());
+		while (writers.isWriting())
+			catchUp(replica, log);
+		writers.join();
+		catchUp(replica, log);
+
+		Assert.assertEquals(OfferStoreTests.books(primary), OfferStoreTests.books(replica.manager));
+	}
+
+	@Test
+	public void startsAfreshOnANewPrimary() throws Exception {
+		ProductOfferManager first = new ProductOfferManager(OfferBookType.PRIMITIVE);
+		OfferReplicationLog firstLog = first.enableReplication(1 << 16);
+		new Writers(first, 3).join();
+
+		OfferReplica replica = new OfferReplica(new ProductOfferManager(OfferBookType.PRIMITIVE));
+		replica.load(snapshot(first, "first"), firstLog.getEpoch());
+		catchUp(replica, firstLog);
+		Assert.assertEquals(OfferStoreTests.books(first), OfferStoreTests.books(replica.manager));
+
+		// Another primary - another epoch - whose books replace the first's entirely
+		ProductOfferManager second = new ProductOfferManager(OfferBookType.PRIMITIVE);
+		OfferReplicationLog secondLog = second.enableReplication(1 << 16);
+		Assert.assertNotEquals(firstLog.getEpoch(), secondLog.getEpoch());
+		new Writers(second, 4).join();
+
+		replica.reset();
+		Assert.assertEquals(OfferReplica.NO_EPOCH, replica.getEpoch());
+		replica.load(snapshot(second, "second"), secondLog.getEpoch());
+		Assert.assertEquals(secondLog.getEpoch(), replica.getEpoch());
+		catchUp(replica, secondLog);
+
+		Assert.assertEquals(secondLog.getLastSequence(), replica.getAppliedSequence());
+		Assert.assertEquals(OfferStoreTests.books(second), OfferStoreTests.books(replica.manager));
+	}
+
+	Path snapshot(ProductOfferManager primary, String name) throws IOException {
+		Path snapshot = directory.resolve(name + ".snapshot");
+		try (FileChannel out = FileChannel.open(snapshot, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			primary.writeReplicationSnapshot(out);
+		}
+		return snapshot;
+	}
+
+	static void awaitSequence(OfferReplicationLog log, long sequence) {
+		while (log.getLastSequence() < sequence)
+			Thread.yield();
+	}
+
+	/**
+	 * Applies the log from the replica's applied sequence to its end, a batch at a time - as the follower does.
+	 */
+	static void catchUp(OfferReplica replica, OfferReplicationLog log) throws InterruptedException {
+		long[] records = new long[BATCH_RECORDS * OfferReplicationLog.RECORD_LONGS];
+		int count;
+		while ((count = log.read(replica.getAppliedSequence(), records, 0)) > 0)
+			replica.apply(records, count);
+		Assert.assertEquals("replica fell out of the log at " + replica.getAppliedSequence() + " of " + log.getLastSequence(), 0, count);
+	}
+
+	/**
+	 * Threads that each add, remove and fill CHANGES offers at random, with offer ids of their own.
+	 */
+	static class Writers {
+		final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+		final List<Thread> threads = new ArrayList<>();
+
+		Writers(ProductOfferManager primary, long seed) {
+			for (int w = 0; w < WRITERS; w++) {
+				Random random = new Random(seed * WRITERS + w);
+				long firstOfferId = (w + 1L) << 40;
+				threads.add(new Thread(() -> {
+					try {
+						write(primary, random, firstOfferId);
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				}));
+			}
+			for (Thread thread : threads)
+				thread.start();
+		}
+
+		void write(ProductOfferManager primary, Random random, long nextOfferId) throws InvalidProductIdException {
+			List<long[]> added = new ArrayList<>();		// (productId, offerId, priceCents)
+			for (int i = 0; i < CHANGES; i++) {
+				PRODUCTID productId = PRODUCTID.valueOf(1 + random.nextInt(PRODUCTS));
+				primary.getOrAddProduct(productId);
+				long priceCents = 100 + random.nextInt(50);
+				int choice = random.nextInt(100);
+				if (choice < 55) {
+					long offerId = nextOfferId++;
+					primary.addOffer(OFFERID.valueOf(offerId), productId, PRICE.valueOf(priceCents));
+					added.add(new long[] { productId.longValue(), offerId, priceCents });
+				} else if (choice < 65) {
+					long[] offerIds = new long[1 + random.nextInt(10)];
+					long[] prices = new long[offerIds.length];
+					for (int o = 0; o < offerIds.length; o++) {
+						offerIds[o] = nextOfferId++;
+						prices[o] = 100 + random.nextInt(50);
+					}
+					primary.addOffers(productId, offerIds, prices, 0, offerIds.length);
+				} else if (choice < 85 && !added.isEmpty()) {
+					long[] offer = added.get(random.nextInt(added.size()));
+					primary.removeOffer(OFFERID.valueOf(offer[1]), PRODUCTID.valueOf(offer[0]), PRICE.valueOf(offer[2]));
+				} else {
+					primary.matchOffers(productId, PRICE.valueOf(priceCents), 1 + random.nextInt(3), (price, offerId) -> true);
+				}
+			}
+		}
+
+		boolean isWriting() {
+			for (Thread thread : threads)
+				if (thread.isAlive())
+					return true;
+			return false;
+		}
+
+		void join() throws InterruptedException {
+			for (Thread thread : threads)
+				thread.join();
+			if (!failures.isEmpty())
+				throw new AssertionError("writer failed", failures.peek());
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.exceptions.InvalidProductIdException;
+
+/**
+ * The offer store - {@link OfferJournal} and {@link OfferSnapshot} - written, crashed in various ways, and
+ * replayed into a new {@link ProductOfferManager}, which must hold exactly the books the old one did.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferStoreTests {
+
+	static final int PRODUCTS = 20;
+	static final long TICK_MILLIS = 10;
+
+	Path directory;
+	List<ProductOfferManager> managers = new ArrayList<>();
+	long nextOfferId = 1;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("offer-store-tests-");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		for (ProductOfferManager manager : managers)
+			manager.close();
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	public void replaysTheJournal() throws Throwable {
+		ProductOfferManager manager = open();
+		change(manager, new Random(1), 5_000);
+		TreeMap<Long, List<Long>> books = books(manager);
+		manager.close();
+
+		Assert.assertEquals(books, books(open()));
+	}
+
+	@Test
+	public void loadsTheSnapshotAndReplaysTheTail() throws Throwable {
+		ProductOfferManager manager = open();
+		Random random = new Random(2);
+		change(manager, random, 5_000);
+		Path snapshot = manager.writeSnapshot();
+		Assert.assertNotNull(snapshot);
+		change(manager, random, 2_000);
+		TreeMap<Long, List<Long>> books = books(manager);
+		manager.close();
+
+		Assert.assertEquals(1, OfferSnapshot.listSnapshots(directory).size());
+		Assert.assertEquals(books, books(open()));
+	}
+
+	@Test
+	public void survivesACrashWithoutClosing() throws Throwable {
+		// With syncCommit every change is durable once made - so a manager never closed loses nothing
+		ProductOfferManager manager = open();
+		Random random = new Random(3);
+		change(manager, random, 3_000);
+		manager.writeSnapshot();
+		change(manager, random, 1_000);
+
+		Assert.assertEquals(books(manager), books(open()));
+	}
+
+	@Test
+	public void cutsATornTailAway() throws Throwable {
+		ProductOfferManager manager = open();
+		change(manager, new Random(4), 3_000);
+		TreeMap<Long, List<Long>> books = books(manager);
+		manager.close();
+
+		// A record with a bad check, then half a record - as a crash mid-write might leave
+		List<Path> segments = OfferJournal.listSegments(directory);
+		Path last = segments.get(segments.size() - 1);
+		try (FileChannel out = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer torn = ByteBuffer.allocate(OfferJournal.RECORD_BYTES + OfferJournal.RECORD_BYTES / 2);
+			torn.putLong(Long.MAX_VALUE >>> 8 << 8 | OfferJournal.ADD).putLong(1).putLong(nextOfferId).putLong(100).putLong(0);
+			torn.clear();
+			out.write(torn);
+		}
+
+		ProductOfferManager reopened = open();
+		Assert.assertEquals(books, books(reopened));
+		Assert.assertEquals(0, Files.size(last) % OfferJournal.RECORD_BYTES);
+
+		// And the journal carries on from there
+		change(reopened, new Random(5), 1_000);
+		books = books(reopened);
+		reopened.close();
+		Assert.assertEquals(books, books(open()));
+	}
+
+	@Test
+	public void ignoresASnapshotCutShortByACrash() throws Throwable {
+		ProductOfferManager manager = open();
+		change(manager, new Random(6), 3_000);
+		TreeMap<Long, List<Long>> books = books(manager);
+		manager.close();
+
+		// Snapshots are written to a temporary file and renamed into place, so a crash leaves only the temporary file
+		Files.write(directory.resolve(OfferSnapshot.snapshotName(Long.MAX_VALUE) + ".tmp"), new byte[] { 1, 2, 3 });
+
+		Assert.assertEquals(books, books(open()));
+	}
+
+	ProductOfferManager open() throws IOException {
+		ProductOfferManager manager = new ProductOfferManager(OfferBookType.PRIMITIVE, TICK_MILLIS);
+		managers.add(manager);
+		manager.openStore(directory, true, 0);
+		return manager;
+	}
+
+	/**
+	 * Adds, removes, expires and fills offers at random.
+	 */
+	void change(ProductOfferManager manager, Random random, int changes) throws InvalidProductIdException, InterruptedException {
+		List<long[]> added = new ArrayList<>();		// (productId, offerId, priceCents)
+		for (int i = 0; i < changes; i++) {
+			PRODUCTID productId = PRODUCTID.valueOf(1 + random.nextInt(PRODUCTS));
+			manager.getOrAddProduct(productId);
+			long priceCents = 100 + random.nextInt(50);
+			int choice = random.nextInt(100);
+			if (choice < 60) {
+				long offerId = nextOfferId++;
+				manager.addOffer(OFFERID.valueOf(offerId), productId, PRICE.valueOf(priceCents));
+				added.add(new long[] { productId.longValue(), offerId, priceCents });
+			} else if (choice < 70) {
+				long[] offerIds = new long[1 + random.nextInt(10)];
+				long[] prices = new long[offerIds.length];
+				for (int o = 0; o < offerIds.length; o++) {
+					offerIds[o] = nextOfferId++;
+					prices[o] = 100 + random.nextInt(50);
+				}
+				manager.addOffers(productId, offerIds, prices, 0, offerIds.length);
+			} else if (choice < 85 && !added.isEmpty()) {
+				long[] offer = added.get(random.nextInt(added.size()));
+				manager.removeOffer(OFFERID.valueOf(offer[1]), PRODUCTID.valueOf(offer[0]), PRICE.valueOf(offer[2]));
+			} else if (choice < 90) {
+				manager.addOffer(OFFERID.valueOf(nextOfferId++), productId, PRICE.valueOf(priceCents), 1);
+			} else {
+				manager.matchOffers(productId, PRICE.valueOf(priceCents), 1 + random.nextInt(3), (price, offerId) -> true);
+			}
+		}
+		// The pending count leaves out offers the wheel hasn't taken from its hand-off buffer yet - which it does each tick
+		Thread.sleep(5 * TICK_MILLIS);
+		while (manager.getPendingExpiries() > 0)
+			Thread.sleep(TICK_MILLIS);
+	}
+
+	/**
+	 * @return	The (priceCents, offerId) pairs of each product's offers, in book order, by product - leaving out empty books.
+	 */
+	static TreeMap<Long, List<Long>> books(ProductOfferManager manager) {
+		TreeMap<Long, List<Long>> books = new TreeMap<>();
+		for (PRODUCTID productId : manager.getProductIds()) {
+			List<Long> offers = new ArrayList<>();
+			manager.getProductOffersById(productId).visitOffersByPrice(null, null, 0, Integer.MAX_VALUE,
+					(priceCents, offerId) -> offers.add(priceCents) && offers.add(offerId));
+			if (!offers.isEmpty())
+				books.put(productId.longValue(), offers);
+		}
+		return books;
+	}
+}
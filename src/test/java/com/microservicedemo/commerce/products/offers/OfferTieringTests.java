@@ -0,0 +1,99 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+
+/**
+ * {@link OfferTiering} swept by hand - its own sweeps are an hour apart - evicting books and loading them back,
+ * with offers expiring while their book is evicted.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferTieringTests {
+
+	static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+	static final long TICK_MILLIS = 10;
+	static final long TTL_MILLIS = 100;
+
+	static final PRODUCTID PRODUCT = PRODUCTID.valueOf(123456020L);
+
+	Path directory;
+	ProductOfferManager manager;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("offer-tiering-tests-");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		if (manager != null)
+			manager.close();
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void evictsAndLoadsBack() throws Throwable {
+		manager = new ProductOfferManager(OfferBookType.PRIMITIVE, TICK_MILLIS);
+		OfferTiering tiering = manager.enableTiering(directory, 1, HOUR_MILLIS, 0);
+		manager.getOrAddProduct(PRODUCT);
+		for (long offerId = 1; offerId <= 100; offerId++)
+			manager.addOffer(OFFERID.valueOf(offerId), PRODUCT, PRICE.valueOf(1000 + offerId % 7));
+
+		// The first sweep retires the idle book, the next writes it out
+		tiering.sweep();
+		tiering.sweep();
+		Assert.assertEquals(1, tiering.getEvictedProducts());
+		Assert.assertEquals(0, tiering.getHotProducts());
+		Assert.assertEquals(1, tiering.getEvictions());
+
+		Assert.assertEquals(100, manager.getProductOffersById(PRODUCT).size());
+		Assert.assertEquals(1, tiering.getLoads());
+		Assert.assertEquals(0, tiering.getEvictedProducts());
+		Assert.assertEquals(OFFERID.valueOf(7), manager.queryClosestOfferIdByPrice(PRODUCT, PRICE.valueOf(1000)));
+	}
+
+	@Test
+	public void expiresAnEvictedBooksOffersOnceLoadedBack() throws Throwable {
+		manager = new ProductOfferManager(OfferBookType.PRIMITIVE, TICK_MILLIS);
+		OfferTiering tiering = manager.enableTiering(directory, 1, HOUR_MILLIS, 0);
+		manager.getOrAddProduct(PRODUCT);
+		manager.addOffer(OFFERID.valueOf(1), PRODUCT, PRICE.valueOf(100), TTL_MILLIS);
+		manager.addOffer(OFFERID.valueOf(2), PRODUCT, PRICE.valueOf(200));
+		manager.addOffer(OFFERID.valueOf(3), PRODUCT, PRICE.valueOf(300), TTL_MILLIS);
+		tiering.sweep();
+		tiering.sweep();
+		Assert.assertEquals(1, tiering.getEvictedProducts());
+
+		// The expiries must not load the book back
+		Thread.sleep(TTL_MILLIS + 5 * TICK_MILLIS);
+		for (long waited = 0; manager.getPendingExpiries() > 0; waited += TICK_MILLIS) {
+			Assert.assertTrue("offers never expired", waited < 10_000);
+			Thread.sleep(TICK_MILLIS);
+		}
+		Assert.assertEquals(0, tiering.getLoads());
+		Assert.assertEquals(1, tiering.getEvictedProducts());
+
+		// Loading it back makes them
+		OfferBook book = manager.getProductOffersById(PRODUCT);
+		Assert.assertEquals(1, tiering.getLoads());
+		Assert.assertEquals(1, book.size());
+		Assert.assertEquals(OFFERID.valueOf(2), manager.queryClosestOfferIdByPrice(PRODUCT, PRICE.valueOf(1000)));
+	}
+}
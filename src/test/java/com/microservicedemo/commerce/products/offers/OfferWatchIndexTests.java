@@ -0,0 +1,207 @@
+package com.microservicedemo.commerce.products.offers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.exceptions.InvalidProductIdException;
+
+/**
+ * The {@link OfferWatchIndex} - an offer triggers exactly the product's watches at or above its price, in
+ * threshold order, one-shot watches end with their first match and standing ones carry on, and removed watches
+ * never trigger again - checked by hand, against a list of watches matched one by one, and through the adds of
+ * a {@link ProductOfferManager}.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferWatchIndexTests {
+
+	static final long ACME = 123456001L;
+	static final long GLOBEX = 123456002L;
+
+	/** A watch as the model keeps it */
+	static class Watch {
+		final long productId;
+		final long watchId;
+		final long watcherId;
+		final long thresholdCents;
+		final boolean oneShot;
+
+		Watch(long productId, long watchId, long watcherId, long thresholdCents, boolean oneShot) {
+			this.productId = productId;
+			this.watchId = watchId;
+			this.watcherId = watcherId;
+			this.thresholdCents = thresholdCents;
+			this.oneShot = oneShot;
+		}
+	}
+
+	@Test
+	public void triggersTheWatchesAtOrAboveThePrice() {
+		OfferWatchIndex index = new OfferWatchIndex(1024);
+		long at500 = index.addWatch(ACME, 1, 500, false);
+		long at499 = index.addWatch(ACME, 2, 499, false);
+		long at900 = index.addWatch(ACME, 3, 900, false);
+		long alsoAt500 = index.addWatch(ACME, 4, 500, false);
+		index.addWatch(GLOBEX, 5, 10_000, false);
+
+		Assert.assertEquals(0, index.match(ACME, 1, 901));
+		Assert.assertEquals(3, index.match(ACME, 2, 500));		// A threshold is inclusive
+		Assert.assertEquals(4, index.match(ACME, 3, 1));
+		Assert.assertEquals(0, index.match(123456999L, 4, 1));
+
+		// Cheapest threshold first, and the older of equal thresholds first
+		Assert.assertEquals(Arrays.asList(
+				match(at500, 1, ACME, 2, 500), match(alsoAt500, 4, ACME, 2, 500), match(at900, 3, ACME, 2, 500),
+				match(at499, 2, ACME, 3, 1), match(at500, 1, ACME, 3, 1), match(alsoAt500, 4, ACME, 3, 1), match(at900, 3, ACME, 3, 1)),
+				matches(index, 0));
+		Assert.assertEquals(5, index.size());
+	}
+
+	@Test
+	public void endsOneShotWatchesWithTheirFirstMatch() {
+		OfferWatchIndex index = new OfferWatchIndex(1024);
+		long once = index.addWatch(ACME, 1, 300, true);
+		long standing = index.addWatch(ACME, 2, 200, false);
+		long onceLower = index.addWatch(ACME, 3, 100, true);
+
+		Assert.assertEquals(2, index.match(ACME, 1, 200));
+		Assert.assertEquals(2, index.size());
+		Assert.assertEquals(1, index.match(ACME, 2, 150));
+		Assert.assertEquals(2, index.match(ACME, 3, 50));
+		Assert.assertEquals(1, index.size());
+		Assert.assertEquals(Arrays.asList(
+				match(standing, 2, ACME, 1, 200), match(once, 1, ACME, 1, 200),
+				match(standing, 2, ACME, 2, 150),
+				match(onceLower, 3, ACME, 3, 50), match(standing, 2, ACME, 3, 50)), matches(index, 0));
+
+		// The last one-shot watch of a product leaves nothing behind
+		OfferWatchIndex onlyOnce = new OfferWatchIndex(1024);
+		onlyOnce.addWatch(GLOBEX, 1, 100, true);
+		Assert.assertEquals(1, onlyOnce.match(GLOBEX, 1, 100));
+		Assert.assertEquals(0, onlyOnce.match(GLOBEX, 2, 100));
+		Assert.assertEquals(0, onlyOnce.size());
+		Assert.assertFalse(onlyOnce.byProduct.containsKey(GLOBEX));
+	}
+
+	@Test
+	public void removedWatchesNeverTrigger() {
+		OfferWatchIndex index = new OfferWatchIndex(1024);
+		long first = index.addWatch(ACME, 1, 500, false);
+		long second = index.addWatch(ACME, 2, 500, false);
+		long once = index.addWatch(ACME, 3, 700, true);
+
+		Assert.assertFalse(index.removeWatch(ACME, first, 499));		// Not at the threshold it was added with
+		Assert.assertFalse(index.removeWatch(GLOBEX, first, 500));
+		Assert.assertTrue(index.removeWatch(ACME, first, 500));
+		Assert.assertFalse(index.removeWatch(ACME, first, 500));
+		Assert.assertEquals(2, index.match(ACME, 1, 500));
+		Assert.assertFalse(index.removeWatch(ACME, once, 700));		// Already ended by its match
+
+		Assert.assertTrue(index.removeWatch(ACME, second, 500));
+		Assert.assertEquals(0, index.size());
+		Assert.assertFalse(index.byProduct.containsKey(ACME));
+		Assert.assertEquals(0, index.match(ACME, 2, 1));
+		Assert.assertEquals(Arrays.asList(match(second, 2, ACME, 1, 500), match(once, 3, ACME, 1, 500)), matches(index, 0));
+	}
+
+	@Test
+	public void matchesTheModel() {
+		for (long seed = 0; seed < 5; seed++) {
+			Random random = new Random(seed);
+			OfferWatchIndex index = new OfferWatchIndex(1 << 16);
+			List<Watch> model = new ArrayList<>();
+			for (int step = 0; step < 5_000; step++) {
+				long productId = ACME + random.nextInt(3);
+				int action = random.nextInt(10);
+				if (action < 4) {
+					long watcherId = random.nextInt(20);
+					long thresholdCents = 100 + random.nextInt(100);
+					boolean oneShot = random.nextBoolean();
+					model.add(new Watch(productId, index.addWatch(productId, watcherId, thresholdCents, oneShot), watcherId, thresholdCents, oneShot));
+				} else if (action < 5 && !model.isEmpty()) {
+					Watch watch = model.remove(random.nextInt(model.size()));
+					Assert.assertTrue(index.removeWatch(watch.productId, watch.watchId, watch.thresholdCents));
+				} else {
+					long offerId = step;
+					long priceCents = 100 + random.nextInt(100);
+					// Checked offer by offer - the watches pile up, and their matches soon outrun the log
+					List<String> expected = new ArrayList<>();
+					long lastSequence = index.getMatches().getLastSequence();
+					Assert.assertEquals(match(model, expected, productId, offerId, priceCents), index.match(productId, offerId, priceCents));
+					Assert.assertEquals(expected, matches(index, lastSequence));
+				}
+				Assert.assertEquals(model.size(), index.size());
+			}
+		}
+	}
+
+	@Test
+	public void matchesTheManagersAdds() throws InvalidProductIdException {
+		ProductOfferManager manager = new ProductOfferManager(OfferBookType.PRIMITIVE);
+		OfferWatchIndex index = manager.enableWatches(1024);
+		PRODUCTID acme = PRODUCTID.valueOf(ACME);
+		manager.getOrAddProduct(acme);
+		long watch = index.addWatch(ACME, 7, 1_000, false);
+
+		manager.addOffer(OFFERID.valueOf(1), acme, PRICE.valueOf("10.01"));
+		manager.addOffer(OFFERID.valueOf(2), acme, PRICE.valueOf("10.00"));
+		manager.addOffers(acme, new long[] { 3, 4, 5 }, new long[] { 999, 2_000, 1 }, 0, 3);
+		Assert.assertEquals(Arrays.asList(match(watch, 7, ACME, 2, 1_000), match(watch, 7, ACME, 3, 999), match(watch, 7, ACME, 5, 1)),
+				matches(index, 0));
+	}
+
+	/**
+	 * Matches an offer against the model's watches, one by one, in the index's order, adding each match to expected.
+	 *
+	 * @return	The number of watches matched.
+	 */
+	static int match(List<Watch> model, List<String> expected, long productId, long offerId, long priceCents) {
+		List<Watch> matched = new ArrayList<>();
+		for (Watch watch : model)
+			if (watch.productId == productId && watch.thresholdCents >= priceCents)
+				matched.add(watch);
+		// By threshold - the model holds each product's watches oldest first, and the sort is stable
+		matched.sort((a, b) -> Long.compare(a.thresholdCents, b.thresholdCents));
+		for (Watch watch : matched)
+			expected.add(match(watch.watchId, watch.watcherId, productId, offerId, priceCents));
+		for (Iterator<Watch> watches = model.iterator(); watches.hasNext(); ) {
+			Watch watch = watches.next();
+			if (watch.oneShot && matched.contains(watch))
+				watches.remove();
+		}
+		return matched.size();
+	}
+
+	static String match(long watchId, long watcherId, long productId, long offerId, long priceCents) {
+		return watchId + "/" + watcherId + "/" + productId + "/" + offerId + "/" + priceCents;
+	}
+
+	/**
+	 * @return	Every match logged after afterSequence, as match(), checking their sequence numbers run on.
+	 */
+	static List<String> matches(OfferWatchIndex index, long afterSequence) {
+		OfferWatchMatchLog log = index.getMatches();
+		long[] records = new long[64 * OfferWatchMatchLog.RECORD_LONGS];
+		List<String> matches = new ArrayList<>();
+		try {
+			for (int count; (count = log.read(afterSequence, records, 0)) > 0; ) {
+				for (int at = 0; at < count * OfferWatchMatchLog.RECORD_LONGS; at += OfferWatchMatchLog.RECORD_LONGS) {
+					Assert.assertEquals(++afterSequence, records[at] >>> 8);
+					matches.add(match(records[at + 1], records[at + 2], records[at + 3], records[at + 4], records[at + 5]));
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new AssertionError(e);
+		}
+		return matches;
+	}
+}
@@ -0,0 +1,141 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The {@link CompletionTrie}, checked against a brute force scan of its completions' keys - the whole folded
+ * completion, and the rest of it from each of its first few word starts.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class CompletionTrieTests {
+
+	static final int COMPLETIONS = 3_000;
+	static final int QUERIES = 1_000;
+
+	// Few syllables, so completions share long prefixes and words recur across them
+	static final String[] SYLLABLES = { "spr", "ing", "bo", "ot", "act", "ion", "ja", "va", "in", "a", "x1", "2" };
+
+	@Test
+	public void completesWordStartsAndMergesCase() {
+		CompletionTrie trie = new CompletionTrie.Builder()
+				.add("Spring in Action", 3)
+				.add("spring boot", 5)
+				.add("SPRING IN ACTION", 4)
+				.add("  ", 100)
+				.add(null, 100)
+				.add("Java-Action", 1)
+				.build();
+
+		Assert.assertEquals(3, trie.size());
+		// The first case added is kept, with the weights added
+		Assert.assertEquals(Arrays.asList("Spring in Action", "spring boot"), trie.complete("SPR", 10));
+		Assert.assertEquals(Arrays.asList("Spring in Action", "Java-Action"), trie.complete("act", 10));
+		Assert.assertEquals(Arrays.asList("Spring in Action"), trie.complete("spring i", 1));
+		Assert.assertEquals(Arrays.asList(), trie.complete("ring", 10));
+		Assert.assertEquals(Arrays.asList(), CompletionTrie.EMPTY.complete("a", 10));
+	}
+
+	@Test
+	public void matchesABruteForceScan() {
+		for (long seed = 0; seed < 4; seed++)
+			matchesBruteForce(new Random(seed));
+	}
+
+	void matchesBruteForce(Random random) {
+		CompletionTrie.Builder builder = new CompletionTrie.Builder();
+		LinkedHashMap<String, Integer> weights = new LinkedHashMap<>();		// By folded completion
+		Map<String, String> completions = new HashMap<>();					// The first case added, by folded completion
+		for (int c = 0; c < COMPLETIONS; c++) {
+			String completion = completion(random);
+			// Few weights, so many completions tie
+			int weight = random.nextInt(10) == 0 ? random.nextInt(1_000_000) : random.nextInt(20);
+			builder.add(completion, weight);
+			String folded = completion.trim().toLowerCase(Locale.ROOT);
+			weights.merge(folded, weight, Integer::sum);
+			completions.putIfAbsent(folded, completion.trim());
+		}
+		CompletionTrie trie = builder.build();
+		Assert.assertEquals(weights.size(), trie.size());
+
+		List<String> folded = new ArrayList<>(weights.keySet());
+		Map<String, List<String>> keys = new HashMap<>();
+		for (String completion : folded)
+			keys.put(completion, keys(completion));
+		for (int q = 0; q < QUERIES; q++) {
+			List<String> someKeys = keys.get(folded.get(random.nextInt(folded.size())));
+			String key = random.nextBoolean() ? someKeys.get(0) : someKeys.get(random.nextInt(someKeys.size()));
+			String prefix = key.substring(0, random.nextInt(key.length() + 1));
+			if (random.nextInt(10) == 0)
+				prefix += "zz";
+			prefix = random.nextBoolean() ? prefix.toUpperCase(Locale.ROOT) : prefix;
+			int limit = 1 + random.nextInt(20);
+
+			String lowerPrefix = prefix.toLowerCase(Locale.ROOT);
+			List<Integer> matching = new ArrayList<>();
+			for (String completion : folded)
+				for (String completionKey : keys.get(completion))
+					if (completionKey.startsWith(lowerPrefix)) {
+						matching.add(weights.get(completion));
+						break;
+					}
+			matching.sort((a, b) -> b - a);
+
+			// Completions of equal weight may come in any order - but they must be the heaviest, heaviest first
+			String at = "query " + q + " \"" + prefix + "\" limit " + limit;
+			List<String> found = trie.complete(prefix, limit);
+			Assert.assertEquals(at, Math.min(limit, matching.size()), found.size());
+			Set<String> distinct = new HashSet<>();
+			for (int i = 0; i < found.size(); i++) {
+				String completion = found.get(i).toLowerCase(Locale.ROOT);
+				Assert.assertTrue(at + " twice " + found.get(i), distinct.add(completion));
+				Assert.assertEquals(at, completions.get(completion), found.get(i));
+				Assert.assertEquals(at + " at " + i, matching.get(i), weights.get(completion));
+				boolean keyed = false;
+				for (String completionKey : keys.get(completion))
+					keyed |= completionKey.startsWith(lowerPrefix);
+				Assert.assertTrue(at + " " + found.get(i), keyed);
+			}
+		}
+	}
+
+	/**
+	 * @return	The keys of a folded completion - all of it, then the rest of it from each of its first few word starts.
+	 */
+	static List<String> keys(String folded) {
+		List<String> keys = new ArrayList<>();
+		keys.add(folded);
+		for (int i = 1; i < folded.length() && keys.size() <= CompletionTrie.MAX_WORD_STARTS; i++)
+			if (Character.isLetterOrDigit(folded.charAt(i)) && !Character.isLetterOrDigit(folded.charAt(i - 1)))
+				keys.add(folded.substring(i));
+		return keys;
+	}
+
+	/**
+	 * @return	One to seven words of syllables, in any case, separated by spaces or punctuation - sometimes padded.
+	 */
+	static String completion(Random random) {
+		StringBuilder completion = new StringBuilder(random.nextInt(10) == 0 ? " " : "");
+		for (int words = 1 + random.nextInt(7); words > 0; words--) {
+			for (int syllables = 1 + random.nextInt(3); syllables > 0; syllables--) {
+				String syllable = SYLLABLES[random.nextInt(SYLLABLES.length)];
+				completion.append(random.nextInt(4) == 0 ? syllable.toUpperCase(Locale.ROOT) : syllable);
+			}
+			if (words > 1)
+				completion.append(random.nextInt(4) == 0 ? "-" : " ");
+		}
+		return completion.toString();
+	}
+}
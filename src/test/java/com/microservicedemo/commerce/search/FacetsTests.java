@@ -0,0 +1,134 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The facet counts of {@link TrigramIndex#searchFaceted}, on a few documents whose counts are known - every
+ * match counted by facet value whatever the facet asked for, most first then by name, within the amounts
+ * asked for, across the edges of the amount buckets, and after documents are removed and put again.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class FacetsTests {
+
+	static final long ANY_MIN = Long.MIN_VALUE;
+	static final long ANY_MAX = Long.MAX_VALUE;
+
+	static TrigramIndex index() {
+		TrigramIndex index = new TrigramIndex();
+		index.put(1, "a1", "red shoe", "Acme", 100);
+		index.put(2, "a2", "red hat", "Acme", 199);
+		index.put(3, "g1", "red shoe", "Globex", 200);
+		index.put(4, "g2", "blue shoe", "Globex", 500);
+		index.put(5, "i1", "red sock", "Initech", 5_000);
+		index.put(6, "n1", "red shoe", null, 150);
+		index.put(7, "i2", "red shoe", "Initech", Facets.NO_AMOUNT);
+		return index;
+	}
+
+	@Test
+	public void countsEveryFacetValueWhateverTheFacetAskedFor() {
+		TrigramIndex index = index();
+		LinkedHashMap<String, Integer> red = counts("Acme", 2, "Initech", 2, "Globex", 1);
+
+		TrigramIndex.FacetPage all = index.searchFaceted("red", null, ANY_MIN, ANY_MAX, Long.MIN_VALUE, 10);
+		Assert.assertEquals(Arrays.asList("a1", "a2", "g1", "i1", "n1", "i2"), all.values);
+		Assert.assertEquals(6, all.total);
+		assertCounts(red, all);
+
+		TrigramIndex.FacetPage globex = index.searchFaceted("RED", "Globex", ANY_MIN, ANY_MAX, Long.MIN_VALUE, 10);
+		Assert.assertEquals(Arrays.asList("g1"), globex.values);
+		Assert.assertEquals(1, globex.total);
+		assertCounts(red, globex);
+
+		// A facet value no document has matches nothing, but the counts stand
+		TrigramIndex.FacetPage hooli = index.searchFaceted("red", "Hooli", ANY_MIN, ANY_MAX, Long.MIN_VALUE, 10);
+		Assert.assertEquals(Collections.emptyList(), hooli.values);
+		Assert.assertEquals(0, hooli.total);
+		assertCounts(red, hooli);
+
+		// The counts are of every page, not just this one
+		TrigramIndex.FacetPage page = index.searchFaceted("red", "Initech", ANY_MIN, ANY_MAX, 5, 1);
+		Assert.assertEquals(Arrays.asList("i2"), page.values);
+		Assert.assertEquals(7, page.lastKey);
+		Assert.assertEquals(2, page.total);
+		assertCounts(red, page);
+	}
+
+	@Test
+	public void countsOnlyAmountsInRange() {
+		TrigramIndex index = index();
+
+		// 150 to 200 takes part of the [100, 200) bucket and the bottom of [200, 500) - and no document without an amount
+		TrigramIndex.FacetPage partly = index.searchFaceted("red", null, 150, 200, Long.MIN_VALUE, 10);
+		Assert.assertEquals(Arrays.asList("a2", "g1", "n1"), partly.values);
+		Assert.assertEquals(3, partly.total);
+		assertCounts(counts("Acme", 1, "Globex", 1), partly);
+
+		TrigramIndex.FacetPage acme = index.searchFaceted("red", "Acme", 150, 200, Long.MIN_VALUE, 10);
+		Assert.assertEquals(Arrays.asList("a2"), acme.values);
+		assertCounts(counts("Acme", 1, "Globex", 1), acme);
+
+		// Whole buckets, from the bottom of one to the top of another
+		TrigramIndex.FacetPage whole = index.searchFaceted("shoe", null, 100, 499, Long.MIN_VALUE, 10);
+		Assert.assertEquals(Arrays.asList("a1", "g1", "n1"), whole.values);
+		assertCounts(counts("Acme", 1, "Globex", 1), whole);
+
+		TrigramIndex.FacetPage open = index.searchFaceted("", null, 500, ANY_MAX, Long.MIN_VALUE, 10);
+		Assert.assertEquals(Arrays.asList("g2", "i1"), open.values);
+		assertCounts(counts("Globex", 1, "Initech", 1), open);
+
+		TrigramIndex.FacetPage none = index.searchFaceted("red", null, 201, 4_999, Long.MIN_VALUE, 10);
+		Assert.assertEquals(0, none.total);
+		assertCounts(counts(), none);
+	}
+
+	@Test
+	public void countsFollowRemovesAndPutsAgain() {
+		TrigramIndex index = index();
+		Assert.assertTrue(index.remove(1));
+		index.put(3, "g1", "red shoe", "Acme", 200);
+
+		TrigramIndex.FacetPage red = index.searchFaceted("red", null, ANY_MIN, ANY_MAX, Long.MIN_VALUE, 10);
+		Assert.assertEquals(Arrays.asList("a2", "g1", "i1", "n1", "i2"), red.values);
+		// Globex has no red match left, so is not counted at all
+		assertCounts(counts("Acme", 2, "Initech", 2), red);
+
+		// Enough documents that the index rewrites its lists and renumbers them - then a third of them removed
+		for (long key = 100; key < 3_100; key++)
+			index.put(key, "v" + key, "red item " + key, key % 3 == 0 ? "Acme" : "Globex", key);
+		for (long key = 100; key < 3_100; key += 3)
+			Assert.assertTrue(index.remove(key + 1));
+
+		// Of 1000 to 1999, Acme keeps the keys divisible by 3 and Globex those one over - those two over are removed
+		TrigramIndex.FacetPage items = index.searchFaceted("item", null, 1_000, 1_999, Long.MIN_VALUE, 5);
+		Assert.assertEquals(Arrays.asList("v1000", "v1002", "v1003", "v1005", "v1006"), items.values);
+		int acme = 0;
+		int globex = 0;
+		for (long key = 1_000; key <= 1_999; key++) {
+			if (key % 3 == 0)
+				acme++;
+			else if (key % 3 == 1)
+				globex++;
+		}
+		Assert.assertEquals(acme + globex, items.total);
+		assertCounts(counts("Globex", globex, "Acme", acme), items);
+	}
+
+	static void assertCounts(LinkedHashMap<String, Integer> expected, TrigramIndex.FacetPage found) {
+		// In order - most first, then by name
+		Assert.assertEquals(expected.entrySet().toString(), found.facetCounts.entrySet().toString());
+	}
+
+	static LinkedHashMap<String, Integer> counts(Object... facetCounts) {
+		LinkedHashMap<String, Integer> counts = new LinkedHashMap<>();
+		for (int i = 0; i < facetCounts.length; i += 2)
+			counts.put((String) facetCounts[i], (Integer) facetCounts[i + 1]);
+		return counts;
+	}
+}
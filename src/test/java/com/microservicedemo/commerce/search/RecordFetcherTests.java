@@ -0,0 +1,108 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * {@link RecordFetcher} - records fetched in the order of their values, LOOKUP_CHUNK at a time, leaving out those
+ * no longer found - and streamed in key order across more than one STREAM_WINDOW of matches, a page of records
+ * fetched at a time.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class RecordFetcherTests {
+
+	/** Records by value - answering each lookup in no particular order, and remembering how many values it asked for */
+	static class Records implements RecordFetcher.Lookup<String> {
+		final Map<String, String> byValue = new HashMap<>();
+		final List<Integer> lookups = new ArrayList<>();
+		final Random random = new Random(23);
+
+		@Override
+		public List<String> find(List<String> values) {
+			lookups.add(values.size());
+			List<String> found = new ArrayList<>();
+			for (String value : values)
+				if (byValue.containsKey(value))
+					found.add(byValue.get(value));
+			Collections.shuffle(found, random);
+			return found;
+		}
+	}
+
+	@Test
+	public void fetchesInTheOrderOfTheValues() {
+		Records records = new Records();
+		List<String> values = new ArrayList<>();
+		List<String> expected = new ArrayList<>();
+		for (int v = 0; v < 2 * RecordFetcher.LOOKUP_CHUNK + 17; v++) {
+			String value = "" + (v * 7_919 % 100_003);
+			values.add(value);
+			// Every tenth record has gone since it was indexed
+			if (v % 10 != 3) {
+				records.byValue.put(value, "record " + value);
+				expected.add("record " + value);
+			}
+		}
+
+		RecordFetcher<String> fetcher = new RecordFetcher<>(records, record -> record.substring("record ".length()));
+		Assert.assertEquals(expected, fetcher.fetch(values));
+		Assert.assertEquals(3, records.lookups.size());
+		for (int lookup : records.lookups)
+			Assert.assertTrue(lookup <= RecordFetcher.LOOKUP_CHUNK);
+
+		Assert.assertEquals(Collections.emptyList(), fetcher.fetch(Collections.emptyList()));
+	}
+
+	@Test
+	public void streamsInKeyOrderAcrossWindows() throws Exception {
+		// Keys out of the order the documents are indexed in, and enough matches for a second window
+		int documents = RecordFetcher.STREAM_WINDOW + 1_500;
+		List<Integer> keys = new ArrayList<>();
+		for (int key = 0; key < documents; key++)
+			keys.add(key);
+		Collections.shuffle(keys, new Random(23));
+
+		TrigramIndex index = new TrigramIndex();
+		Records records = new Records();
+		for (int key : keys) {
+			String value = "v" + key;
+			index.put(key, value, (key % 5 == 0 ? "grey" : "red " + key) + (key < RecordFetcher.STREAM_WINDOW ? " navy" : ""));
+			if (key % 1_000 != 999)
+				records.byValue.put(value, value);		// The rest have gone since they were indexed
+		}
+
+		List<String> expected = new ArrayList<>();
+		for (int key = 0; key < documents; key++)
+			if (key % 5 != 0 && key % 1_000 != 999)
+				expected.add("v" + key);
+
+		int pageSize = 300;
+		List<String> streamed = new ArrayList<>();
+		RecordFetcher<String> fetcher = new RecordFetcher<>(records, record -> record);
+		Assert.assertEquals(expected.size(), fetcher.stream(index, "RED", pageSize, streamed::add));
+		Assert.assertEquals(expected, streamed);
+		for (int lookup : records.lookups)
+			Assert.assertTrue(lookup <= pageSize);
+
+		// Exactly a window of matches - then an empty one
+		expected.clear();
+		for (int key = 0; key < RecordFetcher.STREAM_WINDOW; key++)
+			if (key % 1_000 != 999)
+				expected.add("v" + key);
+		streamed.clear();
+		Assert.assertEquals(expected.size(), fetcher.stream(index, "navy", pageSize, streamed::add));
+		Assert.assertEquals(expected, streamed);
+
+		streamed.clear();
+		Assert.assertEquals(0, fetcher.stream(index, "blue", pageSize, streamed::add));
+		Assert.assertEquals(Collections.emptyList(), streamed);
+	}
+}
@@ -0,0 +1,118 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The {@link TextIndex}, checked against a brute force scan of its documents' words, kept in the order the
+ * documents were last put - through enough changes that the index rewrites its lists many times over.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class TextIndexTests {
+
+	static final int OPERATIONS = 20_000;
+	static final int KEYS = 600;
+
+	// Few words, some much commoner than others, so groups of words match many documents and some none
+	static final String[] WORDS = { "spring", "boot", "in", "action", "java", "red", "blue", "x-1", "2", "\u00c9t\u00e9" };
+
+	/** A document, as put */
+	static class Document {
+		final String value;
+		final Set<String> words = new HashSet<>();
+
+		Document(String value, String... fields) {
+			this.value = value;
+			for (String field : fields)
+				if (field != null)
+					words.addAll(TextIndex.tokenize(field));
+		}
+
+		boolean matches(List<List<String>> groups) {
+			for (List<String> group : groups)
+				if (words.containsAll(group))
+					return true;
+			return false;
+		}
+	}
+
+	@Test
+	public void tokenizesAndParses() {
+		Assert.assertEquals(Arrays.asList("spring", "boot", "x", "1", "\u00e9t\u00e9"), TextIndex.tokenize("Spring-Boot, (x/1) \u00c9T\u00c9"));
+		Assert.assertEquals(Arrays.asList(Arrays.asList("red", "blue"), Arrays.asList("x", "1", "red")),
+				TextIndex.parse(" Red  blue red OR OR x-1 RED OR "));
+		// Only an upper case OR separates groups
+		Assert.assertEquals(Arrays.asList(Arrays.asList("red", "or", "blue")), TextIndex.parse("red or blue"));
+	}
+
+	@Test
+	public void matchesABruteForceScan() {
+		for (long seed = 0; seed < 4; seed++)
+			matchesBruteForce(new Random(seed));
+	}
+
+	void matchesBruteForce(Random random) {
+		TextIndex index = new TextIndex();
+		LinkedHashMap<Long, Document> documents = new LinkedHashMap<>();
+
+		for (int operation = 0; operation < OPERATIONS; operation++) {
+			String at = "operation " + operation;
+			long key = random.nextInt(KEYS);
+			int choice = random.nextInt(100);
+			if (choice < 50) {
+				String[] fields = { text(random), random.nextInt(4) == 0 ? null : text(random) };
+				index.put(key, "v" + operation, fields);
+				// A document put again goes to the end
+				documents.remove(key);
+				documents.put(key, new Document("v" + operation, fields));
+			} else if (choice < 70) {
+				Assert.assertEquals(at, documents.remove(key) != null, index.remove(key));
+			} else {
+				String query = query(random);
+				int limit = 1 + random.nextInt(50);
+				List<List<String>> groups = TextIndex.parse(query);
+				List<String> expected = new ArrayList<>();
+				for (Document document : documents.values())
+					if (expected.size() < limit && document.matches(groups))
+						expected.add(document.value);
+				Assert.assertEquals(at + " \"" + query + "\"", expected, index.search(query, limit));
+			}
+			Assert.assertEquals(at, documents.size(), index.size());
+		}
+	}
+
+	/**
+	 * @return	One to four words, commoner ones likelier, in any case, separated by spaces or punctuation.
+	 */
+	static String text(Random random) {
+		StringBuilder text = new StringBuilder();
+		for (int words = 1 + random.nextInt(4); words > 0; words--) {
+			String word = WORDS[Math.min(random.nextInt(WORDS.length), random.nextInt(WORDS.length))];
+			text.append(random.nextBoolean() ? word : word.toUpperCase(Locale.ROOT)).append(random.nextBoolean() ? " " : ", ");
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return	One to three groups of one to three words, separated by OR.
+	 */
+	static String query(Random random) {
+		StringBuilder query = new StringBuilder();
+		for (int groups = 1 + random.nextInt(3); groups > 0; groups--) {
+			query.append(text(random).replace(",", ""));
+			if (groups > 1)
+				query.append(' ').append(TextIndex.OR).append(' ');
+		}
+		return query.toString();
+	}
+}
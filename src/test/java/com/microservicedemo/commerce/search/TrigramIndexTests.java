@@ -0,0 +1,197 @@
+package com.microservicedemo.commerce.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The {@link TrigramIndex}, checked against a brute force scan of its documents, kept in the order they were
+ * last put - through enough changes that the index rewrites its lists many times over.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class TrigramIndexTests {
+
+	static final int OPERATIONS = 20_000;
+	static final int KEYS = 600;
+
+	// Few letters, so short substrings match many documents and long ones some
+	static final String ALPHABET = "abcABC -";
+	static final String[] FACETS = { "Acme", "Globex", "Initech" };
+
+	/** A document, as put */
+	static class Document {
+		final String value;
+		final String text;
+		final String lowerText;
+		final String facet;
+		final long amount;
+
+		Document(String value, String text, String facet, long amount) {
+			this.value = value;
+			this.text = text;
+			this.lowerText = text == null ? "" : text.toLowerCase(Locale.ROOT);
+			this.facet = facet;
+			this.amount = amount;
+		}
+
+		boolean contains(String lowerSubstring) {
+			return lowerText.contains(lowerSubstring);
+		}
+
+		boolean inRange(long minAmount, long maxAmount) {
+			// Every amount, and none, is in the whole range - but a document with no amount is in no other
+			if (minAmount == Long.MIN_VALUE && maxAmount == Long.MAX_VALUE)
+				return true;
+			return amount != Facets.NO_AMOUNT && amount >= minAmount && amount <= maxAmount;
+		}
+	}
+
+	@Test
+	public void matchesABruteForceScan() {
+		for (long seed = 0; seed < 4; seed++)
+			matchesBruteForce(new Random(seed), seed % 2 == 0);
+	}
+
+	void matchesBruteForce(Random random, boolean faceted) {
+		TrigramIndex index = new TrigramIndex();
+		LinkedHashMap<Long, Document> documents = new LinkedHashMap<>();
+
+		for (int operation = 0; operation < OPERATIONS; operation++) {
+			String at = "operation " + operation;
+			long key = random.nextInt(KEYS);
+			int choice = random.nextInt(100);
+			if (choice < 50) {
+				Document document = new Document("v" + operation, random.nextInt(20) == 0 ? null : text(random, 1 + random.nextInt(24)),
+						faceted && random.nextInt(5) > 0 ? FACETS[random.nextInt(FACETS.length)] : null,
+						faceted && random.nextInt(5) > 0 ? random.nextInt(10_000) : Facets.NO_AMOUNT);
+				if (document.facet != null || document.amount != Facets.NO_AMOUNT)
+					index.put(key, document.value, document.text, document.facet, document.amount);
+				else
+					index.put(key, document.value, document.text);
+				// A document put again goes to the end
+				documents.remove(key);
+				documents.put(key, document);
+			} else if (choice < 70) {
+				Assert.assertEquals(at, documents.remove(key) != null, index.remove(key));
+			} else {
+				String substring = substring(random, documents);
+				at += " \"" + substring + "\"";
+				int limit = 1 + random.nextInt(50);
+				Assert.assertEquals(at, search(documents, substring, limit), index.search(substring, limit));
+				checkPages(at, index, documents, substring, 10 + random.nextInt(40));
+				if (faceted)
+					checkFacets(at, index, documents, substring, random);
+			}
+			Assert.assertEquals(at, documents.size(), index.size());
+		}
+	}
+
+	static List<String> search(LinkedHashMap<Long, Document> documents, String substring, int limit) {
+		String lowerSubstring = substring.toLowerCase(Locale.ROOT);
+		List<String> matches = new ArrayList<>();
+		for (Document document : documents.values())
+			if (matches.size() < limit && document.contains(lowerSubstring))
+				matches.add(document.value);
+		return matches;
+	}
+
+	static void checkPages(String at, TrigramIndex index, LinkedHashMap<Long, Document> documents, String substring, int pageSize) {
+		String lowerSubstring = substring.toLowerCase(Locale.ROOT);
+		List<Long> keys = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		for (Map.Entry<Long, Document> document : new TreeMap<>(documents).entrySet()) {
+			if (document.getValue().contains(lowerSubstring)) {
+				keys.add(document.getKey());
+				values.add(document.getValue().value);
+			}
+		}
+
+		long after = Long.MIN_VALUE;
+		for (int from = 0; ; from += pageSize) {
+			int to = Math.min(from + pageSize, keys.size());
+			TrigramIndex.Page found = index.searchAfter(substring, after, pageSize);
+			Assert.assertEquals(at + " from " + from, values.subList(from, to), found.values);
+			Assert.assertEquals(at + " from " + from, to > from ? keys.get(to - 1) : after, found.lastKey);
+			if (to - from < pageSize)
+				return;
+			after = found.lastKey;
+		}
+	}
+
+	static void checkFacets(String at, TrigramIndex index, LinkedHashMap<Long, Document> documents, String substring, Random random) {
+		String facet = random.nextInt(3) == 0 ? null : random.nextInt(4) == 0 ? "Hooli" : FACETS[random.nextInt(FACETS.length)];
+		long minAmount = Long.MIN_VALUE;
+		long maxAmount = Long.MAX_VALUE;
+		if (random.nextBoolean()) {
+			minAmount = random.nextInt(3) == 0 ? Long.MIN_VALUE : random.nextInt(10_000);
+			maxAmount = random.nextInt(3) == 0 ? Long.MAX_VALUE : minAmount + random.nextInt(3_000);
+		}
+		long afterKey = random.nextBoolean() ? Long.MIN_VALUE : random.nextInt(KEYS);
+		int limit = 1 + random.nextInt(30);
+
+		String lowerSubstring = substring.toLowerCase(Locale.ROOT);
+		TreeMap<Long, Document> byKey = new TreeMap<>(documents);
+		List<String> expected = new ArrayList<>();
+		long lastKey = afterKey;
+		int total = 0;
+		HashMap<String, Integer> counts = new HashMap<>();
+		for (Map.Entry<Long, Document> entry : byKey.entrySet()) {
+			Document document = entry.getValue();
+			if (!document.contains(lowerSubstring) || !document.inRange(minAmount, maxAmount))
+				continue;
+			if (document.facet != null)
+				counts.merge(document.facet, 1, Integer::sum);
+			if (facet != null && !facet.equals(document.facet))
+				continue;
+			total++;
+			if (entry.getKey() > afterKey && expected.size() < limit) {
+				expected.add(document.value);
+				lastKey = entry.getKey();
+			}
+		}
+		List<Map.Entry<String, Integer>> byCount = new ArrayList<>(counts.entrySet());
+		byCount.sort((a, b) -> !a.getValue().equals(b.getValue()) ? b.getValue() - a.getValue() : a.getKey().compareTo(b.getKey()));
+		LinkedHashMap<String, Integer> facetCounts = new LinkedHashMap<>();
+		for (Map.Entry<String, Integer> count : byCount)
+			facetCounts.put(count.getKey(), count.getValue());
+
+		at += " facet " + facet + " amounts " + minAmount + " to " + maxAmount + " after " + afterKey;
+		TrigramIndex.FacetPage found = index.searchFaceted(substring, facet, minAmount, maxAmount, afterKey, limit);
+		Assert.assertEquals(at, expected, found.values);
+		Assert.assertEquals(at, lastKey, found.lastKey);
+		Assert.assertEquals(at, total, found.total);
+		Assert.assertEquals(at, new ArrayList<>(facetCounts.entrySet()), new ArrayList<>(found.facetCounts.entrySet()));
+	}
+
+	/**
+	 * @return	A slice of a document's text in another case, or a few letters at random - some too short to have trigrams.
+	 */
+	static String substring(Random random, LinkedHashMap<Long, Document> documents) {
+		if (random.nextBoolean() && !documents.isEmpty()) {
+			List<Document> all = new ArrayList<>(documents.values());
+			String text = all.get(random.nextInt(all.size())).text;
+			if (text != null) {
+				int from = random.nextInt(text.length());
+				String slice = text.substring(from, Math.min(text.length(), from + 1 + random.nextInt(8)));
+				return random.nextBoolean() ? slice.toUpperCase(Locale.ROOT) : slice;
+			}
+		}
+		return text(random, random.nextInt(6));
+	}
+
+	static String text(Random random, int length) {
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		return text.toString();
+	}
+}
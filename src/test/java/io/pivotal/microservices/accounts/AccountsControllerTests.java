@@ -1,9 +1,11 @@
 package io.pivotal.microservices.accounts;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import org.junit.Before;
+import org.springframework.data.domain.Pageable;
 
 public class AccountsControllerTests extends AbstractAccountControllerTests {
 
@@ -30,6 +32,26 @@ public class AccountsControllerTests extends AbstractAccountControllerTests {
 			return accounts;
 		}
 
+		@Override
+		public List<Account> findByNumberIn(Collection<String> accountNumbers) {
+			List<Account> accounts = new ArrayList<Account>();
+
+			if (accountNumbers.contains(ACCOUNT_1))
+				accounts.add(theAccount);
+
+			return accounts;
+		}
+
+		@Override
+		public List<Account> findByIdGreaterThanOrderByIdAsc(Long id, Pageable page) {
+			List<Account> accounts = new ArrayList<Account>();
+
+			if (theAccount.getId() > id)
+				accounts.add(theAccount);
+
+			return accounts;
+		}
+
 		@Override
 		public int countAccounts() {
 			return 1;
@@ -0,0 +1,195 @@
+package io.pivotal.microservices.accounts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.data.domain.Pageable;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.microservicedemo.commerce.search.RecordFetcher;
+
+/**
+ * Keyset pages and streams of an owner search - every matching account once, in id order, with pages of the
+ * size asked for (within bounds) - both from the {@link AccountSearchIndex} and, without one, by scanning the
+ * repository a page at a time.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class AccountsPagingTests {
+
+	static final int ACCOUNTS = 2_500;
+	static final String[] OWNERS = { "Keri Lee", "Lee Ann Smith", "Bob Jones", "Ashlee Park" };
+
+	static final Pattern NUMBER = Pattern.compile("\"number\":\"(\\d+)\"");
+
+	/** Accounts by id, answering only the lookups the searches make - and never more than a page at a time */
+	static class PagedAccountRepository implements AccountRepository {
+		final TreeMap<Long, Account> byId = new TreeMap<>();
+		int largestPage;
+
+		@Override
+		public Account findByNumber(String accountNumber) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<Account> findByOwnerContainingIgnoreCase(String partialName) {
+			throw new UnsupportedOperationException("an unbounded search");
+		}
+
+		@Override
+		public List<Account> findByNumberIn(Collection<String> accountNumbers) {
+			largestPage = Math.max(largestPage, accountNumbers.size());
+			List<Account> accounts = new ArrayList<>();
+			for (Account account : byId.values())
+				if (accountNumbers.contains(account.getNumber()))
+					accounts.add(account);
+			Collections.reverse(accounts);
+			return accounts;
+		}
+
+		@Override
+		public List<Account> findByIdGreaterThanOrderByIdAsc(Long id, Pageable page) {
+			largestPage = Math.max(largestPage, page.getPageSize());
+			List<Account> accounts = new ArrayList<>();
+			for (Account account : byId.tailMap(id, false).values()) {
+				if (accounts.size() == page.getPageSize())
+					break;
+				accounts.add(account);
+			}
+			return accounts;
+		}
+
+		@Override
+		public int countAccounts() {
+			return byId.size();
+		}
+	}
+
+	@Test
+	public void pagesInIdOrderByScanning() {
+		PagedAccountRepository repository = repository();
+		checkPages(new AccountsController(repository), repository);
+	}
+
+	@Test
+	public void pagesInIdOrderFromTheIndex() {
+		PagedAccountRepository repository = repository();
+		checkPages(controller(repository), repository);
+	}
+
+	@Test
+	public void streamsInIdOrderByScanning() throws IOException {
+		PagedAccountRepository repository = repository();
+		checkStream(new AccountsController(repository), repository);
+	}
+
+	@Test
+	public void streamsInIdOrderFromTheIndex() throws IOException {
+		PagedAccountRepository repository = repository();
+		checkStream(controller(repository), repository);
+	}
+
+	@Test
+	public void boundsThePageSize() {
+		PagedAccountRepository repository = repository();
+		for (AccountsController controller : new AccountsController[] { new AccountsController(repository), controller(repository) }) {
+			repository.largestPage = 0;
+			Assert.assertEquals(controller.searchPageSize, controller.byOwnerPage("lee", null, null).size());
+			Assert.assertEquals(1, controller.byOwnerPage("lee", null, 0).size());
+			Assert.assertEquals(1, controller.byOwnerPage("lee", null, -5).size());
+			Assert.assertEquals(AccountsController.MAX_PAGE_SIZE, controller.byOwnerPage("lee", null, 100_000).size());
+			Assert.assertTrue(repository.largestPage <= AccountsController.MAX_PAGE_SIZE);
+		}
+	}
+
+	static void checkPages(AccountsController controller, PagedAccountRepository repository) {
+		for (String partialName : new String[] { "lee", "SMITH", "nobody" }) {
+			for (int size : new int[] { 1, 7, 250 }) {
+				repository.largestPage = 0;
+				List<String> paged = new ArrayList<>();
+				Long afterId = null;
+				List<Account> page;
+				do {
+					page = controller.byOwnerPage(partialName, afterId, size);
+					Assert.assertTrue(page.size() <= size);
+					for (Account account : page) {
+						paged.add(account.getNumber());
+						afterId = account.getId();
+					}
+				} while (page.size() == size);
+				Assert.assertEquals(partialName + " by " + size, matches(repository, partialName), paged);
+				Assert.assertTrue(repository.largestPage <= Math.max(size, RecordFetcher.LOOKUP_CHUNK));
+			}
+		}
+	}
+
+	static void checkStream(AccountsController controller, PagedAccountRepository repository) throws IOException {
+		for (String partialName : new String[] { "lee", "SMITH", "nobody" }) {
+			repository.largestPage = 0;
+			MockHttpServletResponse response = new MockHttpServletResponse();
+			controller.byOwnerStream(partialName, 64, response);
+			Assert.assertEquals("application/x-ndjson", response.getContentType());
+
+			List<String> streamed = new ArrayList<>();
+			for (String line : response.getContentAsString().split("\n")) {
+				if (line.isEmpty())
+					continue;
+				Matcher number = NUMBER.matcher(line);
+				Assert.assertTrue(line, number.find());
+				streamed.add(number.group(1));
+			}
+			Assert.assertEquals(partialName, matches(repository, partialName), streamed);
+			Assert.assertTrue(repository.largestPage <= 64);
+		}
+	}
+
+	/**
+	 * @return	ACCOUNTS accounts, their ids out of the order of their numbers, with a few gaps between ids.
+	 */
+	static PagedAccountRepository repository() {
+		PagedAccountRepository repository = new PagedAccountRepository();
+		Random random = new Random(23);
+		long id = 0;
+		for (int a = 0; a < ACCOUNTS; a++) {
+			id += 1 + random.nextInt(3);
+			Account account = new Account(String.valueOf(100_000_000 + random.nextInt(900_000_000)), OWNERS[random.nextInt(OWNERS.length)]);
+			account.setId(id);
+			repository.byId.put(id, account);
+		}
+		return repository;
+	}
+
+	/**
+	 * @return	A controller searching an index of the repository's accounts, indexed in no particular order.
+	 */
+	static AccountsController controller(PagedAccountRepository repository) {
+		AccountSearchIndex index = new AccountSearchIndex();
+		index.accountRepository = repository;
+		List<Account> accounts = new ArrayList<>(repository.byId.values());
+		Collections.shuffle(accounts, new Random(23));
+		for (Account account : accounts)
+			index.put(account);
+
+		AccountsController controller = new AccountsController(repository);
+		controller.accountSearchIndex = index;
+		return controller;
+	}
+
+	static List<String> matches(PagedAccountRepository repository, String partialName) {
+		List<String> numbers = new ArrayList<>();
+		for (Account account : repository.byId.values())
+			if (account.getOwner().toLowerCase().contains(partialName.toLowerCase()))
+				numbers.add(account.getNumber());
+		return numbers;
+	}
+}
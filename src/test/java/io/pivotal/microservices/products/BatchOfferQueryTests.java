@@ -0,0 +1,174 @@
+package io.pivotal.microservices.products;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.web.client.RestClientException;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.products.offers.OfferBookType;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * {@link BatchOfferQuery} answers, one line per row in the order the rows were read - across batches, with rows
+ * for products with offers, known products without a book, unknown products and malformed rows mixed together,
+ * and with rows forwarded to another instance spliced back in place, or marked when it did not answer them all.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class BatchOfferQueryTests {
+
+	static final String ACME = BulkOfferLoaderTests.ACME;
+	static final String GLOBEX = BulkOfferLoaderTests.GLOBEX;
+	static final String UNKNOWN = BulkOfferLoaderTests.UNKNOWN;
+	static final URI REMOTE = URI.create("http://remote:2");
+
+	// ACME's offers - offer n at n dollars
+	static final int OFFERS = 50;
+
+	/** A partitioner sending GLOBEX's rows to REMOTE, which answers each with the row and "remote" - or drops the last */
+	static class Partitioner extends OfferPartitioner {
+		final boolean dropLast;
+		final List<String> forwarded = new ArrayList<>();
+
+		Partitioner(boolean dropLast) {
+			this.dropLast = dropLast;
+		}
+
+		@Override
+		public URI ownerOf(PRODUCTID productId) {
+			return productId.equals(PRODUCTID.valueOf(GLOBEX)) ? REMOTE : null;
+		}
+
+		@Override
+		public String forwardPriceQueries(URI owner, String rows) {
+			Assert.assertEquals(REMOTE, owner);
+			StringBuilder answers = new StringBuilder();
+			String[] lines = rows.split("\n");
+			for (int i = 0; i < lines.length - (dropLast ? 1 : 0); i++) {
+				forwarded.add(lines[i]);
+				answers.append(remote(lines[i])).append('\n');
+			}
+			return answers.toString();
+		}
+	}
+
+	@Test
+	public void answersEveryRowInOrderAcrossBatches() throws Throwable {
+		// A known product with no book answers null, just as one whose offers are all dearer
+		StringBuilder csv = new StringBuilder("productId,price\n");
+		List<String> expected = new ArrayList<>();
+		int rows = 2 * BatchOfferQuery.BATCH_SIZE + 100;
+		for (int row = 0; row < rows; row++) {
+			long cents = row % 7_000;
+			String price = cents / 100 + "." + (cents % 100 < 10 ? "0" : "") + cents % 100;
+			switch (row % 5) {
+			case 0:
+			case 1:
+				csv.append(ACME).append(',').append(price).append('\n');
+				expected.add(answer(ACME, price, cents < 100 ? null : "" + Math.min(cents / 100, OFFERS)));
+				break;
+			case 2:
+				csv.append(GLOBEX).append(',').append(price).append('\n');
+				expected.add(answer(GLOBEX, price, null));
+				break;
+			case 3:
+				csv.append(UNKNOWN).append(',').append(price).append('\n');
+				expected.add(row(UNKNOWN, price) + ",\"error\":\"ProductID not found\"}");
+				break;
+			default:
+				csv.append(ACME).append(",x\n");
+				expected.add("{\"error\":\"Line " + (row + 2) + ": bad price\"}");
+			}
+		}
+
+		Assert.assertEquals(expected, query(new BatchOfferQuery(BulkOfferLoaderTests.repository(ACME, GLOBEX), manager()), csv.toString()));
+	}
+
+	@Test
+	public void splicesForwardedAnswersInPlace() throws Throwable {
+		String csv = rows(ACME, "2.50", GLOBEX, "1.00", UNKNOWN, "1.00", GLOBEX, "2.00", ACME, "0.99", GLOBEX, "3.00");
+		Partitioner partitioner = new Partitioner(false);
+		List<String> answers = query(new BatchOfferQuery(BulkOfferLoaderTests.repository(ACME, GLOBEX), manager(), partitioner), csv);
+
+		Assert.assertEquals(Arrays.asList(row(GLOBEX, "1.00") + "}", row(GLOBEX, "2.00") + "}", row(GLOBEX, "3.00") + "}"), partitioner.forwarded);
+		Assert.assertEquals(Arrays.asList(
+				answer(ACME, "2.50", "2"),
+				remote(row(GLOBEX, "1.00") + "}"),
+				row(UNKNOWN, "1.00") + ",\"error\":\"ProductID not found\"}",
+				remote(row(GLOBEX, "2.00") + "}"),
+				answer(ACME, "0.99", null),
+				remote(row(GLOBEX, "3.00") + "}")), answers);
+	}
+
+	@Test
+	public void marksTheRowsOfAnOwnerThatDidNotAnswerThemAll() throws Throwable {
+		String csv = rows(GLOBEX, "1.00", ACME, "1.00", GLOBEX, "2.00");
+		List<String> answers = query(new BatchOfferQuery(BulkOfferLoaderTests.repository(ACME, GLOBEX), manager(), new Partitioner(true)), csv);
+		Assert.assertEquals(Arrays.asList(
+				row(GLOBEX, "1.00") + ",\"error\":\"Owner unavailable\"}",
+				answer(ACME, "1.00", "1"),
+				row(GLOBEX, "2.00") + ",\"error\":\"Owner unavailable\"}"), answers);
+
+		Partitioner unreachable = new Partitioner(false) {
+			@Override
+			public String forwardPriceQueries(URI owner, String rows) {
+				throw new RestClientException("connection refused");
+			}
+		};
+		answers = query(new BatchOfferQuery(BulkOfferLoaderTests.repository(ACME, GLOBEX), manager(), unreachable), csv);
+		Assert.assertEquals(row(GLOBEX, "1.00") + ",\"error\":\"Owner unavailable\"}", answers.get(0));
+		Assert.assertEquals(answer(ACME, "1.00", "1"), answers.get(1));
+	}
+
+	/**
+	 * @return	A manager with ACME's OFFERS offers, and no book for GLOBEX.
+	 */
+	static ProductOfferManager manager() throws Throwable {
+		ProductOfferManager manager = new ProductOfferManager(OfferBookType.PRIMITIVE);
+		PRODUCTID acme = PRODUCTID.valueOf(ACME);
+		long[] offerIds = new long[OFFERS];
+		long[] priceCents = new long[OFFERS];
+		for (int o = 0; o < OFFERS; o++) {
+			offerIds[o] = o + 1;
+			priceCents[o] = (o + 1) * 100;
+		}
+		manager.getOrAddProduct(acme);
+		manager.addOffers(acme, offerIds, priceCents, 0, OFFERS);
+		return manager;
+	}
+
+	static List<String> query(BatchOfferQuery query, String csv) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		query.query(new CsvOfferRowReader(BulkOfferLoaderTests.stream(csv)).forPriceQueries(), out);
+		String answers = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		Assert.assertTrue(answers.endsWith("\n"));
+		return Arrays.asList(answers.split("\n"));
+	}
+
+	static String rows(String... productsAndPrices) {
+		StringBuilder csv = new StringBuilder("productId,price\n");
+		for (int i = 0; i < productsAndPrices.length; i += 2)
+			csv.append(productsAndPrices[i]).append(',').append(productsAndPrices[i + 1]).append('\n');
+		return csv.toString();
+	}
+
+	static String row(String productNumber, String price) {
+		return "{\"productId\":\"" + productNumber + "\",\"price\":" + price;
+	}
+
+	static String answer(String productNumber, String price, String offerId) {
+		return row(productNumber, price) + ",\"nextCheapestOfferId\":" + offerId + "}";
+	}
+
+	static String remote(String row) {
+		return row.substring(0, row.length() - 1) + ",\"remote\":true}";
+	}
+}
@@ -0,0 +1,214 @@
+package io.pivotal.microservices.products;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.products.offers.OfferBookType;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * The bulk offer rows - CSV and newline delimited JSON - read one at a time, malformed rows reported and
+ * skipped without stopping the read, and loaded by the {@link BulkOfferLoader} in batches, with its summary
+ * of what was added, unknown, malformed and left unread.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class BulkOfferLoaderTests {
+
+	static final String ACME = "123456001";
+	static final String GLOBEX = "123456002";
+	static final String UNKNOWN = "123456999";
+
+	@Test
+	public void readsCsvRows() throws IOException {
+		List<String> rows = readAll(new CsvOfferRowReader(stream(
+				"productId,offerId,price\r\n"
+				+ ACME + ", 1 , 10\r\n"
+				+ ACME + ",2,10.5\n"
+				+ "\n"
+				+ GLOBEX + ",3,.99\n"
+				+ GLOBEX + ",4,1.005\n"		// More than two decimals - rounded half even, like Product prices
+				+ GLOBEX + ",5,7")));		// No line end
+		Assert.assertEquals(Arrays.asList(
+				row(ACME, 1, 1000), row(ACME, 2, 1050), row(GLOBEX, 3, 99), row(GLOBEX, 4, 100), row(GLOBEX, 5, 700)), rows);
+	}
+
+	@Test
+	public void reportsAndSkipsMalformedCsvRows() throws IOException {
+		List<String> rows = readAll(new CsvOfferRowReader(stream(
+				ACME + ",1\n"
+				+ ",2,3.00\n"
+				+ ACME + ",x,3.00\n"
+				+ ACME + ",,3.00\n"
+				+ ACME + ",99999999999999999999,3.00\n"
+				+ ACME + ",6,\n"
+				+ ACME + ",7,1.2.3\n"
+				+ ACME + ",8,abc\n"
+				+ "productId,offerId,price\n"		// A header only heads the first line
+				+ ACME + ",10,2.50\n")));
+		Assert.assertEquals(Arrays.asList(
+				"Line 1: expected productId,offerId,price",
+				"Line 2: missing productId",
+				"Line 3: bad offerId",
+				"Line 4: missing offerId",
+				"Line 5: bad offerId",
+				"Line 6: missing price",
+				"Line 7: bad price",
+				"Line 8: bad price",
+				"Line 9: bad offerId",
+				row(ACME, 10, 250)), rows);
+	}
+
+	@Test
+	public void readsCsvPriceQueriesRoundingDown() throws IOException {
+		List<String> rows = readAll(new CsvOfferRowReader(stream(
+				"productId,price\n"
+				+ ACME + ",9.999\n"
+				+ ACME + "\n"
+				+ GLOBEX + ", 10 \n")).forPriceQueries());
+		Assert.assertEquals(Arrays.asList(
+				row(ACME, 0, 999), "Line 3: expected productId,price", row(GLOBEX, 0, 1000)), rows);
+	}
+
+	@Test
+	public void readsJsonRows() throws IOException {
+		List<String> rows = readAll(new JsonOfferRowReader(stream(
+				"{\"productId\": \"" + ACME + "\", \"offerId\": 1, \"price\": 10.5}\n"
+				+ "{\"productId\": \"" + ACME + "\", \"offerId\": \"2\", \"price\": \"0.99\", \"ttlMillis\": 5000}\n"
+				+ "{\"extra\": {\"a\": [1, 2]}, \"productId\": \"" + GLOBEX + "\", \"offerId\": 3, \"price\": 1.005}\n")));
+		Assert.assertEquals(Arrays.asList(
+				row(ACME, 1, 1050), row(ACME, 2, 99) + " ttl 5000", row(GLOBEX, 3, 100)), rows);
+	}
+
+	@Test
+	public void reportsAndSkipsMalformedJsonRows() throws IOException {
+		List<String> rows = readAll(new JsonOfferRowReader(stream(
+				"[1, 2]\n"
+				+ "{\"productId\": \"" + ACME + "\", \"price\": 1}\n"
+				+ "{\"productId\": \"" + ACME + "\", \"offerId\": \"x\", \"price\": 1}\n"
+				+ "{\"productId\": \"" + ACME + "\", \"offerId\": 4, \"price\": true}\n"
+				+ "{\"productId\": \"" + ACME + "\", \"offerId\": 5, \"price\": 5}\n")));
+		Assert.assertEquals(Arrays.asList(
+				"Row 1: expected a JSON object",
+				"Row 2: expected productId, offerId and price",
+				"Row 3: bad offerId",
+				"Row 4: bad price",
+				row(ACME, 5, 500)), rows);
+	}
+
+	@Test
+	public void loadsBatchesAndSummarizesTheRowsItSkipped() throws Throwable {
+		// More rows than a batch, so some products' offers are added in several
+		StringBuilder csv = new StringBuilder("productId,offerId,price\n");
+		int valid = 2 * BulkOfferLoader.BATCH_SIZE + 3;
+		for (int row = 0; row < valid; row++)
+			csv.append(row % 2 == 0 ? ACME : GLOBEX).append(',').append(row + 1).append(',').append(1 + row % 50).append(".25\n");
+		csv.append(UNKNOWN).append(",1,1.00\n");
+		csv.append(UNKNOWN).append(",2,1.00\n");
+		csv.append(ACME).append(",x,1.00\n");
+
+		ProductOfferManager manager = new ProductOfferManager(OfferBookType.PRIMITIVE);
+		LinkedHashMap<String, String> summary = new BulkOfferLoader(repository(ACME, GLOBEX), manager)
+				.load(new CsvOfferRowReader(stream(csv.toString())));
+
+		Assert.assertEquals("" + (valid + 2), summary.get("RowsRead"));
+		Assert.assertEquals("" + valid, summary.get("OffersAdded"));
+		Assert.assertEquals("2", summary.get("UnknownProductRows"));
+		Assert.assertEquals("1", summary.get("MalformedRows"));
+		Assert.assertEquals("3", summary.get("Products"));
+		Assert.assertEquals("[" + UNKNOWN + "]", summary.get("UnknownProducts"));
+		Assert.assertEquals("[Line " + (valid + 4) + ": bad offerId]", summary.get("Malformed"));
+		Assert.assertNull(summary.get("AbortedBy"));
+
+		TreeSet<Long> offerIds = new TreeSet<>();
+		for (String number : Arrays.asList(ACME, GLOBEX)) {
+			PRODUCTID productId = PRODUCTID.valueOf(number);
+			manager.getProductOffersById(productId).visitOffersByPrice(null, null, 0, Integer.MAX_VALUE, (priceCents, offerId) -> {
+				Assert.assertEquals(number, (offerId - 1) % 2 == 0 ? ACME : GLOBEX);
+				Assert.assertEquals(100 + (offerId - 1) % 50 * 100 + 25, priceCents);
+				return offerIds.add(offerId);
+			});
+		}
+		Assert.assertEquals(valid, offerIds.size());
+		Assert.assertEquals(Long.valueOf(valid), offerIds.last());
+	}
+
+	@Test
+	public void keepsWhatItLoadedBeforeBrokenInput() throws Throwable {
+		ProductOfferManager manager = new ProductOfferManager(OfferBookType.PRIMITIVE);
+		LinkedHashMap<String, String> summary = new BulkOfferLoader(repository(ACME), manager).load(new JsonOfferRowReader(stream(
+				"{\"productId\": \"" + ACME + "\", \"offerId\": 1, \"price\": 1.00, \"ttlMillis\": 60000}\n"
+				+ "{\"productId\": \"" + ACME + "\", \"offerId\": 2, \"price\": 2.00}\n"
+				+ "{\"productId\": \"" + ACME + "\", \"offerId\": 3, ")));
+
+		Assert.assertEquals("2", summary.get("RowsRead"));
+		Assert.assertEquals("2", summary.get("OffersAdded"));
+		Assert.assertNotNull(summary.get("AbortedBy"));
+		Assert.assertEquals(2, manager.getProductOffersById(PRODUCTID.valueOf(ACME)).size());
+	}
+
+	/**
+	 * @return	Every row the reader reads, as row() - or the message of each malformed one.
+	 */
+	static List<String> readAll(OfferRowReader reader) throws IOException {
+		List<String> rows = new ArrayList<>();
+		try (OfferRowReader rowReader = reader) {
+			while (true) {
+				try {
+					if (!rowReader.next())
+						return rows;
+					String row = row(rowReader.productNumber, rowReader.withOfferIds ? rowReader.offerId : 0, rowReader.priceCents);
+					rows.add(rowReader.ttlMillis == ProductOfferManager.NO_TTL ? row : row + " ttl " + rowReader.ttlMillis);
+				} catch (IllegalArgumentException e) {
+					rows.add(e.getMessage());
+				}
+			}
+		}
+	}
+
+	static String row(String productNumber, long offerId, long priceCents) {
+		return productNumber + "/" + offerId + "/" + priceCents;
+	}
+
+	static ByteArrayInputStream stream(String body) {
+		return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return	A repository of products with these numbers - answering the lookups by number, and nothing else.
+	 */
+	static ProductRepository repository(String... numbers) {
+		Map<String, Product> products = new HashMap<>();
+		for (String number : numbers)
+			products.put(number, new Product(number, "Product " + number, "Acme"));
+		return (ProductRepository) Proxy.newProxyInstance(ProductRepository.class.getClassLoader(),
+				new Class<?>[] { ProductRepository.class }, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "findByNumber":
+				return products.get(args[0]);
+			case "findByNumberIn":
+				List<Product> found = new ArrayList<>();
+				for (Object number : (Collection<?>) args[0])
+					if (products.containsKey(number))
+						found.add(products.get(number));
+				return found;
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+}
@@ -0,0 +1,243 @@
+package io.pivotal.microservices.products;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.microservicedemo.commerce.abstractions.ids.OFFERID;
+import com.microservicedemo.commerce.abstractions.ids.PRICE;
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.exceptions.InvalidProductIdException;
+import com.microservicedemo.commerce.products.offers.OfferBookType;
+import com.microservicedemo.commerce.products.offers.OfferReplicationLog;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * The {@link OfferChangeFeed} - resuming after a last event id (and starting from now after one that is not
+ * this log's), filtering by product, and a subscriber that falls too far behind skipped ahead after a gap
+ * event or disconnected after a lagged one.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferChangeFeedTests {
+
+	static final PRODUCTID ACME = PRODUCTID.valueOf(123456001L);
+	static final PRODUCTID GLOBEX = PRODUCTID.valueOf(123456002L);
+
+	static final Pattern SEQUENCE = Pattern.compile("\"sequence\":(\\d+)");
+	static final Pattern PRODUCT = Pattern.compile("\"productId\":\"(\\d+)\"");
+
+	/** A feed whose subscribers' emitters record what they are sent */
+	static class Feed extends OfferChangeFeed {
+		Feed(ProductOfferManager manager, int maxSubscribers) {
+			offerManager = manager;
+			enabled = true;
+			this.maxSubscribers = maxSubscribers;
+			batchRecords = 64;
+			batchMillis = 0;
+		}
+
+		@Override
+		protected SseEmitter newEmitter() {
+			return new Recorder();
+		}
+
+		@Override
+		public Recorder subscribe(PRODUCTID productId, String lastEventId, LagPolicy policy, long maxLag) {
+			return (Recorder) super.subscribe(productId, lastEventId, policy, maxLag);
+		}
+	}
+
+	/** Records each event sent as <code>name id data</code> */
+	static class Recorder extends SseEmitter {
+		final List<String> events = Collections.synchronizedList(new ArrayList<>());
+		volatile boolean completed;
+
+		Recorder() {
+			super(0L);
+		}
+
+		@Override
+		public void send(SseEventBuilder builder) {
+			StringBuilder text = new StringBuilder();
+			for (ResponseBodyEmitter.DataWithMediaType part : builder.build())
+				text.append(part.getData());
+			String name = "message";
+			String id = null;
+			String data = null;
+			for (String line : text.toString().split("\n")) {
+				if (line.startsWith("event:"))
+					name = line.substring(6);
+				else if (line.startsWith("id:"))
+					id = line.substring(3);
+				else if (line.startsWith("data:"))
+					data = line.substring(5);
+				else if (line.startsWith(":"))
+					name = line.substring(1);
+			}
+			events.add(name + " " + id + " " + data);
+		}
+
+		@Override
+		public void complete() {
+			completed = true;
+		}
+
+		/**
+		 * @return	The first count events, once there are that many.
+		 */
+		List<String> await(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10_000;
+			while (events.size() < count) {
+				Assert.assertTrue("waited for " + count + " events, have " + events, System.currentTimeMillis() < deadline);
+				Thread.sleep(5);
+			}
+			return new ArrayList<>(events.subList(0, count));
+		}
+	}
+
+	final ProductOfferManager manager = new ProductOfferManager(OfferBookType.PRIMITIVE);
+	Feed feed;
+
+	@After
+	public void close() {
+		if (feed != null)
+			feed.close();
+	}
+
+	@Test
+	public void resumesAfterTheLastEventId() throws Throwable {
+		OfferReplicationLog log = manager.enableReplication(1024);
+		feed = new Feed(manager, 8);
+		for (long offerId = 1; offerId <= 5; offerId++)
+			add(ACME, offerId);
+
+		Recorder resumed = feed.subscribe(null, log.getEpoch() + ":2", OfferChangeFeed.LagPolicy.DROP, 1000);
+		String first = resumed.await(1).get(0);
+		Assert.assertEquals("offers " + log.getEpoch() + ":5", first.substring(0, first.lastIndexOf(' ')));
+		Assert.assertEquals(Arrays.asList(3L, 4L, 5L), sequences(first));
+
+		// Ids from another log, or not ids at all, or ahead of the log, start from now
+		List<Recorder> fromNow = Arrays.asList(
+				feed.subscribe(null, (log.getEpoch() ^ 1) + ":2", OfferChangeFeed.LagPolicy.DROP, 1000),
+				feed.subscribe(null, "not an id", OfferChangeFeed.LagPolicy.DROP, 1000),
+				feed.subscribe(null, log.getEpoch() + ":99", OfferChangeFeed.LagPolicy.DROP, 1000),
+				feed.subscribe(null, null, OfferChangeFeed.LagPolicy.DROP, 1000));
+		add(ACME, 6);
+
+		Assert.assertEquals(Arrays.asList(6L), sequences(resumed.await(2).get(1)));
+		for (Recorder recorder : fromNow) {
+			String event = recorder.await(1).get(0);
+			Assert.assertTrue(event, event.startsWith("offers " + log.getEpoch() + ":6 "));
+			Assert.assertEquals(Arrays.asList(6L), sequences(event));
+		}
+	}
+
+	@Test
+	public void sendsOnlyTheProductsChangesButMovesPastTheRest() throws Throwable {
+		OfferReplicationLog log = manager.enableReplication(1024);
+		feed = new Feed(manager, 8);
+		add(ACME, 1);
+		add(GLOBEX, 2);
+		add(ACME, 3);
+
+		Recorder recorder = feed.subscribe(GLOBEX, log.getEpoch() + ":0", OfferChangeFeed.LagPolicy.DROP, 1000);
+		String first = recorder.await(1).get(0);
+		Assert.assertTrue(first, first.startsWith("offers " + log.getEpoch() + ":3 "));
+		Assert.assertEquals(Arrays.asList(2L), sequences(first));
+		Assert.assertEquals(Arrays.asList("" + GLOBEX.longValue()), products(first));
+
+		// A batch of none of its changes sends nothing
+		add(ACME, 4);
+		add(GLOBEX, 5);
+		String second = recorder.await(2).get(1);
+		Assert.assertTrue(second, second.startsWith("offers " + log.getEpoch() + ":5 "));
+		Assert.assertEquals(Arrays.asList(5L), sequences(second));
+	}
+
+	@Test
+	public void skipsAheadAfterAGapWhenTheLogHasMovedOn() throws Throwable {
+		OfferReplicationLog log = manager.enableReplication(16);
+		feed = new Feed(manager, 8);
+		for (long offerId = 1; offerId <= 40; offerId++)
+			add(ACME, offerId);
+
+		Recorder recorder = feed.subscribe(null, log.getEpoch() + ":0", OfferChangeFeed.LagPolicy.DROP, 1000);
+		Assert.assertEquals("gap " + log.getEpoch() + ":40 {\"fromSequence\":1,\"toSequence\":40}", recorder.await(1).get(0));
+
+		add(ACME, 41);
+		Assert.assertEquals(Arrays.asList(41L), sequences(recorder.await(2).get(1)));
+	}
+
+	@Test
+	public void skipsAheadAfterAGapWhenTheSubscriberLagsTooFar() throws Throwable {
+		OfferReplicationLog log = manager.enableReplication(1024);
+		feed = new Feed(manager, 8);
+		for (long offerId = 1; offerId <= 10; offerId++)
+			add(ACME, offerId);
+
+		// The log still holds every change - but there are more than maxLag of them
+		Recorder lagging = feed.subscribe(null, log.getEpoch() + ":0", OfferChangeFeed.LagPolicy.DROP, 5);
+		Recorder within = feed.subscribe(null, log.getEpoch() + ":5", OfferChangeFeed.LagPolicy.DROP, 5);
+		Assert.assertEquals("gap " + log.getEpoch() + ":10 {\"fromSequence\":1,\"toSequence\":10}", lagging.await(1).get(0));
+		Assert.assertEquals(Arrays.asList(6L, 7L, 8L, 9L, 10L), sequences(within.await(1).get(0)));
+	}
+
+	@Test
+	public void disconnectsASubscriberThatFellBehind() throws Throwable {
+		OfferReplicationLog log = manager.enableReplication(16);
+		feed = new Feed(manager, 8);
+		for (long offerId = 1; offerId <= 40; offerId++)
+			add(ACME, offerId);
+
+		Recorder recorder = feed.subscribe(null, log.getEpoch() + ":3", OfferChangeFeed.LagPolicy.DISCONNECT, 1000);
+		Assert.assertEquals("lagged null {\"lastSequence\":3}", recorder.await(1).get(0));
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (!recorder.completed || feed.getSubscribers() > 0) {
+			Assert.assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(1, recorder.events.size());
+	}
+
+	@Test
+	public void refusesSubscribersWhenDisabledOrFull() {
+		manager.enableReplication(1024);
+		feed = new Feed(manager, 1);
+		Assert.assertNotNull(feed.subscribe(null, null, OfferChangeFeed.LagPolicy.DROP, 1000));
+		Assert.assertNull(feed.subscribe(null, null, OfferChangeFeed.LagPolicy.DROP, 1000));
+
+		Feed disabled = new Feed(manager, 8);
+		disabled.enabled = false;
+		Assert.assertNull(disabled.subscribe(null, null, OfferChangeFeed.LagPolicy.DROP, 1000));
+		Assert.assertNull(new Feed(new ProductOfferManager(OfferBookType.PRIMITIVE), 8).subscribe(null, null, OfferChangeFeed.LagPolicy.DROP, 1000));
+	}
+
+	void add(PRODUCTID productId, long offerId) throws InvalidProductIdException {
+		manager.getOrAddProduct(productId);
+		manager.addOffer(OFFERID.valueOf(offerId), productId, PRICE.valueOf("1.00"));
+	}
+
+	static List<Long> sequences(String event) {
+		List<Long> sequences = new ArrayList<>();
+		for (Matcher sequence = SEQUENCE.matcher(event); sequence.find(); )
+			sequences.add(Long.parseLong(sequence.group(1)));
+		return sequences;
+	}
+
+	static List<String> products(String event) {
+		List<String> products = new ArrayList<>();
+		for (Matcher product = PRODUCT.matcher(event); product.find(); )
+			products.add(product.group(1));
+		return products;
+	}
+}
@@ -0,0 +1,159 @@
+package io.pivotal.microservices.products;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.cloud.client.serviceregistry.Registration;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import com.microservicedemo.commerce.abstractions.ids.PRODUCTID;
+import com.microservicedemo.commerce.exceptions.InvalidProductIdException;
+import com.microservicedemo.commerce.products.offers.OfferBookType;
+import com.microservicedemo.commerce.products.offers.OfferPartitionRing;
+import com.microservicedemo.commerce.products.offers.ProductOfferManager;
+
+/**
+ * {@link OfferPartitioner#handOver} to a node that takes the books, and to one that redirects them (a follower,
+ * or a node with another ring) - whatever the other node did not take must stay here.
+ *
+ * @author Roberto Olivares (reo)
+ */
+public class OfferPartitionerTests {
+
+	static final int PRODUCTS = 40;
+	static final URI REMOTE = URI.create("http://remote:2");
+
+	static final Pattern ROW = Pattern.compile("\\{\"productId\":\"(\\d+)\",\"offerId\":(\\d+),\"price\":([0-9.]+)\\}");
+
+	/** A partitioner sharing the ring with REMOTE, which answers each post with the next of its statuses */
+	static class Partitioner extends OfferPartitioner {
+		final HttpStatus[] statuses;
+		final Set<String> delivered = new HashSet<>();
+		int posts;
+
+		Partitioner(ProductOfferManager manager, HttpStatus... statuses) {
+			this.statuses = statuses;
+			offerManager = manager;
+			registration = new LocalRegistration();
+			Map<String, URI> nodes = new TreeMap<>();
+			nodes.put(localNode(), registration.getUri());
+			nodes.put(REMOTE.getHost() + ":" + REMOTE.getPort(), REMOTE);
+			ring = new OfferPartitionRing(nodes);
+		}
+
+		@Override
+		protected ResponseEntity<String> post(URI uri, HttpEntity<String> request) {
+			Assert.assertEquals(REMOTE.resolve("/products/offers/bulk"), uri);
+			Assert.assertEquals(localNode(), request.getHeaders().getFirst(FORWARDED_HEADER));
+			HttpStatus status = statuses[Math.min(posts++, statuses.length - 1)];
+			if (status.is2xxSuccessful()) {
+				Matcher row = ROW.matcher(request.getBody());
+				while (row.find())
+					delivered.add(offer(Long.parseLong(row.group(1)), Long.parseLong(row.group(2)),
+							new BigDecimal(row.group(3)).movePointRight(2).longValueExact()));
+			}
+			return new ResponseEntity<>(status);
+		}
+	}
+
+	static class LocalRegistration implements Registration {
+		public String getServiceId() { return "products-service"; }
+		public String getHost() { return "local"; }
+		public int getPort() { return 1; }
+		public boolean isSecure() { return false; }
+		public URI getUri() { return URI.create("http://local:1"); }
+		public Map<String, String> getMetadata() { return new TreeMap<>(); }
+	}
+
+	@Test
+	public void handsBooksToTheirOwner() throws InvalidProductIdException {
+		ProductOfferManager manager = manager();
+		Set<String> before = offers(manager);
+		Partitioner partitioner = new Partitioner(manager, HttpStatus.OK);
+		partitioner.handOver();
+
+		Assert.assertFalse(partitioner.delivered.isEmpty());
+		for (PRODUCTID productId : manager.getProductIds())
+			Assert.assertNull(partitioner.ownerOf(productId));
+		Set<String> after = offers(manager);
+		after.addAll(partitioner.delivered);
+		Assert.assertEquals(before, after);
+	}
+
+	@Test
+	public void keepsBooksARedirectingNodeDidNotTake() throws InvalidProductIdException {
+		ProductOfferManager manager = manager();
+		Set<String> before = offers(manager);
+		Partitioner partitioner = new Partitioner(manager, HttpStatus.TEMPORARY_REDIRECT);
+		partitioner.handOver();
+
+		Assert.assertTrue(partitioner.posts > 0);
+		Assert.assertTrue(partitioner.delivered.isEmpty());
+		Assert.assertEquals(before, offers(manager));
+	}
+
+	@Test
+	public void keepsWhatFollowsABatchARedirectingNodeDidNotTake() throws InvalidProductIdException {
+		ProductOfferManager manager = manager();
+		Set<String> before = offers(manager);
+		// The big book's first batch is taken, then the node starts redirecting
+		Partitioner partitioner = new Partitioner(manager, HttpStatus.OK, HttpStatus.TEMPORARY_REDIRECT);
+		partitioner.handOver();
+
+		Assert.assertEquals(OfferPartitioner.HANDOVER_BATCH, partitioner.delivered.size());
+		Set<String> after = offers(manager);
+		for (String offer : partitioner.delivered)
+			Assert.assertTrue("delivered and kept " + offer, after.add(offer));
+		Assert.assertEquals(before, after);
+	}
+
+	/**
+	 * @return	A manager with PRODUCTS small books, and the first book REMOTE owns big enough for a few hand over batches.
+	 */
+	static ProductOfferManager manager() throws InvalidProductIdException {
+		ProductOfferManager manager = new ProductOfferManager(OfferBookType.PRIMITIVE);
+		Partitioner ring = new Partitioner(manager);
+		boolean big = false;
+		long offerId = 1;
+		for (long id = 1; id <= PRODUCTS; id++) {
+			PRODUCTID productId = PRODUCTID.valueOf(id);
+			int size = 10;
+			if (!big && ring.ownerOf(productId) != null) {
+				size = 3 * OfferPartitioner.HANDOVER_BATCH + 5;
+				big = true;
+			}
+			long[] offerIds = new long[size];
+			long[] priceCents = new long[size];
+			for (int o = 0; o < size; o++) {
+				offerIds[o] = offerId++;
+				priceCents[o] = 100 + o % 97;
+			}
+			manager.getOrAddProduct(productId);
+			manager.addOffers(productId, offerIds, priceCents, 0, size);
+		}
+		Assert.assertTrue(big);
+		return manager;
+	}
+
+	static Set<String> offers(ProductOfferManager manager) {
+		Set<String> offers = new HashSet<>();
+		for (PRODUCTID productId : manager.getProductIds())
+			manager.getProductOffersById(productId).visitOffersByPrice(null, null, 0, Integer.MAX_VALUE,
+					(priceCents, offerId) -> offers.add(offer(productId.longValue(), offerId, priceCents)));
+		return offers;
+	}
+
+	static String offer(long productId, long offerId, long priceCents) {
+		return productId + "/" + offerId + "/" + priceCents;
+	}
+}